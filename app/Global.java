@@ -0,0 +1,161 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import models.BookIndex;
+import models.Catalog;
+import models.EntityCache;
+import models.Journal;
+import models.KeyRegistry;
+import models.MatchingEngine;
+import models.SearchCache;
+import models.SqlStats;
+import models.Typeahead;
+import models.WriteBehind;
+import play.Application;
+import play.GlobalSettings;
+import play.mvc.Action;
+import play.mvc.Http;
+import controllers.DatabaseAction;
+import controllers.Fingerprint;
+import controllers.Metrics;
+
+/**
+ * The {@link GlobalSettings} for the TextEx application.
+ *
+ * @author Christopher Foo
+ *
+ */
+public class Global extends GlobalSettings {
+
+  /**
+   * The default number of actions that may wait for a {@link DatabaseAction} thread.
+   */
+  private static final int DEFAULT_DATABASE_QUEUE = 100;
+
+  /**
+   * The default number of threads in the {@link DatabaseAction} pool.
+   */
+  private static final int DEFAULT_DATABASE_THREADS = 10;
+
+  /**
+   * The default interval in milliseconds at which the {@link Journal} is forced to disk when its
+   * fsync policy is <code>interval</code>.
+   */
+  private static final long DEFAULT_JOURNAL_FSYNC_MILLIS = 100;
+
+  /**
+   * The default size in bytes of each {@link Journal} segment.
+   */
+  private static final int DEFAULT_JOURNAL_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+  /**
+   * The default number of bytes appended to the {@link Journal} after which a snapshot is written.
+   */
+  private static final long DEFAULT_JOURNAL_SNAPSHOT_BYTES = 256L * 1024 * 1024;
+
+  /**
+   * The default maximum number of models inserted in one {@link WriteBehind} transaction.
+   */
+  private static final int DEFAULT_WRITE_BEHIND_BATCH = 50;
+
+  /**
+   * The default number of models that may wait to be inserted by {@link WriteBehind}.
+   */
+  private static final int DEFAULT_WRITE_BEHIND_CAPACITY = 1000;
+
+  /**
+   * Builds the in-memory structures from the database once the application has started and
+   * starts the {@link DatabaseAction} thread pool and, if they are enabled, the {@link Journal},
+   * which first replays the saved changes into the database, and {@link WriteBehind}.
+   */
+  @Override
+  public void onStart(Application app) {
+    Integer threads = app.configuration().getInt("database.executor.threads");
+    Integer queueSize = app.configuration().getInt("database.executor.queueSize");
+    DatabaseAction.start((threads == null) ? DEFAULT_DATABASE_THREADS : threads,
+        (queueSize == null) ? DEFAULT_DATABASE_QUEUE : queueSize);
+
+    Integer repeatThreshold = app.configuration().getInt("sql.repeatThreshold");
+    if (repeatThreshold != null) {
+      SqlStats.setRepeatThreshold(repeatThreshold);
+    }
+    Long searchCacheBytes = app.configuration().getLong("search.cacheBytes");
+    SearchCache.setMaxBytes((searchCacheBytes == null) ? SearchCache.DEFAULT_MAX_BYTES
+        : searchCacheBytes);
+    if (Boolean.TRUE.equals(app.configuration().getBoolean("journal.enabled"))) {
+      File directory = app.getFile(app.configuration().getString("journal.directory", "journal"));
+      Long fsyncMillis = app.configuration().getLong("journal.fsyncMillis");
+      Integer segmentBytes = app.configuration().getInt("journal.segmentBytes");
+      Long snapshotBytes = app.configuration().getLong("journal.snapshotBytes");
+      try {
+        Journal.start(directory, Journal.Fsync.valueOf(app.configuration()
+            .getString("journal.fsync", "always").toUpperCase()),
+            (fsyncMillis == null) ? DEFAULT_JOURNAL_FSYNC_MILLIS : fsyncMillis,
+            (segmentBytes == null) ? DEFAULT_JOURNAL_SEGMENT_BYTES : segmentBytes,
+            (snapshotBytes == null) ? DEFAULT_JOURNAL_SNAPSHOT_BYTES : snapshotBytes);
+      }
+      catch (IOException | SQLException e) {
+        throw new IllegalStateException("Could not replay the journal in " + directory, e);
+      }
+    }
+    if (Boolean.TRUE.equals(app.configuration().getBoolean("writeBehind.enabled"))) {
+      Integer capacity = app.configuration().getInt("writeBehind.capacity");
+      Integer batchSize = app.configuration().getInt("writeBehind.batchSize");
+      File log = app.getFile(app.configuration().getString("writeBehind.log", "writebehind.log"));
+      try {
+        WriteBehind.start(log, (capacity == null) ? DEFAULT_WRITE_BEHIND_CAPACITY : capacity,
+            (batchSize == null) ? DEFAULT_WRITE_BEHIND_BATCH : batchSize);
+      }
+      catch (IOException e) {
+        throw new IllegalStateException("Could not open the write-behind log " + log, e);
+      }
+    }
+
+    Fingerprint.load();
+    EntityCache.invalidateAllCaches();
+    SearchCache.clear();
+    KeyRegistry.rebuildAll();
+    BookIndex.rebuild();
+    Catalog.rebuild();
+    MatchingEngine.rebuild();
+    Typeahead.rebuild();
+  }
+
+  /**
+   * Stops the {@link DatabaseAction} thread pool, then {@link WriteBehind}, which inserts the
+   * models still queued, and finally the {@link Journal}.
+   */
+  @Override
+  public void onStop(Application app) {
+    DatabaseAction.stop();
+    WriteBehind.stop();
+    Journal.stop();
+  }
+
+  /**
+   * Records the latency and status of every request. See: {@link Metrics}.
+   */
+  @Override
+  @SuppressWarnings("rawtypes")
+  public Action onRequest(Http.Request request, Method actionMethod) {
+    return Metrics.timed(actionMethod);
+  }
+}
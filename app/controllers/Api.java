@@ -0,0 +1,604 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package controllers;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import play.mvc.Controller;
+import play.mvc.Result;
+import models.WriteBehind;
+import com.avaje.ebean.Query;
+
+/**
+ * The version 1 JSON API for the TextEx application. Responses are written field by field with a
+ * streaming {@link JsonGenerator} rather than built as a tree. The list actions are paged like
+ * the index actions (see: {@link Page}) and every action accepts a "fields" query string parameter
+ * listing the fields to return, which limits the columns selected from the database. The status
+ * actions report whether a new Offer or Request accepted by {@link WriteBehind} is durable yet.
+ *
+ * @author Christopher Foo
+ *
+ */
+@UsesDatabase
+public class Api extends Controller {
+
+  /**
+   * Writes one model as a JSON object.
+   *
+   * @param <T> The type of the model.
+   */
+  private abstract static class ModelWriter<T> {
+
+    /**
+     * Writes the given fields of the given model as a JSON object.
+     *
+     * @param json The generator to write to.
+     * @param model The model to write.
+     * @param fields The fields to write.
+     * @throws IOException If the object could not be written.
+     */
+    abstract void write(JsonGenerator json, T model, Set<String> fields) throws IOException;
+  }
+
+  /**
+   * The fields of a {@link models.Book}.
+   */
+  private static final List<String> BOOK_FIELDS = Arrays.asList("isbn", "name", "authors",
+      "publisher", "edition", "price");
+
+  /**
+   * Writes {@link models.Book}s.
+   */
+  private static final ModelWriter<models.Book> BOOK_WRITER = new ModelWriter<models.Book>() {
+    @Override
+    void write(JsonGenerator json, models.Book book, Set<String> fields) throws IOException {
+      json.writeStartObject();
+      for (String field : fields) {
+        switch (field) {
+        case "isbn":
+          json.writeStringField(field, book.getIsbn());
+          break;
+        case "name":
+          json.writeStringField(field, book.getName());
+          break;
+        case "authors":
+          json.writeStringField(field, book.getAuthors());
+          break;
+        case "publisher":
+          json.writeStringField(field, book.getPublisher());
+          break;
+        case "edition":
+          json.writeNumberField(field, book.getEdition());
+          break;
+        case "price":
+          writeNumber(json, field, book.getPrice());
+          break;
+        default:
+          break;
+        }
+      }
+      json.writeEndObject();
+    }
+  };
+
+  /**
+   * The content type of the JSON responses.
+   */
+  public static final String CONTENT_TYPE = "application/json; charset=utf-8";
+
+  /**
+   * Creates the {@link JsonGenerator}s.
+   */
+  private static final JsonFactory factory = new JsonFactory();
+
+  /**
+   * The fields of an {@link models.Offer}.
+   */
+  private static final List<String> OFFER_FIELDS = Arrays.asList("offerId", "student", "book",
+      "condition", "price", "quantity");
+
+  /**
+   * Writes {@link models.Offer}s. The Student and Book are written as their natural IDs.
+   */
+  private static final ModelWriter<models.Offer> OFFER_WRITER = new ModelWriter<models.Offer>() {
+    @Override
+    void write(JsonGenerator json, models.Offer offer, Set<String> fields) throws IOException {
+      json.writeStartObject();
+      for (String field : fields) {
+        switch (field) {
+        case "offerId":
+          json.writeStringField(field, offer.getOfferId());
+          break;
+        case "student":
+          json.writeStringField(field, offer.getStudent().getStudentId());
+          break;
+        case "book":
+          json.writeStringField(field, offer.getBook().getIsbn());
+          break;
+        case "condition":
+          json.writeStringField(field, offer.getCondition().name());
+          break;
+        case "price":
+          json.writeNumberField(field, offer.getPrice());
+          break;
+        case "quantity":
+          json.writeNumberField(field, offer.getQuantity());
+          break;
+        default:
+          break;
+        }
+      }
+      json.writeEndObject();
+    }
+  };
+
+  /**
+   * The fields of a {@link models.Request}.
+   */
+  private static final List<String> REQUEST_FIELDS = Arrays.asList("requestId", "student",
+      "book", "condition", "price", "quantity");
+
+  /**
+   * Writes {@link models.Request}s. The Student and Book are written as their natural IDs.
+   */
+  private static final ModelWriter<models.Request> REQUEST_WRITER =
+      new ModelWriter<models.Request>() {
+        @Override
+        void write(JsonGenerator json, models.Request request, Set<String> fields)
+            throws IOException {
+          json.writeStartObject();
+          for (String field : fields) {
+            switch (field) {
+            case "requestId":
+              json.writeStringField(field, request.getRequestId());
+              break;
+            case "student":
+              json.writeStringField(field, request.getStudent().getStudentId());
+              break;
+            case "book":
+              json.writeStringField(field, request.getBook().getIsbn());
+              break;
+            case "condition":
+              json.writeStringField(field, (request.getCondition() == null) ? null : request
+                  .getCondition().name());
+              break;
+            case "price":
+              json.writeNumberField(field, request.getPrice());
+              break;
+            case "quantity":
+              json.writeNumberField(field, request.getQuantity());
+              break;
+            default:
+              break;
+            }
+          }
+          json.writeEndObject();
+        }
+      };
+
+  /**
+   * The fields of a {@link models.Student}. The password is never returned.
+   */
+  private static final List<String> STUDENT_FIELDS = Arrays.asList("studentId", "firstName",
+      "lastName", "email");
+
+  /**
+   * Writes {@link models.Student}s.
+   */
+  private static final ModelWriter<models.Student> STUDENT_WRITER =
+      new ModelWriter<models.Student>() {
+        @Override
+        void write(JsonGenerator json, models.Student student, Set<String> fields)
+            throws IOException {
+          json.writeStartObject();
+          for (String field : fields) {
+            switch (field) {
+            case "studentId":
+              json.writeStringField(field, student.getStudentId());
+              break;
+            case "firstName":
+              json.writeStringField(field, student.getFirstName());
+              break;
+            case "lastName":
+              json.writeStringField(field, student.getLastName());
+              break;
+            case "email":
+              json.writeStringField(field, student.getEmail());
+              break;
+            default:
+              break;
+            }
+          }
+          json.writeEndObject();
+        }
+      };
+
+  /**
+   * Gets the {@link models.Book} with the given ISBN as JSON.
+   *
+   * @param isbn The ISBN of the Book.
+   * @return A 200 {@link Status} containing the Book, a 400 Status if the fields are invalid or a
+   * 404 Status if the Book does not exist.
+   */
+  public static Result book(String isbn) {
+    Set<String> fields = parseFields(BOOK_FIELDS);
+    if (fields == null) {
+      return badFields(BOOK_FIELDS);
+    }
+    models.Book book = models.Book.findByIsbn(isbn);
+    return (book == null) ? notFound("No book found") : one(BOOK_WRITER, book, fields);
+  }
+
+  /**
+   * Gets a page of the {@link models.Book}s in the database as JSON, selecting only the requested
+   * fields.
+   *
+   * @return A 200 {@link Status} containing the page of Books or a 400 Status if the fields are
+   * invalid.
+   */
+  public static Result books() {
+    Set<String> fields = parseFields(BOOK_FIELDS);
+    if (fields == null) {
+      return badFields(BOOK_FIELDS);
+    }
+    Query<models.Book> query = models.Book.find().select(select(fields));
+    return page("books", query, BOOK_WRITER, fields);
+  }
+
+  /**
+   * Gets the {@link models.Offer} with the given ID as JSON.
+   *
+   * @param offerId The ID of the Offer.
+   * @return A 200 {@link Status} containing the Offer, a 400 Status if the fields are invalid or
+   * a 404 Status if the Offer does not exist.
+   */
+  public static Result offer(String offerId) {
+    Set<String> fields = parseFields(OFFER_FIELDS);
+    if (fields == null) {
+      return badFields(OFFER_FIELDS);
+    }
+    models.Offer offer = models.Offer.findByOfferId(offerId);
+    return (offer == null) ? notFound("No offer found") : one(OFFER_WRITER, offer, fields);
+  }
+
+  /**
+   * Gets the persistence status of the {@link models.Offer} with the given ID as JSON: "pending"
+   * while it waits to be inserted by {@link WriteBehind}, "durable" once it is in the database or
+   * "failed" if it could not be inserted.
+   *
+   * @param offerId The ID of the Offer.
+   * @return A 200 {@link Status} containing the status or a 404 Status if the Offer is unknown.
+   */
+  public static Result offerStatus(String offerId) {
+    return status("offer", offerId, WriteBehind.offerStatus(offerId));
+  }
+
+  /**
+   * Gets a page of the {@link models.Offer}s in the database as JSON, selecting only the
+   * requested fields.
+   *
+   * @return A 200 {@link Status} containing the page of Offers or a 400 Status if the fields are
+   * invalid.
+   */
+  public static Result offers() {
+    Set<String> fields = parseFields(OFFER_FIELDS);
+    if (fields == null) {
+      return badFields(OFFER_FIELDS);
+    }
+    Query<models.Offer> query = selectOwned(models.Offer.find().query(), fields);
+    return page("offers", query, OFFER_WRITER, fields);
+  }
+
+  /**
+   * Gets the {@link models.Request} with the given ID as JSON.
+   *
+   * @param requestId The ID of the Request.
+   * @return A 200 {@link Status} containing the Request, a 400 Status if the fields are invalid
+   * or a 404 Status if the Request does not exist.
+   */
+  public static Result request(String requestId) {
+    Set<String> fields = parseFields(REQUEST_FIELDS);
+    if (fields == null) {
+      return badFields(REQUEST_FIELDS);
+    }
+    models.Request request = models.Request.findByRequestId(requestId);
+    return (request == null) ? notFound("No request found") : one(REQUEST_WRITER, request,
+        fields);
+  }
+
+  /**
+   * Gets the persistence status of the {@link models.Request} with the given ID as JSON. See:
+   * {@link #offerStatus(String)}.
+   *
+   * @param requestId The ID of the Request.
+   * @return A 200 {@link Status} containing the status or a 404 Status if the Request is unknown.
+   */
+  public static Result requestStatus(String requestId) {
+    return status("request", requestId, WriteBehind.requestStatus(requestId));
+  }
+
+  /**
+   * Gets a page of the {@link models.Request}s in the database as JSON, selecting only the
+   * requested fields.
+   *
+   * @return A 200 {@link Status} containing the page of Requests or a 400 Status if the fields
+   * are invalid.
+   */
+  public static Result requests() {
+    Set<String> fields = parseFields(REQUEST_FIELDS);
+    if (fields == null) {
+      return badFields(REQUEST_FIELDS);
+    }
+    Query<models.Request> query = selectOwned(models.Request.find().query(), fields);
+    return page("requests", query, REQUEST_WRITER, fields);
+  }
+
+  /**
+   * Gets the {@link models.Student} with the given ID as JSON.
+   *
+   * @param studentId The ID of the Student.
+   * @return A 200 {@link Status} containing the Student, a 400 Status if the fields are invalid
+   * or a 404 Status if the Student does not exist.
+   */
+  public static Result student(String studentId) {
+    Set<String> fields = parseFields(STUDENT_FIELDS);
+    if (fields == null) {
+      return badFields(STUDENT_FIELDS);
+    }
+    models.Student student = models.Student.findByStudentId(studentId);
+    return (student == null) ? notFound("No student found") : one(STUDENT_WRITER, student,
+        fields);
+  }
+
+  /**
+   * Gets a page of the {@link models.Student}s in the database as JSON, selecting only the
+   * requested fields.
+   *
+   * @return A 200 {@link Status} containing the page of Students or a 400 Status if the fields
+   * are invalid.
+   */
+  public static Result students() {
+    Set<String> fields = parseFields(STUDENT_FIELDS);
+    if (fields == null) {
+      return badFields(STUDENT_FIELDS);
+    }
+    Query<models.Student> query = models.Student.find().select(select(fields));
+    return page("students", query, STUDENT_WRITER, fields);
+  }
+
+  /**
+   * Creates the 400 {@link Status} returned when the "fields" parameter names an unknown field.
+   *
+   * @param known The known fields.
+   * @return The 400 Status.
+   */
+  private static Result badFields(List<String> known) {
+    return badRequest("UnknownField: The fields must be a comma separated list of " + known
+        + ".\n");
+  }
+
+  /**
+   * Creates a {@link JsonGenerator} that writes to the given writer.
+   *
+   * @param writer The writer.
+   * @return The JsonGenerator.
+   * @throws IOException If the generator could not be created.
+   */
+  private static JsonGenerator generator(StringWriter writer) throws IOException {
+    return factory.createJsonGenerator(writer);
+  }
+
+  /**
+   * Gets the primary key of the given model.
+   *
+   * @param model The model.
+   * @return The primary key of the model.
+   */
+  private static Long getPrimaryKey(Object model) {
+    if (model instanceof models.Book) {
+      return ((models.Book) model).getPrimaryKey();
+    }
+    else if (model instanceof models.Student) {
+      return ((models.Student) model).getPrimaryKey();
+    }
+    else if (model instanceof models.Offer) {
+      return ((models.Offer) model).getPrimaryKey();
+    }
+    else if (model instanceof models.Request) {
+      return ((models.Request) model).getPrimaryKey();
+    }
+    return null;
+  }
+
+  /**
+   * Creates the 200 {@link Status} containing the given model as a JSON object.
+   *
+   * @param writer The writer for the model.
+   * @param model The model.
+   * @param fields The fields to write.
+   * @return The 200 Status.
+   */
+  private static <T> Result one(ModelWriter<T> writer, T model, Set<String> fields) {
+    StringWriter body = new StringWriter();
+    try (JsonGenerator json = generator(body)) {
+      writer.write(json, model, fields);
+    }
+    catch (IOException e) {
+      return internalServerError(e.getMessage());
+    }
+    response().setContentType(CONTENT_TYPE);
+    return ok(body.toString());
+  }
+
+  /**
+   * Creates the 200 {@link Status} containing a {@link Page} of the given query as a JSON object.
+   * The object holds the models in an array under the given name and, if there is a next page,
+   * its cursor under "next". The cursor is also returned in the {@link Page#NEXT_CURSOR_HEADER}
+   * header.
+   *
+   * @param name The name of the array of models.
+   * @param query The query to page through.
+   * @param writer The writer for the models.
+   * @param fields The fields to write.
+   * @return The 200 Status.
+   */
+  private static <T> Result page(String name, Query<T> query, ModelWriter<T> writer,
+      Set<String> fields) {
+    Page<T> page =
+        Page.fetch(query.where(), "primaryKey", Page.parseKey(request().getQueryString("after")),
+            Page.parseSize(request().getQueryString("size")));
+    String next = page.hasNext() ? String.valueOf(getPrimaryKey(page.getLast())) : null;
+
+    StringWriter body = new StringWriter();
+    try (JsonGenerator json = generator(body)) {
+      json.writeStartObject();
+      json.writeArrayFieldStart(name);
+      for (T model : page.getItems()) {
+        writer.write(json, model, fields);
+      }
+      json.writeEndArray();
+      if (next != null) {
+        json.writeStringField("next", next);
+      }
+      json.writeEndObject();
+    }
+    catch (IOException e) {
+      return internalServerError(e.getMessage());
+    }
+
+    if (next != null) {
+      response().setHeader(Page.NEXT_CURSOR_HEADER, next);
+    }
+    response().setContentType(CONTENT_TYPE);
+    return ok(body.toString());
+  }
+
+  /**
+   * Parses the "fields" query string parameter.
+   *
+   * @param known The fields of the model, in the order they are returned by default.
+   * @return The requested fields, all of the known fields if none were requested or null if an
+   * unknown field was requested.
+   */
+  private static Set<String> parseFields(List<String> known) {
+    String requested = request().getQueryString("fields");
+    if (requested == null || requested.trim().length() == 0) {
+      return new LinkedHashSet<>(known);
+    }
+    Set<String> fields = new LinkedHashSet<>();
+    for (String field : requested.split(",")) {
+      field = field.trim();
+      if (field.length() == 0) {
+        continue;
+      }
+      if (!known.contains(field)) {
+        return null;
+      }
+      fields.add(field);
+    }
+    return fields.isEmpty() ? new LinkedHashSet<>(known) : fields;
+  }
+
+  /**
+   * Creates the list of properties to select for the given fields. The primary key is always
+   * selected since it is the page cursor.
+   *
+   * @param fields The requested fields.
+   * @return The comma separated properties.
+   */
+  private static String select(Set<String> fields) {
+    StringBuilder properties = new StringBuilder("primaryKey");
+    for (String field : fields) {
+      properties.append(", ").append(field);
+    }
+    return properties.toString();
+  }
+
+  /**
+   * Limits the given {@link models.Offer} or {@link models.Request} query to the requested
+   * fields. The "student" and "book" fields are fetched with a join on just the natural ID.
+   *
+   * @param query The query.
+   * @param fields The requested fields.
+   * @return The query.
+   */
+  private static <T> Query<T> selectOwned(Query<T> query, Set<String> fields) {
+    Set<String> own = new LinkedHashSet<>(fields);
+    own.remove("student");
+    own.remove("book");
+    query = query.select(select(own));
+    if (fields.contains("student")) {
+      query = query.fetch("student", "studentId");
+    }
+    if (fields.contains("book")) {
+      query = query.fetch("book", "isbn");
+    }
+    return query;
+  }
+
+  /**
+   * Creates the 200 {@link Status} containing the persistence status of a model.
+   *
+   * @param name The name of the model, e.g. "offer".
+   * @param id The ID of the model.
+   * @param status The persistence status of the model.
+   * @return The 200 Status or a 404 Status if the status is {@link WriteBehind.Status#UNKNOWN}.
+   */
+  private static Result status(String name, String id, WriteBehind.Status status) {
+    if (status == WriteBehind.Status.UNKNOWN) {
+      return notFound("No " + name + " found");
+    }
+    StringWriter body = new StringWriter();
+    try (JsonGenerator json = generator(body)) {
+      json.writeStartObject();
+      json.writeStringField(name + "Id", id);
+      json.writeStringField("status", status.name().toLowerCase(Locale.ENGLISH));
+      json.writeEndObject();
+    }
+    catch (IOException e) {
+      return internalServerError(e.getMessage());
+    }
+    response().setContentType(CONTENT_TYPE);
+    return ok(body.toString());
+  }
+
+  /**
+   * Writes the given number or null to the given generator.
+   *
+   * @param json The generator.
+   * @param field The name of the field.
+   * @param value The value of the field or null.
+   * @throws IOException If the field could not be written.
+   */
+  private static void writeNumber(JsonGenerator json, String field, Double value)
+      throws IOException {
+    if (value == null) {
+      json.writeNullField(field);
+    }
+    else {
+      json.writeNumberField(field, value);
+    }
+  }
+}
@@ -59,16 +59,13 @@ public class Application extends Controller {
    * 
    * @return A 200 {@link Status} if successfully logged in or a 400 Status if the login failed.
    */
+  @UsesDatabase
   public static Result login() {
     DynamicForm loginForm = Form.form().bindFromRequest();
-    models.Student user =
-        models.Student.find().where().eq("email", loginForm.get("email"))
-            .eq("password", Crypto.encryptAES(loginForm.get("password"))).findUnique();
-    if (user == null) {
-      user =
-          models.Student.find().where().eq("studentId", loginForm.get("email"))
-              .eq("password", Crypto.encryptAES(loginForm.get("password"))).findUnique();
-    }
+    long start = System.nanoTime();
+    String password = Crypto.encryptAES(loginForm.get("password"));
+    models.Student user = models.Student.authenticate(loginForm.get("email"), password);
+    LoginStats.record(System.nanoTime() - start, user != null);
     if (user == null) {
       flash("loginFail", "t");
       return badRequest(index.render(loginForm));
@@ -112,6 +109,6 @@ public class Application extends Controller {
    * @return A 200 {@link Status} to the default search / browse books page.
    */
   public static Result search() {
-    return ok(search.render(new DynamicForm(), new DynamicForm(), null));
+    return ok(search.render(new DynamicForm(), new DynamicForm(), null, null));
   }
 }
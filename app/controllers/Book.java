@@ -17,11 +17,26 @@
 
 package controllers;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import models.BookImporter;
+import models.BookIndex;
+import models.Catalog;
+import models.KeyRegistry;
+import models.MatchingEngine;
+import models.SearchCache;
 import play.data.DynamicForm;
 import play.data.Form;
+import play.data.validation.ValidationError;
+import play.mvc.BodyParser;
 import play.mvc.Controller;
+import play.mvc.Http;
 import play.mvc.Result;
 import com.avaje.ebean.ExpressionList;
 
@@ -31,6 +46,7 @@ import com.avaje.ebean.ExpressionList;
  * @author Christopher Foo
  * 
  */
+@UsesDatabase
 public class Book extends Controller {
 
   /**
@@ -41,7 +57,7 @@ public class Book extends Controller {
    * @return A 200 {@link Status}.
    */
   public static Result delete(String isbn) {
-    models.Book book = models.Book.find().where().eq("isbn", isbn).findUnique();
+    models.Book book = models.Book.findByIsbn(isbn);
     if (book != null) {
       book.delete();
     }
@@ -49,26 +65,79 @@ public class Book extends Controller {
   }
 
   /**
-   * Gets the information of the {@link models.Book} with the given ISBN.
+   * Gets the information of the {@link models.Book} with the given ISBN. The page shows the Book,
+   * its market and whether the user is logged in, so its ETag is made of their versions and a 304
+   * {@link Status} is returned without rendering if the client's copy is current. See:
+   * {@link Conditional}.
    * 
    * @param isbn The ISBN of the Book to retrieve.
-   * @return A 200 {@link Status} containing the information of the found Book or a 404 Status if
-   * the Book cannot be found.
+   * @return A 200 {@link Status} containing the information of the found Book, a 304 Status if
+   * it has not changed or a 404 Status if the Book cannot be found.
    */
   public static Result details(String isbn) {
-    models.Book book = models.Book.find().where().eq("isbn", isbn).findUnique();
-    return (book == null) ? notFound("No book found") : ok(views.html.bookinfo.render(
-        new DynamicForm(), book));
+    models.Book book = models.Book.findByIsbn(isbn);
+    if (book == null) {
+      return notFound("No book found");
+    }
+    String user = session("username");
+    String etag =
+        Conditional.etag(book.getPrimaryKey(), book.getVersion(), MatchingEngine.marketChange(book),
+            (user == null) ? "" : Integer.toHexString(user.hashCode()));
+    Result notModified = Conditional.check(etag,
+        Math.max(Conditional.latest(book.getLastModified()), MatchingEngine.marketChangedAt(book)));
+    return (notModified == null) ? ok(views.html.bookinfo.render(new DynamicForm(), book))
+        : notModified;
   }
 
   /**
-   * Gets all of the {@link models.Book}s in the database..
+   * Gets a page of the {@link models.Book}s in the database ordered by primary key. The page is
+   * selected with the optional "after" (cursor) and "size" query string parameters and the
+   * cursor of the next page, if there is one, is returned in the {@link Page#NEXT_CURSOR_HEADER}
+   * header. A size of {@link Page#ALL} streams all of the Books after the cursor instead.
    * 
-   * @return A 200 {@link Status} containing the Books currently in the database.
+   * @return A 200 {@link Status} containing a page of the Books in the database.
    */
   public static Result index() {
-    List<models.Book> books = models.Book.find().findList();
-    return ok((books.size() == 0) ? "No books" : books.toString());
+    Long after = Page.parseKey(request().getQueryString("after"));
+    String size = request().getQueryString("size");
+    if (Page.ALL.equals(size)) {
+      return Page.stream(models.Book.find().where(), "primaryKey", after, "No books");
+    }
+
+    Page<models.Book> page =
+        Page.fetch(models.Book.find().where(), "primaryKey", after, Page.parseSize(size));
+    if (page.hasNext()) {
+      response().setHeader(Page.NEXT_CURSOR_HEADER, page.getLast().getPrimaryKey().toString());
+    }
+    return ok(page.getItems().isEmpty() ? "No books" : page.getItems().toString());
+  }
+
+  /**
+   * Imports {@link models.Book}s in bulk from the body of the POST request. The body is CSV with a
+   * header row unless the request's content type is JSON, in which case each line of the body is a
+   * JSON object. Large bodies are buffered to disk by the body parser and read back one line at a
+   * time. See: {@link BookImporter}.
+   * 
+   * @return A 200 {@link Status} containing the number of imported Books and the errors in the
+   * rows that could not be imported or a 400 Status if the body cannot be read.
+   */
+  @BodyParser.Of(value = BodyParser.Raw.class, maxLength = 100 * 1024 * 1024)
+  public static Result importBooks() {
+    Http.RawBuffer body = request().body().asRaw();
+    if (body == null) {
+      return badRequest("MissingBody: The books to import are missing.\n");
+    }
+
+    String contentType = request().getHeader(CONTENT_TYPE);
+    boolean jsonLines = contentType != null && contentType.contains("json");
+    try (Reader reader = new InputStreamReader(new FileInputStream(body.asFile()), "UTF-8")) {
+      BookImporter.Report report =
+          jsonLines ? BookImporter.importJsonLines(reader) : BookImporter.importCsv(reader);
+      return ok(report.toString());
+    }
+    catch (IOException e) {
+      return badRequest("ReadFailed: " + e.getMessage() + "\n");
+    }
   }
 
   /**
@@ -93,60 +162,107 @@ public class Book extends Controller {
       return badRequest(views.html.add.render(new DynamicForm(), bookForm, true, false));
     }
     models.Book book = bookForm.get();
-    book.save();
+    if (!KeyRegistry.saveUnique(book)) {
+      ValidationError error = book.alreadyExistsError();
+      bookForm.reject(error.key(), error.message());
+      return badRequest(views.html.add.render(new DynamicForm(), bookForm, true, false));
+    }
     return ok(views.html.add.render(new DynamicForm(), bookForm, false, true));
   }
 
   /**
    * Searches the database for {@link models.Book}s that match the criteria provided by the request.
+   * The text criteria are answered by the {@link BookIndex} and the edition and price criteria by
+   * the {@link Catalog} snapshot, so that only the Books being shown are loaded from the database.
+   * The ordered keys of the matching Books are kept in the {@link SearchCache}, so repeated
+   * searches and later pages skip the matching too. Results are returned one {@link Page} at a
+   * time, ordered by ISBN.
    * 
    * @return A 200 {@link Status} with the search page containing the matching Books.
    */
   public static Result search() {
     DynamicForm bookForm = Form.form().bindFromRequest();
-    ExpressionList<models.Book> query = models.Book.find().where();
-
-    // Add constraints to the query.
-    if (bookForm.get("isbn").length() > 0) {
-      query = query.icontains("isbn", bookForm.get("isbn"));
-    }
-
-    if (bookForm.get("name").length() > 0) {
-      query = query.icontains("name", bookForm.get("name"));
+    SearchCache.Query criteria =
+        new SearchCache.Query(bookForm.get("isbn"), bookForm.get("name"), bookForm.get("authors"),
+            bookForm.get("publisher"), bookForm.get("edition"), bookForm.get("price"));
+    SearchCache.Result result = SearchCache.get(criteria);
+    if (result == null) {
+      result = findMatches(criteria, SearchCache.getGeneration());
     }
 
-    if (bookForm.get("authors").length() > 0) {
-      query = query.icontains("authors", bookForm.get("authors"));
+    // Load the requested page, using the ISBN of the last Book on the previous page as the cursor.
+    String after = bookForm.get("after");
+    int from = result.indexAfter((after == null || after.length() == 0) ? null : after);
+    int to = Math.min(result.size(), from + Page.parseSize(bookForm.get("size")));
+    List<models.Book> items = new ArrayList<>();
+    if (from < to) {
+      items = models.Book.find().where().in("primaryKey", result.getKeys(from, to))
+          .orderBy("isbn").findList();
     }
+    String nextCursor = (to < result.size()) ? result.getIsbn(to - 1) : null;
+    return ok(views.html.search.render(new DynamicForm(), bookForm, items, nextCursor));
+  }
 
-    if (bookForm.get("publisher").length() > 0) {
-      query = query.icontains("publisher", bookForm.get("publisher"));
-    }
+  /**
+   * Finds the primary keys and ISBNs of all of the {@link models.Book}s that match the given
+   * criteria, ordered by ISBN, and caches them. The edition, price and publisher criteria are
+   * evaluated against the {@link Catalog} snapshot unless a text criterion has to be left to the
+   * database.
+   *
+   * @param criteria The search criteria.
+   * @param since The {@link SearchCache#getGeneration()} before the search was run.
+   * @return The result.
+   */
+  private static SearchCache.Result findMatches(SearchCache.Query criteria, long since) {
+    ExpressionList<models.Book> query = models.Book.find().select("isbn").where();
+    boolean indexed = true;
+    String publisher = null;
 
-    if (bookForm.get("authors").length() > 0) {
-      query = query.icontains("authors", bookForm.get("authors"));
+    // Look up the text constraints in the index.
+    List<Set<Long>> matches = new ArrayList<>();
+    for (String field : BookIndex.FIELDS) {
+      String value = criteria.get(field);
+      if (value.length() > 0) {
+        Set<Long> keys = BookIndex.search(field, value);
+        if (keys == null) {
+          // Nothing the index can match (e.g. only punctuation) so let the database do it. The
+          // catalog's publisher dictionary can answer publishers too.
+          query = query.icontains(field, value);
+          if ("publisher".equals(field)) {
+            publisher = value;
+          }
+          else {
+            indexed = false;
+          }
+        }
+        else {
+          matches.add(keys);
+        }
+      }
     }
 
-    if (bookForm.get("edition").length() > 0) {
-      try {
-        query = query.ge("edition", Integer.parseInt(bookForm.get("edition")));
-      }
-      catch (NumberFormatException e) {
-        // Do nothing. Just ignore it for now.
+    Set<Long> candidates = null;
+    if (matches.size() > 0) {
+      candidates = BookIndex.intersect(matches);
+      if (candidates.isEmpty()) {
+        return SearchCache.put(criteria, new long[0], new String[0], since);
       }
+      query = query.in("primaryKey", candidates);
     }
 
-    if (bookForm.get("price").length() > 0) {
-      try {
-        query = query.le("price", Double.parseDouble(bookForm.get("price")));
-      }
-      catch (NumberFormatException e) {
-        // Do nothing. Just ignore it for now.
-      }
+    if (indexed) {
+      Catalog catalog = Catalog.current();
+      int[] rows =
+          catalog.filter(candidates, publisher, criteria.getEdition(), criteria.getPrice());
+      return SearchCache.put(criteria, catalog.getKeys(rows), catalog.getIsbns(rows), since);
     }
 
-    // Run query.
-    List<models.Book> bookList = query.orderBy("isbn").findList();
-    return ok(views.html.search.render(new DynamicForm(), bookForm, bookList));
+    if (criteria.getEdition() != null) {
+      query = query.ge("edition", criteria.getEdition());
+    }
+    if (criteria.getPrice() != null) {
+      query = query.le("price", criteria.getPrice());
+    }
+    return SearchCache.put(criteria, query.orderBy("isbn").findList(), since);
   }
 }
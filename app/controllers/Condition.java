@@ -36,6 +36,36 @@ public enum Condition {
   @EnumValue("S")
   SLIGHTLY_USED;
 
+  /**
+   * Determines whether a {@link models.Book} in this {@link Condition} is acceptable to a buyer
+   * asking for the given Condition. A Book is acceptable if it is in the same or a better
+   * Condition.
+   * 
+   * @param target The Condition asked for by the buyer or null if any Condition is acceptable.
+   * @return True if this Condition is acceptable.
+   */
+  public boolean satisfies(Condition target) {
+    return (target == null) || this.rank() >= target.rank();
+  }
+
+  /**
+   * Ranks this {@link Condition} from worst (0) to best.
+   * 
+   * @return The rank of this Condition.
+   */
+  private int rank() {
+    switch (this) {
+    case HEAVILY_USED:
+      return 0;
+    case SLIGHTLY_USED:
+      return 1;
+    case NEW:
+      return 2;
+    default:
+      return -1;
+    }
+  }
+
   /**
    * Returns the {@link String} representation of this {@link Condition}.
    */
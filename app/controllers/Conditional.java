@@ -0,0 +1,171 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package controllers;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import play.mvc.Http;
+import play.mvc.Result;
+import play.mvc.Results;
+
+/**
+ * Answers conditional GET requests. A detail action computes the ETag and last modified time of
+ * its page from the versions of the models it shows and calls {@link #check(String, long)} before
+ * rendering anything; if the client's copy is still current the action returns the 304
+ * {@link Result} instead of rendering the page.
+ *
+ * <p>
+ * Every ETag starts with the time the application started, and no page is older than that time,
+ * so pages cached by an earlier deployment are never mistaken for current ones.
+ * </p>
+ *
+ * @author Christopher Foo
+ *
+ */
+public final class Conditional {
+
+  /**
+   * The value of the Cache-Control header, which makes clients revalidate every time.
+   */
+  private static final String CACHE_CONTROL = "private, no-cache";
+
+  /**
+   * The format of the dates in HTTP headers.
+   */
+  private static final String HTTP_DATE = "EEE, dd MMM yyyy HH:mm:ss 'GMT'";
+
+  /**
+   * When the application started, in milliseconds since the epoch.
+   */
+  private static final long STARTED = System.currentTimeMillis();
+
+  /**
+   * Sets the validators of the current response and checks them against the request's
+   * If-None-Match or, if it has none, If-Modified-Since header.
+   *
+   * @param etag The ETag of the page. See: {@link #etag(Object...)}.
+   * @param lastModified When the page last changed, in milliseconds since the epoch.
+   * @return A 304 {@link Result} if the client's copy is current or null if the page should be
+   * rendered.
+   */
+  public static Result check(String etag, long lastModified) {
+    long modified = Math.max(lastModified, STARTED) / 1000 * 1000;
+    Http.Response response = Http.Context.current().response();
+    response.setHeader(Http.HeaderNames.ETAG, etag);
+    response.setHeader(Http.HeaderNames.LAST_MODIFIED, format().format(new Date(modified)));
+    response.setHeader(Http.HeaderNames.CACHE_CONTROL, CACHE_CONTROL);
+
+    Http.Request request = Http.Context.current().request();
+    String ifNoneMatch = request.getHeader(Http.HeaderNames.IF_NONE_MATCH);
+    if (ifNoneMatch != null) {
+      return matches(ifNoneMatch, etag) ? notModified() : null;
+    }
+    String ifModifiedSince = request.getHeader(Http.HeaderNames.IF_MODIFIED_SINCE);
+    if (ifModifiedSince != null) {
+      try {
+        if (modified <= format().parse(ifModifiedSince).getTime()) {
+          return notModified();
+        }
+      }
+      catch (ParseException e) {
+        // Ignore the header if the date is invalid.
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Creates a strong ETag from the given values, which should identify the versions of everything
+   * shown on a page.
+   *
+   * @param parts The values, which may be null.
+   * @return The quoted ETag.
+   */
+  public static String etag(Object... parts) {
+    StringBuilder etag = new StringBuilder("\"").append(Long.toString(STARTED, 36));
+    for (Object part : parts) {
+      etag.append('-').append(part);
+    }
+    return etag.append('"').toString();
+  }
+
+  /**
+   * Gets the latest of the given timestamps.
+   *
+   * @param dates The timestamps, which may be null.
+   * @return The latest time in milliseconds since the epoch or 0 if every timestamp is null.
+   */
+  public static long latest(Date... dates) {
+    long latest = 0;
+    for (Date date : dates) {
+      if (date != null) {
+        latest = Math.max(latest, date.getTime());
+      }
+    }
+    return latest;
+  }
+
+  /**
+   * Creates the format of the dates in HTTP headers. Formats are not thread safe so a new one is
+   * created each time.
+   *
+   * @return The format.
+   */
+  private static SimpleDateFormat format() {
+    SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE, Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return format;
+  }
+
+  /**
+   * Determines whether the given If-None-Match header matches the given ETag. Weak tags in the
+   * header are compared by their value.
+   *
+   * @param header The If-None-Match header.
+   * @param etag The ETag.
+   * @return True if the header matches.
+   */
+  private static boolean matches(String header, String etag) {
+    for (String tag : header.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if ("*".equals(tag) || etag.equals(tag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Creates the 304 {@link Result} returned when the client's copy is current.
+   *
+   * @return The 304 Result.
+   */
+  private static Result notModified() {
+    return Results.status(Http.Status.NOT_MODIFIED);
+  }
+
+  private Conditional() {
+    // Empty Private constructor to prevent instantiation.
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package controllers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import models.SqlStats;
+import play.libs.Akka;
+import play.mvc.Action;
+import play.mvc.Http;
+import play.mvc.Result;
+import scala.concurrent.Promise;
+import scala.concurrent.Promise$;
+
+/**
+ * Runs the actions marked with {@link UsesDatabase} on a dedicated, bounded thread pool so that
+ * slow database calls cannot starve Play's request-handling threads, which keep serving assets and
+ * cheap routes. The action's result is returned as an asynchronous {@link Result}. When all of the
+ * threads are busy and the queue is full the request is rejected at once with a 503 rather than
+ * waiting, which keeps the latency of the queued requests bounded. The pool is created by
+ * {@link #start(int, int)} when the application starts; until then actions run on the calling
+ * thread.
+ *
+ * @author Christopher Foo
+ *
+ */
+public class DatabaseAction extends Action.Simple {
+
+  /**
+   * The thread pool or null if it has not been started.
+   */
+  private static volatile ThreadPoolExecutor executor;
+
+  /**
+   * The number of requests rejected because the pool was saturated.
+   */
+  private static final AtomicLong rejections = new AtomicLong();
+
+  /**
+   * Creates the 503 {@link Status} returned when the server is too busy to take on the request.
+   *
+   * @param ctx The context of the request.
+   * @return The 503 Status.
+   */
+  static Result busy(Http.Context ctx) {
+    ctx.response().setHeader("Retry-After", "1");
+    return status(Http.Status.SERVICE_UNAVAILABLE,
+        "ServiceUnavailable: The server is too busy, please try again.\n");
+  }
+
+  /**
+   * Gets the number of threads running actions.
+   *
+   * @return The number of busy threads.
+   */
+  public static int getActiveThreads() {
+    ThreadPoolExecutor pool = executor;
+    return (pool == null) ? 0 : pool.getActiveCount();
+  }
+
+  /**
+   * Gets the number of actions waiting for a thread.
+   *
+   * @return The queue depth.
+   */
+  public static int getQueueDepth() {
+    ThreadPoolExecutor pool = executor;
+    return (pool == null) ? 0 : pool.getQueue().size();
+  }
+
+  /**
+   * Gets the number of requests rejected because the pool was saturated.
+   *
+   * @return The number of rejections.
+   */
+  public static long getRejections() {
+    return rejections.get();
+  }
+
+  /**
+   * Starts the thread pool, replacing any existing one.
+   *
+   * @param threads The number of threads, which should not exceed the size of the connection pool.
+   * @param queueSize The number of actions that may wait for a thread before requests are rejected.
+   */
+  public static synchronized void start(int threads, int queueSize) {
+    stop();
+    final AtomicInteger count = new AtomicInteger();
+    ThreadFactory factory = new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "database-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), factory);
+  }
+
+  /**
+   * Stops the thread pool, letting the actions already submitted finish.
+   */
+  public static synchronized void stop() {
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
+  /**
+   * Submits the action to the thread pool.
+   *
+   * @return An asynchronous Result or a 503 {@link Status} if the pool is saturated.
+   */
+  @Override
+  public Result call(final Http.Context ctx) throws Throwable {
+    ThreadPoolExecutor pool = executor;
+    if (pool == null) {
+      return this.delegate.call(ctx);
+    }
+
+    final Action<?> action = this.delegate;
+    final SqlStats stats = SqlStats.current();
+    final Promise<Result> promise = Promise$.MODULE$.apply();
+    try {
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          Result result = null;
+          Throwable error = null;
+          Http.Context.current.set(ctx);
+          SqlStats.attach(stats);
+          try {
+            result = action.call(ctx);
+          }
+          catch (Throwable t) {
+            error = t;
+          }
+          finally {
+            SqlStats.attach(null);
+            Http.Context.current.remove();
+          }
+
+          if (error == null) {
+            promise.success(result);
+          }
+          else {
+            promise.failure(error);
+          }
+        }
+      });
+    }
+    catch (RejectedExecutionException e) {
+      rejections.incrementAndGet();
+      return busy(ctx);
+    }
+    return async(Akka.asPromise(promise.future()));
+  }
+}
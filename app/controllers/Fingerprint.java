@@ -0,0 +1,236 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package controllers;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import play.Play;
+import play.mvc.Controller;
+import play.mvc.Result;
+
+/**
+ * Serves the content-hashed copies of the files in <code>public/</code>. The build writes a copy
+ * of every asset whose name includes a hash of its contents (e.g.
+ * <code>stylesheets/main.3f2a9c1d0b.css</code>), a gzipped variant of every text asset and a
+ * manifest mapping the original names to the hashed ones; see <code>project/Build.scala</code>.
+ * Because a hashed name always refers to the same bytes, the responses may be cached by clients
+ * forever.
+ *
+ * <p>
+ * Templates link to the assets through {@link #url(String)}, which falls back to the plain
+ * {@link Assets} URL for files missing from the manifest.
+ * </p>
+ *
+ * @author Christopher Foo
+ *
+ */
+public class Fingerprint extends Controller {
+
+  /**
+   * The URL path under which {@link Assets} serves the original assets.
+   */
+  private static final String ASSETS = "/assets/";
+
+  /**
+   * The size of the buffer used to read the assets.
+   */
+  private static final int BUFFER_SIZE = 8192;
+
+  /**
+   * The value of the Cache-Control header of the hashed assets.
+   */
+  public static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+  /**
+   * The content types of the assets keyed by file extension.
+   */
+  private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+  /**
+   * The contents of the assets that have been served, keyed by classpath resource.
+   */
+  private static final ConcurrentMap<String, byte[]> contents = new ConcurrentHashMap<>();
+
+  /**
+   * The hashed name of each asset keyed by its original name.
+   */
+  private static volatile Map<String, String> hashedNames = Collections.emptyMap();
+
+  /**
+   * The classpath resource holding the hashed name of each asset.
+   */
+  public static final String MANIFEST = "public/assets.manifest";
+
+  /**
+   * Marks resources that do not exist in {@link #contents}.
+   */
+  private static final byte[] MISSING = new byte[0];
+
+  /**
+   * The URL path under which the hashed assets are served. Must match the routes file.
+   */
+  public static final String PREFIX = "/assets/v/";
+
+  /**
+   * The hashed names in the manifest, which are the only files served by {@link #at(String)}.
+   */
+  private static volatile Set<String> served = Collections.emptySet();
+
+  static {
+    CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+    CONTENT_TYPES.put("gif", "image/gif");
+    CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+    CONTENT_TYPES.put("ico", "image/x-icon");
+    CONTENT_TYPES.put("jpg", "image/jpeg");
+    CONTENT_TYPES.put("js", "text/javascript; charset=utf-8");
+    CONTENT_TYPES.put("png", "image/png");
+    CONTENT_TYPES.put("svg", "image/svg+xml");
+  }
+
+  /**
+   * Serves the asset with the given hashed name, gzipped if the client accepts it.
+   *
+   * @param file The hashed name of the asset.
+   * @return The asset or a 404 if the name is not in the manifest.
+   */
+  public static Result at(String file) {
+    if (!served.contains(file)) {
+      return notFound();
+    }
+    byte[] content = acceptsGzip() ? read("public/" + file + ".gz") : null;
+    if (content != null) {
+      response().setHeader(CONTENT_ENCODING, "gzip");
+    }
+    else {
+      content = read("public/" + file);
+      if (content == null) {
+        return notFound();
+      }
+    }
+    response().setHeader(CACHE_CONTROL, Fingerprint.CACHE_CONTROL);
+    response().setHeader(VARY, ACCEPT_ENCODING);
+    response().setContentType(contentType(file));
+    return ok(content);
+  }
+
+  /**
+   * Loads the manifest and forgets the assets read so far. Called when the application starts.
+   */
+  public static void load() {
+    Map<String, String> names = new HashMap<>();
+    InputStream in = Play.application().resourceAsStream(MANIFEST);
+    if (in != null) {
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          int separator = line.indexOf('=');
+          if (separator > 0) {
+            names.put(line.substring(0, separator), line.substring(separator + 1));
+          }
+        }
+      }
+      catch (IOException e) {
+        throw new IllegalStateException("Could not read " + MANIFEST, e);
+      }
+    }
+    contents.clear();
+    hashedNames = Collections.unmodifiableMap(names);
+    served = Collections.unmodifiableSet(new HashSet<>(names.values()));
+  }
+
+  /**
+   * Gets the URL of the given asset, using its hashed name if it has one.
+   *
+   * @param file The name of the asset relative to <code>public/</code>.
+   * @return The URL of the asset.
+   */
+  public static String url(String file) {
+    String hashed = hashedNames.get(file);
+    return (hashed == null) ? ASSETS + file : PREFIX + hashed;
+  }
+
+  /**
+   * Determines whether the current request accepts gzipped content.
+   *
+   * @return True if the request's Accept-Encoding header lists gzip.
+   */
+  private static boolean acceptsGzip() {
+    String accept = request().getHeader(ACCEPT_ENCODING);
+    if (accept == null) {
+      return false;
+    }
+    for (String coding : accept.split(",")) {
+      String[] parts = coding.trim().split(";");
+      if ("gzip".equalsIgnoreCase(parts[0].trim())) {
+        return parts.length == 1 || !parts[1].trim().matches("q=0(\\.0*)?");
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets the content type of the given asset.
+   *
+   * @param file The name of the asset.
+   * @return The content type.
+   */
+  private static String contentType(String file) {
+    String type = CONTENT_TYPES.get(file.substring(file.lastIndexOf('.') + 1).toLowerCase());
+    return (type == null) ? "application/octet-stream" : type;
+  }
+
+  /**
+   * Reads the given classpath resource, caching its contents.
+   *
+   * @param resource The name of the resource.
+   * @return The contents of the resource or null if it does not exist.
+   */
+  private static byte[] read(String resource) {
+    byte[] content = contents.get(resource);
+    if (content == null) {
+      content = MISSING;
+      InputStream in = Play.application().resourceAsStream(resource);
+      if (in != null) {
+        try (InputStream stream = in) {
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          byte[] buffer = new byte[BUFFER_SIZE];
+          for (int read = stream.read(buffer); read != -1; read = stream.read(buffer)) {
+            out.write(buffer, 0, read);
+          }
+          content = out.toByteArray();
+        }
+        catch (IOException e) {
+          throw new IllegalStateException("Could not read " + resource, e);
+        }
+      }
+      contents.put(resource, content);
+    }
+    return (content == MISSING) ? null : content;
+  }
+}
@@ -68,7 +68,7 @@ public final class Helpers {
 
         @Override
         public models.Book parse(String isbn, Locale locale) throws ParseException {
-          return models.Book.find().where().eq("isbn", isbn).findUnique();
+          return models.Book.findByIsbn(isbn);
         }
 
         @Override
@@ -83,7 +83,7 @@ public final class Helpers {
 
         @Override
         public models.Student parse(String studentId, Locale locale) throws ParseException {
-          return models.Student.find().where().eq("studentId", studentId).findUnique();
+          return models.Student.findByStudentId(studentId);
         }
 
         @Override
@@ -0,0 +1,174 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package controllers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram in the style of HdrHistogram. Values are counted in log-linear
+ * buckets: each power of two is split into {@link #SUB_BUCKETS} equal buckets, so every recorded
+ * value is known to within about 6% while the whole range from a microsecond to hours fits in a
+ * few hundred counters. Recording only increments atomic counters, so it never locks or
+ * allocates.
+ *
+ * @author Christopher Foo
+ *
+ */
+public final class Histogram {
+
+  /**
+   * The largest value, in microseconds, that is recorded exactly. Larger values are recorded as
+   * this value. About 19 hours.
+   */
+  public static final long MAX_VALUE = (1L << 36) - 1;
+
+  /**
+   * The number of buckets each power of two is split into.
+   */
+  private static final int SUB_BUCKETS = 16;
+
+  /**
+   * The base 2 logarithm of {@link #SUB_BUCKETS}.
+   */
+  private static final int SUB_BUCKET_BITS = 4;
+
+  /**
+   * The number of buckets needed to cover the values up to {@link #MAX_VALUE}.
+   */
+  private static final int BUCKETS = indexOf(MAX_VALUE) + 1;
+
+  /**
+   * Gets the index of the bucket that counts the given value.
+   *
+   * @param value The value, between 0 and {@link #MAX_VALUE}.
+   * @return The index of the bucket.
+   */
+  private static int indexOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+  }
+
+  /**
+   * Gets the largest value counted by the bucket with the given index.
+   *
+   * @param index The index of the bucket.
+   * @return The largest value in the bucket.
+   */
+  private static long upperBoundOf(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  /**
+   * The number of values counted by each bucket.
+   */
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+  /**
+   * The number of values recorded.
+   */
+  private final AtomicLong count = new AtomicLong();
+
+  /**
+   * The sum of the values recorded, in microseconds.
+   */
+  private final AtomicLong sum = new AtomicLong();
+
+  /**
+   * Gets the number of recorded values that are less than or equal to the given value. Values in
+   * the bucket containing the given value are counted if the bucket's upper bound is not larger
+   * than the value, so the result is accurate to the precision of the buckets.
+   *
+   * @param value The value in microseconds.
+   * @return The number of values less than or equal to the given value.
+   */
+  public long countAtOrBelow(long value) {
+    long total = 0;
+    for (int i = 0; i < BUCKETS && upperBoundOf(i) <= value; i++) {
+      total += this.buckets.get(i);
+    }
+    return total;
+  }
+
+  /**
+   * Gets the number of values recorded.
+   *
+   * @return The number of values.
+   */
+  public long getCount() {
+    return this.count.get();
+  }
+
+  /**
+   * Gets the given percentile of the recorded values.
+   *
+   * @param percentile The percentile, between 0 and 100.
+   * @param unit The unit of the returned value.
+   * @return The value at the percentile, rounded up to its bucket's upper bound, or 0 if nothing
+   * has been recorded.
+   */
+  public long getPercentile(double percentile, TimeUnit unit) {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += this.buckets.get(i);
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += this.buckets.get(i);
+      if (seen >= rank) {
+        return unit.convert(upperBoundOf(i), TimeUnit.MICROSECONDS);
+      }
+    }
+    return unit.convert(MAX_VALUE, TimeUnit.MICROSECONDS);
+  }
+
+  /**
+   * Gets the sum of the values recorded.
+   *
+   * @param unit The unit of the returned sum.
+   * @return The sum of the values.
+   */
+  public long getSum(TimeUnit unit) {
+    return unit.convert(this.sum.get(), TimeUnit.MICROSECONDS);
+  }
+
+  /**
+   * Records a value.
+   *
+   * @param nanos The value in nanoseconds.
+   */
+  public void record(long nanos) {
+    long micros = Math.max(0, Math.min(MAX_VALUE, TimeUnit.NANOSECONDS.toMicros(nanos)));
+    this.buckets.incrementAndGet(indexOf(micros));
+    this.sum.addAndGet(micros);
+    this.count.incrementAndGet();
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package controllers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the login attempts handled by {@link Application#login()}. Hits on the cache of
+ * logged in {@link models.Student}s are counted by {@link models.Student#principals()}.
+ *
+ * @author Christopher Foo
+ *
+ */
+public class LoginStats {
+
+  /**
+   * The number of login attempts.
+   */
+  private static final AtomicLong attempts = new AtomicLong();
+
+  /**
+   * The number of login attempts that failed.
+   */
+  private static final AtomicLong failures = new AtomicLong();
+
+  /**
+   * The longest time taken by a login attempt in nanoseconds.
+   */
+  private static final AtomicLong maxNanos = new AtomicLong();
+
+  /**
+   * The total time taken by all login attempts in nanoseconds.
+   */
+  private static final AtomicLong totalNanos = new AtomicLong();
+
+  /**
+   * Gets the number of login attempts.
+   *
+   * @return The number of attempts.
+   */
+  public static long getAttempts() {
+    return attempts.get();
+  }
+
+  /**
+   * Gets the number of login attempts that failed.
+   *
+   * @return The number of failures.
+   */
+  public static long getFailures() {
+    return failures.get();
+  }
+
+  /**
+   * Gets the longest time taken by a login attempt.
+   *
+   * @param unit The unit of the returned time.
+   * @return The longest time.
+   */
+  public static long getMaxTime(TimeUnit unit) {
+    return unit.convert(maxNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Gets the total time taken by all login attempts.
+   *
+   * @param unit The unit of the returned time.
+   * @return The total time.
+   */
+  public static long getTotalTime(TimeUnit unit) {
+    return unit.convert(totalNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Records a login attempt.
+   *
+   * @param nanos The time taken by the attempt in nanoseconds.
+   * @param success True if the attempt succeeded.
+   */
+  public static void record(long nanos, boolean success) {
+    attempts.incrementAndGet();
+    if (!success) {
+      failures.incrementAndGet();
+    }
+    totalNanos.addAndGet(nanos);
+    long max = maxNanos.get();
+    while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+      max = maxNanos.get();
+    }
+  }
+
+  /**
+   * Resets all of the counters.
+   */
+  public static void reset() {
+    attempts.set(0);
+    failures.set(0);
+    maxNanos.set(0);
+    totalNanos.set(0);
+  }
+
+  /**
+   * Gets a {@link String} summarizing the login counters and the principal cache.
+   *
+   * @return The summary.
+   */
+  public static String summary() {
+    long count = getAttempts();
+    return String.format("[LoginStats attempts=%d failures=%d avgMicros=%d maxMicros=%d] %s",
+        count, getFailures(), (count == 0) ? 0 : getTotalTime(TimeUnit.MICROSECONDS) / count,
+        getMaxTime(TimeUnit.MICROSECONDS), models.Student.principals());
+  }
+
+  private LoginStats() {
+    // Empty Private constructor to prevent instantiation.
+  }
+}
@@ -0,0 +1,506 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package controllers;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import models.EntityCache;
+import models.SearchCache;
+import models.SqlStats;
+import play.Logger;
+import play.Play;
+import play.api.mvc.PlainResult;
+import play.mvc.Action;
+import play.mvc.Controller;
+import play.mvc.Http;
+import play.mvc.Result;
+
+/**
+ * Records the latency, in-flight count and response statuses of every action and serves them,
+ * along with the {@link EntityCache}, {@link SearchCache} and {@link LoginStats} counters, in the
+ * Prometheus text format. Actions are timed by the {@link Action} returned by
+ * {@link #timed(Method)}, which <code>Global.onRequest</code> wraps around every request. The same
+ * Action counts the SQL statements each request runs (see {@link SqlStats}), logs requests that
+ * repeat one statement too often and, in dev mode, reports the request's counts in
+ * <code>X-SQL-*</code> response headers. Actions marked with {@link UsesDatabase} are timed on the
+ * {@link DatabaseAction} thread pool, so their latency excludes the time spent waiting for a
+ * thread; the pool's queue depth and rejections are reported separately. Recording only updates
+ * atomic counters, so it is cheap enough to leave on permanently.
+ *
+ * @author Christopher Foo
+ *
+ */
+public class Metrics extends Controller {
+
+  /**
+   * The metrics of one action.
+   */
+  public static final class Route {
+
+    /**
+     * The number of requests being handled.
+     */
+    private final AtomicLong inFlight = new AtomicLong();
+
+    /**
+     * The latency of the action.
+     */
+    private final Histogram latency = new Histogram();
+
+    /**
+     * The name of the action, e.g. "controllers.Book.index".
+     */
+    private final String name;
+
+    /**
+     * The number of requests that ran the same SQL statement more than
+     * {@link SqlStats#getRepeatThreshold()} times.
+     */
+    private final AtomicLong repeating = new AtomicLong();
+
+    /**
+     * The time taken by the SQL statements run by the action in nanoseconds.
+     */
+    private final AtomicLong sqlNanos = new AtomicLong();
+
+    /**
+     * The number of rows read by the SQL statements run by the action.
+     */
+    private final AtomicLong sqlRows = new AtomicLong();
+
+    /**
+     * The number of SQL statements run by the action.
+     */
+    private final AtomicLong sqlStatements = new AtomicLong();
+
+    /**
+     * The number of responses with each status code.
+     */
+    private final AtomicLongArray statuses = new AtomicLongArray(MAX_STATUS + 1);
+
+    /**
+     * Creates a new {@link Route}.
+     *
+     * @param name The name of the action.
+     */
+    private Route(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Records the start of a request.
+     */
+    private void begin() {
+      this.inFlight.incrementAndGet();
+    }
+
+    /**
+     * Records the end of a request.
+     *
+     * @param start The {@link System#nanoTime()} at the start of the request.
+     * @param status The status of the response or 0 if it is not known.
+     */
+    private void end(long start, int status) {
+      this.latency.record(System.nanoTime() - start);
+      this.inFlight.decrementAndGet();
+      this.statuses.incrementAndGet((status > 0 && status <= MAX_STATUS) ? status : 0);
+    }
+
+    /**
+     * Records the SQL statements run by a request.
+     *
+     * @param stats The statistics of the request's statements.
+     */
+    private void recordSql(SqlStats stats) {
+      this.sqlStatements.addAndGet(stats.getStatements());
+      this.sqlRows.addAndGet(stats.getRows());
+      this.sqlNanos.addAndGet(stats.getTime(TimeUnit.NANOSECONDS));
+      if (stats.isRepeating()) {
+        this.repeating.incrementAndGet();
+        Logger.warn(String.format("%s ran one SQL statement %d times (%s): %s", this.name,
+            stats.getMaxRepeats(), stats, stats.getMostRepeated()));
+      }
+    }
+
+    /**
+     * Gets the number of requests being handled.
+     *
+     * @return The number of requests in flight.
+     */
+    public long getInFlight() {
+      return this.inFlight.get();
+    }
+
+    /**
+     * Gets the latency {@link Histogram} of the action.
+     *
+     * @return The latency Histogram.
+     */
+    public Histogram getLatency() {
+      return this.latency;
+    }
+
+    /**
+     * Gets the name of the action.
+     *
+     * @return The name of the action.
+     */
+    public String getName() {
+      return this.name;
+    }
+
+    /**
+     * Gets the number of requests that ran the same SQL statement more than
+     * {@link SqlStats#getRepeatThreshold()} times.
+     *
+     * @return The number of requests.
+     */
+    public long getRepeatingRequests() {
+      return this.repeating.get();
+    }
+
+    /**
+     * Gets the number of rows read by the SQL statements run by the action.
+     *
+     * @return The number of rows.
+     */
+    public long getSqlRows() {
+      return this.sqlRows.get();
+    }
+
+    /**
+     * Gets the number of SQL statements run by the action.
+     *
+     * @return The number of statements.
+     */
+    public long getSqlStatements() {
+      return this.sqlStatements.get();
+    }
+
+    /**
+     * Gets the time taken by the SQL statements run by the action.
+     *
+     * @param unit The unit of the returned time.
+     * @return The time taken.
+     */
+    public long getSqlTime(TimeUnit unit) {
+      return unit.convert(this.sqlNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets the number of responses with the given status.
+     *
+     * @param status The status code or 0 for responses whose status is not known.
+     * @return The number of responses.
+     */
+    public long getStatusCount(int status) {
+      return this.statuses.get(status);
+    }
+  }
+
+  /**
+   * The upper bounds, in seconds, of the latency buckets reported to Prometheus.
+   */
+  private static final double[] BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25,
+      0.5, 1, 2.5, 5, 10};
+
+  /**
+   * The content type of the Prometheus text format.
+   */
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  /**
+   * The largest status code that is counted.
+   */
+  private static final int MAX_STATUS = 599;
+
+  /**
+   * The prefix of the names of the metrics.
+   */
+  private static final String PREFIX = "textex_";
+
+  /**
+   * The label of the {@link SearchCache}'s samples in the cache metrics.
+   */
+  private static final String SEARCH_CACHE = "cache=\"search\"";
+
+  /**
+   * The prefix of the response headers that report a request's SQL statements in dev mode.
+   */
+  private static final String SQL_HEADER = "X-SQL-";
+
+  /**
+   * The metrics of each action keyed by the action's method.
+   */
+  private static final ConcurrentMap<Method, Route> routes = new ConcurrentHashMap<>();
+
+  /**
+   * Gets the metrics of every action that has been called, keyed by the action's name.
+   *
+   * @return The metrics.
+   */
+  public static Map<String, Route> getRoutes() {
+    Map<String, Route> sorted = new TreeMap<>();
+    for (Route route : routes.values()) {
+      sorted.put(route.getName(), route);
+    }
+    return sorted;
+  }
+
+  /**
+   * Serves the metrics in the Prometheus text format.
+   *
+   * @return A 200 {@link Status} containing the metrics.
+   */
+  public static Result index() {
+    response().setContentType(CONTENT_TYPE);
+    return ok(render());
+  }
+
+  /**
+   * Writes all of the metrics in the Prometheus text format.
+   *
+   * @return The metrics.
+   */
+  public static String render() {
+    Map<String, Route> sorted = getRoutes();
+    StringBuilder out = new StringBuilder();
+
+    header(out, "http_requests_in_flight", "gauge", "Requests currently being handled.");
+    for (Route route : sorted.values()) {
+      sample(out, "http_requests_in_flight", route(route), route.getInFlight());
+    }
+
+    header(out, "http_responses_total", "counter", "Responses by status code.");
+    for (Route route : sorted.values()) {
+      for (int status = 0; status <= MAX_STATUS; status++) {
+        long count = route.getStatusCount(status);
+        if (count > 0) {
+          sample(out, "http_responses_total", route(route) + ",status=\"" + status + "\"", count);
+        }
+      }
+    }
+
+    header(out, "http_request_duration_seconds", "histogram", "Time taken to handle requests.");
+    for (Route route : sorted.values()) {
+      Histogram latency = route.getLatency();
+      for (double bucket : BUCKETS) {
+        long count = latency.countAtOrBelow((long) (bucket * 1e6));
+        sample(out, "http_request_duration_seconds_bucket", route(route) + ",le=\"" + bucket
+            + "\"", count);
+      }
+      sample(out, "http_request_duration_seconds_bucket", route(route) + ",le=\"+Inf\"",
+          latency.getCount());
+      sample(out, "http_request_duration_seconds_sum", route(route),
+          latency.getSum(TimeUnit.MICROSECONDS) / 1e6);
+      sample(out, "http_request_duration_seconds_count", route(route), latency.getCount());
+    }
+
+    header(out, "http_request_duration_quantile_seconds", "gauge",
+        "Latency percentiles of the requests handled since startup.");
+    for (Route route : sorted.values()) {
+      for (double quantile : new double[] {0.5, 0.95, 0.99}) {
+        sample(out, "http_request_duration_quantile_seconds", route(route) + ",quantile=\""
+            + quantile + "\"",
+            route.getLatency().getPercentile(quantile * 100, TimeUnit.MICROSECONDS) / 1e6);
+      }
+    }
+
+    header(out, "sql_statements_total", "counter", "SQL statements run by requests.");
+    for (Route route : sorted.values()) {
+      sample(out, "sql_statements_total", route(route), route.getSqlStatements());
+    }
+    header(out, "sql_rows_total", "counter", "Rows read by the SQL statements run by requests.");
+    for (Route route : sorted.values()) {
+      sample(out, "sql_rows_total", route(route), route.getSqlRows());
+    }
+    header(out, "sql_duration_seconds_total", "counter",
+        "Time taken by the SQL statements run by requests.");
+    for (Route route : sorted.values()) {
+      sample(out, "sql_duration_seconds_total", route(route),
+          route.getSqlTime(TimeUnit.MICROSECONDS) / 1e6);
+    }
+    header(out, "sql_repeating_requests_total", "counter",
+        "Requests that ran one SQL statement more often than the repeat threshold.");
+    for (Route route : sorted.values()) {
+      sample(out, "sql_repeating_requests_total", route(route), route.getRepeatingRequests());
+    }
+
+    header(out, "db_executor_active_threads", "gauge", "Threads running database actions.");
+    sample(out, "db_executor_active_threads", null, DatabaseAction.getActiveThreads());
+    header(out, "db_executor_queue_depth", "gauge", "Database actions waiting for a thread.");
+    sample(out, "db_executor_queue_depth", null, DatabaseAction.getQueueDepth());
+    header(out, "db_executor_rejections_total", "counter",
+        "Requests rejected with a 503 because the database thread pool was saturated.");
+    sample(out, "db_executor_rejections_total", null, DatabaseAction.getRejections());
+
+    header(out, "cache_hits_total", "counter", "Lookups answered from the model caches.");
+    for (EntityCache<?> cache : EntityCache.getCaches()) {
+      sample(out, "cache_hits_total", cache(cache), cache.getHits());
+    }
+    sample(out, "cache_hits_total", SEARCH_CACHE, SearchCache.getHits());
+    header(out, "cache_misses_total", "counter", "Lookups loaded from the database.");
+    for (EntityCache<?> cache : EntityCache.getCaches()) {
+      sample(out, "cache_misses_total", cache(cache), cache.getMisses());
+    }
+    sample(out, "cache_misses_total", SEARCH_CACHE, SearchCache.getMisses());
+    header(out, "cache_evictions_total", "counter", "Entries evicted from the model caches.");
+    for (EntityCache<?> cache : EntityCache.getCaches()) {
+      sample(out, "cache_evictions_total", cache(cache), cache.getEvictions());
+    }
+    sample(out, "cache_evictions_total", SEARCH_CACHE, SearchCache.getEvictions());
+    header(out, "cache_size", "gauge", "Entries in the model caches.");
+    for (EntityCache<?> cache : EntityCache.getCaches()) {
+      sample(out, "cache_size", cache(cache), cache.getSize());
+    }
+    sample(out, "cache_size", SEARCH_CACHE, SearchCache.getSize());
+    header(out, "search_cache_bytes", "gauge", "Estimated size of the search result cache.");
+    sample(out, "search_cache_bytes", null, SearchCache.getBytes());
+    header(out, "search_cache_hit_ratio", "gauge", "Searches answered from the search cache.");
+    sample(out, "search_cache_hit_ratio", null, SearchCache.getHitRatio());
+    header(out, "search_cache_invalidations_total", "counter",
+        "Search cache entries removed because a book changed.");
+    sample(out, "search_cache_invalidations_total", null, SearchCache.getInvalidations());
+
+    header(out, "login_attempts_total", "counter", "Login attempts.");
+    sample(out, "login_attempts_total", null, LoginStats.getAttempts());
+    header(out, "login_failures_total", "counter", "Failed login attempts.");
+    sample(out, "login_failures_total", null, LoginStats.getFailures());
+    header(out, "login_duration_seconds_total", "counter", "Time taken by login attempts.");
+    sample(out, "login_duration_seconds_total", null,
+        LoginStats.getTotalTime(TimeUnit.MICROSECONDS) / 1e6);
+    return out.toString();
+  }
+
+  /**
+   * Creates an {@link Action} that records the metrics of the given action.
+   *
+   * @param actionMethod The method of the action.
+   * @return The Action, which calls its delegate.
+   */
+  public static Action<Void> timed(Method actionMethod) {
+    Route existing = routes.get(actionMethod);
+    if (existing == null) {
+      Route created =
+          new Route(actionMethod.getDeclaringClass().getName() + "." + actionMethod.getName());
+      existing = routes.putIfAbsent(actionMethod, created);
+      if (existing == null) {
+        existing = created;
+      }
+    }
+
+    final Route route = existing;
+    return new Action.Simple() {
+      @Override
+      public Result call(Http.Context ctx) throws Throwable {
+        route.begin();
+        long start = System.nanoTime();
+        SqlStats stats = SqlStats.begin();
+        try {
+          Result result = this.delegate.call(ctx);
+          if (Play.isDev()) {
+            Http.Response response = ctx.response();
+            response.setHeader(SQL_HEADER + "Statements", String.valueOf(stats.getStatements()));
+            response.setHeader(SQL_HEADER + "Rows", String.valueOf(stats.getRows()));
+            response.setHeader(SQL_HEADER + "Time-Ms",
+                String.valueOf(stats.getTime(TimeUnit.MILLISECONDS)));
+            response.setHeader(SQL_HEADER + "Max-Repeats", String.valueOf(stats.getMaxRepeats()));
+          }
+          route.end(start, statusOf(result));
+          return result;
+        }
+        catch (Throwable t) {
+          route.end(start, 500);
+          throw t;
+        }
+        finally {
+          SqlStats.end();
+          route.recordSql(stats);
+        }
+      }
+    };
+  }
+
+  /**
+   * Creates the label of the given cache.
+   *
+   * @param cache The cache.
+   * @return The label.
+   */
+  private static String cache(EntityCache<?> cache) {
+    return "cache=\"" + cache.getName() + "\"";
+  }
+
+  /**
+   * Writes the HELP and TYPE lines of a metric.
+   *
+   * @param out The output.
+   * @param name The name of the metric without the prefix.
+   * @param type The type of the metric.
+   * @param help The description of the metric.
+   */
+  private static void header(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+  }
+
+  /**
+   * Creates the label of the given action.
+   *
+   * @param route The metrics of the action.
+   * @return The label.
+   */
+  private static String route(Route route) {
+    return "route=\"" + route.getName() + "\"";
+  }
+
+  /**
+   * Writes a sample of a metric.
+   *
+   * @param out The output.
+   * @param name The name of the metric without the prefix.
+   * @param labels The labels of the sample or null if it has none.
+   * @param value The value of the sample.
+   */
+  private static void sample(StringBuilder out, String name, String labels, Object value) {
+    out.append(PREFIX).append(name);
+    if (labels != null) {
+      out.append('{').append(labels).append('}');
+    }
+    out.append(' ').append(value).append('\n');
+  }
+
+  /**
+   * Gets the status of the given result.
+   *
+   * @param result The result.
+   * @return The status or 0 if it is not known yet, e.g. for an asynchronous result.
+   */
+  private static int statusOf(Result result) {
+    if (result != null && result.getWrappedResult() instanceof PlainResult) {
+      return ((PlainResult) result.getWrappedResult()).header().status();
+    }
+    return 0;
+  }
+}
@@ -17,8 +17,12 @@
 
 package controllers;
 
-import java.util.List;
+import models.KeyRegistry;
+import models.MatchingEngine;
+import models.OrderBook;
+import models.WriteBehind;
 import play.data.Form;
+import play.data.validation.ValidationError;
 import play.mvc.Controller;
 import play.mvc.Result;
 
@@ -28,6 +32,7 @@ import play.mvc.Result;
  * @author Christopher Foo
  * 
  */
+@UsesDatabase
 public class Offer extends Controller {
 
   /**
@@ -38,7 +43,7 @@ public class Offer extends Controller {
    * @return A 200 {@link Status}.
    */
   public static Result delete(String offerId) {
-    models.Offer offer = models.Offer.find().where().eq("offerId", offerId).findUnique();
+    models.Offer offer = models.Offer.findByOfferId(offerId);
     if (offer != null) {
       offer.delete();
     }
@@ -46,32 +51,59 @@ public class Offer extends Controller {
   }
 
   /**
-   * Gets the information of the given {@link models.Offer}.
+   * Gets the information of the given {@link models.Offer}. The information includes the Offer's
+   * {@link models.Book} and {@link models.Student}, so the ETag is made of all three versions. See:
+   * {@link Conditional}.
    * 
    * @param offerId The ID of the target Offer.
-   * @return A 200 {@link Status} containing the information of the target Offer or a 404 Status if
-   * it is not in the database.
+   * @return A 200 {@link Status} containing the information of the target Offer, a 304 Status if
+   * it has not changed or a 404 Status if it is not in the database.
    */
   public static Result details(String offerId) {
-    models.Offer offer = models.Offer.find().where().eq("offerId", offerId).findUnique();
-    return (offer == null) ? notFound("No offer found") : ok(offer.toString());
+    models.Offer offer = models.Offer.findByOfferId(offerId);
+    if (offer == null) {
+      return notFound("No offer found");
+    }
+    models.Book book = offer.getBook();
+    models.Student student = offer.getStudent();
+    Result notModified =
+        Conditional.check(Conditional.etag(offer.getPrimaryKey(), offer.getVersion(),
+            book.getVersion(), student.getVersion()), Conditional.latest(offer.getLastModified(),
+            book.getLastModified(), student.getLastModified()));
+    return (notModified == null) ? ok(offer.toString()) : notModified;
   }
 
   /**
-   * Gets all of the {@link models.Offer}s currently in the database.
+   * Gets a page of the {@link models.Offer}s in the database ordered by primary key. The page is
+   * selected with the optional "after" (cursor) and "size" query string parameters and the
+   * cursor of the next page, if there is one, is returned in the {@link Page#NEXT_CURSOR_HEADER}
+   * header. A size of {@link Page#ALL} streams all of the Offers after the cursor instead.
    * 
-   * @return A 200 {@link Status} containing the information of all of the Offers in the database.
+   * @return A 200 {@link Status} containing a page of the Offers in the database.
    */
   public static Result index() {
-    List<models.Offer> offers = models.Offer.find().findList();
-    return ok((offers.size() == 0) ? "No offers" : offers.toString());
+    Long after = Page.parseKey(request().getQueryString("after"));
+    String size = request().getQueryString("size");
+    if (Page.ALL.equals(size)) {
+      return Page.stream(models.Offer.findWithOwners().where(), "primaryKey", after, "No offers");
+    }
+
+    Page<models.Offer> page = Page.fetch(models.Offer.findWithOwners().where(), "primaryKey",
+        after, Page.parseSize(size));
+    if (page.hasNext()) {
+      response().setHeader(Page.NEXT_CURSOR_HEADER, page.getLast().getPrimaryKey().toString());
+    }
+    return ok(page.getItems().isEmpty() ? "No offers" : page.getItems().toString());
   }
 
   /**
    * Creates a new {@link models.Offer} using the POST request's data and adds it to the database.
+   * If {@link WriteBehind} is enabled the Offer is queued and acknowledged with a 202 Status
+   * before it is inserted.
    * 
-   * @return A 200 {@link Status} containing the new Offer's information or a 400 Status if there is
-   * an error in the given information.
+   * @return A 200 (or 202) {@link Status} containing the new Offer's information followed by the
+   * {@link models.Request}s that it matches, a 400 Status if there is an error in the given
+   * information or a 503 Status if the write-behind queue is full.
    */
   public static Result newOffer() {
 
@@ -89,8 +121,31 @@ public class Offer extends Controller {
     }
 
     models.Offer offer = offerForm.get();
-    offer.save();
-    return ok(offer.toString());
+    boolean queued = WriteBehind.isEnabled();
+    boolean unique;
+    if (queued) {
+      WriteBehind.Outcome outcome = WriteBehind.submit(offer);
+      if (outcome == WriteBehind.Outcome.FULL) {
+        return DatabaseAction.busy(ctx());
+      }
+      unique = (outcome != WriteBehind.Outcome.DUPLICATE);
+      queued = (outcome == WriteBehind.Outcome.QUEUED);
+    }
+    else {
+      unique = KeyRegistry.saveUnique(offer);
+    }
+    if (!unique) {
+      ValidationError error = offer.alreadyExistsError();
+      offerForm.reject(error.key(), error.message());
+      return badRequest(Helpers.generateErrorString(offerForm));
+    }
+
+    // Report the matching Requests along with the new Offer.
+    StringBuilder response = new StringBuilder(offer.toString());
+    for (OrderBook.Match match : MatchingEngine.match(offer)) {
+      response.append("\n").append(match.toString());
+    }
+    return queued ? status(ACCEPTED, response.toString()) : ok(response.toString());
   }
 
 }
@@ -0,0 +1,331 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package controllers;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import play.mvc.Controller;
+import play.mvc.Result;
+import play.mvc.Results;
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.ExpressionList;
+import com.avaje.ebean.Query;
+
+/**
+ * A single page of a keyset (cursor) paginated query. Pages are fetched by asking for the rows
+ * whose sort key is greater than the key of the last row of the previous page, so the cost of
+ * fetching a page does not grow with the size of the table or the page number.
+ *
+ * @author Christopher Foo
+ *
+ * @param <T> The type of the rows in the page.
+ */
+public final class Page<T> {
+
+  /**
+   * The text of the rows of a query, fetched a page at a time as it is read. See:
+   * {@link Page#rows(ExpressionList, String, Object, String)}.
+   *
+   * @param <T> The type of the rows.
+   */
+  private static final class Rows<T> extends InputStream {
+
+    /**
+     * The key of the last row fetched or null if no rows have been fetched.
+     */
+    private Object after;
+
+    /**
+     * The text of the rows fetched but not yet read.
+     */
+    private byte[] chunk = new byte[0];
+
+    /**
+     * True once the last row has been fetched.
+     */
+    private boolean done;
+
+    /**
+     * The text read if there are no rows.
+     */
+    private final String empty;
+
+    /**
+     * The name of the ID property to order by.
+     */
+    private final String key;
+
+    /**
+     * The position of the next byte to read in {@link #chunk}.
+     */
+    private int position;
+
+    /**
+     * The query whose rows are read. Each page is fetched with a copy.
+     */
+    private final Query<T> query;
+
+    /**
+     * True until the first row has been written.
+     */
+    private boolean start = true;
+
+    /**
+     * Creates a new {@link Rows}.
+     *
+     * @param query The query whose rows are read.
+     * @param key The name of the ID property to order by.
+     * @param after The key to start after or null to start from the first row.
+     * @param empty The text read if there are no rows.
+     */
+    private Rows(Query<T> query, String key, Object after, String empty) {
+      this.after = after;
+      this.empty = empty;
+      this.key = key;
+      this.query = query;
+    }
+
+    /**
+     * Reads the next byte, fetching the next page if needed.
+     */
+    @Override
+    public int read() {
+      return fill() ? (this.chunk[this.position++] & 0xff) : -1;
+    }
+
+    /**
+     * Reads the text of the page already fetched, or of the next page if it has all been read.
+     */
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!fill()) {
+        return -1;
+      }
+      int count = Math.min(length, this.chunk.length - this.position);
+      System.arraycopy(this.chunk, this.position, buffer, offset, count);
+      this.position += count;
+      return count;
+    }
+
+    /**
+     * Fetches the next page once the text of the previous one has all been read.
+     *
+     * @return False if there is nothing more to read.
+     */
+    private boolean fill() {
+      while (this.position == this.chunk.length) {
+        if (this.done) {
+          return false;
+        }
+        Query<T> page = this.query.copy();
+        if (this.after != null) {
+          page.where().gt(this.key, this.after);
+        }
+        List<T> rows = page.orderBy(this.key).setMaxRows(CHUNK_ROWS).findList();
+        StringBuilder text = new StringBuilder();
+        for (T row : rows) {
+          text.append(this.start ? "[" : ", ").append(row);
+          this.start = false;
+        }
+        if (rows.size() < CHUNK_ROWS) {
+          text.append(this.start ? this.empty : "]");
+          this.done = true;
+        }
+        else {
+          this.after = Ebean.getServer(null).getBeanId(rows.get(rows.size() - 1));
+        }
+        this.chunk = text.toString().getBytes(StandardCharsets.UTF_8);
+        this.position = 0;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * The page size that asks for all of the rows to be streamed. See:
+   * {@link #stream(ExpressionList, String, Object, String)}.
+   */
+  public static final String ALL = "all";
+
+  /**
+   * The number of rows written in each chunk of a streamed response.
+   */
+  public static final int CHUNK_ROWS = 100;
+
+  /**
+   * The number of rows returned when the requester does not ask for a page size.
+   */
+  public static final int DEFAULT_SIZE = 25;
+
+  /**
+   * The maximum number of rows that may be returned in a single page.
+   */
+  public static final int MAX_SIZE = 100;
+
+  /**
+   * The name of the response header containing the cursor of the next page.
+   */
+  public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+  /**
+   * Fetches a page of the given query ordered by the given key.
+   *
+   * @param query The query to page through.
+   * @param key The name of the unique property to order and page by.
+   * @param after The key of the last row of the previous page or null for the first page.
+   * @param size The maximum number of rows in the page.
+   * @return The requested Page.
+   */
+  public static <T> Page<T> fetch(ExpressionList<T> query, String key, Object after, int size) {
+    if (after != null) {
+      query = query.gt(key, after);
+    }
+
+    // Fetch one extra row to find out whether there is another page.
+    List<T> rows = query.orderBy(key).setMaxRows(size + 1).findList();
+    if (rows.size() > size) {
+      return new Page<>(new ArrayList<>(rows.subList(0, size)), true);
+    }
+    return new Page<>(rows, false);
+  }
+
+  /**
+   * Parses the given primary key cursor.
+   *
+   * @param cursor The cursor to parse.
+   * @return The primary key in the cursor or null if the cursor is missing or invalid.
+   */
+  public static Long parseKey(String cursor) {
+    if (cursor == null || cursor.length() == 0) {
+      return null;
+    }
+    try {
+      return Long.parseLong(cursor);
+    }
+    catch (NumberFormatException e) {
+      // Start from the first page if the cursor is bad.
+      return null;
+    }
+  }
+
+  /**
+   * Parses the given page size, limiting it to {@link #MAX_SIZE}.
+   *
+   * @param size The requested page size.
+   * @return The page size to use.
+   */
+  public static int parseSize(String size) {
+    if (size == null || size.length() == 0) {
+      return DEFAULT_SIZE;
+    }
+    try {
+      return Math.max(1, Math.min(MAX_SIZE, Integer.parseInt(size)));
+    }
+    catch (NumberFormatException e) {
+      return DEFAULT_SIZE;
+    }
+  }
+
+  /**
+   * Reads all of the rows of the given query after the given key as text. Rows are fetched
+   * {@link #CHUNK_ROWS} at a time, by key like the pages of {@link #fetch}, only as the text is
+   * read, so neither the rows nor the text are held in memory all at once and no database
+   * connection is held between reads. The text has the same format as a {@link List}'s
+   * <code>toString()</code>.
+   *
+   * @param query The query to read.
+   * @param key The name of the ID property to order by.
+   * @param after The key to start after or null to start from the first row.
+   * @param empty The text read if there are no rows.
+   * @return The text of the rows.
+   */
+  public static <T> InputStream rows(ExpressionList<T> query, String key, Object after,
+      String empty) {
+    return new Rows<>(query.query(), key, after, empty);
+  }
+
+  /**
+   * Streams all of the rows of the given query after the given key as a chunked response; see
+   * {@link #rows(ExpressionList, String, Object, String)}. Play reads the next chunk only once the
+   * previous one has been sent, so a slow client does not make the response pile up in memory.
+   *
+   * @param query The query to stream.
+   * @param key The name of the ID property to order by.
+   * @param after The key to start after or null to start from the first row.
+   * @param empty The body sent if there are no rows.
+   * @return The chunked response.
+   */
+  public static <T> Result stream(ExpressionList<T> query, String key, Object after,
+      String empty) {
+    Controller.response().setContentType("text/plain; charset=utf-8");
+    return Results.ok(rows(query, key, after, empty));
+  }
+
+  /**
+   * Whether there are more rows after this {@link Page}.
+   */
+  private final boolean hasNext;
+
+  /**
+   * The rows in this {@link Page}.
+   */
+  private final List<T> items;
+
+  /**
+   * Creates a new {@link Page}.
+   *
+   * @param items The rows in the Page.
+   * @param hasNext Whether there are more rows after the Page.
+   */
+  private Page(List<T> items, boolean hasNext) {
+    this.items = items;
+    this.hasNext = hasNext;
+  }
+
+  /**
+   * Gets the rows in this {@link Page}.
+   *
+   * @return The rows in this Page.
+   */
+  public List<T> getItems() {
+    return this.items;
+  }
+
+  /**
+   * Gets the last row in this {@link Page}, whose key is the cursor of the next page.
+   *
+   * @return The last row or null if this Page is empty.
+   */
+  public T getLast() {
+    return this.items.isEmpty() ? null : this.items.get(this.items.size() - 1);
+  }
+
+  /**
+   * Determines whether there are more rows after this {@link Page}.
+   *
+   * @return True if there is a next page.
+   */
+  public boolean hasNext() {
+    return this.hasNext;
+  }
+}
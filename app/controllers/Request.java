@@ -17,8 +17,12 @@
 
 package controllers;
 
-import java.util.List;
+import models.KeyRegistry;
+import models.MatchingEngine;
+import models.OrderBook;
+import models.WriteBehind;
 import play.data.Form;
+import play.data.validation.ValidationError;
 import play.mvc.Controller;
 import play.mvc.Result;
 
@@ -28,6 +32,7 @@ import play.mvc.Result;
  * @author Christopher Foo
  * 
  */
+@UsesDatabase
 public class Request extends Controller {
 
   /**
@@ -38,7 +43,7 @@ public class Request extends Controller {
    * @return A 200 {@link Status}.
    */
   public static Result delete(String requestId) {
-    models.Request request = models.Request.find().where().eq("requestId", requestId).findUnique();
+    models.Request request = models.Request.findByRequestId(requestId);
     if (request != null) {
       request.delete();
     }
@@ -46,33 +51,60 @@ public class Request extends Controller {
   }
 
   /**
-   * Gets the information for the given {@link models.Request}.
+   * Gets the information for the given {@link models.Request}. The ETag is made of the versions
+   * of the Request, its {@link models.Book} and its {@link models.Student}. See:
+   * {@link Conditional}.
    * 
    * @param requestId The ID of the target Request.
-   * @return A 200 {@link Status} containing the target Request's information or a 404 Status if it
-   * is not in the database.
+   * @return A 200 {@link Status} containing the target Request's information, a 304 Status if it
+   * has not changed or a 404 Status if it is not in the database.
    */
   public static Result details(String requestId) {
-    models.Request request = models.Request.find().where().eq("requestId", requestId).findUnique();
-    return (request == null) ? notFound("No request found") : ok(request.toString());
+    models.Request request = models.Request.findByRequestId(requestId);
+    if (request == null) {
+      return notFound("No request found");
+    }
+    models.Book book = request.getBook();
+    models.Student student = request.getStudent();
+    Result notModified =
+        Conditional.check(Conditional.etag(request.getPrimaryKey(), request.getVersion(),
+            book.getVersion(), student.getVersion()), Conditional.latest(request.getLastModified(),
+            book.getLastModified(), student.getLastModified()));
+    return (notModified == null) ? ok(request.toString()) : notModified;
   }
 
   /**
-   * Gets the information for all {@link models.Request} currently in the database.
+   * Gets a page of the {@link models.Request}s in the database ordered by primary key. The page is
+   * selected with the optional "after" (cursor) and "size" query string parameters and the
+   * cursor of the next page, if there is one, is returned in the {@link Page#NEXT_CURSOR_HEADER}
+   * header. A size of {@link Page#ALL} streams all of the Requests after the cursor instead.
    * 
-   * @return A 200 {@link Status} containing the information for all Requests in the database.
+   * @return A 200 {@link Status} containing a page of the Requests in the database.
    */
   public static Result index() {
-    List<models.Request> requests = models.Request.find().findList();
-    return ok((requests.size() == 0) ? "No requests" : requests.toString());
+    Long after = Page.parseKey(request().getQueryString("after"));
+    String size = request().getQueryString("size");
+    if (Page.ALL.equals(size)) {
+      return Page.stream(models.Request.findWithOwners().where(), "primaryKey", after,
+          "No requests");
+    }
+
+    Page<models.Request> page = Page.fetch(models.Request.findWithOwners().where(), "primaryKey",
+        after, Page.parseSize(size));
+    if (page.hasNext()) {
+      response().setHeader(Page.NEXT_CURSOR_HEADER, page.getLast().getPrimaryKey().toString());
+    }
+    return ok(page.getItems().isEmpty() ? "No requests" : page.getItems().toString());
   }
 
   /**
    * Creates a new {@link models.Request} from the data in the POST request and adds it to the
-   * database.
+   * database. If {@link WriteBehind} is enabled the Request is queued and acknowledged with a 202
+   * Status before it is inserted.
    * 
-   * @return A 200 {@link Status} containing the created Request or a 400 Status if the provided
-   * information is incorrect.
+   * @return A 200 (or 202) {@link Status} containing the created Request followed by the
+   * {@link models.Offer}s that it matches, a 400 Status if the provided information is incorrect
+   * or a 503 Status if the write-behind queue is full.
    */
   public static Result newRequest() {
     Helpers.registerBinders();
@@ -89,7 +121,30 @@ public class Request extends Controller {
     }
 
     models.Request request = requestForm.get();
-    request.save();
-    return ok(request.toString());
+    boolean queued = WriteBehind.isEnabled();
+    boolean unique;
+    if (queued) {
+      WriteBehind.Outcome outcome = WriteBehind.submit(request);
+      if (outcome == WriteBehind.Outcome.FULL) {
+        return DatabaseAction.busy(ctx());
+      }
+      unique = (outcome != WriteBehind.Outcome.DUPLICATE);
+      queued = (outcome == WriteBehind.Outcome.QUEUED);
+    }
+    else {
+      unique = KeyRegistry.saveUnique(request);
+    }
+    if (!unique) {
+      ValidationError error = request.alreadyExistsError();
+      requestForm.reject(error.key(), error.message());
+      return badRequest(Helpers.generateErrorString(requestForm));
+    }
+
+    // Report the matching Offers along with the new Request.
+    StringBuilder response = new StringBuilder(request.toString());
+    for (OrderBook.Match match : MatchingEngine.match(request)) {
+      response.append("\n").append(match.toString());
+    }
+    return queued ? status(ACCEPTED, response.toString()) : ok(response.toString());
   }
 }
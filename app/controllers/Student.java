@@ -17,9 +17,10 @@
 
 package controllers;
 
-import java.util.List;
+import models.KeyRegistry;
 import play.data.DynamicForm;
 import play.data.Form;
+import play.data.validation.ValidationError;
 import play.libs.Crypto;
 import play.mvc.Controller;
 import play.mvc.Result;
@@ -31,6 +32,7 @@ import views.html.register;
  * @author Christopher Foo
  * 
  */
+@UsesDatabase
 public class Student extends Controller {
 
   /**
@@ -41,7 +43,7 @@ public class Student extends Controller {
    * @return A 200 {@link Status}.
    */
   public static Result delete(String studentId) {
-    models.Student student = models.Student.find().where().eq("studentId", studentId).findUnique();
+    models.Student student = models.Student.findByStudentId(studentId);
     if (student != null) {
       student.delete();
     }
@@ -49,25 +51,45 @@ public class Student extends Controller {
   }
 
   /**
-   * Gets the information for the given {@link models.Student}.
+   * Gets the information for the given {@link models.Student}, or a 304 {@link Status} if the
+   * client's copy is current. See: {@link Conditional}.
    * 
    * @param studentId The ID of the target Student.
-   * @return A 200 {@link Status} containing the Student's information or a 404 Status if the
-   * Student is not in the database.
+   * @return A 200 {@link Status} containing the Student's information, a 304 Status if it has not
+   * changed or a 404 Status if the Student is not in the database.
    */
   public static Result details(String studentId) {
-    models.Student student = models.Student.find().where().eq("studentId", studentId).findUnique();
-    return (student == null) ? notFound("No student found") : ok(student.toString());
+    models.Student student = models.Student.findByStudentId(studentId);
+    if (student == null) {
+      return notFound("No student found");
+    }
+    Result notModified =
+        Conditional.check(Conditional.etag(student.getPrimaryKey(), student.getVersion()),
+            Conditional.latest(student.getLastModified()));
+    return (notModified == null) ? ok(student.toString()) : notModified;
   }
 
   /**
-   * Gets all {@link models.Student}s currently in the database.
+   * Gets a page of the {@link models.Student}s in the database ordered by primary key. The page is
+   * selected with the optional "after" (cursor) and "size" query string parameters and the
+   * cursor of the next page, if there is one, is returned in the {@link Page#NEXT_CURSOR_HEADER}
+   * header. A size of {@link Page#ALL} streams all of the Students after the cursor instead.
    * 
-   * @return A 200 {@link Status} containing all of the students in the database.
+   * @return A 200 {@link Status} containing a page of the Students in the database.
    */
   public static Result index() {
-    List<models.Student> students = models.Student.find().findList();
-    return ok((students.size() == 0) ? "No students" : students.toString());
+    Long after = Page.parseKey(request().getQueryString("after"));
+    String size = request().getQueryString("size");
+    if (Page.ALL.equals(size)) {
+      return Page.stream(models.Student.find().where(), "primaryKey", after, "No students");
+    }
+
+    Page<models.Student> page =
+        Page.fetch(models.Student.find().where(), "primaryKey", after, Page.parseSize(size));
+    if (page.hasNext()) {
+      response().setHeader(Page.NEXT_CURSOR_HEADER, page.getLast().getPrimaryKey().toString());
+    }
+    return ok(page.getItems().isEmpty() ? "No students" : page.getItems().toString());
   }
 
   /**
@@ -84,7 +106,11 @@ public class Student extends Controller {
 
     models.Student student = studentForm.get();
     student.setPassword(Crypto.encryptAES(student.getPassword()));
-    student.save();
+    if (!KeyRegistry.saveUnique(student)) {
+      ValidationError error = student.alreadyExistsError();
+      studentForm.reject(error.key(), error.message());
+      return badRequest(register.render(new DynamicForm(), studentForm, true, false));
+    }
     return ok(register.render(new DynamicForm(), studentForm, false, true));
   }
 }
@@ -0,0 +1,92 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package controllers;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import play.mvc.Controller;
+import play.mvc.Result;
+
+/**
+ * Suggests {@link models.Book}s as the user types into the search form. Suggestions are answered
+ * entirely from the in-memory {@link models.Typeahead}, so unlike the other actions this one does
+ * not run on the {@link DatabaseAction} thread pool.
+ *
+ * @author Christopher Foo
+ *
+ */
+public class Typeahead extends Controller {
+
+  /**
+   * Creates the {@link JsonGenerator}s.
+   */
+  private static final JsonFactory factory = new JsonFactory();
+
+  /**
+   * Gets the {@link models.Book}s matching the partially typed text in the "q" query string
+   * parameter as JSON, best ranked first. The optional "limit" parameter sets the number of
+   * suggestions, up to {@link models.Typeahead#TOP_K}.
+   *
+   * @return A 200 {@link Status} containing the suggestions.
+   */
+  public static Result suggest() {
+    int limit = parseLimit(request().getQueryString("limit"));
+    StringWriter body = new StringWriter();
+    try (JsonGenerator json = factory.createJsonGenerator(body)) {
+      json.writeStartObject();
+      json.writeArrayFieldStart("suggestions");
+      for (models.Typeahead.Suggestion suggestion : models.Typeahead.suggest(request()
+          .getQueryString("q"), limit)) {
+        json.writeStartObject();
+        json.writeStringField("isbn", suggestion.getIsbn());
+        json.writeStringField("name", suggestion.getName());
+        json.writeStringField("authors", suggestion.getAuthors());
+        json.writeStringField("publisher", suggestion.getPublisher());
+        json.writeNumberField("offers", suggestion.getOffers());
+        json.writeEndObject();
+      }
+      json.writeEndArray();
+      json.writeEndObject();
+    }
+    catch (IOException e) {
+      return internalServerError(e.getMessage());
+    }
+    response().setContentType(Api.CONTENT_TYPE);
+    return ok(body.toString());
+  }
+
+  /**
+   * Parses the given number of suggestions, limiting it to {@link models.Typeahead#TOP_K}.
+   *
+   * @param limit The requested number of suggestions.
+   * @return The number of suggestions to return.
+   */
+  private static int parseLimit(String limit) {
+    if (limit == null || limit.length() == 0) {
+      return models.Typeahead.DEFAULT_LIMIT;
+    }
+    try {
+      return Math.max(1, Math.min(models.Typeahead.TOP_K, Integer.parseInt(limit)));
+    }
+    catch (NumberFormatException e) {
+      return models.Typeahead.DEFAULT_LIMIT;
+    }
+  }
+}
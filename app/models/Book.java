@@ -17,13 +17,17 @@
 
 package models;
 
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.OneToMany;
+import javax.persistence.Version;
+import com.avaje.ebean.annotation.UpdatedTimestamp;
 import play.data.validation.Constraints.Min;
 import play.data.validation.Constraints.MinLength;
 import play.data.validation.Constraints.Required;
@@ -53,6 +57,54 @@ public class Book extends Model {
     return new Finder<>(Long.class, Book.class);
   }
 
+  /**
+   * Caches {@link Book}s by normalized ISBN. Valid ISBNs are looked up by {@link #isbnKey}. See:
+   * {@link #findByIsbn(String)} and {@link Isbn#normalize(String)}.
+   */
+  private static final EntityCache<Book> cache = new EntityCache<Book>("book", 1000, 10,
+      TimeUnit.MINUTES) {
+    @Override
+    protected Book load(String isbn) {
+      long key = Isbn.parse(isbn);
+      return (key == Isbn.INVALID) ? Book.find().where().eq("isbn", isbn).findUnique()
+          : Book.find().where().eq("isbnKey", key).findUnique();
+    }
+  };
+
+  /**
+   * Gets the {@link EntityCache} of {@link Book}s keyed by normalized ISBN.
+   * 
+   * @return The Book cache.
+   */
+  public static EntityCache<Book> cache() {
+    return cache;
+  }
+
+  /**
+   * Finds the {@link Book} with the given ISBN, using the {@link #cache()} if possible. Any valid
+   * ISBN-10 or ISBN-13 form of a Book's ISBN finds it.
+   * 
+   * @param isbn The ISBN of the Book.
+   * @return The Book or null if there is no Book with the given ISBN.
+   */
+  public static Book findByIsbn(String isbn) {
+    return cache.get(Isbn.normalize(isbn));
+  }
+
+  /**
+   * The normalized ISBNs of the {@link Book}s in the database. See: {@link #validate()}.
+   */
+  private static final KeyRegistry keys = new KeyRegistry();
+
+  /**
+   * Gets the {@link KeyRegistry} of the ISBNs in use.
+   * 
+   * @return The ISBN registry.
+   */
+  public static KeyRegistry keys() {
+    return keys;
+  }
+
   /**
    * The names of the authors of this {@link Book}.
    */
@@ -74,6 +126,19 @@ public class Book extends Model {
   @Column(unique = true)
   private String isbn;
 
+  /**
+   * The ISBN-13 of this {@link Book} if its {@link #isbn} is a valid ISBN-10 or ISBN-13, or null.
+   * See: {@link Isbn#parse(CharSequence)}.
+   */
+  @Column(unique = true)
+  private Long isbnKey;
+
+  /**
+   * When this {@link Book} was last inserted or updated. Set by Ebean.
+   */
+  @UpdatedTimestamp
+  private Timestamp lastModified;
+
   /**
    * The name of this {@link Book}.
    */
@@ -113,6 +178,13 @@ public class Book extends Model {
   @OneToMany(cascade = CascadeType.ALL, mappedBy = "book")
   private List<Request> requests = new ArrayList<>();
 
+  /**
+   * The version of this {@link Book}. Ebean increments it on every update and checks it to detect
+   * concurrent updates.
+   */
+  @Version
+  private Long version;
+
   /**
    * Creates a new {@link Book} with the given values and the default edition number of 1.
    * 
@@ -143,6 +215,17 @@ public class Book extends Model {
     this.edition = edition;
     this.authors = authors;
     this.publisher = publisher;
+    updateIsbnKey();
+  }
+
+  /**
+   * Creates the {@link ValidationError} reported when this {@link Book}'s ISBN is already taken.
+   * 
+   * @return The ValidationError.
+   */
+  public ValidationError alreadyExistsError() {
+    return new ValidationError("AlreadyExists", String.format(
+        "A Book with an ISBN of '%s' already exists.", this.isbn));
   }
 
   /**
@@ -172,6 +255,24 @@ public class Book extends Model {
     return this.isbn;
   }
 
+  /**
+   * Gets the {@link #isbnKey} of this {@link Book}.
+   * 
+   * @return The ISBN-13 of this Book or null if its ISBN is not a valid ISBN.
+   */
+  public Long getIsbnKey() {
+    return this.isbnKey;
+  }
+
+  /**
+   * Gets when this {@link Book} was last inserted or updated.
+   * 
+   * @return The time of the last change.
+   */
+  public Timestamp getLastModified() {
+    return this.lastModified;
+  }
+
   /**
    * Gets the {{@link #name} of this {@link Book}.
    * 
@@ -226,6 +327,15 @@ public class Book extends Model {
     return this.requests;
   }
 
+  /**
+   * Gets the version of this {@link Book}, which changes whenever it is updated.
+   * 
+   * @return The version.
+   */
+  public Long getVersion() {
+    return this.version;
+  }
+
   /**
    * Sets the names of the {@link #authors} of this {@link Book}.
    * 
@@ -251,6 +361,7 @@ public class Book extends Model {
    */
   public void setIsbn(String isbn) {
     this.isbn = isbn;
+    updateIsbnKey();
   }
 
   /**
@@ -308,17 +419,28 @@ public class Book extends Model {
   }
 
   /**
-   * Performs extra validation for this {@link Book}.
+   * Performs extra validation for this {@link Book}. ISBNs that are already taken are rejected
+   * using the {@link #keys()} registry; an ISBN taken by a concurrent insert is caught by the
+   * database's unique constraint instead. See: {@link KeyRegistry#saveUnique(Model)}.
    * 
    * @return A {@link List} of {@link ValidationError}s describing the errors or null if there are
    * no errors.
    */
   public List<ValidationError> validate() {
     List<ValidationError> errors = new ArrayList<>();
-    if (Book.find().where().eq("isbn", this.isbn).findUnique() != null) {
-      errors.add(new ValidationError("AlreadyExists", String.format(
-          "A Book with an ISBN of '%s' already exists.", this.isbn)));
+    if (keys.contains(Isbn.normalize(this.isbn))) {
+      errors.add(alreadyExistsError());
     }
     return (errors.size() == 0) ? null : errors;
   }
+
+  /**
+   * Sets the {@link #isbnKey} of this {@link Book} from its {@link #isbn}. Also called by
+   * {@link BookIndexer} before the Book is saved, in case the ISBN was set without
+   * {@link #setIsbn(String)}.
+   */
+  void updateIsbnKey() {
+    long key = Isbn.parse(this.isbn);
+    this.isbnKey = (key == Isbn.INVALID) ? null : key;
+  }
 }
@@ -0,0 +1,469 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.persistence.PersistenceException;
+import org.codehaus.jackson.JsonNode;
+import play.data.validation.ValidationError;
+import play.libs.Json;
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Transaction;
+
+/**
+ * Imports {@link Book}s in bulk from CSV or JSON lines. The input is read one line at a time and
+ * processed in chunks of {@link #CHUNK_SIZE} rows. Each chunk is checked for existing ISBNs against
+ * {@link Book#keys()} and inserted with one batched statement using primary keys preallocated from
+ * <code>book_seq</code>.
+ *
+ * @author Christopher Foo
+ *
+ */
+public final class BookImporter {
+
+  /**
+   * The result of an import.
+   */
+  public static final class Report {
+
+    /**
+     * The errors found in the rows that were not imported.
+     */
+    private final List<String> errors = new ArrayList<>();
+
+    /**
+     * The number of Books imported.
+     */
+    private int imported = 0;
+
+    /**
+     * Gets the errors found in the rows that were not imported.
+     *
+     * @return The errors, one per line of the input.
+     */
+    public List<String> getErrors() {
+      return this.errors;
+    }
+
+    /**
+     * Gets the number of Books imported.
+     *
+     * @return The number of Books imported.
+     */
+    public int getImported() {
+      return this.imported;
+    }
+
+    /**
+     * Returns the {@link String} representation of this {@link Report}.
+     */
+    @Override
+    public String toString() {
+      StringBuilder report = new StringBuilder();
+      report.append(String.format("Imported %d books with %d errors\n", this.imported,
+          this.errors.size()));
+      for (String error : this.errors) {
+        report.append(error).append("\n");
+      }
+      return report.toString();
+    }
+
+    /**
+     * Records an error in the given line of the input.
+     *
+     * @param line The line number.
+     * @param key The kind of error.
+     * @param message The description of the error.
+     */
+    private void error(int line, String key, String message) {
+      this.errors.add(String.format("line %d: %s: %s", line, key, message));
+    }
+  }
+
+  /**
+   * A row of the input that has not been processed yet.
+   */
+  private static final class Row {
+
+    /**
+     * The line number of the row in the input.
+     */
+    private final int line;
+
+    /**
+     * The values of the row keyed by field name.
+     */
+    private final Map<String, String> values;
+
+    /**
+     * Creates a new {@link Row}.
+     *
+     * @param line The line number of the row.
+     * @param values The values of the row.
+     */
+    private Row(int line, Map<String, String> values) {
+      this.line = line;
+      this.values = values;
+    }
+  }
+
+  /**
+   * The number of rows validated and inserted at a time.
+   */
+  public static final int CHUNK_SIZE = 1000;
+
+  /**
+   * The names of the fields of a {@link Book} that can be imported.
+   */
+  private static final String[] FIELDS = {"isbn", "name", "authors", "publisher", "price",
+      "edition"};
+
+  /**
+   * The statement used to insert the {@link Book}s.
+   */
+  private static final String INSERT_SQL = "insert into book "
+      + "(primary_key, isbn, isbn_key, name, edition, price, authors, publisher, last_modified, "
+      + "version) values (?, ?, ?, ?, ?, ?, ?, ?, ?, 1)";
+
+  /**
+   * Imports {@link Book}s from CSV. The first line must be a header naming the columns, which may
+   * be any of isbn, name, authors, publisher, price and edition in any order.
+   *
+   * @param input The CSV input.
+   * @return The Report of the import.
+   * @throws IOException If the input cannot be read.
+   */
+  public static Report importCsv(Reader input) throws IOException {
+    BufferedReader reader = new BufferedReader(input);
+    Report report = new Report();
+    Set<String> seen = new HashSet<>();
+    List<Row> chunk = new ArrayList<>(CHUNK_SIZE);
+
+    String line = reader.readLine();
+    if (line == null) {
+      return report;
+    }
+    List<String> header = parseCsvLine(line);
+    for (int i = 0; i < header.size(); i++) {
+      header.set(i, header.get(i).trim());
+    }
+
+    int lineNumber = 1;
+    while ((line = reader.readLine()) != null) {
+      lineNumber++;
+      if (line.trim().length() == 0) {
+        continue;
+      }
+      List<String> columns = parseCsvLine(line);
+      Map<String, String> values = new HashMap<>();
+      for (int i = 0; i < header.size() && i < columns.size(); i++) {
+        values.put(header.get(i), columns.get(i));
+      }
+      chunk.add(new Row(lineNumber, values));
+      if (chunk.size() == CHUNK_SIZE) {
+        process(chunk, seen, report);
+        chunk.clear();
+      }
+    }
+    process(chunk, seen, report);
+    return report;
+  }
+
+  /**
+   * Imports {@link Book}s from JSON lines, where each line is an object with any of the isbn,
+   * name, authors, publisher, price and edition fields.
+   *
+   * @param input The JSON lines input.
+   * @return The Report of the import.
+   * @throws IOException If the input cannot be read.
+   */
+  public static Report importJsonLines(Reader input) throws IOException {
+    BufferedReader reader = new BufferedReader(input);
+    Report report = new Report();
+    Set<String> seen = new HashSet<>();
+    List<Row> chunk = new ArrayList<>(CHUNK_SIZE);
+
+    String line;
+    int lineNumber = 0;
+    while ((line = reader.readLine()) != null) {
+      lineNumber++;
+      if (line.trim().length() == 0) {
+        continue;
+      }
+
+      JsonNode json;
+      try {
+        json = Json.parse(line);
+      }
+      catch (RuntimeException e) {
+        report.error(lineNumber, "InvalidJson", "The line is not a JSON object.");
+        continue;
+      }
+      if (json == null || !json.isObject()) {
+        report.error(lineNumber, "InvalidJson", "The line is not a JSON object.");
+        continue;
+      }
+
+      Map<String, String> values = new HashMap<>();
+      Iterator<String> names = json.getFieldNames();
+      while (names.hasNext()) {
+        String name = names.next();
+        values.put(name, json.get(name).asText());
+      }
+      chunk.add(new Row(lineNumber, values));
+      if (chunk.size() == CHUNK_SIZE) {
+        process(chunk, seen, report);
+        chunk.clear();
+      }
+    }
+    process(chunk, seen, report);
+    return report;
+  }
+
+  /**
+   * Splits a line of CSV into its columns. Columns may be quoted with double quotes, in which case
+   * they may contain commas and escaped ("") double quotes.
+   *
+   * @param line The line to split.
+   * @return The columns of the line.
+   */
+  static List<String> parseCsvLine(String line) {
+    List<String> columns = new ArrayList<>();
+    StringBuilder column = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          column.append('"');
+          i++;
+        }
+        else if (c == '"') {
+          quoted = false;
+        }
+        else {
+          column.append(c);
+        }
+      }
+      else if (c == '"') {
+        quoted = true;
+      }
+      else if (c == ',') {
+        columns.add(column.toString());
+        column.setLength(0);
+      }
+      else {
+        column.append(c);
+      }
+    }
+    columns.add(column.toString());
+    return columns;
+  }
+
+  /**
+   * Inserts the given {@link Book}s with a single batched statement in one transaction. The rows
+   * bypass Ebean's persist listeners, so they are noted for the {@link Journal} here.
+   *
+   * @param books The Books to insert.
+   * @return The primary keys of the inserted Books.
+   * @throws SQLException If the Books cannot be inserted.
+   */
+  private static List<Long> insert(List<Book> books) throws SQLException {
+    List<Long> keys = new ArrayList<>(books.size());
+    Timestamp now = new Timestamp(System.currentTimeMillis());
+    Transaction transaction = Ebean.beginTransaction();
+    try {
+      Connection connection = transaction.getConnection();
+      try (PreparedStatement statement = connection.prepareStatement(INSERT_SQL)) {
+        for (Book book : books) {
+          long key = ((Number) Ebean.nextId(Book.class)).longValue();
+          statement.setLong(1, key);
+          statement.setString(2, book.getIsbn());
+          if (book.getIsbnKey() == null) {
+            statement.setNull(3, Types.BIGINT);
+          }
+          else {
+            statement.setLong(3, book.getIsbnKey());
+          }
+          statement.setString(4, book.getName());
+          statement.setInt(5, book.getEdition());
+          statement.setDouble(6, book.getPrice());
+          statement.setString(7, book.getAuthors());
+          statement.setString(8, book.getPublisher());
+          statement.setTimestamp(9, now);
+          statement.addBatch();
+          keys.add(key);
+          Journal.changed(transaction, "book", key, false);
+        }
+        statement.executeBatch();
+      }
+      Ebean.commitTransaction();
+    }
+    finally {
+      Ebean.endTransaction();
+    }
+    return keys;
+  }
+
+  /**
+   * Validates and inserts a chunk of rows.
+   *
+   * @param chunk The rows to process.
+   * @param seen The ISBNs already imported or rejected earlier in the input.
+   * @param report The Report to add the results to.
+   */
+  private static void process(List<Row> chunk, Set<String> seen, Report report) {
+    if (chunk.isEmpty()) {
+      return;
+    }
+
+    // Validate the fields of each row.
+    List<Book> books = new ArrayList<>(chunk.size());
+    List<Integer> lines = new ArrayList<>(chunk.size());
+    for (Row row : chunk) {
+      Book book = validate(row, report);
+      if (book == null) {
+        continue;
+      }
+      if (!seen.add(Isbn.normalize(book.getIsbn()))) {
+        report.error(row.line, "AlreadyExists", String.format(
+            "A Book with an ISBN of '%s' is already in the import.", book.getIsbn()));
+        continue;
+      }
+      books.add(book);
+      lines.add(row.line);
+    }
+    if (books.isEmpty()) {
+      return;
+    }
+
+    List<Book> newBooks = new ArrayList<>(books.size());
+    List<Integer> newLines = new ArrayList<>(books.size());
+    for (int i = 0; i < books.size(); i++) {
+      if (Book.keys().contains(Isbn.normalize(books.get(i).getIsbn()))) {
+        ValidationError error = books.get(i).alreadyExistsError();
+        report.error(lines.get(i), error.key(), error.message());
+      }
+      else {
+        newBooks.add(books.get(i));
+        newLines.add(lines.get(i));
+      }
+    }
+    if (newBooks.isEmpty()) {
+      return;
+    }
+
+    List<Long> keys;
+    try {
+      keys = insert(newBooks);
+    }
+    catch (SQLException | PersistenceException e) {
+      for (Integer line : newLines) {
+        report.error(line, "InsertFailed", e.getMessage());
+      }
+      return;
+    }
+    report.imported += keys.size();
+
+    // The batch bypassed Ebean so bring the in-memory structures up to date.
+    List<Book> inserted = Book.find().where().in("primaryKey", keys).findList();
+    Catalog.addAll(inserted);
+    for (Book book : inserted) {
+      BookIndex.add(book);
+      Typeahead.add(book);
+      Book.keys().put(book.getPrimaryKey(), Isbn.normalize(book.getIsbn()));
+      SearchCache.invalidate(book);
+    }
+  }
+
+  /**
+   * Validates the given row, applying the same rules as the constraints on {@link Book}.
+   *
+   * @param row The row to validate.
+   * @param report The Report to add any errors to.
+   * @return The Book described by the row or null if it is invalid.
+   */
+  private static Book validate(Row row, Report report) {
+    int errors = report.getErrors().size();
+    Map<String, String> values = new HashMap<>();
+    for (String field : FIELDS) {
+      String value = row.values.get(field);
+      values.put(field, (value == null) ? "" : value.trim());
+    }
+
+    for (String field : new String[] {"isbn", "name", "authors", "publisher", "price"}) {
+      if (values.get(field).length() == 0) {
+        report.error(row.line, field, "This field is required.");
+      }
+    }
+
+    Double price = null;
+    if (values.get("price").length() > 0) {
+      try {
+        price = Double.parseDouble(values.get("price"));
+        if (price < 0) {
+          report.error(row.line, "price", "Must be greater or equal to 0.");
+        }
+      }
+      catch (NumberFormatException e) {
+        report.error(row.line, "price", "Invalid value.");
+      }
+    }
+
+    // Default edition to 1 if it is not provided.
+    int edition = 1;
+    if (values.get("edition").length() > 0) {
+      try {
+        edition = Integer.parseInt(values.get("edition"));
+        if (edition < 1) {
+          report.error(row.line, "edition", "Must be greater or equal to 1.");
+        }
+      }
+      catch (NumberFormatException e) {
+        report.error(row.line, "edition", "Invalid value.");
+      }
+    }
+
+    if (report.getErrors().size() > errors) {
+      return null;
+    }
+    return new Book(values.get("isbn"), values.get("name"), values.get("authors"),
+        values.get("publisher"), price, edition);
+  }
+
+  /**
+   * Private constructor to prevent instantiation of this class.
+   */
+  private BookImporter() {
+    // Empty Private constructor to prevent instantiation.
+  }
+}
@@ -0,0 +1,317 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory inverted index over the text fields of the {@link Book}s table. Each indexed field
+ * maps its terms to the primary keys of the Books containing them so that searches can be answered
+ * without scanning the table.
+ *
+ * <p>
+ * Query terms are matched as prefixes of the indexed terms, so "intro" will find a Book named
+ * "Introduction to Algorithms". The ISBN field is indexed as every suffix of its digits, with all
+ * punctuation removed, so that "0-13-1103", "013110" and "103628" all match "0-13-110362-8".
+ * </p>
+ *
+ * @author Christopher Foo
+ *
+ */
+public final class BookIndex {
+
+  /**
+   * The names of the {@link Book} fields that are indexed.
+   */
+  public static final String[] FIELDS = {"isbn", "name", "authors", "publisher"};
+
+  /**
+   * The terms of each indexed field mapped to the primary keys of the {@link Book}s that contain
+   * them.
+   */
+  private static final Map<String, TreeMap<String, Set<Long>>> postings = new HashMap<>();
+
+  /**
+   * The terms indexed for each {@link Book}, keyed by primary key and then by field. Used to remove
+   * a Book's old postings when it is updated or deleted.
+   */
+  private static final Map<Long, Map<String, Set<String>>> indexed = new HashMap<>();
+
+  /**
+   * Guards {@link #postings} and {@link #indexed}.
+   */
+  private static final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  static {
+    for (String field : FIELDS) {
+      postings.put(field, new TreeMap<String, Set<Long>>());
+    }
+  }
+
+  /**
+   * Adds the given {@link Book} to the index, replacing any terms previously indexed for it.
+   *
+   * @param book The Book to index.
+   */
+  public static void add(Book book) {
+    if (book == null || book.getPrimaryKey() == null) {
+      return;
+    }
+    Map<String, Set<String>> terms = new HashMap<>();
+    terms.put("isbn", suffixes(tokenize("isbn", book.getIsbn())));
+    terms.put("name", tokenize("name", book.getName()));
+    terms.put("authors", tokenize("authors", book.getAuthors()));
+    terms.put("publisher", tokenize("publisher", book.getPublisher()));
+
+    lock.writeLock().lock();
+    try {
+      unindex(book.getPrimaryKey());
+      for (Map.Entry<String, Set<String>> entry : terms.entrySet()) {
+        TreeMap<String, Set<Long>> fieldPostings = postings.get(entry.getKey());
+        for (String term : entry.getValue()) {
+          Set<Long> keys = fieldPostings.get(term);
+          if (keys == null) {
+            keys = new HashSet<>();
+            fieldPostings.put(term, keys);
+          }
+          keys.add(book.getPrimaryKey());
+        }
+      }
+      indexed.put(book.getPrimaryKey(), terms);
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes all {@link Book}s from the index.
+   */
+  public static void clear() {
+    lock.writeLock().lock();
+    try {
+      for (TreeMap<String, Set<Long>> fieldPostings : postings.values()) {
+        fieldPostings.clear();
+      }
+      indexed.clear();
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Rebuilds the index from the contents of the {@link Book}s table.
+   */
+  public static void rebuild() {
+    List<Book> books =
+        Book.find().select("primaryKey, isbn, name, authors, publisher").findList();
+    clear();
+    for (Book book : books) {
+      add(book);
+    }
+  }
+
+  /**
+   * Removes the given {@link Book} from the index. Does nothing if the Book is not indexed.
+   *
+   * @param book The Book to remove.
+   */
+  public static void remove(Book book) {
+    if (book == null || book.getPrimaryKey() == null) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      unindex(book.getPrimaryKey());
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Finds the primary keys of the {@link Book}s whose given field matches every term in the given
+   * text.
+   *
+   * @param field The name of the field to search. Must be one of the {@link #FIELDS}.
+   * @param text The text to search for.
+   * @return The primary keys of the matching Books or null if the text does not contain any
+   * searchable terms, in which case the caller should fall back to a database query.
+   */
+  public static Set<Long> search(String field, String text) {
+    Set<String> terms = tokenize(field, text);
+    if (terms.isEmpty()) {
+      return null;
+    }
+
+    lock.readLock().lock();
+    try {
+      TreeMap<String, Set<Long>> fieldPostings = postings.get(field);
+      Set<Long> result = null;
+      for (String term : terms) {
+        Set<Long> matches = new HashSet<>();
+        SortedMap<String, Set<Long>> prefixed =
+            fieldPostings.subMap(term, term + Character.MAX_VALUE);
+        for (Set<Long> keys : prefixed.values()) {
+          matches.addAll(keys);
+        }
+
+        if (result == null) {
+          result = matches;
+        }
+        else {
+          result.retainAll(matches);
+        }
+
+        if (result.isEmpty()) {
+          break;
+        }
+      }
+      return result;
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Intersects the given sets of primary keys.
+   *
+   * @param keySets The sets of primary keys to intersect.
+   * @return The primary keys contained in every given set.
+   */
+  public static Set<Long> intersect(List<Set<Long>> keySets) {
+    List<Set<Long>> sorted = new ArrayList<>(keySets);
+    Set<Long> smallest = null;
+    for (Set<Long> keys : sorted) {
+      if (smallest == null || keys.size() < smallest.size()) {
+        smallest = keys;
+      }
+    }
+    Set<Long> result = new HashSet<>();
+    if (smallest == null) {
+      return result;
+    }
+
+    sorted.remove(smallest);
+    for (Long key : smallest) {
+      boolean inAll = true;
+      for (Set<Long> keys : sorted) {
+        if (!keys.contains(key)) {
+          inAll = false;
+          break;
+        }
+      }
+      if (inAll) {
+        result.add(key);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Gets every suffix of the given terms. Matching query terms as prefixes of the suffixes matches
+   * them anywhere in the original terms.
+   *
+   * @param terms The terms.
+   * @return The suffixes of the terms.
+   */
+  private static Set<String> suffixes(Set<String> terms) {
+    Set<String> suffixes = new HashSet<>();
+    for (String term : terms) {
+      for (int i = 0; i < term.length(); i++) {
+        suffixes.add(term.substring(i));
+      }
+    }
+    return suffixes;
+  }
+
+  /**
+   * Splits the given text into the terms indexed for the given field.
+   *
+   * @param field The name of the field that the text belongs to.
+   * @param text The text to split.
+   * @return The lower case terms in the text.
+   */
+  static Set<String> tokenize(String field, String text) {
+    Set<String> terms = new HashSet<>();
+    if (text == null) {
+      return terms;
+    }
+
+    String lower = text.toLowerCase(Locale.ENGLISH);
+    StringBuilder term = new StringBuilder();
+    for (int i = 0; i < lower.length(); i++) {
+      char c = lower.charAt(i);
+      if (Character.isLetterOrDigit(c)) {
+        term.append(c);
+      }
+      else if (term.length() > 0 && !"isbn".equals(field)) {
+        terms.add(term.toString());
+        term.setLength(0);
+      }
+    }
+    if (term.length() > 0) {
+      terms.add(term.toString());
+    }
+    return terms;
+  }
+
+  /**
+   * Removes the postings of the {@link Book} with the given primary key. The caller must hold the
+   * write lock.
+   *
+   * @param primaryKey The primary key of the Book.
+   */
+  private static void unindex(Long primaryKey) {
+    Map<String, Set<String>> terms = indexed.remove(primaryKey);
+    if (terms == null) {
+      return;
+    }
+    for (Map.Entry<String, Set<String>> entry : terms.entrySet()) {
+      TreeMap<String, Set<Long>> fieldPostings = postings.get(entry.getKey());
+      for (String term : entry.getValue()) {
+        Set<Long> keys = fieldPostings.get(term);
+        if (keys != null) {
+          keys.remove(primaryKey);
+          if (keys.isEmpty()) {
+            fieldPostings.remove(term);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Private constructor to prevent instantiation of this class.
+   */
+  private BookIndex() {
+    // Empty Private constructor to prevent instantiation.
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import com.avaje.ebean.event.BeanPersistAdapter;
+import com.avaje.ebean.event.BeanPersistRequest;
+
+/**
+ * Keeps the {@link BookIndex}, the {@link Catalog} and the {@link Typeahead} up to date as
+ * {@link Book}s are saved, updated and deleted, and then removes the {@link SearchCache} entries
+ * the change affects. The cache is invalidated after the index is updated so that a search cannot
+ * cache a result computed from the old index. Also keeps each Book's ISBN key in step with its
+ * ISBN before it is written. Ebean registers this controller automatically because it is in the
+ * <code>models</code> package.
+ *
+ * @author Christopher Foo
+ *
+ */
+public class BookIndexer extends BeanPersistAdapter {
+
+  /**
+   * Only listen for changes to {@link Book}s.
+   */
+  @Override
+  public boolean isRegisterFor(Class<?> cls) {
+    return Book.class.equals(cls);
+  }
+
+  /**
+   * Removes the deleted {@link Book} from the {@link BookIndex}.
+   */
+  @Override
+  public void postDelete(BeanPersistRequest<?> request) {
+    Book book = (Book) request.getBean();
+    BookIndex.remove(book);
+    Catalog.remove(book);
+    Typeahead.remove(book);
+    SearchCache.invalidate(book);
+  }
+
+  /**
+   * Adds the inserted {@link Book} to the {@link BookIndex}.
+   */
+  @Override
+  public void postInsert(BeanPersistRequest<?> request) {
+    Book book = (Book) request.getBean();
+    BookIndex.add(book);
+    Catalog.add(book);
+    Typeahead.add(book);
+    SearchCache.invalidate(book);
+  }
+
+  /**
+   * Re-indexes the updated {@link Book}.
+   */
+  @Override
+  public void postUpdate(BeanPersistRequest<?> request) {
+    Book book = (Book) request.getBean();
+    BookIndex.add(book);
+    Catalog.add(book);
+    Typeahead.add(book);
+    SearchCache.invalidate(book);
+  }
+
+  /**
+   * Sets the ISBN key of the Book about to be inserted.
+   */
+  @Override
+  public boolean preInsert(BeanPersistRequest<?> request) {
+    ((Book) request.getBean()).updateIsbnKey();
+    return true;
+  }
+
+  /**
+   * Sets the ISBN key of the Book about to be updated.
+   */
+  @Override
+  public boolean preUpdate(BeanPersistRequest<?> request) {
+    ((Book) request.getBean()).updateIsbnKey();
+    return true;
+  }
+}
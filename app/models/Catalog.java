@@ -0,0 +1,753 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A read-optimized, columnar snapshot of the {@link Book}s, used to evaluate the edition, price
+ * and publisher criteria of a search without querying the database. Each column is a primitive
+ * array holding one entry per Book in ISBN order, and the publishers are dictionary encoded.
+ * Snapshots are never modified: every change builds a new snapshot which then replaces the
+ * {@link #current()} one, so searches read it without locking. {@link BookIndexer} and
+ * {@link BookImporter} keep it up to date.
+ *
+ * @author Christopher Foo
+ *
+ */
+public final class Catalog {
+
+  /**
+   * Collects the rows of a snapshot that pass the filters.
+   */
+  private static final class Builder {
+
+    /**
+     * The editions of the rows.
+     */
+    private int[] editions;
+
+    /**
+     * The ISBNs of the rows.
+     */
+    private String[] isbns;
+
+    /**
+     * The primary keys of the rows.
+     */
+    private long[] keys;
+
+    /**
+     * The prices of the rows.
+     */
+    private double[] prices;
+
+    /**
+     * The publisher dictionary IDs keyed by publisher.
+     */
+    private final Map<String, Integer> publisherIds;
+
+    /**
+     * The publisher dictionary.
+     */
+    private final List<String> publisherNames;
+
+    /**
+     * The publisher dictionary IDs of the rows.
+     */
+    private int[] publishers;
+
+    /**
+     * The number of rows added.
+     */
+    private int size;
+
+    /**
+     * Creates a new {@link Builder}.
+     *
+     * @param capacity The maximum number of rows.
+     * @param publisherNames The publisher dictionary to extend.
+     */
+    private Builder(int capacity, String[] publisherNames) {
+      this.editions = new int[capacity];
+      this.isbns = new String[capacity];
+      this.keys = new long[capacity];
+      this.prices = new double[capacity];
+      this.publishers = new int[capacity];
+      this.publisherNames = new ArrayList<>(Arrays.asList(publisherNames));
+      this.publisherIds = new HashMap<>();
+      for (int i = 0; i < publisherNames.length; i++) {
+        this.publisherIds.put(publisherNames[i], i);
+      }
+    }
+
+    /**
+     * Adds a row for the given {@link Book}.
+     *
+     * @param book The Book.
+     */
+    private void add(Book book) {
+      String publisher = (book.getPublisher() == null) ? "" : book.getPublisher();
+      Integer id = this.publisherIds.get(publisher);
+      if (id == null) {
+        id = this.publisherNames.size();
+        this.publisherNames.add(publisher);
+        this.publisherIds.put(publisher, id);
+      }
+      this.editions[this.size] = book.getEdition();
+      this.isbns[this.size] = book.getIsbn();
+      this.keys[this.size] = book.getPrimaryKey();
+      this.prices[this.size] = (book.getPrice() == null) ? Double.NaN : book.getPrice();
+      this.publishers[this.size] = id;
+      this.size++;
+    }
+
+    /**
+     * Creates the {@link Catalog} holding the added rows.
+     *
+     * @return The Catalog.
+     */
+    private Catalog build() {
+      return new Catalog(Arrays.copyOf(this.keys, this.size),
+          Arrays.copyOf(this.isbns, this.size), Arrays.copyOf(this.editions, this.size),
+          Arrays.copyOf(this.prices, this.size), Arrays.copyOf(this.publishers, this.size),
+          this.publisherNames.toArray(new String[this.publisherNames.size()]));
+    }
+
+    /**
+     * Adds a copy of the given row of the given {@link Catalog}.
+     *
+     * @param catalog The Catalog.
+     * @param row The row.
+     */
+    private void copy(Catalog catalog, int row) {
+      this.editions[this.size] = catalog.editions[row];
+      this.isbns[this.size] = catalog.isbns[row];
+      this.keys[this.size] = catalog.keys[row];
+      this.prices[this.size] = catalog.prices[row];
+      this.publishers[this.size] = catalog.publishers[row];
+      this.size++;
+    }
+  }
+
+  /**
+   * Scans a range of rows for the ones that pass the filters, splitting large ranges across the
+   * {@link #pool}.
+   */
+  private static final class Scan extends RecursiveTask<int[]> {
+
+    /**
+     * Automatically generated ID number.
+     */
+    private static final long serialVersionUID = 2978463920175932647L;
+
+    /**
+     * The Catalog being scanned.
+     */
+    private final Catalog catalog;
+
+    /**
+     * The position after the last row to scan.
+     */
+    private final int end;
+
+    /**
+     * The filters.
+     */
+    private final Filter filter;
+
+    /**
+     * The first row to scan.
+     */
+    private final int start;
+
+    /**
+     * Creates a new {@link Scan}.
+     *
+     * @param catalog The Catalog to scan.
+     * @param filter The filters.
+     * @param start The first row to scan.
+     * @param end The position after the last row to scan.
+     */
+    private Scan(Catalog catalog, Filter filter, int start, int end) {
+      this.catalog = catalog;
+      this.end = end;
+      this.filter = filter;
+      this.start = start;
+    }
+
+    /**
+     * Scans the range, in parallel halves if it is large.
+     *
+     * @return The matching rows in order.
+     */
+    @Override
+    protected int[] compute() {
+      if (this.end - this.start <= PARALLEL_CHUNK) {
+        return this.catalog.scan(this.filter, this.start, this.end);
+      }
+      int middle = (this.start + this.end) >>> 1;
+      Scan left = new Scan(this.catalog, this.filter, this.start, middle);
+      left.fork();
+      int[] right = new Scan(this.catalog, this.filter, middle, this.end).compute();
+      int[] rows = left.join();
+      int[] both = Arrays.copyOf(rows, rows.length + right.length);
+      System.arraycopy(right, 0, both, rows.length, right.length);
+      return both;
+    }
+  }
+
+  /**
+   * The edition, price and publisher filters of a search.
+   */
+  private static final class Filter {
+
+    /**
+     * The highest price or NaN if any price matches.
+     */
+    private final double maxPrice;
+
+    /**
+     * The lowest edition.
+     */
+    private final int minEdition;
+
+    /**
+     * Which publisher dictionary IDs match or null if any publisher matches.
+     */
+    private final boolean[] publishers;
+
+    /**
+     * Creates a new {@link Filter}.
+     *
+     * @param minEdition The lowest edition.
+     * @param maxPrice The highest price or NaN if any price matches.
+     * @param publishers Which publisher dictionary IDs match or null if any publisher matches.
+     */
+    private Filter(int minEdition, double maxPrice, boolean[] publishers) {
+      this.maxPrice = maxPrice;
+      this.minEdition = minEdition;
+      this.publishers = publishers;
+    }
+  }
+
+  /**
+   * Orders {@link Book}s by ISBN.
+   */
+  private static final Comparator<Book> BY_ISBN = new Comparator<Book>() {
+    @Override
+    public int compare(Book first, Book second) {
+      return first.getIsbn().compareTo(second.getIsbn());
+    }
+  };
+
+  /**
+   * The snapshot searched by {@link #current()}. Replaced, never modified.
+   */
+  private static volatile Catalog current = empty();
+
+  /**
+   * The number of rows each parallel task scans.
+   */
+  public static final int PARALLEL_CHUNK = 16384;
+
+  /**
+   * The number of rows at which scans are split across the {@link #pool}.
+   */
+  public static final int PARALLEL_THRESHOLD = 4 * PARALLEL_CHUNK;
+
+  /**
+   * The pool that runs the parallel scans of large snapshots.
+   */
+  private static final ForkJoinPool pool = new ForkJoinPool();
+
+  /**
+   * Adds the given new or updated {@link Book} to the snapshot. Only the Book's row is inserted
+   * or moved; the other rows are copied as they are.
+   *
+   * @param book The Book.
+   */
+  public static synchronized void add(Book book) {
+    if (book.getPrimaryKey() != null && book.getIsbn() != null) {
+      current = current.replace(book.getPrimaryKey(), book);
+    }
+  }
+
+  /**
+   * Adds the given new or updated {@link Book}s to the snapshot, replacing it once.
+   *
+   * @param books The Books.
+   */
+  public static synchronized void addAll(Collection<Book> books) {
+    current = current.change(books, new long[0]);
+  }
+
+  /**
+   * Removes all of the {@link Book}s from the snapshot.
+   */
+  public static synchronized void clear() {
+    current = empty();
+  }
+
+  /**
+   * Gets the current snapshot.
+   *
+   * @return The snapshot.
+   */
+  public static Catalog current() {
+    return current;
+  }
+
+  /**
+   * Rebuilds the snapshot from the database, which also drops unused publishers from the
+   * dictionary.
+   */
+  public static synchronized void rebuild() {
+    List<Book> books = Book.find().select("isbn, edition, price, publisher").findList();
+    current = empty().change(books, new long[0]);
+  }
+
+  /**
+   * Removes the given deleted {@link Book} from the snapshot.
+   *
+   * @param book The Book.
+   */
+  public static synchronized void remove(Book book) {
+    if (book.getPrimaryKey() != null) {
+      current = current.replace(book.getPrimaryKey(), null);
+    }
+  }
+
+  /**
+   * Copies a range of the given array, as if the given element had already been removed from it,
+   * to the given position of the target array.
+   *
+   * @param source The array to copy from.
+   * @param removed The index of the element to skip or -1 to skip none.
+   * @param from The first index to copy, not counting the skipped element.
+   * @param to The index after the last one to copy, not counting the skipped element.
+   * @param target The array to copy to.
+   * @param at The index of the target to copy the first element to.
+   */
+  private static void copy(Object source, int removed, int from, int to, Object target, int at) {
+    if (removed < 0 || to <= removed) {
+      System.arraycopy(source, from, target, at, to - from);
+    }
+    else if (from >= removed) {
+      System.arraycopy(source, from + 1, target, at, to - from);
+    }
+    else {
+      System.arraycopy(source, from, target, at, removed - from);
+      System.arraycopy(source, removed + 1, target, at + removed - from, to - removed);
+    }
+  }
+
+  /**
+   * Creates a snapshot without any {@link Book}s.
+   *
+   * @return The empty snapshot.
+   */
+  private static Catalog empty() {
+    return new Builder(0, new String[0]).build();
+  }
+
+  /**
+   * Copies the given array to the given target array, removing one element and leaving a gap for
+   * another.
+   *
+   * @param source The array to copy from.
+   * @param removed The index of the element to remove or -1 to remove none.
+   * @param target The array to copy to.
+   * @param inserted The index of the gap in the target or -1 to leave none.
+   * @param size The length of the target.
+   */
+  private static void splice(Object source, int removed, Object target, int inserted,
+      int size) {
+    int remaining = size - ((inserted < 0) ? 0 : 1);
+    if (inserted < 0) {
+      copy(source, removed, 0, remaining, target, 0);
+    }
+    else {
+      copy(source, removed, 0, inserted, target, 0);
+      copy(source, removed, inserted, remaining, target, inserted + 1);
+    }
+  }
+
+  /**
+   * The edition of each row.
+   */
+  private final int[] editions;
+
+  /**
+   * The ISBN of each row, in ascending order.
+   */
+  private final String[] isbns;
+
+  /**
+   * The primary key of each row.
+   */
+  private final long[] keys;
+
+  /**
+   * The publisher dictionary, lower cased for matching.
+   */
+  private final String[] lowerPublisherNames;
+
+  /**
+   * The price of each row, NaN if the {@link Book} has none.
+   */
+  private final double[] prices;
+
+  /**
+   * The publisher dictionary. The publisher IDs of the rows index this array.
+   */
+  private final String[] publisherNames;
+
+  /**
+   * The publisher dictionary ID of each row.
+   */
+  private final int[] publishers;
+
+  /**
+   * The row of each primary key in {@link #sortedKeys}.
+   */
+  private final int[] rowsBySortedKey;
+
+  /**
+   * The primary keys in ascending order, used to find the rows of candidate keys.
+   */
+  private final long[] sortedKeys;
+
+  /**
+   * Creates a new {@link Catalog} from the given columns.
+   *
+   * @param keys The primary key of each row.
+   * @param isbns The ISBN of each row, in ascending order.
+   * @param editions The edition of each row.
+   * @param prices The price of each row.
+   * @param publishers The publisher dictionary ID of each row.
+   * @param publisherNames The publisher dictionary.
+   */
+  private Catalog(long[] keys, String[] isbns, int[] editions, double[] prices, int[] publishers,
+      String[] publisherNames) {
+    this.editions = editions;
+    this.isbns = isbns;
+    this.keys = keys;
+    this.prices = prices;
+    this.publisherNames = publisherNames;
+    this.publishers = publishers;
+
+    this.lowerPublisherNames = new String[publisherNames.length];
+    for (int i = 0; i < publisherNames.length; i++) {
+      this.lowerPublisherNames[i] = publisherNames[i].toLowerCase(Locale.ENGLISH);
+    }
+    this.sortedKeys = keys.clone();
+    Arrays.sort(this.sortedKeys);
+    this.rowsBySortedKey = new int[keys.length];
+    for (int row = 0; row < keys.length; row++) {
+      this.rowsBySortedKey[Arrays.binarySearch(this.sortedKeys, keys[row])] = row;
+    }
+  }
+
+  /**
+   * Creates a new {@link Catalog} from the given columns and their already built indexes.
+   *
+   * @param keys The primary key of each row.
+   * @param isbns The ISBN of each row, in ascending order.
+   * @param editions The edition of each row.
+   * @param prices The price of each row.
+   * @param publishers The publisher dictionary ID of each row.
+   * @param publisherNames The publisher dictionary.
+   * @param lowerPublisherNames The publisher dictionary, lower cased.
+   * @param sortedKeys The primary keys in ascending order.
+   * @param rowsBySortedKey The row of each primary key in the sorted keys.
+   */
+  private Catalog(long[] keys, String[] isbns, int[] editions, double[] prices, int[] publishers,
+      String[] publisherNames, String[] lowerPublisherNames, long[] sortedKeys,
+      int[] rowsBySortedKey) {
+    this.editions = editions;
+    this.isbns = isbns;
+    this.keys = keys;
+    this.lowerPublisherNames = lowerPublisherNames;
+    this.prices = prices;
+    this.publisherNames = publisherNames;
+    this.publishers = publishers;
+    this.rowsBySortedKey = rowsBySortedKey;
+    this.sortedKeys = sortedKeys;
+  }
+
+  /**
+   * Finds the rows of the {@link Book}s that pass the given filters. The rows of large snapshots
+   * are scanned in parallel.
+   *
+   * @param candidates The primary keys of the Books that passed the other criteria or null if all
+   * of the Books did.
+   * @param publisher The lower cased text that the publisher must contain or null for any.
+   * @param minEdition The lowest edition or null for any.
+   * @param maxPrice The highest price or null for any.
+   * @return The matching rows in ISBN order.
+   */
+  public int[] filter(Set<Long> candidates, String publisher, Integer minEdition,
+      Double maxPrice) {
+    boolean[] publisherMask = null;
+    if (publisher != null) {
+      publisherMask = new boolean[this.lowerPublisherNames.length];
+      for (int i = 0; i < publisherMask.length; i++) {
+        publisherMask[i] = this.lowerPublisherNames[i].contains(publisher);
+      }
+    }
+    Filter filter = new Filter((minEdition == null) ? Integer.MIN_VALUE : minEdition,
+        (maxPrice == null) ? Double.NaN : maxPrice, publisherMask);
+
+    if (candidates != null) {
+      int[] rows = new int[candidates.size()];
+      int count = 0;
+      for (Long key : candidates) {
+        int index = Arrays.binarySearch(this.sortedKeys, key);
+        if (index >= 0 && matches(filter, this.rowsBySortedKey[index])) {
+          rows[count++] = this.rowsBySortedKey[index];
+        }
+      }
+      rows = Arrays.copyOf(rows, count);
+      Arrays.sort(rows);
+      return rows;
+    }
+    if (this.keys.length >= PARALLEL_THRESHOLD) {
+      return pool.invoke(new Scan(this, filter, 0, this.keys.length));
+    }
+    return scan(filter, 0, this.keys.length);
+  }
+
+  /**
+   * Gets the ISBNs of the given rows.
+   *
+   * @param rows The rows.
+   * @return The ISBNs.
+   */
+  public String[] getIsbns(int[] rows) {
+    String[] isbns = new String[rows.length];
+    for (int i = 0; i < rows.length; i++) {
+      isbns[i] = this.isbns[rows[i]];
+    }
+    return isbns;
+  }
+
+  /**
+   * Gets the primary keys of the given rows.
+   *
+   * @param rows The rows.
+   * @return The primary keys.
+   */
+  public long[] getKeys(int[] rows) {
+    long[] keys = new long[rows.length];
+    for (int i = 0; i < rows.length; i++) {
+      keys[i] = this.keys[rows[i]];
+    }
+    return keys;
+  }
+
+  /**
+   * Gets the number of distinct publishers in the dictionary.
+   *
+   * @return The dictionary size.
+   */
+  public int getPublisherCount() {
+    return this.publisherNames.length;
+  }
+
+  /**
+   * Gets the number of {@link Book}s in this snapshot.
+   *
+   * @return The number of Books.
+   */
+  public int size() {
+    return this.keys.length;
+  }
+
+  /**
+   * Creates a copy of this snapshot with the given changes.
+   *
+   * @param added The new or updated Books, which replace the rows with the same primary keys.
+   * @param removed The primary keys of the deleted Books.
+   * @return The new snapshot.
+   */
+  private Catalog change(Collection<Book> added, long[] removed) {
+    List<Book> sorted = new ArrayList<>(added.size());
+    long[] dropped = Arrays.copyOf(removed, removed.length + added.size());
+    int dropCount = removed.length;
+    for (Book book : added) {
+      if (book.getPrimaryKey() != null && book.getIsbn() != null) {
+        sorted.add(book);
+        dropped[dropCount++] = book.getPrimaryKey();
+      }
+    }
+    Collections.sort(sorted, BY_ISBN);
+    dropped = Arrays.copyOf(dropped, dropCount);
+    Arrays.sort(dropped);
+
+    // Merge the new rows into the old ones, which are already in ISBN order.
+    Builder builder = new Builder(this.keys.length + sorted.size(), this.publisherNames);
+    int row = 0;
+    int next = 0;
+    while (row < this.keys.length || next < sorted.size()) {
+      if (row < this.keys.length && Arrays.binarySearch(dropped, this.keys[row]) >= 0) {
+        row++;
+      }
+      else if (next == sorted.size() || (row < this.keys.length
+          && this.isbns[row].compareTo(sorted.get(next).getIsbn()) <= 0)) {
+        builder.copy(this, row++);
+      }
+      else {
+        builder.add(sorted.get(next++));
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Determines whether the given row passes the given filters.
+   *
+   * @param filter The filters.
+   * @param row The row.
+   * @return True if the row passes.
+   */
+  private boolean matches(Filter filter, int row) {
+    return this.editions[row] >= filter.minEdition
+        && (Double.isNaN(filter.maxPrice) || this.prices[row] <= filter.maxPrice)
+        && (filter.publishers == null || filter.publishers[this.publishers[row]]);
+  }
+
+  /**
+   * Creates a copy of this snapshot with the row of one {@link Book} inserted, moved or removed.
+   * Unlike {@link #change(Collection, long[])}, the other rows and the sorted primary keys are
+   * copied in order rather than merged and sorted again.
+   *
+   * @param key The primary key of the Book.
+   * @param book The new or updated Book or null if it was deleted.
+   * @return The new snapshot.
+   */
+  private Catalog replace(long key, Book book) {
+    int oldSorted = Arrays.binarySearch(this.sortedKeys, key);
+    int oldRow = (oldSorted < 0) ? -1 : this.rowsBySortedKey[oldSorted];
+    if (oldRow < 0 && book == null) {
+      return this;
+    }
+
+    // The new row goes after the remaining rows with the same or a lower ISBN.
+    int newRow = -1;
+    int newSorted = -1;
+    if (book != null) {
+      int low = 0;
+      int high = this.isbns.length;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (this.isbns[middle].compareTo(book.getIsbn()) <= 0) {
+          low = middle + 1;
+        }
+        else {
+          high = middle;
+        }
+      }
+      newRow = (oldRow >= 0 && oldRow < low) ? low - 1 : low;
+      newSorted = (oldSorted >= 0) ? oldSorted : -oldSorted - 1;
+    }
+
+    int size = this.keys.length + ((book == null) ? 0 : 1) - ((oldRow < 0) ? 0 : 1);
+    long[] keys = new long[size];
+    String[] isbns = new String[size];
+    int[] editions = new int[size];
+    double[] prices = new double[size];
+    int[] publishers = new int[size];
+    long[] sortedKeys = new long[size];
+    int[] rowsBySortedKey = new int[size];
+    splice(this.keys, oldRow, keys, newRow, size);
+    splice(this.isbns, oldRow, isbns, newRow, size);
+    splice(this.editions, oldRow, editions, newRow, size);
+    splice(this.prices, oldRow, prices, newRow, size);
+    splice(this.publishers, oldRow, publishers, newRow, size);
+    splice(this.sortedKeys, oldSorted, sortedKeys, newSorted, size);
+    splice(this.rowsBySortedKey, oldSorted, rowsBySortedKey, newSorted, size);
+    for (int i = 0; i < size; i++) {
+      if (i == newSorted) {
+        continue;
+      }
+      int row = rowsBySortedKey[i];
+      if (oldRow >= 0 && row > oldRow) {
+        row--;
+      }
+      if (newRow >= 0 && row >= newRow) {
+        row++;
+      }
+      rowsBySortedKey[i] = row;
+    }
+
+    String[] publisherNames = this.publisherNames;
+    String[] lowerPublisherNames = this.lowerPublisherNames;
+    if (book != null) {
+      String publisher = (book.getPublisher() == null) ? "" : book.getPublisher();
+      int id = Arrays.asList(publisherNames).indexOf(publisher);
+      if (id < 0) {
+        id = publisherNames.length;
+        publisherNames = Arrays.copyOf(publisherNames, id + 1);
+        publisherNames[id] = publisher;
+        lowerPublisherNames = Arrays.copyOf(lowerPublisherNames, id + 1);
+        lowerPublisherNames[id] = publisher.toLowerCase(Locale.ENGLISH);
+      }
+      keys[newRow] = key;
+      isbns[newRow] = book.getIsbn();
+      editions[newRow] = book.getEdition();
+      prices[newRow] = (book.getPrice() == null) ? Double.NaN : book.getPrice();
+      publishers[newRow] = id;
+      sortedKeys[newSorted] = key;
+      rowsBySortedKey[newSorted] = newRow;
+    }
+    return new Catalog(keys, isbns, editions, prices, publishers, publisherNames,
+        lowerPublisherNames, sortedKeys, rowsBySortedKey);
+  }
+
+  /**
+   * Finds the rows in the given range that pass the given filters.
+   *
+   * @param filter The filters.
+   * @param start The first row to scan.
+   * @param end The position after the last row to scan.
+   * @return The matching rows in order.
+   */
+  private int[] scan(Filter filter, int start, int end) {
+    int[] rows = new int[end - start];
+    int count = 0;
+    for (int row = start; row < end; row++) {
+      if (matches(filter, row)) {
+        rows[count++] = row;
+      }
+    }
+    return Arrays.copyOf(rows, count);
+  }
+}
@@ -0,0 +1,313 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded read-through cache of models keyed by their natural IDs. Entries are evicted when the
+ * cache is full, least recently used first, and when they are older than the cache's time to live.
+ * Subclasses load missing entries from the database with {@link #load(String)}.
+ *
+ * @author Christopher Foo
+ *
+ * @param <V> The type of the cached models.
+ */
+public abstract class EntityCache<V> {
+
+  /**
+   * A cached model and the time at which it expires.
+   */
+  private static final class Entry<V> {
+
+    /**
+     * The {@link System#nanoTime()} after which this entry is stale.
+     */
+    private final long expires;
+
+    /**
+     * The cached model.
+     */
+    private final V value;
+
+    /**
+     * Creates a new {@link Entry}.
+     *
+     * @param value The cached model.
+     * @param expires The time at which the entry expires.
+     */
+    private Entry(V value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * All of the {@link EntityCache}s that have been created.
+   */
+  private static final List<EntityCache<?>> caches = new CopyOnWriteArrayList<>();
+
+  /**
+   * Removes every entry from every {@link EntityCache}.
+   */
+  public static void invalidateAllCaches() {
+    for (EntityCache<?> cache : caches) {
+      cache.invalidateAll();
+    }
+  }
+
+  /**
+   * Gets all of the {@link EntityCache}s that have been created.
+   *
+   * @return The EntityCaches.
+   */
+  public static List<EntityCache<?>> getCaches() {
+    return new ArrayList<EntityCache<?>>(caches);
+  }
+
+  /**
+   * The cached models in least to most recently used order.
+   */
+  private final LinkedHashMap<String, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * The number of entries evicted because the cache was full or they expired.
+   */
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Incremented whenever entries are invalidated so that a model loaded while it was being
+   * invalidated is not put in the cache.
+   */
+  private long generation = 0;
+
+  /**
+   * The number of lookups answered from the cache.
+   */
+  private final AtomicLong hits = new AtomicLong();
+
+  /**
+   * The maximum number of entries in the cache.
+   */
+  private final int maxSize;
+
+  /**
+   * The number of lookups that had to be loaded from the database.
+   */
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * The name of the cache, used when reporting its statistics.
+   */
+  private final String name;
+
+  /**
+   * The number of nanoseconds that an entry stays in the cache.
+   */
+  private final long timeToLive;
+
+  /**
+   * Creates a new {@link EntityCache}.
+   *
+   * @param name The name of the cache.
+   * @param maxSize The maximum number of entries in the cache.
+   * @param timeToLive How long an entry stays in the cache.
+   * @param unit The unit of the time to live.
+   */
+  protected EntityCache(String name, int maxSize, long timeToLive, TimeUnit unit) {
+    this.name = name;
+    this.maxSize = maxSize;
+    this.timeToLive = unit.toNanos(timeToLive);
+    caches.add(this);
+  }
+
+  /**
+   * Gets the model with the given natural ID, loading it from the database if it is not cached.
+   *
+   * @param key The natural ID.
+   * @return The model or null if it does not exist.
+   */
+  public V get(String key) {
+    if (key == null) {
+      return null;
+    }
+
+    long loadGeneration;
+    synchronized (this) {
+      loadGeneration = this.generation;
+      Entry<V> entry = this.entries.get(key);
+      if (entry != null) {
+        if (entry.expires - System.nanoTime() > 0) {
+          this.hits.incrementAndGet();
+          return entry.value;
+        }
+        this.entries.remove(key);
+        this.evictions.incrementAndGet();
+      }
+    }
+
+    this.misses.incrementAndGet();
+    V value = load(key);
+    if (value != null) {
+      put(key, value, loadGeneration);
+    }
+    return value;
+  }
+
+  /**
+   * Gets the number of entries evicted because the cache was full or they expired.
+   *
+   * @return The number of evictions.
+   */
+  public long getEvictions() {
+    return this.evictions.get();
+  }
+
+  /**
+   * Gets the number of lookups answered from the cache.
+   *
+   * @return The number of hits.
+   */
+  public long getHits() {
+    return this.hits.get();
+  }
+
+  /**
+   * Gets the number of lookups that had to be loaded from the database.
+   *
+   * @return The number of misses.
+   */
+  public long getMisses() {
+    return this.misses.get();
+  }
+
+  /**
+   * Gets the name of the cache.
+   *
+   * @return The name of the cache.
+   */
+  public String getName() {
+    return this.name;
+  }
+
+  /**
+   * Gets the number of entries in the cache.
+   *
+   * @return The number of entries.
+   */
+  public synchronized int getSize() {
+    return this.entries.size();
+  }
+
+  /**
+   * Adds the given model to the cache, evicting the least recently used entry if the cache is
+   * full.
+   *
+   * @param key The model's natural ID.
+   * @param value The model.
+   */
+  public void put(String key, V value) {
+    if (key == null || value == null) {
+      return;
+    }
+    synchronized (this) {
+      put(key, value, this.generation);
+    }
+  }
+
+  /**
+   * Removes the entry with the given natural ID.
+   *
+   * @param key The natural ID.
+   */
+  public synchronized void invalidate(String key) {
+    if (key != null) {
+      this.entries.remove(key);
+      this.generation++;
+    }
+  }
+
+  /**
+   * Removes every entry from the cache.
+   */
+  public synchronized void invalidateAll() {
+    this.entries.clear();
+    this.generation++;
+  }
+
+  /**
+   * Removes every entry whose model is equal to (has the same primary key as) the given model. Used
+   * when a model is updated or deleted, since its natural ID may have changed.
+   *
+   * @param value The model.
+   */
+  public synchronized void invalidateValue(V value) {
+    Iterator<Map.Entry<String, Entry<V>>> iterator = this.entries.entrySet().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().getValue().value.equals(value)) {
+        iterator.remove();
+      }
+    }
+    this.generation++;
+  }
+
+  /**
+   * Returns the {@link String} representation of this cache's statistics.
+   */
+  @Override
+  public String toString() {
+    return String.format("[EntityCache %s size=%d hits=%d misses=%d evictions=%d]", this.name,
+        getSize(), getHits(), getMisses(), getEvictions());
+  }
+
+  /**
+   * Loads the model with the given natural ID from the database.
+   *
+   * @param key The natural ID.
+   * @return The model or null if it does not exist.
+   */
+  protected abstract V load(String key);
+
+  /**
+   * Adds the given model to the cache, evicting the least recently used entry if the cache is
+   * full. Does nothing if the cache has been invalidated since the model was loaded.
+   *
+   * @param key The model's natural ID.
+   * @param value The model.
+   * @param loadGeneration The {@link #generation} when the model started loading.
+   */
+  private synchronized void put(String key, V value, long loadGeneration) {
+    if (loadGeneration != this.generation) {
+      return;
+    }
+    this.entries.put(key, new Entry<V>(value, System.nanoTime() + this.timeToLive));
+    Iterator<Entry<V>> eldest = this.entries.values().iterator();
+    while (this.entries.size() > this.maxSize && eldest.hasNext()) {
+      eldest.next();
+      eldest.remove();
+      this.evictions.incrementAndGet();
+    }
+  }
+}
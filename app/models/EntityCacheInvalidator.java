@@ -0,0 +1,111 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import com.avaje.ebean.event.BeanPersistAdapter;
+import com.avaje.ebean.event.BeanPersistRequest;
+
+/**
+ * Removes models from their {@link EntityCache}s when they are saved, updated or deleted. Because
+ * cached {@link Offer}s and {@link Request}s hold on to their {@link Book} and {@link Student},
+ * changing a Book or Student empties the Offer and Request caches.
+ *
+ * @author Christopher Foo
+ *
+ */
+public class EntityCacheInvalidator extends BeanPersistAdapter {
+
+  /**
+   * Listen for changes to all of the models.
+   */
+  @Override
+  public boolean isRegisterFor(Class<?> cls) {
+    return Offer.class.equals(cls) || Request.class.equals(cls) || Book.class.equals(cls)
+        || Student.class.equals(cls);
+  }
+
+  /**
+   * Removes the deleted model from its cache.
+   */
+  @Override
+  public void postDelete(BeanPersistRequest<?> request) {
+    invalidate(request.getBean());
+  }
+
+  /**
+   * Removes the inserted model's natural ID from its cache.
+   */
+  @Override
+  public void postInsert(BeanPersistRequest<?> request) {
+    Object bean = request.getBean();
+    if (bean instanceof Book) {
+      Book.cache().invalidate(Isbn.normalize(((Book) bean).getIsbn()));
+    }
+    else if (bean instanceof Student) {
+      Student.cache().invalidate(((Student) bean).getStudentId());
+    }
+    else if (bean instanceof Offer) {
+      Offer.cache().invalidate(((Offer) bean).getOfferId());
+    }
+    else if (bean instanceof Request) {
+      Request.cache().invalidate(((Request) bean).getRequestId());
+    }
+  }
+
+  /**
+   * Removes the updated model from its cache.
+   */
+  @Override
+  public void postUpdate(BeanPersistRequest<?> request) {
+    invalidate(request.getBean());
+  }
+
+  /**
+   * Removes the given updated or deleted model from its cache by both natural ID and primary key.
+   *
+   * @param bean The changed model.
+   */
+  private void invalidate(Object bean) {
+    if (bean instanceof Book) {
+      Book book = (Book) bean;
+      Book.cache().invalidate(Isbn.normalize(book.getIsbn()));
+      Book.cache().invalidateValue(book);
+      Offer.cache().invalidateAll();
+      Request.cache().invalidateAll();
+    }
+    else if (bean instanceof Student) {
+      Student student = (Student) bean;
+      Student.cache().invalidate(student.getStudentId());
+      Student.cache().invalidateValue(student);
+      Student.principals().invalidate(student.getStudentId());
+      Student.principals().invalidateValue(student);
+      Offer.cache().invalidateAll();
+      Request.cache().invalidateAll();
+    }
+    else if (bean instanceof Offer) {
+      Offer offer = (Offer) bean;
+      Offer.cache().invalidate(offer.getOfferId());
+      Offer.cache().invalidateValue(offer);
+    }
+    else if (bean instanceof Request) {
+      Request request = (Request) bean;
+      Request.cache().invalidate(request.getRequestId());
+      Request.cache().invalidateValue(request);
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package models;
+
+/**
+ * Parses and normalizes ISBNs. An ISBN-10 or ISBN-13, with or without hyphens and spaces, whose
+ * check digit is correct is normalized to its ISBN-13 as a <code>long</code>, so that
+ * "0-13-110362-8" and "9780131103627" are the same {@link Book}. Anything else is treated as a
+ * free-form ISBN and compared as given.
+ *
+ * @author Christopher Foo
+ *
+ */
+public final class Isbn {
+
+  /**
+   * Returned by {@link #parse(CharSequence)} for text that is not a valid ISBN.
+   */
+  public static final long INVALID = -1;
+
+  /**
+   * The ISBN-13 prefix given to converted ISBN-10s, followed by room for nine digits.
+   */
+  private static final long ISBN_10_PREFIX = 978000000000L;
+
+  /**
+   * The weighted sum of the digits of the ISBN-13 prefix 978.
+   */
+  private static final int ISBN_10_PREFIX_SUM = 9 + 7 * 3 + 8;
+
+  /**
+   * Ten to the tenth power, used to extract the prefix of an ISBN-13.
+   */
+  private static final long TEN_DIGITS = 10000000000L;
+
+  /**
+   * Gets the key used by the {@link Book} cache and {@link KeyRegistry} for the given ISBN: the
+   * ISBN-13 digits if it is valid or the ISBN as given if it is not.
+   *
+   * @param isbn The ISBN.
+   * @return The normalized ISBN or null if the ISBN is null.
+   */
+  public static String normalize(String isbn) {
+    long key = parse(isbn);
+    return (key == INVALID) ? isbn : Long.toString(key);
+  }
+
+  /**
+   * Parses the given ISBN-10 or ISBN-13, ignoring hyphens and spaces, and checks its check digit.
+   * Does not allocate.
+   *
+   * @param text The ISBN.
+   * @return The ISBN-13 or {@link #INVALID} if the text is not a valid ISBN.
+   */
+  public static long parse(CharSequence text) {
+    if (text == null) {
+      return INVALID;
+    }
+    int count = 0;
+    long digits = 0;
+    long first9 = 0;
+    int first9Sum = 0;
+    int isbn10Sum = 0;
+    int isbn10Running = 0;
+    int isbn13Sum = 0;
+    boolean x = false;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      int digit;
+      if (c >= '0' && c <= '9') {
+        digit = c - '0';
+      }
+      else if ((c == 'X' || c == 'x') && count == 9) {
+        digit = 10;
+      }
+      else if (c == '-' || c == ' ') {
+        continue;
+      }
+      else {
+        return INVALID;
+      }
+      if (count == 13 || x) {
+        return INVALID;
+      }
+      x = digit == 10;
+      if (count < 9) {
+        first9 = first9 * 10 + digit;
+        first9Sum += (count % 2 == 0) ? digit * 3 : digit;
+      }
+      digits = digits * 10 + digit;
+      isbn13Sum += (count % 2 == 0) ? digit : digit * 3;
+      isbn10Running += digit;
+      isbn10Sum += isbn10Running;
+      count++;
+    }
+
+    if (count == 13 && isbn13Sum % 10 == 0) {
+      long prefix = digits / TEN_DIGITS;
+      return (prefix == 978 || prefix == 979) ? digits : INVALID;
+    }
+    if (count == 10 && isbn10Sum % 11 == 0) {
+      int check = (10 - (ISBN_10_PREFIX_SUM + first9Sum) % 10) % 10;
+      return (ISBN_10_PREFIX + first9) * 10 + check;
+    }
+    return INVALID;
+  }
+
+  private Isbn() {
+    // Empty Private constructor to prevent instantiation.
+  }
+}
@@ -0,0 +1,1284 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package models;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import javax.persistence.PersistenceException;
+import play.Logger;
+import play.db.DB;
+import com.avaje.ebean.Transaction;
+
+/**
+ * An append-only journal of the rows changed by every committed transaction, so that the in-memory
+ * database survives restarts. {@link JournalRecorder} notes the rows each transaction inserts,
+ * updates and deletes; when the transaction commits, {@link JournalCommitter} calls
+ * {@link #committed(Transaction)}, which reads the committed rows and appends them to a
+ * memory-mapped segment file. Depending on the {@link Fsync} policy, committing threads then wait
+ * for the segment to be forced to disk, and one force covers every record appended before it
+ * (group commit).
+ *
+ * <p>
+ * Once enough has been appended, a background thread writes a snapshot of all of the tables and
+ * deletes the segments it replaces. {@link #start(File, Fsync, long, int, long)} bulk loads the
+ * newest snapshot, one table per thread, and replays the segments after it into the database, so
+ * startup does not depend on how many changes have been made. Records hold whole rows and deletes,
+ * so replaying a record twice is harmless and the snapshot need not be consistent: every change
+ * made while it was written is also in a later segment.
+ * </p>
+ *
+ * @author Christopher Foo
+ *
+ */
+public final class Journal {
+
+  /**
+   * When appended records are forced to disk.
+   */
+  public enum Fsync {
+    /**
+     * Before the committing thread continues. Concurrent commits share one force.
+     */
+    ALWAYS,
+
+    /**
+     * Periodically, by a background thread.
+     */
+    INTERVAL,
+
+    /**
+     * Only when a segment is full or the journal is stopped.
+     */
+    NEVER
+  }
+
+  /**
+   * A row inserted, updated or deleted by a transaction.
+   */
+  private static final class Change {
+
+    /**
+     * True if the row was deleted.
+     */
+    private final boolean deleted;
+
+    /**
+     * The primary key of the row.
+     */
+    private final long primaryKey;
+
+    /**
+     * The table of the row.
+     */
+    private final String table;
+
+    /**
+     * Creates a new {@link Change}.
+     *
+     * @param table The table of the row.
+     * @param primaryKey The primary key of the row.
+     * @param deleted True if the row was deleted.
+     */
+    private Change(String table, long primaryKey, boolean deleted) {
+      this.deleted = deleted;
+      this.primaryKey = primaryKey;
+      this.table = table;
+    }
+  }
+
+  /**
+   * The operation of a record that deletes a row.
+   */
+  private static final byte DELETE = 2;
+
+  /**
+   * The marker that ends a table's section of a snapshot.
+   */
+  private static final byte END = 0;
+
+  /**
+   * The size of the length and checksum that precede every record.
+   */
+  private static final int FRAME_BYTES = 8;
+
+  /**
+   * The number of rows inserted in one batch while loading a snapshot.
+   */
+  private static final int LOAD_BATCH = 1000;
+
+  /**
+   * The size of the buffer each table is read through while loading a snapshot.
+   */
+  private static final int LOAD_BUFFER = 1 << 16;
+
+  /**
+   * The marker that precedes each row in a snapshot.
+   */
+  private static final byte ROW = 1;
+
+  /**
+   * The first four bytes of a snapshot.
+   */
+  private static final int SNAPSHOT_MAGIC = 0x54585331;
+
+  /**
+   * The number of rows read at a time while writing a snapshot.
+   */
+  private static final int SNAPSHOT_PAGE = 1000;
+
+  /**
+   * The version of the snapshot format.
+   */
+  private static final int SNAPSHOT_VERSION = 1;
+
+  /**
+   * The tables in the journal, parents first.
+   */
+  public static final String[] TABLES = {"student", "book", "offer", "request"};
+
+  /**
+   * The value types in records.
+   */
+  private static final byte TYPE_BOOLEAN = 6;
+
+  /**
+   * See: {@link #TYPE_BOOLEAN}.
+   */
+  private static final byte TYPE_DOUBLE = 3;
+
+  /**
+   * See: {@link #TYPE_BOOLEAN}.
+   */
+  private static final byte TYPE_INT = 2;
+
+  /**
+   * See: {@link #TYPE_BOOLEAN}.
+   */
+  private static final byte TYPE_LONG = 1;
+
+  /**
+   * See: {@link #TYPE_BOOLEAN}.
+   */
+  private static final byte TYPE_NULL = 0;
+
+  /**
+   * See: {@link #TYPE_BOOLEAN}.
+   */
+  private static final byte TYPE_STRING = 4;
+
+  /**
+   * See: {@link #TYPE_BOOLEAN}.
+   */
+  private static final byte TYPE_TIMESTAMP = 5;
+
+  /**
+   * The operation of a record that inserts or replaces a row.
+   */
+  private static final byte UPSERT = 1;
+
+  /**
+   * The key of the changes of a transaction in its user objects.
+   */
+  private static final String USER_OBJECT = "journal";
+
+  /**
+   * The number of bytes appended since the last snapshot.
+   */
+  private static long appendedSinceSnapshot;
+
+  /**
+   * The mapped segment being appended to.
+   */
+  private static MappedByteBuffer buffer;
+
+  /**
+   * The directory of the segments and snapshots or null if the journal is not enabled.
+   */
+  private static volatile File directory;
+
+  /**
+   * The position up to which records have been forced to disk.
+   */
+  private static long durable;
+
+  /**
+   * The thread that forces the segment to disk for {@link Fsync#INTERVAL}.
+   */
+  private static Thread flusher;
+
+  /**
+   * When records are forced to disk.
+   */
+  private static volatile Fsync fsync;
+
+  /**
+   * Guards the segment, {@link #buffer} and the positions.
+   */
+  private static final Object lock = new Object();
+
+  /**
+   * The number of the segment being appended to.
+   */
+  private static long segment;
+
+  /**
+   * The size of each segment in bytes.
+   */
+  private static int segmentBytes;
+
+  /**
+   * The number of bytes appended after which a snapshot is written.
+   */
+  private static long snapshotBytes;
+
+  /**
+   * True while a snapshot is being written.
+   */
+  private static final AtomicBoolean snapshotting = new AtomicBoolean();
+
+  /**
+   * True while a thread is forcing the segment to disk. Guarded by {@link #syncLock}.
+   */
+  private static boolean syncing;
+
+  /**
+   * Guards {@link #durable} and {@link #syncing}; committing threads wait on it for their records
+   * to be forced.
+   */
+  private static final Object syncLock = new Object();
+
+  /**
+   * The number of times the segment has been forced to disk.
+   */
+  private static long syncs;
+
+  /**
+   * The total number of bytes appended since the journal was started.
+   */
+  private static long written;
+
+  /**
+   * Records that the given transaction changed a row. Called by {@link JournalRecorder}.
+   *
+   * @param transaction The transaction.
+   * @param table The table of the row.
+   * @param primaryKey The primary key of the row.
+   * @param deleted True if the row was deleted.
+   */
+  public static void changed(Transaction transaction, String table, Long primaryKey,
+      boolean deleted) {
+    if (directory == null || transaction == null || primaryKey == null) {
+      return;
+    }
+    @SuppressWarnings("unchecked")
+    Map<String, Change> changes = (Map<String, Change>) transaction.getUserObject(USER_OBJECT);
+    if (changes == null) {
+      changes = new LinkedHashMap<>();
+      transaction.putUserObject(USER_OBJECT, changes);
+    }
+    String key = table + ":" + primaryKey;
+    changes.remove(key);
+    changes.put(key, new Change(table, primaryKey, deleted));
+  }
+
+  /**
+   * Appends the rows changed by the given committed transaction and, for {@link Fsync#ALWAYS},
+   * waits for them to be forced to disk. Called by {@link JournalCommitter}.
+   *
+   * @param transaction The committed transaction.
+   */
+  public static void committed(Transaction transaction) {
+    @SuppressWarnings("unchecked")
+    Map<String, Change> changes = (Map<String, Change>) transaction.getUserObject(USER_OBJECT);
+    if (changes == null || changes.isEmpty()) {
+      return;
+    }
+    long position;
+    boolean snapshot = false;
+    synchronized (lock) {
+      if (directory == null) {
+        return;
+      }
+      // The rows are read and appended under the lock so that a concurrent change to the same
+      // row cannot be appended between the two.
+      try (Connection connection = DB.getConnection()) {
+        for (Change change : changes.values()) {
+          if (change.deleted) {
+            append(delete(change.table, change.primaryKey));
+          }
+          else {
+            byte[] record = upsert(connection, change.table, change.primaryKey);
+            if (record != null) {
+              append(record);
+            }
+          }
+        }
+      }
+      catch (IOException | SQLException e) {
+        throw new PersistenceException("Could not write to the journal", e);
+      }
+      position = written;
+      if (appendedSinceSnapshot >= snapshotBytes && snapshotting.compareAndSet(false, true)) {
+        appendedSinceSnapshot = 0;
+        snapshot = true;
+      }
+    }
+    if (fsync == Fsync.ALWAYS) {
+      sync(position);
+    }
+    if (snapshot) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            writeSnapshot();
+          }
+          catch (IOException | SQLException e) {
+            Logger.warn("Could not write a journal snapshot: " + e.getMessage());
+          }
+          finally {
+            snapshotting.set(false);
+          }
+        }
+      }, "journal-snapshot");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Gets the number of times the journal has been forced to disk. Commits that wait together
+   * share one force.
+   *
+   * @return The number of forces.
+   */
+  public static long getSyncs() {
+    synchronized (syncLock) {
+      return syncs;
+    }
+  }
+
+  /**
+   * Determines whether the journal is enabled.
+   *
+   * @return True if committed changes are journaled.
+   */
+  public static boolean isEnabled() {
+    return directory != null;
+  }
+
+  /**
+   * Writes a snapshot of all of the tables and deletes the segments and snapshots it replaces.
+   * Normally called by a background thread once enough has been appended, and safe to call while
+   * transactions commit.
+   *
+   * @throws IOException If the snapshot cannot be written.
+   * @throws SQLException If the tables cannot be read.
+   */
+  public static void snapshot() throws IOException, SQLException {
+    while (!snapshotting.compareAndSet(false, true)) {
+      Thread.yield();
+    }
+    try {
+      writeSnapshot();
+    }
+    finally {
+      snapshotting.set(false);
+    }
+  }
+
+  /**
+   * Replays the journal in the given directory into the database and starts appending to a new
+   * segment.
+   *
+   * @param dir The directory of the journal, which is created if it does not exist.
+   * @param policy When appended records are forced to disk.
+   * @param fsyncMillis How often records are forced to disk for {@link Fsync#INTERVAL}.
+   * @param maxSegmentBytes The size of each segment in bytes.
+   * @param maxSnapshotBytes The number of bytes appended after which a snapshot is written.
+   * @throws IOException If the journal cannot be read or opened.
+   * @throws SQLException If the journal cannot be replayed.
+   */
+  public static void start(File dir, Fsync policy, final long fsyncMillis, int maxSegmentBytes,
+      long maxSnapshotBytes) throws IOException, SQLException {
+    stop();
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create " + dir);
+    }
+    long last = replay(dir);
+    synchronized (lock) {
+      fsync = policy;
+      segmentBytes = maxSegmentBytes;
+      snapshotBytes = maxSnapshotBytes;
+      appendedSinceSnapshot = 0;
+      written = 0;
+      synchronized (syncLock) {
+        durable = 0;
+      }
+      open(dir, last + 1);
+      directory = dir;
+      if (policy == Fsync.INTERVAL) {
+        flusher = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            while (directory != null) {
+              try {
+                Thread.sleep(fsyncMillis);
+              }
+              catch (InterruptedException e) {
+                return;
+              }
+              long position;
+              synchronized (lock) {
+                position = written;
+              }
+              sync(position);
+            }
+          }
+        }, "journal-fsync");
+        flusher.setDaemon(true);
+        flusher.start();
+      }
+    }
+  }
+
+  /**
+   * Forces the journal to disk and closes it.
+   */
+  public static void stop() {
+    Thread thread;
+    synchronized (lock) {
+      if (directory == null) {
+        return;
+      }
+      directory = null;
+      thread = flusher;
+      flusher = null;
+      buffer.force();
+      buffer = null;
+    }
+    if (thread != null) {
+      thread.interrupt();
+      try {
+        thread.join();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Appends the given record to the current segment, starting a new segment if it does not fit.
+   * Must be called with the {@link #lock} held.
+   *
+   * @param record The record.
+   * @throws IOException If a new segment cannot be opened.
+   */
+  private static void append(byte[] record) throws IOException {
+    if (FRAME_BYTES + record.length > segmentBytes) {
+      throw new IOException("A record of " + record.length + " bytes does not fit in a segment");
+    }
+    if (buffer.remaining() < FRAME_BYTES + record.length) {
+      buffer.force();
+      open(directory, segment + 1);
+      synchronized (syncLock) {
+        durable = written;
+      }
+    }
+    CRC32 crc = new CRC32();
+    crc.update(record);
+    buffer.putInt(record.length);
+    buffer.putInt((int) crc.getValue());
+    buffer.put(record);
+    written += FRAME_BYTES + record.length;
+    appendedSinceSnapshot += FRAME_BYTES + record.length;
+  }
+
+  /**
+   * Applies the given record to the database.
+   *
+   * @param connection The connection to the database.
+   * @param record The record.
+   * @param statements The prepared upserts, keyed by table and columns.
+   * @throws IOException If the record is malformed.
+   * @throws SQLException If the record cannot be applied.
+   */
+  private static void apply(Connection connection, byte[] record,
+      Map<String, PreparedStatement> statements) throws IOException, SQLException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    byte operation = in.readByte();
+    String table = in.readUTF();
+    long primaryKey = in.readLong();
+    if (!Arrays.asList(TABLES).contains(table)) {
+      throw new IOException("Unknown table " + table);
+    }
+    if (operation == DELETE) {
+      try (Statement statement = connection.createStatement()) {
+        // Ebean may delete the Offers and Requests of a Book or Student without journaling them.
+        if ("book".equals(table) || "student".equals(table)) {
+          statement.executeUpdate("delete from offer where " + table + "_primary_key = "
+              + primaryKey);
+          statement.executeUpdate("delete from request where " + table + "_primary_key = "
+              + primaryKey);
+        }
+        statement.executeUpdate("delete from " + table + " where primary_key = " + primaryKey);
+      }
+      return;
+    }
+
+    int count = in.readShort();
+    String[] columns = new String[count];
+    Object[] values = new Object[count];
+    for (int i = 0; i < count; i++) {
+      columns[i] = in.readUTF();
+      values[i] = readValue(in);
+    }
+    String key = table + Arrays.toString(columns);
+    PreparedStatement statement = statements.get(key);
+    if (statement == null) {
+      StringBuilder sql = new StringBuilder("merge into ").append(table).append(" (");
+      StringBuilder parameters = new StringBuilder();
+      for (int i = 0; i < count; i++) {
+        sql.append((i == 0) ? "" : ", ").append(columns[i]);
+        parameters.append((i == 0) ? "?" : ", ?");
+      }
+      sql.append(") key (primary_key) values (").append(parameters).append(")");
+      statement = connection.prepareStatement(sql.toString());
+      statements.put(key, statement);
+    }
+    for (int i = 0; i < count; i++) {
+      statement.setObject(i + 1, values[i]);
+    }
+    statement.executeUpdate();
+  }
+
+  /**
+   * Creates the record that deletes the given row.
+   *
+   * @param table The table of the row.
+   * @param primaryKey The primary key of the row.
+   * @return The record.
+   * @throws IOException Never.
+   */
+  private static byte[] delete(String table, long primaryKey) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(DELETE);
+    out.writeUTF(table);
+    out.writeLong(primaryKey);
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Drops the unique constraints and the other secondary indexes of the journaled tables.
+   *
+   * @param statement The statement to run the queries with.
+   * @return The statements that create them again.
+   * @throws SQLException If they cannot be dropped.
+   */
+  private static List<String> dropIndexes(Statement statement) throws SQLException {
+    StringBuilder tables = new StringBuilder();
+    for (String table : TABLES) {
+      tables.append((tables.length() == 0) ? "'" : ", '").append(table.toUpperCase()).append("'");
+    }
+    List<String> drop = new ArrayList<>();
+    List<String> create = new ArrayList<>();
+    try (ResultSet constraint = statement.executeQuery("select table_name, constraint_name, "
+        + "column_list from information_schema.constraints where constraint_type = 'UNIQUE' "
+        + "and table_schema = schema() and table_name in (" + tables + ")")) {
+      while (constraint.next()) {
+        String prefix = "alter table " + constraint.getString(1) + " ";
+        drop.add(prefix + "drop constraint " + constraint.getString(2));
+        create.add(prefix + "add constraint " + constraint.getString(2) + " unique ("
+            + constraint.getString(3) + ")");
+      }
+    }
+    try (ResultSet index = statement.executeQuery("select distinct index_name, sql from "
+        + "information_schema.indexes where constraint_name is null and primary_key = false "
+        + "and table_schema = schema() and table_name in (" + tables + ")")) {
+      while (index.next()) {
+        drop.add("drop index " + index.getString(1));
+        create.add(index.getString(2));
+      }
+    }
+    for (String sql : drop) {
+      statement.execute(sql);
+    }
+    return create;
+  }
+
+  /**
+   * Determines whether all of the journaled tables are empty.
+   *
+   * @param statement The statement to run the queries with.
+   * @return True if none of the tables have any rows.
+   * @throws SQLException If the tables cannot be read.
+   */
+  private static boolean isEmpty(Statement statement) throws SQLException {
+    for (String table : TABLES) {
+      try (ResultSet row = statement.executeQuery("select 1 from " + table + " limit 1")) {
+        if (row.next()) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Lists the files in the given directory with the given prefix and suffix, in order.
+   *
+   * @param dir The directory.
+   * @param prefix The prefix of the files.
+   * @param suffix The suffix of the files.
+   * @return The files.
+   */
+  private static File[] list(File dir, final String prefix, final String suffix) {
+    File[] files = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File parent, String name) {
+        return name.startsWith(prefix) && name.endsWith(suffix);
+      }
+    });
+    if (files == null) {
+      return new File[0];
+    }
+    Arrays.sort(files);
+    return files;
+  }
+
+  /**
+   * Loads the given snapshot, each table in its own thread with its own connection.
+   *
+   * @param snapshot The snapshot.
+   * @param empty True if the tables are empty, so that the rows can be inserted rather than merged
+   *          with the existing ones.
+   * @param sequences Receives the values of the sequences in the snapshot, keyed by table.
+   * @return The number of rows loaded.
+   * @throws IOException If the snapshot is malformed.
+   * @throws SQLException If the rows cannot be loaded.
+   */
+  private static long load(final File snapshot, final boolean empty, Map<String, Long> sequences)
+      throws IOException, SQLException {
+    Map<String, long[]> sections = new LinkedHashMap<>();
+    try (RandomAccessFile file = new RandomAccessFile(snapshot, "r")) {
+      if (file.readInt() != SNAPSHOT_MAGIC || file.readInt() != SNAPSHOT_VERSION) {
+        throw new IOException(snapshot + " is not a journal snapshot");
+      }
+      file.seek(file.length() - 8);
+      file.seek(file.readLong());
+      int count = file.readShort();
+      for (int i = 0; i < count; i++) {
+        sections.put(file.readUTF(), new long[] {file.readLong(), file.readLong()});
+      }
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(sections.size());
+    Map<String, Future<long[]>> loads = new LinkedHashMap<>();
+    try {
+      for (final Map.Entry<String, long[]> section : sections.entrySet()) {
+        loads.put(section.getKey(), executor.submit(new Callable<long[]>() {
+          @Override
+          public long[] call() throws IOException, SQLException {
+            return loadTable(snapshot, section.getKey(), section.getValue()[0],
+                section.getValue()[1], empty);
+          }
+        }));
+      }
+      long rows = 0;
+      for (Map.Entry<String, Future<long[]>> load : loads.entrySet()) {
+        long[] loaded = load.getValue().get();
+        sequences.put(load.getKey(), loaded[0]);
+        rows += loaded[1];
+      }
+      return rows;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading " + snapshot, e);
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof SQLException) {
+        throw (SQLException) e.getCause();
+      }
+      throw new IOException("Could not load " + snapshot, e.getCause());
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Loads the rows of one table from the given snapshot in batches.
+   *
+   * @param snapshot The snapshot.
+   * @param table The table.
+   * @param offset The offset of the table's section in the snapshot.
+   * @param rows The number of rows in the section.
+   * @param empty True if the table is empty, so that the rows can be inserted rather than merged
+   *          with the existing ones.
+   * @return The value of the table's sequence in the snapshot and the number of rows loaded.
+   * @throws IOException If the section is malformed.
+   * @throws SQLException If the rows cannot be loaded.
+   */
+  private static long[] loadTable(File snapshot, String table, long offset, long rows,
+      boolean empty) throws IOException, SQLException {
+    try (FileInputStream file = new FileInputStream(snapshot);
+        Connection connection = DB.getConnection(false)) {
+      file.getChannel().position(offset);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(file, LOAD_BUFFER));
+      if (!table.equals(in.readUTF()) || !Arrays.asList(TABLES).contains(table)) {
+        throw new IOException("Malformed section for " + table + " in " + snapshot);
+      }
+      long sequence = in.readLong();
+      int count = in.readShort();
+      StringBuilder sql = new StringBuilder(empty ? "insert into " : "merge into ").append(table)
+          .append(" (");
+      StringBuilder parameters = new StringBuilder();
+      for (int i = 0; i < count; i++) {
+        sql.append((i == 0) ? "" : ", ").append(in.readUTF());
+        parameters.append((i == 0) ? "?" : ", ?");
+      }
+      sql.append(empty ? ") values (" : ") key (primary_key) values (").append(parameters)
+          .append(")");
+
+      long loaded = 0;
+      try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+        int batch = 0;
+        for (byte marker = in.readByte(); marker != END; marker = in.readByte()) {
+          if (marker != ROW) {
+            throw new IOException("Malformed row in " + table + " in " + snapshot);
+          }
+          for (int i = 0; i < count; i++) {
+            statement.setObject(i + 1, readValue(in));
+          }
+          statement.addBatch();
+          loaded++;
+          if (++batch == LOAD_BATCH) {
+            statement.executeBatch();
+            batch = 0;
+          }
+        }
+        if (batch > 0) {
+          statement.executeBatch();
+        }
+      }
+      if (loaded != rows) {
+        throw new IOException("Expected " + rows + " rows in " + table + " but found " + loaded);
+      }
+      connection.commit();
+      return new long[] {sequence, loaded};
+    }
+  }
+
+  /**
+   * Gets the number in the name of the given segment or snapshot.
+   *
+   * @param file The segment or snapshot.
+   * @return The number.
+   */
+  private static long number(File file) {
+    String name = file.getName();
+    return Long.parseLong(name.substring(name.indexOf('-') + 1, name.indexOf('.')));
+  }
+
+  /**
+   * Creates and maps the segment with the given number. Must be called with the {@link #lock}
+   * held.
+   *
+   * @param dir The directory of the journal.
+   * @param number The number of the segment.
+   * @throws IOException If the segment cannot be created.
+   */
+  private static void open(File dir, long number) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(segmentFile(dir, number), "rw")) {
+      buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+    }
+    segment = number;
+  }
+
+  /**
+   * Reads the records in the given stream and applies them to the database, stopping at the first
+   * record that is incomplete or fails its checksum.
+   *
+   * @param connection The connection to the database.
+   * @param input The records.
+   * @param statements The prepared upserts, keyed by table and columns.
+   * @return The number of records applied.
+   * @throws IOException If the stream cannot be read.
+   * @throws SQLException If a record cannot be applied.
+   */
+  private static int read(Connection connection, InputStream input,
+      Map<String, PreparedStatement> statements) throws IOException, SQLException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+    int count = 0;
+    while (true) {
+      int length;
+      int checksum;
+      byte[] record;
+      try {
+        length = in.readInt();
+        if (length <= 0) {
+          // The unused end of a segment.
+          return count;
+        }
+        checksum = in.readInt();
+        record = new byte[length];
+        in.readFully(record);
+      }
+      catch (EOFException e) {
+        return count;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(record);
+      if ((int) crc.getValue() != checksum) {
+        // A record cut short by a crash was never acknowledged.
+        return count;
+      }
+      apply(connection, record, statements);
+      count++;
+    }
+  }
+
+  /**
+   * Reads a value written by {@link #writeValue(DataOutputStream, Object)}.
+   *
+   * @param in The stream to read from.
+   * @return The value.
+   * @throws IOException If the value is malformed.
+   */
+  private static Object readValue(DataInputStream in) throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+    case TYPE_NULL:
+      return null;
+    case TYPE_LONG:
+      return in.readLong();
+    case TYPE_INT:
+      return in.readInt();
+    case TYPE_DOUBLE:
+      return in.readDouble();
+    case TYPE_STRING:
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    case TYPE_TIMESTAMP:
+      Timestamp timestamp = new Timestamp(in.readLong());
+      timestamp.setNanos(in.readInt());
+      return timestamp;
+    case TYPE_BOOLEAN:
+      return in.readBoolean();
+    default:
+      throw new IOException("Unknown value type " + type);
+    }
+  }
+
+  /**
+   * Loads the newest snapshot in the given directory, replays the segments after it and then
+   * restarts the sequences after the largest keys. While a snapshot is loaded the secondary indexes
+   * are dropped; they are built once all of the rows are in, which is faster than maintaining them
+   * row by row and lets a snapshot briefly hold two rows with the same natural ID, one of which a
+   * later segment deletes.
+   *
+   * @param dir The directory of the journal.
+   * @return The number of the last segment or snapshot.
+   * @throws IOException If the journal cannot be read.
+   * @throws SQLException If the journal cannot be replayed.
+   */
+  private static long replay(File dir) throws IOException, SQLException {
+    File[] snapshots = list(dir, "snapshot-", ".dat");
+    File snapshot = (snapshots.length == 0) ? null : snapshots[snapshots.length - 1];
+    long first = (snapshot == null) ? 0 : number(snapshot);
+    long last = first;
+    long start = System.nanoTime();
+    long replayed = 0;
+    Map<String, Long> sequences = new HashMap<>();
+    Map<String, PreparedStatement> statements = new HashMap<>();
+    try (Connection connection = DB.getConnection(false);
+        Statement statement = connection.createStatement()) {
+      // A snapshot may hold an Offer whose Book was inserted after the books were read.
+      statement.execute("set referential_integrity false");
+      try {
+        List<String> indexes = new ArrayList<>();
+        if (snapshot != null) {
+          boolean empty = isEmpty(statement);
+          indexes = dropIndexes(statement);
+          replayed += load(snapshot, empty, sequences);
+        }
+        for (File file : list(dir, "journal-", ".log")) {
+          if (number(file) >= first) {
+            try (InputStream in = new FileInputStream(file)) {
+              replayed += read(connection, in, statements);
+            }
+            last = Math.max(last, number(file));
+          }
+        }
+        for (PreparedStatement upsert : statements.values()) {
+          upsert.close();
+        }
+        for (String sql : indexes) {
+          statement.execute(sql);
+        }
+        restartSequences(statement, sequences);
+        connection.commit();
+      }
+      finally {
+        statement.execute("set referential_integrity true");
+      }
+    }
+    if (replayed > 0) {
+      Logger.info("Replayed " + replayed + " rows from the journal in "
+          + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+    }
+    return last;
+  }
+
+  /**
+   * Restarts each table's sequence after the largest of its current value, its value when the
+   * snapshot was written and the table's largest primary key.
+   *
+   * @param statement The statement to run the queries with.
+   * @param sequences The values of the sequences in the snapshot, keyed by table.
+   * @throws SQLException If a sequence cannot be restarted.
+   */
+  private static void restartSequences(Statement statement, Map<String, Long> sequences)
+      throws SQLException {
+    for (String table : TABLES) {
+      long next = sequenceValue(statement, table);
+      if (sequences.containsKey(table)) {
+        next = Math.max(next, sequences.get(table));
+      }
+      try (ResultSet max = statement.executeQuery("select max(primary_key) from " + table)) {
+        max.next();
+        next = Math.max(next, max.getLong(1));
+      }
+      statement.execute("alter sequence " + table + "_seq restart with " + (next + 1));
+    }
+  }
+
+  /**
+   * Gets the file of the segment with the given number.
+   *
+   * @param dir The directory of the journal.
+   * @param number The number of the segment.
+   * @return The segment file.
+   */
+  private static File segmentFile(File dir, long number) {
+    return new File(dir, String.format("journal-%019d.log", number));
+  }
+
+  /**
+   * Gets the current value of the given table's sequence.
+   *
+   * @param statement The statement to run the query with.
+   * @param table The table.
+   * @return The value most recently taken from the sequence.
+   * @throws SQLException If the sequence cannot be read.
+   */
+  private static long sequenceValue(Statement statement, String table) throws SQLException {
+    try (ResultSet value = statement.executeQuery("select current_value from "
+        + "information_schema.sequences where sequence_name = '" + table.toUpperCase()
+        + "_SEQ'")) {
+      return value.next() ? value.getLong(1) : 0;
+    }
+  }
+
+  /**
+   * Forces the records appended up to the given position to disk. If another thread is already
+   * forcing, waits for it and then forces again only if its force did not cover the position.
+   *
+   * @param position The position.
+   */
+  private static void sync(long position) {
+    synchronized (syncLock) {
+      while (syncing && durable < position) {
+        try {
+          syncLock.wait();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      if (durable >= position) {
+        return;
+      }
+      syncing = true;
+    }
+    long target = 0;
+    try {
+      MappedByteBuffer current;
+      synchronized (lock) {
+        current = buffer;
+        target = written;
+      }
+      if (current != null) {
+        current.force();
+      }
+    }
+    finally {
+      synchronized (syncLock) {
+        durable = Math.max(durable, target);
+        syncing = false;
+        syncs++;
+        syncLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Reads the given row and creates the record that inserts or replaces it.
+   *
+   * @param connection The connection to the database.
+   * @param table The table of the row.
+   * @param primaryKey The primary key of the row.
+   * @return The record or null if the row no longer exists.
+   * @throws IOException Never.
+   * @throws SQLException If the row cannot be read.
+   */
+  private static byte[] upsert(Connection connection, String table, long primaryKey)
+      throws IOException, SQLException {
+    try (PreparedStatement statement =
+        connection.prepareStatement("select * from " + table + " where primary_key = ?")) {
+      statement.setLong(1, primaryKey);
+      try (ResultSet row = statement.executeQuery()) {
+        return row.next() ? upsert(table, primaryKey, row) : null;
+      }
+    }
+  }
+
+  /**
+   * Creates the record that inserts or replaces the given row.
+   *
+   * @param table The table of the row.
+   * @param primaryKey The primary key of the row.
+   * @param row The row.
+   * @return The record.
+   * @throws IOException If a column has a type that cannot be journaled.
+   * @throws SQLException If the row cannot be read.
+   */
+  private static byte[] upsert(String table, long primaryKey, ResultSet row) throws IOException,
+      SQLException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(UPSERT);
+    out.writeUTF(table);
+    out.writeLong(primaryKey);
+    ResultSetMetaData metaData = row.getMetaData();
+    out.writeShort(metaData.getColumnCount());
+    for (int i = 1; i <= metaData.getColumnCount(); i++) {
+      out.writeUTF(metaData.getColumnName(i).toLowerCase());
+      writeValue(out, row.getObject(i));
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Writes the given column value with its type.
+   *
+   * @param out The stream to write to.
+   * @param value The value.
+   * @throws IOException If the value has a type that cannot be journaled.
+   */
+  private static void writeValue(DataOutputStream out, Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(TYPE_NULL);
+    }
+    else if (value instanceof Long) {
+      out.writeByte(TYPE_LONG);
+      out.writeLong((Long) value);
+    }
+    else if (value instanceof Integer) {
+      out.writeByte(TYPE_INT);
+      out.writeInt((Integer) value);
+    }
+    else if (value instanceof Double) {
+      out.writeByte(TYPE_DOUBLE);
+      out.writeDouble((Double) value);
+    }
+    else if (value instanceof String) {
+      byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+      out.writeByte(TYPE_STRING);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+    else if (value instanceof Timestamp) {
+      out.writeByte(TYPE_TIMESTAMP);
+      out.writeLong(((Timestamp) value).getTime());
+      out.writeInt(((Timestamp) value).getNanos());
+    }
+    else if (value instanceof Boolean) {
+      out.writeByte(TYPE_BOOLEAN);
+      out.writeBoolean((Boolean) value);
+    }
+    else {
+      throw new IOException("Cannot journal a value of type " + value.getClass().getName());
+    }
+  }
+
+  /**
+   * Starts a new segment, writes a snapshot of all of the tables and then deletes the older
+   * segments and snapshots. Each table is read a page at a time, so writers are never held up for
+   * long, into its own section so that the tables can be loaded in parallel; see
+   * {@link #load(File, boolean, Map)}.
+   *
+   * <p>
+   * A snapshot starts with {@link #SNAPSHOT_MAGIC} and {@link #SNAPSHOT_VERSION}. Each section
+   * holds the table's name, the value of its sequence, its column names and then its rows, each
+   * preceded by {@link #ROW}, and ends with {@link #END}. The footer lists the name, offset and row
+   * count of each section and the snapshot ends with the offset of the footer.
+   * </p>
+   *
+   * @throws IOException If the snapshot cannot be written.
+   * @throws SQLException If the tables cannot be read.
+   */
+  private static void writeSnapshot() throws IOException, SQLException {
+    File dir;
+    long number;
+    synchronized (lock) {
+      dir = directory;
+      if (dir == null) {
+        return;
+      }
+      buffer.force();
+      open(dir, segment + 1);
+      synchronized (syncLock) {
+        durable = written;
+      }
+      number = segment;
+      appendedSinceSnapshot = 0;
+    }
+
+    File temporary = new File(dir, String.format("snapshot-%019d.tmp", number));
+    long[] offsets = new long[TABLES.length];
+    long[] rows = new long[TABLES.length];
+    try (FileOutputStream file = new FileOutputStream(temporary);
+        Connection connection = DB.getConnection()) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeInt(SNAPSHOT_VERSION);
+      for (int t = 0; t < TABLES.length; t++) {
+        String table = TABLES[t];
+        out.flush();
+        offsets[t] = file.getChannel().position();
+        out.writeUTF(table);
+        try (Statement statement = connection.createStatement()) {
+          out.writeLong(sequenceValue(statement, table));
+        }
+        long after = Long.MIN_VALUE;
+        boolean more = true;
+        boolean header = false;
+        while (more) {
+          more = false;
+          try (PreparedStatement statement = connection.prepareStatement("select * from " + table
+              + " where primary_key > ? order by primary_key limit " + SNAPSHOT_PAGE)) {
+            statement.setLong(1, after);
+            try (ResultSet row = statement.executeQuery()) {
+              ResultSetMetaData metaData = row.getMetaData();
+              if (!header) {
+                out.writeShort(metaData.getColumnCount());
+                for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                  out.writeUTF(metaData.getColumnName(i).toLowerCase());
+                }
+                header = true;
+              }
+              while (row.next()) {
+                out.writeByte(ROW);
+                for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                  writeValue(out, row.getObject(i));
+                }
+                after = row.getLong("primary_key");
+                rows[t]++;
+                more = true;
+              }
+            }
+          }
+        }
+        out.writeByte(END);
+      }
+      out.flush();
+      long footer = file.getChannel().position();
+      out.writeShort(TABLES.length);
+      for (int t = 0; t < TABLES.length; t++) {
+        out.writeUTF(TABLES[t]);
+        out.writeLong(offsets[t]);
+        out.writeLong(rows[t]);
+      }
+      out.writeLong(footer);
+      out.flush();
+      file.getFD().sync();
+    }
+    File snapshot = new File(dir, String.format("snapshot-%019d.dat", number));
+    if (!temporary.renameTo(snapshot)) {
+      throw new IOException("Could not rename " + temporary + " to " + snapshot);
+    }
+
+    for (File file : list(dir, "journal-", ".log")) {
+      if (number(file) < number && !file.delete()) {
+        Logger.warn("Could not delete the replaced journal segment " + file);
+      }
+    }
+    for (File file : list(dir, "snapshot-", ".dat")) {
+      if (number(file) < number && !file.delete()) {
+        Logger.warn("Could not delete the replaced journal snapshot " + file);
+      }
+    }
+  }
+
+  private Journal() {
+    // Empty Private constructor to prevent instantiation.
+  }
+}
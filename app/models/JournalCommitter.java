@@ -0,0 +1,51 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package models;
+
+import com.avaje.ebean.Transaction;
+import com.avaje.ebean.event.TransactionEventListener;
+
+/**
+ * Appends the rows noted by {@link JournalRecorder} to the {@link Journal} when their transaction
+ * commits. Called in the committing thread, so a save does not return until its changes are
+ * journaled.
+ *
+ * @author Christopher Foo
+ *
+ */
+public class JournalCommitter implements TransactionEventListener {
+
+  /**
+   * Appends the rows changed by the committed transaction.
+   */
+  @Override
+  public void postTransactionCommit(Transaction transaction) {
+    if (Journal.isEnabled()) {
+      Journal.committed(transaction);
+    }
+  }
+
+  /**
+   * Nothing to do; the changes of a rolled back transaction are never journaled.
+   */
+  @Override
+  public void postTransactionRollback(Transaction transaction, Throwable cause) {
+    // Empty.
+  }
+}
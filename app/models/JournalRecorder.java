@@ -0,0 +1,92 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package models;
+
+import com.avaje.ebean.event.BeanPersistAdapter;
+import com.avaje.ebean.event.BeanPersistRequest;
+
+/**
+ * Notes the rows each transaction inserts, updates and deletes so that {@link JournalCommitter}
+ * can append them to the {@link Journal} once the transaction commits.
+ *
+ * @author Christopher Foo
+ *
+ */
+public class JournalRecorder extends BeanPersistAdapter {
+
+  /**
+   * Listen for changes to all of the models.
+   */
+  @Override
+  public boolean isRegisterFor(Class<?> cls) {
+    return Offer.class.equals(cls) || Request.class.equals(cls) || Book.class.equals(cls)
+        || Student.class.equals(cls);
+  }
+
+  /**
+   * Notes the deleted row.
+   */
+  @Override
+  public void postDelete(BeanPersistRequest<?> request) {
+    changed(request, true);
+  }
+
+  /**
+   * Notes the inserted row.
+   */
+  @Override
+  public void postInsert(BeanPersistRequest<?> request) {
+    changed(request, false);
+  }
+
+  /**
+   * Notes the updated row.
+   */
+  @Override
+  public void postUpdate(BeanPersistRequest<?> request) {
+    changed(request, false);
+  }
+
+  /**
+   * Notes the row of the model in the given request.
+   *
+   * @param request The request.
+   * @param deleted True if the row was deleted.
+   */
+  private void changed(BeanPersistRequest<?> request, boolean deleted) {
+    if (!Journal.isEnabled()) {
+      return;
+    }
+    Object bean = request.getBean();
+    if (bean instanceof Book) {
+      Journal.changed(request.getTransaction(), "book", ((Book) bean).getPrimaryKey(), deleted);
+    }
+    else if (bean instanceof Student) {
+      Journal.changed(request.getTransaction(), "student", ((Student) bean).getPrimaryKey(),
+          deleted);
+    }
+    else if (bean instanceof Offer) {
+      Journal.changed(request.getTransaction(), "offer", ((Offer) bean).getPrimaryKey(), deleted);
+    }
+    else if (bean instanceof Request) {
+      Journal.changed(request.getTransaction(), "request", ((Request) bean).getPrimaryKey(),
+          deleted);
+    }
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.persistence.PersistenceException;
+import play.db.ebean.Model;
+
+/**
+ * The natural IDs currently used by a model. Used by the models' <code>validate()</code> methods
+ * to quickly reject IDs that are already taken without querying the database. The registry may
+ * briefly miss IDs that are being inserted concurrently, so the unique constraints in the database
+ * remain the final check; see {@link #saveUnique(Model)}.
+ *
+ * @author Christopher Foo
+ *
+ */
+public class KeyRegistry {
+
+  /**
+   * The SQL state used by H2 and PostgreSQL for unique constraint violations.
+   */
+  private static final String UNIQUE_VIOLATION = "23505";
+
+  /**
+   * Determines whether the given exception was caused by a unique constraint violation.
+   *
+   * @param e The exception.
+   * @return True if the exception was caused by a unique constraint violation.
+   */
+  public static boolean isUniqueViolation(PersistenceException e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof SQLException
+          && UNIQUE_VIOLATION.equals(((SQLException) cause).getSQLState())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Rebuilds the registries of all of the models from the database.
+   */
+  public static void rebuildAll() {
+    Book.keys().clear();
+    for (Book book : Book.find().select("isbn").findList()) {
+      Book.keys().put(book.getPrimaryKey(), Isbn.normalize(book.getIsbn()));
+    }
+    Student.keys().clear();
+    for (Student student : Student.find().select("studentId").findList()) {
+      Student.keys().put(student.getPrimaryKey(), student.getStudentId());
+    }
+    Offer.keys().clear();
+    for (Offer offer : Offer.find().select("offerId").findList()) {
+      Offer.keys().put(offer.getPrimaryKey(), offer.getOfferId());
+    }
+    Request.keys().clear();
+    for (Request request : Request.find().select("requestId").findList()) {
+      Request.keys().put(request.getPrimaryKey(), request.getRequestId());
+    }
+  }
+
+  /**
+   * Inserts the given model, relying on the database's unique constraints to reject duplicate
+   * natural IDs.
+   *
+   * @param model The model to insert.
+   * @return True if the model was inserted or false if its natural ID is already taken.
+   */
+  public static boolean saveUnique(Model model) {
+    try {
+      model.save();
+      return true;
+    }
+    catch (PersistenceException e) {
+      if (isUniqueViolation(e)) {
+        return false;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * The natural IDs in use.
+   */
+  private final Set<String> keys = Collections
+      .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * The natural ID of each model keyed by primary key. Used to remove a model's old natural ID when
+   * it is updated or deleted.
+   */
+  private final ConcurrentMap<Long, String> keysByPrimaryKey = new ConcurrentHashMap<>();
+
+  /**
+   * Removes all of the natural IDs.
+   */
+  public synchronized void clear() {
+    this.keys.clear();
+    this.keysByPrimaryKey.clear();
+  }
+
+  /**
+   * Determines whether the given natural ID is in use.
+   *
+   * @param key The natural ID.
+   * @return True if the natural ID is in use.
+   */
+  public boolean contains(String key) {
+    return key != null && this.keys.contains(key);
+  }
+
+  /**
+   * Records the natural ID of the model with the given primary key, replacing its previous natural
+   * ID.
+   *
+   * @param primaryKey The primary key of the model.
+   * @param key The natural ID of the model.
+   */
+  public synchronized void put(Long primaryKey, String key) {
+    if (primaryKey == null || key == null) {
+      return;
+    }
+    String old = this.keysByPrimaryKey.put(primaryKey, key);
+    if (old != null && !old.equals(key)) {
+      this.keys.remove(old);
+    }
+    this.keys.add(key);
+  }
+
+  /**
+   * Removes the natural ID of the model with the given primary key.
+   *
+   * @param primaryKey The primary key of the model.
+   */
+  public synchronized void remove(Long primaryKey) {
+    if (primaryKey == null) {
+      return;
+    }
+    String old = this.keysByPrimaryKey.remove(primaryKey);
+    if (old != null) {
+      this.keys.remove(old);
+    }
+  }
+
+  /**
+   * Records the natural ID of a model that is about to be inserted, unless it is already in use.
+   * Used when the model is inserted later; see {@link WriteBehind}.
+   *
+   * @param primaryKey The primary key of the model.
+   * @param key The natural ID of the model.
+   * @return True if the natural ID was reserved or false if it is already in use.
+   */
+  public synchronized boolean reserve(Long primaryKey, String key) {
+    if (contains(key)) {
+      return false;
+    }
+    put(primaryKey, key);
+    return true;
+  }
+}
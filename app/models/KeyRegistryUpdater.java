@@ -0,0 +1,130 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import com.avaje.ebean.event.BeanPersistAdapter;
+import com.avaje.ebean.event.BeanPersistRequest;
+
+/**
+ * Keeps the models' {@link KeyRegistry}s up to date as they are saved, updated and deleted. IDs are
+ * removed before a delete rather than after it, since a registry that misses an ID only costs a
+ * rejected insert while one that holds a deleted ID would wrongly refuse it. Deleting a
+ * {@link Book} or {@link Student} also removes the IDs of their {@link Offer}s and {@link Request}s,
+ * which the database deletes by cascade.
+ *
+ * @author Christopher Foo
+ *
+ */
+public class KeyRegistryUpdater extends BeanPersistAdapter {
+
+  /**
+   * Listen for changes to all of the models.
+   */
+  @Override
+  public boolean isRegisterFor(Class<?> cls) {
+    return Offer.class.equals(cls) || Request.class.equals(cls) || Book.class.equals(cls)
+        || Student.class.equals(cls);
+  }
+
+  /**
+   * Adds the inserted model's natural ID to its registry.
+   */
+  @Override
+  public void postInsert(BeanPersistRequest<?> request) {
+    put(request.getBean());
+  }
+
+  /**
+   * Replaces the updated model's natural ID in its registry.
+   */
+  @Override
+  public void postUpdate(BeanPersistRequest<?> request) {
+    put(request.getBean());
+  }
+
+  /**
+   * Removes the model's natural ID, and those of its {@link Offer}s and {@link Request}s, from the
+   * registries before it is deleted.
+   */
+  @Override
+  public boolean preDelete(BeanPersistRequest<?> request) {
+    Object bean = request.getBean();
+    if (bean instanceof Book) {
+      Long primaryKey = ((Book) bean).getPrimaryKey();
+      Book.keys().remove(primaryKey);
+      removeChildren("book.primaryKey", primaryKey);
+    }
+    else if (bean instanceof Student) {
+      Long primaryKey = ((Student) bean).getPrimaryKey();
+      Student.keys().remove(primaryKey);
+      removeChildren("student.primaryKey", primaryKey);
+    }
+    else if (bean instanceof Offer) {
+      Offer.keys().remove(((Offer) bean).getPrimaryKey());
+    }
+    else if (bean instanceof Request) {
+      Request.keys().remove(((Request) bean).getPrimaryKey());
+    }
+    return true;
+  }
+
+  /**
+   * Records the natural ID of the given saved model in its registry.
+   *
+   * @param bean The saved model.
+   */
+  private void put(Object bean) {
+    if (bean instanceof Book) {
+      Book book = (Book) bean;
+      Book.keys().put(book.getPrimaryKey(), Isbn.normalize(book.getIsbn()));
+    }
+    else if (bean instanceof Student) {
+      Student student = (Student) bean;
+      Student.keys().put(student.getPrimaryKey(), student.getStudentId());
+    }
+    else if (bean instanceof Offer) {
+      Offer offer = (Offer) bean;
+      Offer.keys().put(offer.getPrimaryKey(), offer.getOfferId());
+    }
+    else if (bean instanceof Request) {
+      Request request = (Request) bean;
+      Request.keys().put(request.getPrimaryKey(), request.getRequestId());
+    }
+  }
+
+  /**
+   * Removes the natural IDs of the {@link Offer}s and {@link Request}s that belong to the
+   * {@link Book} or {@link Student} being deleted.
+   *
+   * @param property The property that refers to the owner's primary key.
+   * @param primaryKey The primary key of the owner.
+   */
+  private void removeChildren(String property, Long primaryKey) {
+    if (primaryKey == null) {
+      return;
+    }
+    for (Offer offer : Offer.find().select("primaryKey").where().eq(property, primaryKey)
+        .findList()) {
+      Offer.keys().remove(offer.getPrimaryKey());
+    }
+    for (Request request : Request.find().select("primaryKey").where().eq(property, primaryKey)
+        .findList()) {
+      Request.keys().remove(request.getPrimaryKey());
+    }
+  }
+}
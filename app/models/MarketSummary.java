@@ -0,0 +1,245 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import controllers.Condition;
+
+/**
+ * A snapshot of the market for one {@link Book}: the number of resting {@link Offer}s and
+ * {@link Request}s and the lowest ask and highest bid, in total and for each {@link Condition}.
+ * Summaries are taken from the Book's {@link OrderBook}, which keeps them up to date as Offers and
+ * Requests are saved and deleted, so showing them costs no queries. See:
+ * {@link MatchingEngine#summary(Book)}.
+ *
+ * @author Christopher Foo
+ *
+ */
+public final class MarketSummary {
+
+  /**
+   * The market for one {@link Condition}.
+   */
+  public static final class Row {
+
+    /**
+     * The Condition or null for the {@link Request}s that accept any Condition.
+     */
+    private final Condition condition;
+
+    /**
+     * The highest price offered by the Requests or null if there are none.
+     */
+    private final Double highestBid;
+
+    /**
+     * The lowest price asked by the {@link Offer}s or null if there are none.
+     */
+    private final Double lowestAsk;
+
+    /**
+     * The number of Offers.
+     */
+    private final int offers;
+
+    /**
+     * The number of Requests.
+     */
+    private final int requests;
+
+    /**
+     * Creates a new {@link Row}.
+     *
+     * @param condition The Condition or null for Requests that accept any Condition.
+     * @param offers The number of Offers.
+     * @param lowestAsk The lowest price asked by the Offers or null if there are none.
+     * @param requests The number of Requests.
+     * @param highestBid The highest price offered by the Requests or null if there are none.
+     */
+    Row(Condition condition, int offers, Double lowestAsk, int requests, Double highestBid) {
+      this.condition = condition;
+      this.offers = offers;
+      this.lowestAsk = lowestAsk;
+      this.requests = requests;
+      this.highestBid = highestBid;
+    }
+
+    /**
+     * Gets the {@link Condition} of this {@link Row}.
+     *
+     * @return The Condition or null for the Requests that accept any Condition.
+     */
+    public Condition getCondition() {
+      return this.condition;
+    }
+
+    /**
+     * Gets the highest price offered by the {@link Request}s.
+     *
+     * @return The highest bid or null if there are no Requests.
+     */
+    public Double getHighestBid() {
+      return this.highestBid;
+    }
+
+    /**
+     * Gets the lowest price asked by the {@link Offer}s.
+     *
+     * @return The lowest ask or null if there are no Offers.
+     */
+    public Double getLowestAsk() {
+      return this.lowestAsk;
+    }
+
+    /**
+     * Gets the number of {@link Offer}s.
+     *
+     * @return The number of Offers.
+     */
+    public int getOffers() {
+      return this.offers;
+    }
+
+    /**
+     * Gets the number of {@link Request}s.
+     *
+     * @return The number of Requests.
+     */
+    public int getRequests() {
+      return this.requests;
+    }
+
+    /**
+     * Returns the {@link String} representation of this {@link Row}.
+     */
+    @Override
+    public String toString() {
+      return String.format("[%s offers=%d lowestAsk=%s requests=%d highestBid=%s]",
+          (this.condition == null) ? "Any" : this.condition.toString(), this.offers,
+          price(this.lowestAsk), this.requests, price(this.highestBid));
+    }
+  }
+
+  /**
+   * The summary of a {@link Book} without any {@link Offer}s or {@link Request}s.
+   */
+  public static final MarketSummary EMPTY = new MarketSummary(new ArrayList<Row>(), null, null);
+
+  /**
+   * Formats the given price for display.
+   *
+   * @param price The price or null if there is none.
+   * @return The price, e.g. "$15.99", or "-" if there is none.
+   */
+  public static String price(Double price) {
+    return (price == null) ? "-" : String.format("$%.2f", price);
+  }
+
+  /**
+   * The highest price offered by any {@link Request} or null if there are none.
+   */
+  private final Double highestBid;
+
+  /**
+   * The lowest price asked by any {@link Offer} or null if there are none.
+   */
+  private final Double lowestAsk;
+
+  /**
+   * The market for each {@link Condition} that has Offers or Requests.
+   */
+  private final List<Row> rows;
+
+  /**
+   * Creates a new {@link MarketSummary}.
+   *
+   * @param rows The market for each Condition that has Offers or Requests.
+   * @param lowestAsk The lowest price asked by any Offer or null if there are none.
+   * @param highestBid The highest price offered by any Request or null if there are none.
+   */
+  MarketSummary(List<Row> rows, Double lowestAsk, Double highestBid) {
+    this.rows = Collections.unmodifiableList(rows);
+    this.lowestAsk = lowestAsk;
+    this.highestBid = highestBid;
+  }
+
+  /**
+   * Gets the highest price offered by any {@link Request}.
+   *
+   * @return The highest bid or null if there are no Requests.
+   */
+  public Double getHighestBid() {
+    return this.highestBid;
+  }
+
+  /**
+   * Gets the lowest price asked by any {@link Offer}.
+   *
+   * @return The lowest ask or null if there are no Offers.
+   */
+  public Double getLowestAsk() {
+    return this.lowestAsk;
+  }
+
+  /**
+   * Gets the total number of {@link Offer}s.
+   *
+   * @return The number of Offers.
+   */
+  public int getOffers() {
+    int offers = 0;
+    for (Row row : this.rows) {
+      offers += row.getOffers();
+    }
+    return offers;
+  }
+
+  /**
+   * Gets the total number of {@link Request}s.
+   *
+   * @return The number of Requests.
+   */
+  public int getRequests() {
+    int requests = 0;
+    for (Row row : this.rows) {
+      requests += row.getRequests();
+    }
+    return requests;
+  }
+
+  /**
+   * Gets the market for each {@link Condition} that has {@link Offer}s or {@link Request}s, from
+   * the best Condition to the worst followed by the Requests that accept any Condition.
+   *
+   * @return The rows.
+   */
+  public List<Row> getRows() {
+    return this.rows;
+  }
+
+  /**
+   * Returns the {@link String} representation of this {@link MarketSummary}.
+   */
+  @Override
+  public String toString() {
+    return String.format("[MarketSummary lowestAsk=%s highestBid=%s %s]", price(this.lowestAsk),
+        price(this.highestBid), this.rows);
+  }
+}
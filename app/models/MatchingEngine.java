@@ -0,0 +1,273 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import models.OrderBook.Match;
+import models.OrderBook.Order;
+
+/**
+ * Matches {@link Offer}s to {@link Request}s for the same {@link Book} using one in-memory
+ * {@link OrderBook} per Book. Because the actual sale is handled between the students, matching
+ * does not use up the quantity of the resting Offers and Requests; they stay in the OrderBook until
+ * they are deleted. Changes to the number of open Offers of a Book are passed on to the
+ * {@link Typeahead}, which ranks its suggestions by them.
+ *
+ * @author Christopher Foo
+ *
+ */
+public final class MatchingEngine {
+
+  /**
+   * The {@link OrderBook}s keyed by the primary key of their {@link Book}.
+   */
+  private static final ConcurrentMap<Long, OrderBook> books = new ConcurrentHashMap<>();
+
+  /**
+   * The primary key of the {@link Book} of each resting {@link Offer}, keyed by Offer ID. Used to
+   * move an Offer when its Book is changed.
+   */
+  private static final ConcurrentMap<String, Long> offerBooks = new ConcurrentHashMap<>();
+
+  /**
+   * The primary key of the {@link Book} of each resting {@link Request}, keyed by Request ID.
+   */
+  private static final ConcurrentMap<String, Long> requestBooks = new ConcurrentHashMap<>();
+
+  /**
+   * Adds the given {@link Offer} to its {@link Book}'s {@link OrderBook}, replacing the previous
+   * version of the Offer if there is one.
+   *
+   * @param offer The Offer to add.
+   */
+  public static void add(Offer offer) {
+    remove(offer);
+    OrderBook book = orderBook(offer.getBook());
+    if (book != null) {
+      book.addAsk(new Order(offer));
+      offerBooks.put(offer.getOfferId(), offer.getBook().getPrimaryKey());
+      Typeahead.rerank(offer.getBook().getPrimaryKey());
+    }
+  }
+
+  /**
+   * Adds the given {@link Request} to its {@link Book}'s {@link OrderBook}, replacing the previous
+   * version of the Request if there is one.
+   *
+   * @param request The Request to add.
+   */
+  public static void add(Request request) {
+    remove(request);
+    OrderBook book = orderBook(request.getBook());
+    if (book != null) {
+      book.addBid(new Order(request));
+      requestBooks.put(request.getRequestId(), request.getBook().getPrimaryKey());
+    }
+  }
+
+  /**
+   * Removes all {@link OrderBook}s.
+   */
+  public static void clear() {
+    books.clear();
+    offerBooks.clear();
+    requestBooks.clear();
+  }
+
+  /**
+   * Gets the number of the last change to the {@link Offer}s and {@link Request}s of the given
+   * {@link Book}. See: {@link OrderBook#getChange()}.
+   *
+   * @param book The Book.
+   * @return The number of the last change or 0 if the Book has no OrderBook.
+   */
+  public static long marketChange(Book book) {
+    OrderBook orderBook = (book == null || book.getPrimaryKey() == null) ? null : books.get(book
+        .getPrimaryKey());
+    return (orderBook == null) ? 0 : orderBook.getChange();
+  }
+
+  /**
+   * Gets when the {@link Offer}s and {@link Request}s of the given {@link Book} last changed.
+   *
+   * @param book The Book.
+   * @return The time in milliseconds since the epoch or 0 if the Book has no OrderBook.
+   */
+  public static long marketChangedAt(Book book) {
+    OrderBook orderBook = (book == null || book.getPrimaryKey() == null) ? null : books.get(book
+        .getPrimaryKey());
+    return (orderBook == null) ? 0 : orderBook.getChangedAt();
+  }
+
+  /**
+   * Finds the {@link Request}s that the given {@link Offer} can fill, in price-time priority order.
+   *
+   * @param offer The Offer.
+   * @return The Matches for the Offer.
+   */
+  public static List<Match> match(Offer offer) {
+    OrderBook book = orderBook(offer.getBook());
+    return (book == null) ? new ArrayList<Match>() : book.matchAsk(new Order(offer));
+  }
+
+  /**
+   * Finds the {@link Offer}s that can fill the given {@link Request}, in price-time priority order.
+   *
+   * @param request The Request.
+   * @return The Matches for the Request.
+   */
+  public static List<Match> match(Request request) {
+    OrderBook book = orderBook(request.getBook());
+    return (book == null) ? new ArrayList<Match>() : book.matchBid(new Order(request));
+  }
+
+  /**
+   * Gets the number of open {@link Offer}s for the {@link Book} with the given primary key without
+   * querying the database.
+   *
+   * @param bookKey The primary key of the Book.
+   * @return The number of Offers.
+   */
+  public static int openOffers(Long bookKey) {
+    OrderBook book = (bookKey == null) ? null : books.get(bookKey);
+    return (book == null) ? 0 : book.getAskCount();
+  }
+
+  /**
+   * Rebuilds all of the {@link OrderBook}s from the {@link Offer}s and {@link Request}s tables.
+   */
+  public static void rebuild() {
+    List<Offer> offers = Offer.find().fetch("student", "studentId").findList();
+    List<Request> requests = Request.find().fetch("student", "studentId").findList();
+    clear();
+    for (Offer offer : offers) {
+      add(offer);
+    }
+    for (Request request : requests) {
+      add(request);
+    }
+  }
+
+  /**
+   * Removes the {@link OrderBook} of the given {@link Book} along with the Book's entries in
+   * {@link #offerBooks} and {@link #requestBooks}.
+   *
+   * @param book The Book.
+   */
+  public static void remove(Book book) {
+    if (book.getPrimaryKey() == null) {
+      return;
+    }
+    OrderBook removed = books.remove(book.getPrimaryKey());
+    if (removed != null) {
+      // Orders that have since moved to another Book keep their entries.
+      for (String offerId : removed.getAskIds()) {
+        offerBooks.remove(offerId, book.getPrimaryKey());
+      }
+      for (String requestId : removed.getBidIds()) {
+        requestBooks.remove(requestId, book.getPrimaryKey());
+      }
+    }
+  }
+
+  /**
+   * Removes the given {@link Offer} from its {@link Book}'s {@link OrderBook}.
+   *
+   * @param offer The Offer to remove.
+   */
+  public static void remove(Offer offer) {
+    Long bookKey = offerBooks.remove(offer.getOfferId());
+    OrderBook book = (bookKey == null) ? null : books.get(bookKey);
+    if (book != null) {
+      book.removeAsk(offer.getOfferId());
+      Typeahead.rerank(bookKey);
+    }
+  }
+
+  /**
+   * Removes the given {@link Request} from its {@link Book}'s {@link OrderBook}.
+   *
+   * @param request The Request to remove.
+   */
+  public static void remove(Request request) {
+    Long bookKey = requestBooks.remove(request.getRequestId());
+    OrderBook book = (bookKey == null) ? null : books.get(bookKey);
+    if (book != null) {
+      book.removeBid(request.getRequestId());
+    }
+  }
+
+  /**
+   * Removes all of the {@link Offer}s and {@link Request}s of the given {@link Student}.
+   *
+   * @param student The Student.
+   */
+  public static void remove(Student student) {
+    if (student.getPrimaryKey() != null) {
+      for (Map.Entry<Long, OrderBook> entry : books.entrySet()) {
+        entry.getValue().removeStudent(student.getPrimaryKey());
+        Typeahead.rerank(entry.getKey());
+      }
+    }
+  }
+
+  /**
+   * Gets the {@link MarketSummary} of the given {@link Book} without querying the database.
+   *
+   * @param book The Book.
+   * @return The Book's MarketSummary, which is {@link MarketSummary#EMPTY} if it has no Offers or
+   * Requests.
+   */
+  public static MarketSummary summary(Book book) {
+    OrderBook orderBook = (book == null || book.getPrimaryKey() == null) ? null : books.get(book
+        .getPrimaryKey());
+    return (orderBook == null) ? MarketSummary.EMPTY : orderBook.summary();
+  }
+
+  /**
+   * Gets the {@link OrderBook} of the given {@link Book}, creating it if needed.
+   *
+   * @param book The Book.
+   * @return The Book's OrderBook or null if the Book has not been saved.
+   */
+  private static OrderBook orderBook(Book book) {
+    if (book == null || book.getPrimaryKey() == null) {
+      return null;
+    }
+    OrderBook orderBook = books.get(book.getPrimaryKey());
+    if (orderBook == null) {
+      OrderBook created = new OrderBook();
+      orderBook = books.putIfAbsent(book.getPrimaryKey(), created);
+      if (orderBook == null) {
+        orderBook = created;
+      }
+    }
+    return orderBook;
+  }
+
+  /**
+   * Private constructor to prevent instantiation of this class.
+   */
+  private MatchingEngine() {
+    // Empty Private constructor to prevent instantiation.
+  }
+}
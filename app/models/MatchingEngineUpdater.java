@@ -0,0 +1,92 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import com.avaje.ebean.event.BeanPersistAdapter;
+import com.avaje.ebean.event.BeanPersistRequest;
+
+/**
+ * Keeps the {@link MatchingEngine} up to date as {@link Offer}s and {@link Request}s are saved,
+ * updated and deleted. Deleting a {@link Book} or {@link Student} also removes their Offers and
+ * Requests, which the database deletes by cascade.
+ *
+ * @author Christopher Foo
+ *
+ */
+public class MatchingEngineUpdater extends BeanPersistAdapter {
+
+  /**
+   * Listen for changes to all of the models.
+   */
+  @Override
+  public boolean isRegisterFor(Class<?> cls) {
+    return Offer.class.equals(cls) || Request.class.equals(cls) || Book.class.equals(cls)
+        || Student.class.equals(cls);
+  }
+
+  /**
+   * Removes the deleted model's orders from the {@link MatchingEngine}.
+   */
+  @Override
+  public void postDelete(BeanPersistRequest<?> request) {
+    Object bean = request.getBean();
+    if (bean instanceof Offer) {
+      MatchingEngine.remove((Offer) bean);
+    }
+    else if (bean instanceof Request) {
+      MatchingEngine.remove((Request) bean);
+    }
+    else if (bean instanceof Book) {
+      MatchingEngine.remove((Book) bean);
+    }
+    else if (bean instanceof Student) {
+      MatchingEngine.remove((Student) bean);
+    }
+  }
+
+  /**
+   * Adds the inserted {@link Offer} or {@link Request} to the {@link MatchingEngine}.
+   */
+  @Override
+  public void postInsert(BeanPersistRequest<?> request) {
+    update(request.getBean());
+  }
+
+  /**
+   * Replaces the updated {@link Offer} or {@link Request} in the {@link MatchingEngine}.
+   */
+  @Override
+  public void postUpdate(BeanPersistRequest<?> request) {
+    update(request.getBean());
+  }
+
+  /**
+   * Adds or replaces the given bean in the {@link MatchingEngine} if it is an {@link Offer} or
+   * {@link Request}.
+   *
+   * @param bean The saved bean.
+   */
+  private void update(Object bean) {
+    if (bean instanceof Offer) {
+      MatchingEngine.add((Offer) bean);
+    }
+    else if (bean instanceof Request) {
+      MatchingEngine.add((Request) bean);
+    }
+  }
+}
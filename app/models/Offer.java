@@ -17,13 +17,18 @@
 
 package models;
 
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.ManyToOne;
+import javax.persistence.Version;
+import com.avaje.ebean.Query;
+import com.avaje.ebean.annotation.UpdatedTimestamp;
 import play.data.validation.Constraints.Min;
 import play.data.validation.Constraints.MinLength;
 import play.data.validation.Constraints.Required;
@@ -54,6 +59,61 @@ public class Offer extends Model {
     return new Finder<>(Long.class, Offer.class);
   }
 
+  /**
+   * Creates a {@link Query} for {@link Offer}s that joins each Offer's {@link Student} and
+   * {@link Book}, which {@link #toString()} prints, so that listing Offers takes one statement
+   * instead of one per Offer and owner.
+   * 
+   * @return A Query for Offers and their owners.
+   */
+  public static Query<Offer> findWithOwners() {
+    return find().fetch("student").fetch("book");
+  }
+
+  /**
+   * Caches {@link Offer}s by natural ID. See: {@link #findByOfferId(String)}.
+   */
+  private static final EntityCache<Offer> cache = new EntityCache<Offer>("offer", 1000, 10,
+      TimeUnit.MINUTES) {
+    @Override
+    protected Offer load(String offerId) {
+      return Offer.findWithOwners().where().eq("offerId", offerId).findUnique();
+    }
+  };
+
+  /**
+   * Gets the {@link EntityCache} of {@link Offer}s keyed by natural ID.
+   * 
+   * @return The Offer cache.
+   */
+  public static EntityCache<Offer> cache() {
+    return cache;
+  }
+
+  /**
+   * Finds the {@link Offer} with the given natural ID, using the {@link #cache()} if possible.
+   * 
+   * @param offerId The natural ID of the Offer.
+   * @return The Offer or null if there is no Offer with the given natural ID.
+   */
+  public static Offer findByOfferId(String offerId) {
+    return cache.get(offerId);
+  }
+
+  /**
+   * The IDs of the {@link Offer}s in the database. See: {@link #validate()}.
+   */
+  private static final KeyRegistry keys = new KeyRegistry();
+
+  /**
+   * Gets the {@link KeyRegistry} of the offer IDs in use.
+   * 
+   * @return The ID registry.
+   */
+  public static KeyRegistry keys() {
+    return keys;
+  }
+
   /**
    * The {@link Book} that is for sale.
    */
@@ -67,6 +127,12 @@ public class Offer extends Model {
   @Required
   private Condition condition;
 
+  /**
+   * When this {@link Offer} was last inserted or updated. Set by Ebean.
+   */
+  @UpdatedTimestamp
+  private Timestamp lastModified;
+
   /**
    * The natural ID of this {@link Offer}.
    */
@@ -101,6 +167,13 @@ public class Offer extends Model {
   @ManyToOne(cascade = CascadeType.PERSIST)
   private Student student;
 
+  /**
+   * The version of this {@link Offer}. Ebean increments it on every update and checks it to detect
+   * concurrent updates.
+   */
+  @Version
+  private Long version;
+
   /**
    * Creates a new {@link Offer} with the given values.
    * 
@@ -121,6 +194,16 @@ public class Offer extends Model {
     this.quantity = quantity;
   }
 
+  /**
+   * Creates the {@link ValidationError} reported when this {@link Offer}'s ID is already taken.
+   * 
+   * @return The ValidationError.
+   */
+  public ValidationError alreadyExistsError() {
+    return new ValidationError("AlreadyExists", String.format(
+        "An offer with ID '%s' already exists in the database.", this.offerId));
+  }
+
   /**
    * Gets the {@link #book} that is for sale in this {@link Offer}.
    * 
@@ -139,6 +222,15 @@ public class Offer extends Model {
     return this.condition;
   }
 
+  /**
+   * Gets when this {@link Offer} was last inserted or updated.
+   * 
+   * @return The time of the last change.
+   */
+  public Timestamp getLastModified() {
+    return this.lastModified;
+  }
+
   /**
    * Gets the natural ID of this {@link Offer}.
    * 
@@ -184,6 +276,15 @@ public class Offer extends Model {
     return this.student;
   }
 
+  /**
+   * Gets the version of this {@link Offer}, which changes whenever it is updated.
+   * 
+   * @return The version.
+   */
+  public Long getVersion() {
+    return this.version;
+  }
+
   /**
    * Sets the {@link #book} that is for sale in this {@link Offer}.
    * 
@@ -220,6 +321,16 @@ public class Offer extends Model {
     this.price = price;
   }
 
+  /**
+   * Sets the {@link #primaryKey} of this new {@link Offer} before it is inserted. See:
+   * {@link WriteBehind}.
+   * 
+   * @param primaryKey The primary key allocated for this Offer.
+   */
+  public void setPrimaryKey(Long primaryKey) {
+    this.primaryKey = primaryKey;
+  }
+
   /**
    * Updates the number ({@link #quantity}) of {@link Book}s for sale.
    * 
@@ -255,9 +366,8 @@ public class Offer extends Model {
    */
   public List<ValidationError> validate() {
     List<ValidationError> errors = new ArrayList<>();
-    if (Offer.find().where().eq("offerId", this.offerId).findUnique() != null) {
-      errors.add(new ValidationError("AlreadyExists", String.format(
-          "An offer with ID '%s' already exists in the database.", this.offerId)));
+    if (keys.contains(this.offerId)) {
+      errors.add(alreadyExistsError());
     }
 
     if (this.price < 0) {
@@ -0,0 +1,589 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import controllers.Condition;
+
+/**
+ * The open {@link Offer}s (asks) and {@link Request}s (bids) for a single {@link Book}, kept in
+ * price-time priority order. Asks are ordered from the lowest to the highest price and bids from
+ * the highest to the lowest price, with ties broken by the order in which they were created. The
+ * orders are also indexed by {@link Condition} so that the book's {@link MarketSummary} is kept up
+ * to date as orders are added and removed.
+ *
+ * @author Christopher Foo
+ *
+ */
+public class OrderBook {
+
+  /**
+   * An {@link Offer} or {@link Request} resting in an {@link OrderBook}.
+   */
+  public static final class Order {
+
+    /**
+     * The {@link Condition} of the Book(s) offered or asked for. Null if a buyer accepts any
+     * Condition.
+     */
+    private final Condition condition;
+
+    /**
+     * The natural ID of the Offer or Request.
+     */
+    private final String id;
+
+    /**
+     * The asking or target price.
+     */
+    private final double price;
+
+    /**
+     * The number of Books offered or asked for.
+     */
+    private final int quantity;
+
+    /**
+     * The time priority of the order. Lower values were created earlier.
+     */
+    private final long sequence;
+
+    /**
+     * The primary key of the {@link Student} who submitted the order.
+     */
+    private final Long studentKey;
+
+    /**
+     * The natural ID of the {@link Student} who submitted the order.
+     */
+    private final String studentId;
+
+    /**
+     * Creates a new {@link Order} for the given {@link Offer}.
+     *
+     * @param offer The Offer.
+     */
+    public Order(Offer offer) {
+      this(offer.getOfferId(), offer.getPrimaryKey(), offer.getStudent(), offer.getCondition(),
+          offer.getPrice(), offer.getQuantity());
+    }
+
+    /**
+     * Creates a new {@link Order} for the given {@link Request}.
+     *
+     * @param request The Request.
+     */
+    public Order(Request request) {
+      this(request.getRequestId(), request.getPrimaryKey(), request.getStudent(), request
+          .getCondition(), request.getPrice(), request.getQuantity());
+    }
+
+    /**
+     * Creates a new {@link Order} with the given values.
+     *
+     * @param id The natural ID of the Offer or Request.
+     * @param sequence The time priority of the order.
+     * @param student The Student who submitted the order.
+     * @param condition The Condition of the Book(s).
+     * @param price The asking or target price.
+     * @param quantity The number of Books.
+     */
+    private Order(String id, Long sequence, Student student, Condition condition, double price,
+        int quantity) {
+      this.id = id;
+      this.sequence = (sequence == null) ? Long.MAX_VALUE : sequence;
+      this.studentKey = (student == null) ? null : student.getPrimaryKey();
+      this.studentId = (student == null) ? null : student.getStudentId();
+      this.condition = condition;
+      this.price = price;
+      this.quantity = quantity;
+    }
+
+    /**
+     * Gets the {@link Condition} of this {@link Order}.
+     *
+     * @return The Condition or null if any Condition is acceptable.
+     */
+    public Condition getCondition() {
+      return this.condition;
+    }
+
+    /**
+     * Gets the natural ID of the Offer or Request of this {@link Order}.
+     *
+     * @return The natural ID.
+     */
+    public String getId() {
+      return this.id;
+    }
+
+    /**
+     * Gets the asking or target price of this {@link Order}.
+     *
+     * @return The price.
+     */
+    public double getPrice() {
+      return this.price;
+    }
+
+    /**
+     * Gets the number of Books in this {@link Order}.
+     *
+     * @return The quantity.
+     */
+    public int getQuantity() {
+      return this.quantity;
+    }
+
+    /**
+     * Gets the natural ID of the {@link Student} who submitted this {@link Order}.
+     *
+     * @return The Student's natural ID.
+     */
+    public String getStudentId() {
+      return this.studentId;
+    }
+  }
+
+  /**
+   * A matched {@link Offer} and {@link Request}.
+   */
+  public static final class Match {
+
+    /**
+     * The Offer's Order.
+     */
+    private final Order offer;
+
+    /**
+     * The price that the Books are matched at, which is the price of the order that was already in
+     * the {@link OrderBook}.
+     */
+    private final double price;
+
+    /**
+     * The number of Books matched.
+     */
+    private final int quantity;
+
+    /**
+     * The Request's Order.
+     */
+    private final Order request;
+
+    /**
+     * Creates a new {@link Match}.
+     *
+     * @param offer The Offer's Order.
+     * @param request The Request's Order.
+     * @param price The matched price.
+     * @param quantity The number of Books matched.
+     */
+    Match(Order offer, Order request, double price, int quantity) {
+      this.offer = offer;
+      this.request = request;
+      this.price = price;
+      this.quantity = quantity;
+    }
+
+    /**
+     * Gets the Offer's {@link Order}.
+     *
+     * @return The Offer's Order.
+     */
+    public Order getOffer() {
+      return this.offer;
+    }
+
+    /**
+     * Gets the matched price.
+     *
+     * @return The matched price.
+     */
+    public double getPrice() {
+      return this.price;
+    }
+
+    /**
+     * Gets the number of Books matched.
+     *
+     * @return The number of Books matched.
+     */
+    public int getQuantity() {
+      return this.quantity;
+    }
+
+    /**
+     * Gets the Request's {@link Order}.
+     *
+     * @return The Request's Order.
+     */
+    public Order getRequest() {
+      return this.request;
+    }
+
+    /**
+     * Returns the {@link String} representation of this {@link Match}.
+     */
+    @Override
+    public String toString() {
+      return String.format("[Match %s %s %s %s %f %d]", this.offer.getId(),
+          this.offer.getStudentId(), this.request.getId(), this.request.getStudentId(),
+          this.price, this.quantity);
+    }
+  }
+
+  /**
+   * Orders asks from the lowest to the highest price, then by time.
+   */
+  private static final Comparator<Order> ASK_PRIORITY = new Comparator<Order>() {
+    @Override
+    public int compare(Order a, Order b) {
+      int byPrice = Double.compare(a.price, b.price);
+      return (byPrice != 0) ? byPrice : Long.compare(a.sequence, b.sequence);
+    }
+  };
+
+  /**
+   * The Conditions in the order of the rows of a {@link MarketSummary}, ending with null for the
+   * bids that accept any Condition.
+   */
+  private static final Condition[] CONDITIONS = {Condition.NEW, Condition.SLIGHTLY_USED,
+      Condition.HEAVILY_USED, null};
+
+  /**
+   * Orders bids from the highest to the lowest price, then by time.
+   */
+  private static final Comparator<Order> BID_PRIORITY = new Comparator<Order>() {
+    @Override
+    public int compare(Order a, Order b) {
+      int byPrice = Double.compare(b.price, a.price);
+      return (byPrice != 0) ? byPrice : Long.compare(a.sequence, b.sequence);
+    }
+  };
+
+  /**
+   * Numbers the changes to all of the {@link OrderBook}s. See: {@link #getChange()}.
+   */
+  private static final AtomicLong changes = new AtomicLong();
+
+  /**
+   * The asks in price-time priority order.
+   */
+  private final TreeSet<Order> asks = new TreeSet<>(ASK_PRIORITY);
+
+  /**
+   * The asks keyed by Offer ID.
+   */
+  private final Map<String, Order> asksById = new HashMap<>();
+
+  /**
+   * The asks of each {@link Condition} in price-time priority order. See: {@link #summary()}.
+   */
+  private final Map<Condition, TreeSet<Order>> asksByCondition = new HashMap<>();
+
+  /**
+   * The bids in price-time priority order.
+   */
+  private final TreeSet<Order> bids = new TreeSet<>(BID_PRIORITY);
+
+  /**
+   * The bids keyed by Request ID.
+   */
+  private final Map<String, Order> bidsById = new HashMap<>();
+
+  /**
+   * The bids for each {@link Condition}, including null for any Condition, in price-time priority
+   * order. See: {@link #summary()}.
+   */
+  private final Map<Condition, TreeSet<Order>> bidsByCondition = new HashMap<>();
+
+  /**
+   * The number of the last change to this {@link OrderBook}.
+   */
+  private long change;
+
+  /**
+   * When this {@link OrderBook} last changed, in milliseconds since the epoch.
+   */
+  private long changedAt;
+
+  /**
+   * Adds the given ask, replacing any ask with the same ID.
+   *
+   * @param ask The ask to add.
+   */
+  public synchronized void addAsk(Order ask) {
+    removeAsk(ask.getId());
+    this.asks.add(ask);
+    this.asksById.put(ask.getId(), ask);
+    index(this.asksByCondition, ask, ASK_PRIORITY);
+    changed();
+  }
+
+  /**
+   * Adds the given bid, replacing any bid with the same ID.
+   *
+   * @param bid The bid to add.
+   */
+  public synchronized void addBid(Order bid) {
+    removeBid(bid.getId());
+    this.bids.add(bid);
+    this.bidsById.put(bid.getId(), bid);
+    index(this.bidsByCondition, bid, BID_PRIORITY);
+    changed();
+  }
+
+  /**
+   * Gets the number of asks in this {@link OrderBook}.
+   *
+   * @return The number of asks.
+   */
+  public synchronized int getAskCount() {
+    return this.asks.size();
+  }
+
+  /**
+   * Gets the IDs of the asks in this {@link OrderBook}.
+   *
+   * @return A copy of the Offer IDs.
+   */
+  public synchronized List<String> getAskIds() {
+    return new ArrayList<>(this.asksById.keySet());
+  }
+
+  /**
+   * Gets the IDs of the bids in this {@link OrderBook}.
+   *
+   * @return A copy of the Request IDs.
+   */
+  public synchronized List<String> getBidIds() {
+    return new ArrayList<>(this.bidsById.keySet());
+  }
+
+  /**
+   * Gets the number of the last change to this {@link OrderBook}. Changes are numbered across all
+   * of the OrderBooks, so a number is never reused even if a Book's OrderBook is recreated.
+   *
+   * @return The number of the last change or 0 if it has not changed.
+   */
+  public synchronized long getChange() {
+    return this.change;
+  }
+
+  /**
+   * Gets when this {@link OrderBook} last changed.
+   *
+   * @return The time in milliseconds since the epoch or 0 if it has not changed.
+   */
+  public synchronized long getChangedAt() {
+    return this.changedAt;
+  }
+
+  /**
+   * Determines whether this {@link OrderBook} has no asks or bids.
+   *
+   * @return True if this OrderBook is empty.
+   */
+  public synchronized boolean isEmpty() {
+    return this.asks.isEmpty() && this.bids.isEmpty();
+  }
+
+  /**
+   * Finds the resting bids that the given ask can fill, in priority order, until the ask's
+   * quantity is used up. A bid can be filled if its price is at or above the asking price and the
+   * ask's {@link Condition} is acceptable to the buyer.
+   *
+   * @param ask The ask.
+   * @return The Matches for the ask.
+   */
+  public synchronized List<Match> matchAsk(Order ask) {
+    List<Match> matches = new ArrayList<>();
+    int remaining = ask.getQuantity();
+    for (Order bid : this.bids) {
+      if (remaining <= 0 || bid.getPrice() < ask.getPrice()) {
+        break;
+      }
+      if (ask.getCondition() == null || !ask.getCondition().satisfies(bid.getCondition())) {
+        continue;
+      }
+      int quantity = Math.min(remaining, bid.getQuantity());
+      matches.add(new Match(ask, bid, bid.getPrice(), quantity));
+      remaining -= quantity;
+    }
+    return matches;
+  }
+
+  /**
+   * Finds the resting asks that can fill the given bid, in priority order, until the bid's
+   * quantity is used up. An ask can fill the bid if its price is at or below the target price and
+   * its {@link Condition} is acceptable to the buyer.
+   *
+   * @param bid The bid.
+   * @return The Matches for the bid.
+   */
+  public synchronized List<Match> matchBid(Order bid) {
+    List<Match> matches = new ArrayList<>();
+    int remaining = bid.getQuantity();
+    for (Order ask : this.asks) {
+      if (remaining <= 0 || ask.getPrice() > bid.getPrice()) {
+        break;
+      }
+      if (ask.getCondition() == null || !ask.getCondition().satisfies(bid.getCondition())) {
+        continue;
+      }
+      int quantity = Math.min(remaining, ask.getQuantity());
+      matches.add(new Match(ask, bid, ask.getPrice(), quantity));
+      remaining -= quantity;
+    }
+    return matches;
+  }
+
+  /**
+   * Removes the ask with the given Offer ID. Does nothing if there is no such ask.
+   *
+   * @param offerId The Offer ID.
+   */
+  public synchronized void removeAsk(String offerId) {
+    Order ask = this.asksById.remove(offerId);
+    if (ask != null) {
+      this.asks.remove(ask);
+      unindex(this.asksByCondition, ask);
+      changed();
+    }
+  }
+
+  /**
+   * Removes the bid with the given Request ID. Does nothing if there is no such bid.
+   *
+   * @param requestId The Request ID.
+   */
+  public synchronized void removeBid(String requestId) {
+    Order bid = this.bidsById.remove(requestId);
+    if (bid != null) {
+      this.bids.remove(bid);
+      unindex(this.bidsByCondition, bid);
+      changed();
+    }
+  }
+
+  /**
+   * Removes all asks and bids submitted by the {@link Student} with the given primary key.
+   *
+   * @param studentKey The primary key of the Student.
+   */
+  public synchronized void removeStudent(Long studentKey) {
+    for (Order ask : new ArrayList<>(this.asks)) {
+      if (studentKey.equals(ask.studentKey)) {
+        removeAsk(ask.getId());
+      }
+    }
+    for (Order bid : new ArrayList<>(this.bids)) {
+      if (studentKey.equals(bid.studentKey)) {
+        removeBid(bid.getId());
+      }
+    }
+  }
+
+  /**
+   * Summarizes the asks and bids in this {@link OrderBook}. Only the best order of each
+   * {@link Condition} is looked at, so this does not depend on the number of orders.
+   *
+   * @return The MarketSummary of the book.
+   */
+  public synchronized MarketSummary summary() {
+    List<MarketSummary.Row> rows = new ArrayList<>();
+    for (Condition condition : CONDITIONS) {
+      TreeSet<Order> conditionAsks = this.asksByCondition.get(condition);
+      TreeSet<Order> conditionBids = this.bidsByCondition.get(condition);
+      if (conditionAsks == null && conditionBids == null) {
+        continue;
+      }
+      rows.add(new MarketSummary.Row(condition, size(conditionAsks), best(conditionAsks),
+          size(conditionBids), best(conditionBids)));
+    }
+    return new MarketSummary(rows, best(this.asks), best(this.bids));
+  }
+
+  /**
+   * Gets the price of the first of the given orders.
+   *
+   * @param orders The orders in priority order or null if there are none.
+   * @return The price of the best order or null if there are none.
+   */
+  private static Double best(TreeSet<Order> orders) {
+    return (orders == null || orders.isEmpty()) ? null : orders.first().getPrice();
+  }
+
+  /**
+   * Adds the given order to the orders of its {@link Condition}.
+   *
+   * @param byCondition The orders keyed by Condition.
+   * @param order The order.
+   * @param priority The priority order of the orders.
+   */
+  private static void index(Map<Condition, TreeSet<Order>> byCondition, Order order,
+      Comparator<Order> priority) {
+    TreeSet<Order> orders = byCondition.get(order.getCondition());
+    if (orders == null) {
+      orders = new TreeSet<>(priority);
+      byCondition.put(order.getCondition(), orders);
+    }
+    orders.add(order);
+  }
+
+  /**
+   * Gets the number of the given orders.
+   *
+   * @param orders The orders or null if there are none.
+   * @return The number of orders.
+   */
+  private static int size(TreeSet<Order> orders) {
+    return (orders == null) ? 0 : orders.size();
+  }
+
+  /**
+   * Removes the given order from the orders of its {@link Condition}.
+   *
+   * @param byCondition The orders keyed by Condition.
+   * @param order The order.
+   */
+  private static void unindex(Map<Condition, TreeSet<Order>> byCondition, Order order) {
+    TreeSet<Order> orders = byCondition.get(order.getCondition());
+    if (orders != null) {
+      orders.remove(order);
+      if (orders.isEmpty()) {
+        byCondition.remove(order.getCondition());
+      }
+    }
+  }
+
+  /**
+   * Records a change to this {@link OrderBook}. The caller must hold the lock.
+   */
+  private void changed() {
+    this.change = changes.incrementAndGet();
+    this.changedAt = System.currentTimeMillis();
+  }
+}
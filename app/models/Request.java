@@ -17,13 +17,18 @@
 
 package models;
 
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.ManyToOne;
+import javax.persistence.Version;
+import com.avaje.ebean.Query;
+import com.avaje.ebean.annotation.UpdatedTimestamp;
 import play.data.validation.Constraints.Min;
 import play.data.validation.Constraints.MinLength;
 import play.data.validation.Constraints.Required;
@@ -54,6 +59,61 @@ public class Request extends Model {
     return new Finder<>(Long.class, Request.class);
   }
 
+  /**
+   * Creates a {@link Query} for {@link Request}s that joins each Request's {@link Student} and
+   * {@link Book}, which {@link #toString()} prints, so that listing Requests takes one statement
+   * instead of one per Request and owner.
+   * 
+   * @return A Query for Requests and their owners.
+   */
+  public static Query<Request> findWithOwners() {
+    return find().fetch("student").fetch("book");
+  }
+
+  /**
+   * Caches {@link Request}s by natural ID. See: {@link #findByRequestId(String)}.
+   */
+  private static final EntityCache<Request> cache = new EntityCache<Request>("request", 1000, 10,
+      TimeUnit.MINUTES) {
+    @Override
+    protected Request load(String requestId) {
+      return Request.findWithOwners().where().eq("requestId", requestId).findUnique();
+    }
+  };
+
+  /**
+   * Gets the {@link EntityCache} of {@link Request}s keyed by natural ID.
+   * 
+   * @return The Request cache.
+   */
+  public static EntityCache<Request> cache() {
+    return cache;
+  }
+
+  /**
+   * Finds the {@link Request} with the given natural ID, using the {@link #cache()} if possible.
+   * 
+   * @param requestId The natural ID of the Request.
+   * @return The Request or null if there is no Request with the given natural ID.
+   */
+  public static Request findByRequestId(String requestId) {
+    return cache.get(requestId);
+  }
+
+  /**
+   * The IDs of the {@link Request}s in the database. See: {@link #validate()}.
+   */
+  private static final KeyRegistry keys = new KeyRegistry();
+
+  /**
+   * Gets the {@link KeyRegistry} of the request IDs in use.
+   * 
+   * @return The ID registry.
+   */
+  public static KeyRegistry keys() {
+    return keys;
+  }
+
   /**
    * The {@link Book} that this {@link Request} is asking for.
    */
@@ -66,6 +126,12 @@ public class Request extends Model {
    */
   private Condition condition;
 
+  /**
+   * When this {@link Request} was last inserted or updated. Set by Ebean.
+   */
+  @UpdatedTimestamp
+  private Timestamp lastModified;
+
   /**
    * The target price of the {@link Book}.
    */
@@ -101,6 +167,13 @@ public class Request extends Model {
   @ManyToOne(cascade = CascadeType.PERSIST)
   private Student student;
 
+  /**
+   * The version of this {@link Request}. Ebean increments it on every update and checks it to
+   * detect concurrent updates.
+   */
+  @Version
+  private Long version;
+
   /**
    * Creates a new {@link Request} with the given values. Uses the default condition.
    * 
@@ -134,6 +207,16 @@ public class Request extends Model {
     this.quantity = quantity;
   }
 
+  /**
+   * Creates the {@link ValidationError} reported when this {@link Request}'s ID is already taken.
+   * 
+   * @return The ValidationError.
+   */
+  public ValidationError alreadyExistsError() {
+    return new ValidationError("AlreadyExists", String.format(
+        "An request with ID '%s' already exists in the database.", this.requestId));
+  }
+
   /**
    * Gets the {@link #book} to be purchased.
    * 
@@ -152,6 +235,15 @@ public class Request extends Model {
     return this.condition;
   }
 
+  /**
+   * Gets when this {@link Request} was last inserted or updated.
+   * 
+   * @return The time of the last change.
+   */
+  public Timestamp getLastModified() {
+    return this.lastModified;
+  }
+
   /**
    * Gets the target {@link #price} of the {@link #book}.
    * 
@@ -197,6 +289,15 @@ public class Request extends Model {
     return this.student;
   }
 
+  /**
+   * Gets the version of this {@link Request}, which changes whenever it is updated.
+   * 
+   * @return The version.
+   */
+  public Long getVersion() {
+    return this.version;
+  }
+
   /**
    * Sets the {@link #book} to be purchased.
    * 
@@ -224,6 +325,16 @@ public class Request extends Model {
     this.price = price;
   }
 
+  /**
+   * Sets the {@link #primaryKey} of this new {@link Request} before it is inserted. See:
+   * {@link WriteBehind}.
+   * 
+   * @param primaryKey The primary key allocated for this Request.
+   */
+  public void setPrimaryKey(Long primaryKey) {
+    this.primaryKey = primaryKey;
+  }
+
   /**
    * Updates the number of {@link #book}s to be purchased ({@link #quantity}).
    * 
@@ -269,9 +380,8 @@ public class Request extends Model {
    */
   public List<ValidationError> validate() {
     List<ValidationError> errors = new ArrayList<>();
-    if (Request.find().where().eq("requestId", this.requestId).findUnique() != null) {
-      errors.add(new ValidationError("AlreadyExists", String.format(
-          "An request with ID '%s' already exists in the database.", this.requestId)));
+    if (keys.contains(this.requestId)) {
+      errors.add(alreadyExistsError());
     }
 
     if (this.price < 0) {
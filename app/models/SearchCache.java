@@ -0,0 +1,675 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the results of book searches: the primary keys and ISBNs of the matching {@link Book}s in
+ * ISBN order, keyed by the normalized search criteria ({@link Query}). Entries are evicted in least
+ * recently used order once their estimated size exceeds a byte budget. When a Book is saved,
+ * updated or deleted only the entries that contained it or whose criteria it now matches are
+ * removed, so unrelated searches stay cached. See: {@link BookIndexer}.
+ *
+ * @author Christopher Foo
+ *
+ */
+public final class SearchCache {
+
+  /**
+   * The normalized criteria of a book search. Text criteria are trimmed, lower cased and have
+   * their whitespace collapsed; numeric criteria that cannot be parsed are ignored, as they are by
+   * the search itself.
+   */
+  public static final class Query {
+
+    /**
+     * The authors criterion.
+     */
+    private final String authors;
+
+    /**
+     * The minimum edition or null if there is none.
+     */
+    private final Integer edition;
+
+    /**
+     * The ISBN criterion.
+     */
+    private final String isbn;
+
+    /**
+     * The name criterion.
+     */
+    private final String name;
+
+    /**
+     * The maximum price or null if there is none.
+     */
+    private final Double price;
+
+    /**
+     * The publisher criterion.
+     */
+    private final String publisher;
+
+    /**
+     * Creates a new {@link Query} from the given search form values.
+     *
+     * @param isbn The ISBN criterion or null.
+     * @param name The name criterion or null.
+     * @param authors The authors criterion or null.
+     * @param publisher The publisher criterion or null.
+     * @param edition The minimum edition or null.
+     * @param price The maximum price or null.
+     */
+    public Query(String isbn, String name, String authors, String publisher, String edition,
+        String price) {
+      this.isbn = normalize(isbn);
+      this.name = normalize(name);
+      this.authors = normalize(authors);
+      this.publisher = normalize(publisher);
+      Integer parsedEdition = null;
+      try {
+        parsedEdition = (edition == null) ? null : Integer.valueOf(edition.trim());
+      }
+      catch (NumberFormatException e) {
+        parsedEdition = null;
+      }
+      this.edition = parsedEdition;
+      Double parsedPrice = null;
+      try {
+        parsedPrice = (price == null) ? null : Double.valueOf(price.trim());
+      }
+      catch (NumberFormatException e) {
+        parsedPrice = null;
+      }
+      this.price = parsedPrice;
+    }
+
+    /**
+     * Gets the value of the given text criterion.
+     *
+     * @param field The name of the field, one of the {@link BookIndex#FIELDS}.
+     * @return The normalized criterion, which is empty if there is none.
+     */
+    public String get(String field) {
+      switch (field) {
+      case "isbn":
+        return this.isbn;
+      case "name":
+        return this.name;
+      case "authors":
+        return this.authors;
+      case "publisher":
+        return this.publisher;
+      default:
+        throw new IllegalArgumentException("Unknown field " + field);
+      }
+    }
+
+    /**
+     * Gets the minimum edition.
+     *
+     * @return The minimum edition or null if there is none.
+     */
+    public Integer getEdition() {
+      return this.edition;
+    }
+
+    /**
+     * Gets the maximum price.
+     *
+     * @return The maximum price or null if there is none.
+     */
+    public Double getPrice() {
+      return this.price;
+    }
+
+    /**
+     * Determines whether the given {@link Book} matches these criteria, using the same rules as
+     * the search: the {@link BookIndex}'s prefix matching for text criteria that have terms, or
+     * matching anywhere in the ISBN's digits, and a substring match for those that do not.
+     *
+     * @param book The Book.
+     * @return True if the Book matches.
+     */
+    public boolean matches(Book book) {
+      for (String field : BookIndex.FIELDS) {
+        String criterion = get(field);
+        if (!criterion.isEmpty() && !matchesText(field, criterion, value(book, field))) {
+          return false;
+        }
+      }
+      return (this.edition == null || book.getEdition() >= this.edition)
+          && (this.price == null || book.getPrice() <= this.price);
+    }
+
+    /**
+     * Determines whether these criteria equal the given object.
+     */
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Query)) {
+        return false;
+      }
+      Query other = (Query) obj;
+      return this.isbn.equals(other.isbn) && this.name.equals(other.name)
+          && this.authors.equals(other.authors) && this.publisher.equals(other.publisher)
+          && equal(this.edition, other.edition) && equal(this.price, other.price);
+    }
+
+    /**
+     * Gets the hash code of these criteria.
+     */
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(new Object[] {this.isbn, this.name, this.authors, this.publisher,
+          this.edition, this.price});
+    }
+
+    /**
+     * Returns the {@link String} representation of these criteria.
+     */
+    @Override
+    public String toString() {
+      return String.format("[Query %s %s %s %s %s %s]", this.isbn, this.name, this.authors,
+          this.publisher, this.edition, this.price);
+    }
+
+    /**
+     * Estimates the number of bytes used by these criteria.
+     *
+     * @return The estimated size.
+     */
+    private long bytes() {
+      return OBJECT_BYTES * 3 + STRING_BYTES * 4 + 2 * (this.isbn.length() + this.name.length()
+          + this.authors.length() + this.publisher.length());
+    }
+  }
+
+  /**
+   * The result of a book search.
+   */
+  public static final class Result {
+
+    /**
+     * The ISBNs of the matching {@link Book}s in ascending order.
+     */
+    private final String[] isbns;
+
+    /**
+     * The primary keys of the matching Books in ISBN order.
+     */
+    private final long[] keys;
+
+    /**
+     * Creates a new {@link Result}.
+     *
+     * @param keys The primary keys of the matching Books in ISBN order.
+     * @param isbns The ISBNs of the matching Books in ascending order.
+     */
+    private Result(long[] keys, String[] isbns) {
+      this.isbns = isbns;
+      this.keys = keys;
+    }
+
+    /**
+     * Gets the ISBN of the matching {@link Book} at the given position.
+     *
+     * @param index The position of the Book.
+     * @return The ISBN.
+     */
+    public String getIsbn(int index) {
+      return this.isbns[index];
+    }
+
+    /**
+     * Gets the primary keys of the matching {@link Book}s in the given range.
+     *
+     * @param from The position of the first Book.
+     * @param to The position after the last Book.
+     * @return The primary keys.
+     */
+    public List<Long> getKeys(int from, int to) {
+      List<Long> keys = new ArrayList<>(Math.max(0, to - from));
+      for (int i = from; i < to; i++) {
+        keys.add(this.keys[i]);
+      }
+      return keys;
+    }
+
+    /**
+     * Finds the position of the first matching {@link Book} after the given ISBN.
+     *
+     * @param after The ISBN of the last Book on the previous page or null for the first page.
+     * @return The position of the first Book after the cursor.
+     */
+    public int indexAfter(String after) {
+      if (after == null) {
+        return 0;
+      }
+      int index = Arrays.binarySearch(this.isbns, after);
+      if (index < 0) {
+        return -index - 1;
+      }
+      // Skip every Book with the same ISBN as the cursor.
+      while (index < this.isbns.length && this.isbns[index].equals(after)) {
+        index++;
+      }
+      return index;
+    }
+
+    /**
+     * Gets the number of matching {@link Book}s.
+     *
+     * @return The number of Books.
+     */
+    public int size() {
+      return this.keys.length;
+    }
+
+    /**
+     * Estimates the number of bytes used by this result.
+     *
+     * @return The estimated size.
+     */
+    private long bytes() {
+      long bytes = OBJECT_BYTES * 3 + 8L * this.keys.length + 4L * this.isbns.length;
+      for (String isbn : this.isbns) {
+        bytes += STRING_BYTES + 2 * isbn.length();
+      }
+      return bytes;
+    }
+  }
+
+  /**
+   * The default maximum estimated size of the cached entries in bytes.
+   */
+  public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+  /**
+   * The estimated overhead of an object or array in bytes.
+   */
+  private static final long OBJECT_BYTES = 16;
+
+  /**
+   * The estimated overhead of a {@link String}, not counting its characters, in bytes.
+   */
+  private static final long STRING_BYTES = 40;
+
+  /**
+   * The estimated size of the cached entries in bytes.
+   */
+  private static long bytes;
+
+  /**
+   * The cached results in least to most recently used order.
+   */
+  private static final LinkedHashMap<Query, Result> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * The number of entries evicted to stay within the byte budget.
+   */
+  private static final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Incremented whenever entries are invalidated. See: {@link #getGeneration()}.
+   */
+  private static final AtomicLong generation = new AtomicLong();
+
+  /**
+   * The number of lookups answered from the cache.
+   */
+  private static final AtomicLong hits = new AtomicLong();
+
+  /**
+   * The number of entries removed because a {@link Book} changed.
+   */
+  private static final AtomicLong invalidations = new AtomicLong();
+
+  /**
+   * The criteria of the entries containing each {@link Book}, keyed by primary key.
+   */
+  private static final Map<Long, Set<Query>> queriesByBook = new HashMap<>();
+
+  /**
+   * The maximum estimated size of the cached entries in bytes.
+   */
+  private static volatile long maxBytes = DEFAULT_MAX_BYTES;
+
+  /**
+   * The number of lookups that were not answered from the cache.
+   */
+  private static final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Removes every entry.
+   */
+  public static synchronized void clear() {
+    generation.incrementAndGet();
+    entries.clear();
+    queriesByBook.clear();
+    bytes = 0;
+  }
+
+  /**
+   * Gets the cached result of the given search.
+   *
+   * @param query The search criteria.
+   * @return The cached result or null if it is not cached.
+   */
+  public static synchronized Result get(Query query) {
+    Result result = entries.get(query);
+    if (result == null) {
+      misses.incrementAndGet();
+    }
+    else {
+      hits.incrementAndGet();
+    }
+    return result;
+  }
+
+  /**
+   * Gets the estimated size of the cached entries.
+   *
+   * @return The size in bytes.
+   */
+  public static synchronized long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Gets the number of cached entries.
+   *
+   * @return The number of entries.
+   */
+  public static synchronized int getSize() {
+    return entries.size();
+  }
+
+  /**
+   * Gets the number of entries evicted to stay within the byte budget.
+   *
+   * @return The number of evictions.
+   */
+  public static long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * Gets the current generation, which changes whenever entries are invalidated. A result computed
+   * from the database is only cached if the generation has not changed since the computation
+   * started; see {@link #put(Query, List, long)}.
+   *
+   * @return The generation.
+   */
+  public static long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Gets the fraction of lookups answered from the cache.
+   *
+   * @return The hit ratio or 0 if there have been no lookups.
+   */
+  public static double getHitRatio() {
+    long hitCount = hits.get();
+    long total = hitCount + misses.get();
+    return (total == 0) ? 0 : (double) hitCount / total;
+  }
+
+  /**
+   * Gets the number of lookups answered from the cache.
+   *
+   * @return The number of hits.
+   */
+  public static long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Gets the number of entries removed because a {@link Book} changed.
+   *
+   * @return The number of invalidations.
+   */
+  public static long getInvalidations() {
+    return invalidations.get();
+  }
+
+  /**
+   * Gets the number of lookups that were not answered from the cache.
+   *
+   * @return The number of misses.
+   */
+  public static long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Removes the entries that the given saved, updated or deleted {@link Book} may change: those
+   * that contained it and those whose criteria it matches.
+   *
+   * @param book The changed Book.
+   */
+  public static synchronized void invalidate(Book book) {
+    generation.incrementAndGet();
+    Set<Query> stale = new HashSet<>();
+    Set<Query> containing = queriesByBook.get(book.getPrimaryKey());
+    if (containing != null) {
+      stale.addAll(containing);
+    }
+    for (Query query : entries.keySet()) {
+      if (query.matches(book)) {
+        stale.add(query);
+      }
+    }
+    for (Query query : stale) {
+      remove(query);
+      invalidations.incrementAndGet();
+    }
+  }
+
+  /**
+   * Caches the result of the given search unless a {@link Book} has changed since it was computed.
+   *
+   * @param query The search criteria.
+   * @param books The matching Books in ISBN order.
+   * @param since The {@link #getGeneration()} before the search was run.
+   * @return The result.
+   */
+  public static Result put(Query query, List<Book> books, long since) {
+    long[] keys = new long[books.size()];
+    String[] isbns = new String[books.size()];
+    for (int i = 0; i < books.size(); i++) {
+      keys[i] = books.get(i).getPrimaryKey();
+      isbns[i] = books.get(i).getIsbn();
+    }
+    return put(query, keys, isbns, since);
+  }
+
+  /**
+   * Caches the result of the given search unless a {@link Book} has changed since it was computed.
+   *
+   * @param query The search criteria.
+   * @param keys The primary keys of the matching Books in ISBN order.
+   * @param isbns The ISBNs of the matching Books in ascending order.
+   * @param since The {@link #getGeneration()} before the search was run.
+   * @return The result.
+   */
+  public static synchronized Result put(Query query, long[] keys, String[] isbns, long since) {
+    Result result = new Result(keys, isbns);
+    if (generation.get() != since) {
+      return result;
+    }
+    remove(query);
+    entries.put(query, result);
+    bytes += query.bytes() + result.bytes();
+    for (long key : result.keys) {
+      Set<Query> queries = queriesByBook.get(key);
+      if (queries == null) {
+        queries = new HashSet<>();
+        queriesByBook.put(key, queries);
+      }
+      queries.add(query);
+    }
+
+    Iterator<Map.Entry<Query, Result>> eldest = entries.entrySet().iterator();
+    while (bytes > maxBytes && eldest.hasNext()) {
+      Map.Entry<Query, Result> evicted = eldest.next();
+      if (evicted.getKey().equals(query) && entries.size() == 1) {
+        break;
+      }
+      Result evictedResult = evicted.getValue();
+      eldest.remove();
+      removed(evicted.getKey(), evictedResult);
+      evictions.incrementAndGet();
+    }
+    return result;
+  }
+
+  /**
+   * Sets the maximum estimated size of the cached entries.
+   *
+   * @param max The maximum size in bytes.
+   */
+  public static void setMaxBytes(long max) {
+    maxBytes = max;
+  }
+
+  /**
+   * Determines whether the given field value matches the given text criterion.
+   *
+   * @param field The name of the field.
+   * @param criterion The normalized criterion.
+   * @param value The value of the field.
+   * @return True if every term of the criterion is a prefix of a term of the value, or appears
+   * anywhere in it for the ISBN as it does in the {@link BookIndex}, or, if the criterion has no
+   * terms, the value contains the criterion.
+   */
+  private static boolean matchesText(String field, String criterion, String value) {
+    if (value == null) {
+      return false;
+    }
+    Set<String> terms = BookIndex.tokenize(field, criterion);
+    if (terms.isEmpty()) {
+      return value.toLowerCase(Locale.ENGLISH).contains(criterion);
+    }
+    Set<String> valueTerms = BookIndex.tokenize(field, value);
+    boolean anywhere = "isbn".equals(field);
+    for (String term : terms) {
+      boolean found = false;
+      for (String valueTerm : valueTerms) {
+        if (anywhere ? valueTerm.contains(term) : valueTerm.startsWith(term)) {
+          found = true;
+          break;
+        }
+      }
+      if (!found) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Compares the given values, either of which may be null.
+   *
+   * @param a The first value.
+   * @param b The second value.
+   * @return True if the values are equal.
+   */
+  private static boolean equal(Object a, Object b) {
+    return (a == null) ? b == null : a.equals(b);
+  }
+
+  /**
+   * Normalizes the given text criterion.
+   *
+   * @param text The criterion or null.
+   * @return The trimmed, lower case criterion with its whitespace collapsed.
+   */
+  private static String normalize(String text) {
+    return (text == null) ? "" : text.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ENGLISH);
+  }
+
+  /**
+   * Removes the entry of the given criteria, if there is one.
+   *
+   * @param query The criteria.
+   */
+  private static void remove(Query query) {
+    removed(query, entries.remove(query));
+  }
+
+  /**
+   * Updates the size and the index by {@link Book} after an entry has been removed.
+   *
+   * @param query The criteria of the entry.
+   * @param result The result of the entry or null if there was no entry.
+   */
+  private static void removed(Query query, Result result) {
+    if (result == null) {
+      return;
+    }
+    bytes -= query.bytes() + result.bytes();
+    for (long key : result.keys) {
+      Set<Query> queries = queriesByBook.get(key);
+      if (queries != null) {
+        queries.remove(query);
+        if (queries.isEmpty()) {
+          queriesByBook.remove(key);
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the value of the given text field of the given {@link Book}.
+   *
+   * @param book The Book.
+   * @param field The name of the field.
+   * @return The value of the field.
+   */
+  private static String value(Book book, String field) {
+    switch (field) {
+    case "isbn":
+      return book.getIsbn();
+    case "name":
+      return book.getName();
+    case "authors":
+      return book.getAuthors();
+    default:
+      return book.getPublisher();
+    }
+  }
+
+  private SearchCache() {
+    // Empty Private constructor to prevent instantiation.
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import javax.sql.DataSource;
+import com.avaje.ebean.config.ServerConfig;
+import com.avaje.ebean.event.ServerConfigStartup;
+
+/**
+ * Wraps Ebean's {@link DataSource} so that every statement run through it, and every row read
+ * from its results, is recorded in the current request's {@link SqlStats}. Ebean runs this
+ * {@link ServerConfigStartup} before it uses the DataSource because Play registers every class in
+ * the <code>models</code> package with Ebean.
+ *
+ * @author Christopher Foo
+ *
+ */
+public class SqlInstrumentation implements ServerConfigStartup {
+
+  /**
+   * Passes calls on to a JDBC object, wrapping the objects it returns and recording statements
+   * and rows.
+   */
+  private static final class Handler implements InvocationHandler {
+
+    /**
+     * The SQL of the wrapped statement or null if it is not a {@link PreparedStatement}.
+     */
+    private final String sql;
+
+    /**
+     * The wrapped JDBC object.
+     */
+    private final Object target;
+
+    /**
+     * Creates a new {@link Handler}.
+     *
+     * @param target The wrapped JDBC object.
+     * @param sql The SQL of the wrapped statement, if it is a {@link PreparedStatement}.
+     */
+    private Handler(Object target, String sql) {
+      this.target = target;
+      this.sql = sql;
+    }
+
+    /**
+     * Calls the wrapped object's method.
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      boolean execute = this.target instanceof Statement && name.startsWith("execute");
+      long start = execute ? System.nanoTime() : 0;
+      Object result;
+      try {
+        result = method.invoke(this.target, args);
+      }
+      catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+
+      if (execute) {
+        String statement =
+            (this.sql == null && args != null && args.length > 0 && args[0] instanceof String)
+                ? (String) args[0] : this.sql;
+        SqlStats.recordStatement(statement, System.nanoTime() - start);
+      }
+      else if (this.target instanceof ResultSet && "next".equals(name)
+          && Boolean.TRUE.equals(result)) {
+        SqlStats.recordRow();
+      }
+
+      if (result instanceof Connection) {
+        return wrap(result, Connection.class, null);
+      }
+      else if (result instanceof CallableStatement) {
+        return wrap(result, CallableStatement.class, (String) args[0]);
+      }
+      else if (result instanceof PreparedStatement) {
+        return wrap(result, PreparedStatement.class, (String) args[0]);
+      }
+      else if (result instanceof Statement) {
+        return wrap(result, Statement.class, null);
+      }
+      else if (result instanceof ResultSet && this.target instanceof Statement) {
+        return wrap(result, ResultSet.class, null);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Wraps the given JDBC object.
+   *
+   * @param target The object to wrap.
+   * @param type The JDBC interface to wrap it as.
+   * @param sql The SQL of the object if it is a {@link PreparedStatement}.
+   * @return The wrapped object, which implements only the given interface, so a subinterface such
+   *         as {@link CallableStatement} must be passed as the type to be kept.
+   */
+  private static Object wrap(Object target, Class<?> type, String sql) {
+    return Proxy.newProxyInstance(SqlInstrumentation.class.getClassLoader(),
+        new Class<?>[] {type}, new Handler(target, sql));
+  }
+
+  /**
+   * Wraps the {@link ServerConfig}'s {@link DataSource}.
+   */
+  @Override
+  public void onStart(ServerConfig serverConfig) {
+    DataSource dataSource = serverConfig.getDataSource();
+    if (dataSource != null && !Proxy.isProxyClass(dataSource.getClass())) {
+      serverConfig.setDataSource((DataSource) wrap(dataSource, DataSource.class, null));
+    }
+  }
+}
@@ -0,0 +1,285 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The SQL statements run while handling one HTTP request: how many there were, how many rows they
+ * read and how long they took. Statements are grouped by their SQL text, which for prepared
+ * statements is their shape, so that a request running the same statement many times (usually a
+ * lazy load per row, the "N+1" problem) can be flagged. The statistics of the current thread's
+ * request are collected between {@link #begin()} and {@link #end()} by
+ * {@link SqlInstrumentation}. Collection may be nested, in which case the inner statements also
+ * count toward the outer statistics, and may be handed to another thread with
+ * {@link #attach(SqlStats)}.
+ *
+ * @author Christopher Foo
+ *
+ */
+public final class SqlStats {
+
+  /**
+   * The statistics of the request being handled by the current thread.
+   */
+  private static final ThreadLocal<SqlStats> current = new ThreadLocal<>();
+
+  /**
+   * The number of times a statement may be run by one request before the request is flagged.
+   */
+  private static volatile int repeatThreshold = 10;
+
+  /**
+   * Makes the given statistics those of the current thread, e.g. when a request is handed to
+   * another thread.
+   *
+   * @param stats The statistics or null to stop collecting them on the current thread.
+   */
+  public static void attach(SqlStats stats) {
+    if (stats == null) {
+      current.remove();
+    }
+    else {
+      current.set(stats);
+    }
+  }
+
+  /**
+   * Starts collecting the statistics of the current thread's request.
+   *
+   * @return The statistics.
+   */
+  public static SqlStats begin() {
+    SqlStats stats = new SqlStats(current.get());
+    current.set(stats);
+    return stats;
+  }
+
+  /**
+   * Gets the statistics being collected by the current thread.
+   *
+   * @return The statistics or null if they are not being collected.
+   */
+  public static SqlStats current() {
+    return current.get();
+  }
+
+  /**
+   * Stops collecting the statistics of the current thread's request. If collection was nested,
+   * the statistics are added to the outer statistics, which become current again.
+   *
+   * @return The statistics or null if they were not being collected.
+   */
+  public static SqlStats end() {
+    SqlStats stats = current.get();
+    if (stats == null) {
+      return null;
+    }
+    attach(stats.outer);
+    if (stats.outer != null) {
+      stats.outer.add(stats);
+    }
+    return stats;
+  }
+
+  /**
+   * Gets the number of times a statement may be run by one request before it is flagged.
+   *
+   * @return The threshold.
+   */
+  public static int getRepeatThreshold() {
+    return repeatThreshold;
+  }
+
+  /**
+   * Sets the number of times a statement may be run by one request before it is flagged.
+   *
+   * @param threshold The new threshold.
+   */
+  public static void setRepeatThreshold(int threshold) {
+    repeatThreshold = threshold;
+  }
+
+  /**
+   * Records a statement run by the current thread, if its statistics are being collected.
+   *
+   * @param sql The SQL of the statement.
+   * @param nanos The time taken by the statement in nanoseconds.
+   */
+  static void recordStatement(String sql, long nanos) {
+    SqlStats stats = current.get();
+    if (stats != null) {
+      stats.statements++;
+      stats.nanos += nanos;
+      stats.count((sql == null) ? "" : sql, 1);
+    }
+  }
+
+  /**
+   * Records a row read by the current thread, if its statistics are being collected.
+   */
+  static void recordRow() {
+    SqlStats stats = current.get();
+    if (stats != null) {
+      stats.rows++;
+    }
+  }
+
+  /**
+   * The number of times the most repeated statement was run.
+   */
+  private int maxRepeats;
+
+  /**
+   * The SQL of the most repeated statement.
+   */
+  private String mostRepeated;
+
+  /**
+   * The time taken by the statements in nanoseconds.
+   */
+  private long nanos;
+
+  /**
+   * The statistics that were current when these were begun or null if there were none.
+   */
+  private final SqlStats outer;
+
+  /**
+   * The number of rows read.
+   */
+  private long rows;
+
+  /**
+   * The number of times each statement was run, keyed by SQL.
+   */
+  private final Map<String, int[]> shapes = new HashMap<>();
+
+  /**
+   * The number of statements run.
+   */
+  private int statements;
+
+  /**
+   * Creates a new {@link SqlStats}. See: {@link #begin()}.
+   *
+   * @param outer The statistics that are current or null if there are none.
+   */
+  private SqlStats(SqlStats outer) {
+    this.outer = outer;
+  }
+
+  /**
+   * Adds the given nested statistics to these.
+   *
+   * @param inner The nested statistics.
+   */
+  private void add(SqlStats inner) {
+    this.statements += inner.statements;
+    this.rows += inner.rows;
+    this.nanos += inner.nanos;
+    for (Map.Entry<String, int[]> entry : inner.shapes.entrySet()) {
+      count(entry.getKey(), entry.getValue()[0]);
+    }
+  }
+
+  /**
+   * Counts runs of the given statement.
+   *
+   * @param shape The SQL of the statement.
+   * @param runs The number of runs.
+   */
+  private void count(String shape, int runs) {
+    int[] count = this.shapes.get(shape);
+    if (count == null) {
+      count = new int[1];
+      this.shapes.put(shape, count);
+    }
+    count[0] += runs;
+    if (count[0] > this.maxRepeats) {
+      this.maxRepeats = count[0];
+      this.mostRepeated = shape;
+    }
+  }
+
+  /**
+   * Gets the number of times the most repeated statement was run.
+   *
+   * @return The number of repeats.
+   */
+  public int getMaxRepeats() {
+    return this.maxRepeats;
+  }
+
+  /**
+   * Gets the SQL of the most repeated statement.
+   *
+   * @return The SQL or null if no statements were run.
+   */
+  public String getMostRepeated() {
+    return this.mostRepeated;
+  }
+
+  /**
+   * Gets the number of rows read.
+   *
+   * @return The number of rows.
+   */
+  public long getRows() {
+    return this.rows;
+  }
+
+  /**
+   * Gets the number of statements run.
+   *
+   * @return The number of statements.
+   */
+  public int getStatements() {
+    return this.statements;
+  }
+
+  /**
+   * Gets the time taken by the statements.
+   *
+   * @param unit The unit of the returned time.
+   * @return The time taken.
+   */
+  public long getTime(TimeUnit unit) {
+    return unit.convert(this.nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Determines whether a statement was run more than {@link #getRepeatThreshold()} times.
+   *
+   * @return True if the request should be flagged.
+   */
+  public boolean isRepeating() {
+    return this.maxRepeats > repeatThreshold;
+  }
+
+  /**
+   * Returns the {@link String} representation of these statistics.
+   */
+  @Override
+  public String toString() {
+    return String.format("[SqlStats statements=%d rows=%d micros=%d maxRepeats=%d]",
+        this.statements, this.rows, getTime(TimeUnit.MICROSECONDS), this.maxRepeats);
+  }
+}
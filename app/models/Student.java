@@ -17,18 +17,24 @@
 
 package models;
 
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.OneToMany;
+import javax.persistence.Version;
 import play.data.validation.Constraints.Email;
 import play.data.validation.Constraints.MinLength;
 import play.data.validation.Constraints.Required;
 import play.data.validation.ValidationError;
 import play.db.ebean.Model;
+import com.avaje.ebean.RawSql;
+import com.avaje.ebean.RawSqlBuilder;
+import com.avaje.ebean.annotation.UpdatedTimestamp;
 
 /**
  * A {@link Model} representing a student.
@@ -53,6 +59,113 @@ public class Student extends Model {
     return new Finder<>(Long.class, Student.class);
   }
 
+  /**
+   * Caches {@link Student}s by natural ID. See: {@link #findByStudentId(String)}.
+   */
+  private static final EntityCache<Student> cache = new EntityCache<Student>("student", 1000, 10,
+      TimeUnit.MINUTES) {
+    @Override
+    protected Student load(String studentId) {
+      return Student.find().where().eq("studentId", studentId).findUnique();
+    }
+  };
+
+  /**
+   * Gets the {@link EntityCache} of {@link Student}s keyed by natural ID.
+   * 
+   * @return The Student cache.
+   */
+  public static EntityCache<Student> cache() {
+    return cache;
+  }
+
+  /**
+   * Finds the {@link Student} with the given natural ID, using the {@link #cache()} if possible.
+   * 
+   * @param studentId The natural ID of the Student.
+   * @return The Student or null if there is no Student with the given natural ID.
+   */
+  public static Student findByStudentId(String studentId) {
+    return cache.get(studentId);
+  }
+
+  /**
+   * Caches recently authenticated {@link Student}s by natural ID so that pages can find the
+   * logged in Student without querying the database. See: {@link #authenticate(String, String)}.
+   */
+  private static final EntityCache<Student> principals = new EntityCache<Student>("principal",
+      10000, 5, TimeUnit.MINUTES) {
+    @Override
+    protected Student load(String studentId) {
+      return Student.find().where().eq("studentId", studentId).findUnique();
+    }
+  };
+
+  /**
+   * Gets the {@link EntityCache} of recently authenticated {@link Student}s keyed by natural ID.
+   * 
+   * @return The principal cache.
+   */
+  public static EntityCache<Student> principals() {
+    return principals;
+  }
+
+  /**
+   * Matches a login against the natural ID or the e-mail address in a single statement. Each branch
+   * of the <code>union all</code> is an equality on one indexed column, which an <code>or</code>
+   * across the two columns is not, and the natural ID branch sorts first.
+   */
+  private static final RawSql LOGIN = RawSqlBuilder
+      .unparsed("select primary_key, student_id, first_name, last_name, email, password,"
+          + " last_modified, version, 0 as login_order from student"
+          + " where student_id = ? and password = ?"
+          + " union all select primary_key, student_id, first_name, last_name, email, password,"
+          + " last_modified, version, 1 as login_order from student"
+          + " where email = ? and password = ? order by login_order")
+      .columnMapping("primary_key", "primaryKey").columnMapping("student_id", "studentId")
+      .columnMapping("first_name", "firstName").columnMapping("last_name", "lastName")
+      .columnMapping("email", "email").columnMapping("password", "password")
+      .columnMapping("last_modified", "lastModified").columnMapping("version", "version")
+      .columnMappingIgnore("login_order").create();
+
+  /**
+   * Finds the {@link Student} with the given natural ID or e-mail address and encrypted password
+   * using a single indexed query. A Student is added to the {@link #principals()} cache when it is
+   * authenticated.
+   * 
+   * @param login The natural ID or e-mail address of the Student.
+   * @param password The encrypted password of the Student.
+   * @return The Student or null if the login or password is incorrect.
+   */
+  public static Student authenticate(String login, String password) {
+    if (login == null || password == null) {
+      return null;
+    }
+
+    // A natural ID match takes precedence over another Student's e-mail address.
+    List<Student> students = Student.find().query().setRawSql(LOGIN).setParameter(1, login)
+        .setParameter(2, password).setParameter(3, login).setParameter(4, password).findList();
+    Student user = students.isEmpty() ? null : students.get(0);
+    if (user != null) {
+      principals.put(user.getStudentId(), user);
+    }
+    return user;
+  }
+
+  /**
+   * The IDs of the {@link Student}s in the database. See: {@link #validate()}.
+   */
+  private static final KeyRegistry keys = new KeyRegistry();
+
+  /**
+   * Gets the {@link KeyRegistry} of the student IDs in use.
+   * 
+   * @return The ID registry.
+   */
+  public static KeyRegistry keys() {
+    return keys;
+  }
+
   /**
    * This {@link Student}'s email address.
    */
@@ -68,6 +181,12 @@ public class Student extends Model {
   @MinLength(1)
   private String firstName;
 
+  /**
+   * When this {@link Student} was last inserted or updated. Set by Ebean.
+   */
+  @UpdatedTimestamp
+  private Timestamp lastModified;
+
   /**
    * This {@link Student}'s last name.
    */
@@ -108,6 +227,13 @@ public class Student extends Model {
   @Column(unique = true)
   private String studentId;
 
+  /**
+   * The version of this {@link Student}. Ebean increments it on every update and checks it to
+   * detect concurrent updates.
+   */
+  @Version
+  private Long version;
+
   /**
    * Creates a new {@link Student} with the given values.
    * 
@@ -125,6 +251,16 @@ public class Student extends Model {
     this.password = password;
   }
 
+  /**
+   * Creates the {@link ValidationError} reported when this {@link Student}'s ID is already taken.
+   * 
+   * @return The ValidationError.
+   */
+  public ValidationError alreadyExistsError() {
+    return new ValidationError("AlreadyExists", String.format(
+        "A Student with ID '%s' already exists.", this.studentId));
+  }
+
   /**
    * Gets the {@link #email} address of this {@link Student}.
    * 
@@ -143,6 +279,15 @@ public class Student extends Model {
     return this.firstName;
   }
 
+  /**
+   * Gets when this {@link Student} was last inserted or updated.
+   * 
+   * @return The time of the last change.
+   */
+  public Timestamp getLastModified() {
+    return this.lastModified;
+  }
+
   /**
    * Gets the {@link #lastName} of this {@link Student}.
    * 
@@ -197,6 +342,15 @@ public class Student extends Model {
     return this.studentId;
   }
 
+  /**
+   * Gets the version of this {@link Student}, which changes whenever it is updated.
+   * 
+   * @return The version.
+   */
+  public Long getVersion() {
+    return this.version;
+  }
+
   /**
    * Updates the {@link #email} address of this {@link Student}.
    * 
@@ -277,9 +431,8 @@ public class Student extends Model {
    */
   public List<ValidationError> validate() {
     List<ValidationError> errors = new ArrayList<>();
-    if (Student.find().where().eq("studentId", this.studentId).findUnique() != null) {
-      errors.add(new ValidationError("AlreadyExists", String.format(
-          "A Student with ID '%s' already exists.", this.studentId)));
+    if (keys.contains(this.studentId)) {
+      errors.add(alreadyExistsError());
     }
     return (errors.size() == 0) ? null : errors;
   }
@@ -0,0 +1,685 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory prefix trie over the terms of the {@link Book}s' ISBNs, names, authors and
+ * publishers, used to suggest Books as the user types. Terms are split the same way as the
+ * {@link BookIndex}. Every node of the trie keeps the primary keys of the best {@link #TOP_K}
+ * Books below it, ranked by their number of open {@link Offer}s, so a suggestion only has to walk
+ * down the query's prefix and read one list; it never touches the database.
+ *
+ * <p>
+ * A node's list is derived from the lists of its children and the Books whose term ends at the
+ * node, so when a Book is added, removed or re-ranked only the nodes on the paths of its terms are
+ * recomputed. Children are kept in sorted arrays rather than maps to keep the trie small.
+ * </p>
+ *
+ * @author Christopher Foo
+ *
+ */
+public final class Typeahead {
+
+  /**
+   * The Book shown as a suggestion.
+   */
+  public static final class Suggestion {
+
+    /**
+     * The authors of the Book.
+     */
+    private final String authors;
+
+    /**
+     * The ISBN of the Book.
+     */
+    private final String isbn;
+
+    /**
+     * The name of the Book.
+     */
+    private final String name;
+
+    /**
+     * The number of open Offers for the Book.
+     */
+    private final int offers;
+
+    /**
+     * The primary key of the Book.
+     */
+    private final long primaryKey;
+
+    /**
+     * The publisher of the Book.
+     */
+    private final String publisher;
+
+    /**
+     * The terms of the Book's indexed fields.
+     */
+    private final Set<String> terms;
+
+    /**
+     * Creates a new {@link Suggestion} for the given Book.
+     *
+     * @param book The Book.
+     * @param offers The number of open Offers for the Book.
+     */
+    private Suggestion(Book book, int offers) {
+      this.primaryKey = book.getPrimaryKey();
+      this.isbn = book.getIsbn();
+      this.name = book.getName();
+      this.authors = book.getAuthors();
+      this.publisher = book.getPublisher();
+      this.offers = offers;
+      this.terms = new HashSet<>();
+      for (String field : BookIndex.FIELDS) {
+        this.terms.addAll(BookIndex.tokenize(field, value(book, field)));
+      }
+    }
+
+    /**
+     * Creates a copy of the given {@link Suggestion} with a new number of open Offers.
+     *
+     * @param other The Suggestion to copy.
+     * @param offers The number of open Offers for the Book.
+     */
+    private Suggestion(Suggestion other, int offers) {
+      this.primaryKey = other.primaryKey;
+      this.isbn = other.isbn;
+      this.name = other.name;
+      this.authors = other.authors;
+      this.publisher = other.publisher;
+      this.terms = other.terms;
+      this.offers = offers;
+    }
+
+    /**
+     * Gets the authors of the Book.
+     *
+     * @return The authors.
+     */
+    public String getAuthors() {
+      return this.authors;
+    }
+
+    /**
+     * Gets the ISBN of the Book.
+     *
+     * @return The ISBN.
+     */
+    public String getIsbn() {
+      return this.isbn;
+    }
+
+    /**
+     * Gets the name of the Book.
+     *
+     * @return The name.
+     */
+    public String getName() {
+      return this.name;
+    }
+
+    /**
+     * Gets the number of open Offers for the Book.
+     *
+     * @return The number of Offers.
+     */
+    public int getOffers() {
+      return this.offers;
+    }
+
+    /**
+     * Gets the publisher of the Book.
+     *
+     * @return The publisher.
+     */
+    public String getPublisher() {
+      return this.publisher;
+    }
+
+    /**
+     * Determines whether every one of the given terms is a prefix of one of the Book's terms.
+     *
+     * @param prefixes The terms.
+     * @return True if the Book matches all of the terms.
+     */
+    private boolean matches(List<String> prefixes) {
+      for (String prefix : prefixes) {
+        boolean found = false;
+        for (String term : this.terms) {
+          if (term.startsWith(prefix)) {
+            found = true;
+            break;
+          }
+        }
+        if (!found) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A node of the trie.
+   */
+  private static final class Node {
+
+    /**
+     * The primary keys of the Books with a term that ends at this node.
+     */
+    private long[] books = NO_BOOKS;
+
+    /**
+     * The children of this node, in the same order as {@link #labels}.
+     */
+    private Node[] children = NO_CHILDREN;
+
+    /**
+     * The characters leading to the children of this node, in ascending order.
+     */
+    private char[] labels = NO_LABELS;
+
+    /**
+     * The primary keys of the best {@link Typeahead#TOP_K} Books below this node, best first.
+     */
+    private long[] top = NO_BOOKS;
+
+    /**
+     * Gets the child reached by the given character.
+     *
+     * @param label The character.
+     * @return The child or null if there is none.
+     */
+    private Node child(char label) {
+      int index = Arrays.binarySearch(this.labels, label);
+      return (index < 0) ? null : this.children[index];
+    }
+
+    /**
+     * Gets the child reached by the given character, creating it if needed.
+     *
+     * @param label The character.
+     * @return The child.
+     */
+    private Node createChild(char label) {
+      int index = Arrays.binarySearch(this.labels, label);
+      if (index >= 0) {
+        return this.children[index];
+      }
+      index = -index - 1;
+      char[] labels = new char[this.labels.length + 1];
+      Node[] children = new Node[this.children.length + 1];
+      System.arraycopy(this.labels, 0, labels, 0, index);
+      System.arraycopy(this.children, 0, children, 0, index);
+      System.arraycopy(this.labels, index, labels, index + 1, this.labels.length - index);
+      System.arraycopy(this.children, index, children, index + 1, this.children.length - index);
+      labels[index] = label;
+      children[index] = new Node();
+      this.labels = labels;
+      this.children = children;
+      return children[index];
+    }
+
+    /**
+     * Determines whether this node can be removed from the trie.
+     *
+     * @return True if no terms end at or below this node.
+     */
+    private boolean isEmpty() {
+      return this.books.length == 0 && this.children.length == 0;
+    }
+
+    /**
+     * Recomputes {@link #top} from the Books whose term ends here and the lists of the children.
+     * The caller must hold the write lock.
+     *
+     * @return True if the list changed.
+     */
+    private boolean rank() {
+      Set<Long> candidates = new LinkedHashSet<>();
+      for (long book : this.books) {
+        candidates.add(book);
+      }
+      for (Node child : this.children) {
+        for (long book : child.top) {
+          candidates.add(book);
+        }
+      }
+      // A Book being removed is still listed on the paths of the terms not yet unindexed.
+      candidates.retainAll(suggestions.keySet());
+      List<Long> sorted = new ArrayList<>(candidates);
+      Collections.sort(sorted, RANKING);
+      long[] top = new long[Math.min(TOP_K, sorted.size())];
+      for (int i = 0; i < top.length; i++) {
+        top[i] = sorted.get(i);
+      }
+      if (Arrays.equals(top, this.top)) {
+        return false;
+      }
+      this.top = top;
+      return true;
+    }
+
+    /**
+     * Determines whether a change to the number of open Offers of the given {@link Book} can
+     * change {@link #top}, which it can only if the Book is listed or can now beat the last listed
+     * Book. The lists of the children must already be up to date.
+     *
+     * @param book The primary key of the Book.
+     * @return True if the list needs to be recomputed.
+     */
+    private boolean ranks(long book) {
+      if (this.top.length < TOP_K) {
+        return true;
+      }
+      for (long listed : this.top) {
+        if (listed == book) {
+          return true;
+        }
+      }
+      return RANKING.compare(book, this.top[this.top.length - 1]) < 0;
+    }
+
+    /**
+     * Removes the child reached by the given character.
+     *
+     * @param label The character.
+     */
+    private void removeChild(char label) {
+      int index = Arrays.binarySearch(this.labels, label);
+      if (index < 0) {
+        return;
+      }
+      char[] labels = new char[this.labels.length - 1];
+      Node[] children = new Node[this.children.length - 1];
+      System.arraycopy(this.labels, 0, labels, 0, index);
+      System.arraycopy(this.children, 0, children, 0, index);
+      System.arraycopy(this.labels, index + 1, labels, index, labels.length - index);
+      System.arraycopy(this.children, index + 1, children, index, children.length - index);
+      this.labels = labels;
+      this.children = children;
+    }
+  }
+
+  /**
+   * The default number of suggestions returned.
+   */
+  public static final int DEFAULT_LIMIT = 10;
+
+  /**
+   * The number of Books kept by each node, which is also the most suggestions returned.
+   */
+  public static final int TOP_K = 20;
+
+  /**
+   * An empty list of primary keys.
+   */
+  private static final long[] NO_BOOKS = new long[0];
+
+  /**
+   * An empty list of children.
+   */
+  private static final Node[] NO_CHILDREN = new Node[0];
+
+  /**
+   * An empty list of child labels.
+   */
+  private static final char[] NO_LABELS = new char[0];
+
+  /**
+   * Orders the primary keys of Books by descending number of open Offers, then by name.
+   */
+  private static final Comparator<Long> RANKING = new Comparator<Long>() {
+    @Override
+    public int compare(Long a, Long b) {
+      Suggestion first = suggestions.get(a);
+      Suggestion second = suggestions.get(b);
+      if (first.offers != second.offers) {
+        return (first.offers > second.offers) ? -1 : 1;
+      }
+      int byName = String.CASE_INSENSITIVE_ORDER.compare(first.name, second.name);
+      return (byName != 0) ? byName : a.compareTo(b);
+    }
+  };
+
+  /**
+   * Guards the trie and {@link #suggestions}.
+   */
+  private static final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * The root of the trie.
+   */
+  private static Node root = new Node();
+
+  /**
+   * The indexed Books keyed by primary key.
+   */
+  private static final Map<Long, Suggestion> suggestions = new HashMap<>();
+
+  /**
+   * Adds the given {@link Book}, replacing its previous version if it has already been added.
+   *
+   * @param book The Book.
+   */
+  public static void add(Book book) {
+    if (book == null || book.getPrimaryKey() == null) {
+      return;
+    }
+    Suggestion suggestion =
+        new Suggestion(book, MatchingEngine.openOffers(book.getPrimaryKey()));
+    lock.writeLock().lock();
+    try {
+      unindex(book.getPrimaryKey());
+      suggestions.put(suggestion.primaryKey, suggestion);
+      for (String term : suggestion.terms) {
+        List<Node> path = path(term, true);
+        Node last = path.get(path.size() - 1);
+        last.books = Arrays.copyOf(last.books, last.books.length + 1);
+        last.books[last.books.length - 1] = suggestion.primaryKey;
+        rank(path);
+      }
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes all of the {@link Book}s.
+   */
+  public static void clear() {
+    lock.writeLock().lock();
+    try {
+      root = new Node();
+      suggestions.clear();
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Re-ranks the {@link Book} with the given primary key after its number of open {@link Offer}s
+   * changed. Does nothing if the Book has not been added. The number is read from the
+   * {@link MatchingEngine} under the write lock, so the last of concurrent calls always ranks by
+   * the current number.
+   *
+   * @param primaryKey The primary key of the Book.
+   */
+  public static void rerank(Long primaryKey) {
+    lock.writeLock().lock();
+    try {
+      int offers = MatchingEngine.openOffers(primaryKey);
+      Suggestion old = suggestions.get(primaryKey);
+      if (old == null || old.offers == offers) {
+        return;
+      }
+      suggestions.put(primaryKey, new Suggestion(old, offers));
+
+      // The paths of the Book's terms share their upper nodes, so each node is ranked once, after
+      // all of the nodes below it.
+      List<Set<Node>> levels = new ArrayList<>();
+      for (String term : old.terms) {
+        List<Node> path = path(term, false);
+        for (int depth = 0; depth < path.size(); depth++) {
+          if (depth == levels.size()) {
+            levels.add(new HashSet<Node>());
+          }
+          levels.get(depth).add(path.get(depth));
+        }
+      }
+      for (int depth = levels.size() - 1; depth >= 0; depth--) {
+        for (Node node : levels.get(depth)) {
+          if (node.ranks(primaryKey)) {
+            node.rank();
+          }
+        }
+      }
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Rebuilds the trie from the contents of the {@link Book}s table. The {@link MatchingEngine}
+   * must already be built since it supplies the ranks.
+   */
+  public static void rebuild() {
+    List<Book> books =
+        Book.find().select("primaryKey, isbn, name, authors, publisher").findList();
+    lock.writeLock().lock();
+    try {
+      root = new Node();
+      suggestions.clear();
+      for (Book book : books) {
+        Suggestion suggestion =
+            new Suggestion(book, MatchingEngine.openOffers(book.getPrimaryKey()));
+        suggestions.put(suggestion.primaryKey, suggestion);
+        for (String term : suggestion.terms) {
+          Node last = path(term, true).get(term.length());
+          last.books = Arrays.copyOf(last.books, last.books.length + 1);
+          last.books[last.books.length - 1] = suggestion.primaryKey;
+        }
+      }
+      rankAll(root);
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes the given {@link Book}. Does nothing if the Book has not been added.
+   *
+   * @param book The Book.
+   */
+  public static void remove(Book book) {
+    if (book == null || book.getPrimaryKey() == null) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      unindex(book.getPrimaryKey());
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Suggests the {@link Book}s matching the given partially typed text, best ranked first. Each
+   * word of the text must be the prefix of a term of the Book, as in the {@link BookIndex}. Text
+   * without spaces is also tried as an ISBN, so punctuation in a partial ISBN does not matter.
+   * Only the best Books of the longest word are checked against the other words, so a rare
+   * combination of words may find fewer suggestions than a search would.
+   *
+   * @param text The typed text.
+   * @param limit The maximum number of suggestions, at most {@link #TOP_K}.
+   * @return The matching Books.
+   */
+  public static List<Suggestion> suggest(String text, int limit) {
+    List<Suggestion> result = new ArrayList<>();
+    if (text == null) {
+      return result;
+    }
+    List<String> prefixes = new ArrayList<>(BookIndex.tokenize("name", text));
+    Set<String> isbn = BookIndex.tokenize("isbn", text.trim());
+    if (prefixes.size() > 1 && isbn.size() == 1 && !text.trim().contains(" ")) {
+      prefixes = new ArrayList<>(isbn);
+    }
+    if (prefixes.isEmpty()) {
+      return result;
+    }
+
+    // Walk down the longest, usually most selective, prefix and check the others on each Book.
+    String longest = prefixes.get(0);
+    for (String prefix : prefixes) {
+      if (prefix.length() > longest.length()) {
+        longest = prefix;
+      }
+    }
+
+    lock.readLock().lock();
+    try {
+      List<Node> path = path(longest, false);
+      if (path.size() <= longest.length()) {
+        return result;
+      }
+      for (long book : path.get(longest.length()).top) {
+        Suggestion suggestion = suggestions.get(book);
+        if (suggestion.matches(prefixes)) {
+          result.add(suggestion);
+          if (result.size() >= Math.min(limit, TOP_K)) {
+            break;
+          }
+        }
+      }
+      return result;
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Gets the nodes from the root to the end of the given term. The caller must hold the lock.
+   *
+   * @param term The term.
+   * @param create True to create missing nodes, which requires the write lock.
+   * @return The nodes, which stop early if a node is missing and nodes are not created.
+   */
+  private static List<Node> path(String term, boolean create) {
+    List<Node> path = new ArrayList<>(term.length() + 1);
+    Node node = root;
+    path.add(node);
+    for (int i = 0; i < term.length() && node != null; i++) {
+      node = create ? node.createChild(term.charAt(i)) : node.child(term.charAt(i));
+      if (node != null) {
+        path.add(node);
+      }
+    }
+    return path;
+  }
+
+  /**
+   * Recomputes the lists of the given nodes from the last to the first. When a Book is added or
+   * removed this stops once a list is unchanged, since the lists above it can then not change
+   * either. The caller must hold the write lock.
+   *
+   * @param path The nodes from the root down.
+   */
+  private static void rank(List<Node> path) {
+    for (int i = path.size() - 1; i >= 0; i--) {
+      if (!path.get(i).rank()) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Recomputes the lists of the given node and all of the nodes below it. The caller must hold the
+   * write lock.
+   *
+   * @param node The node.
+   */
+  private static void rankAll(Node node) {
+    for (Node child : node.children) {
+      rankAll(child);
+    }
+    node.rank();
+  }
+
+  /**
+   * Removes the terms of the {@link Book} with the given primary key from the trie, pruning the
+   * nodes left empty. The caller must hold the write lock.
+   *
+   * @param primaryKey The primary key of the Book.
+   */
+  private static void unindex(Long primaryKey) {
+    Suggestion old = suggestions.remove(primaryKey);
+    if (old == null) {
+      return;
+    }
+    for (String term : old.terms) {
+      List<Node> path = path(term, false);
+      if (path.size() <= term.length()) {
+        continue;
+      }
+      Node last = path.get(term.length());
+      long[] books = new long[last.books.length];
+      int size = 0;
+      for (long book : last.books) {
+        if (book != primaryKey) {
+          books[size++] = book;
+        }
+      }
+      last.books = Arrays.copyOf(books, size);
+      for (int i = term.length(); i > 0 && path.get(i).isEmpty(); i--) {
+        path.get(i - 1).removeChild(term.charAt(i - 1));
+        path.remove(i);
+      }
+      rank(path);
+    }
+  }
+
+  /**
+   * Gets the value of the given indexed field of the given {@link Book}.
+   *
+   * @param book The Book.
+   * @param field The name of the field.
+   * @return The value of the field.
+   */
+  private static String value(Book book, String field) {
+    switch (field) {
+    case "isbn":
+      return book.getIsbn();
+    case "name":
+      return book.getName();
+    case "authors":
+      return book.getAuthors();
+    default:
+      return book.getPublisher();
+    }
+  }
+
+  /**
+   * Private constructor to prevent instantiation of this class.
+   */
+  private Typeahead() {
+    // Empty Private constructor to prevent instantiation.
+  }
+}
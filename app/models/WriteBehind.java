@@ -0,0 +1,770 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package models;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.PersistenceException;
+import play.Logger;
+import play.db.ebean.Model;
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Transaction;
+import controllers.Condition;
+
+/**
+ * Optional write-behind persistence for new {@link Offer}s and {@link Request}s. A submitted model
+ * is given a primary key from its sequence (which Ebean allocates in blocks), has its natural ID
+ * reserved in its {@link KeyRegistry}, is appended to a local log that is forced to disk and is put
+ * on a bounded queue; the request can then be acknowledged without waiting for the database.
+ * Submits that wait for the disk together share one force of the log (group commit). A
+ * background thread inserts the queued models in batched transactions. The log is replayed by
+ * {@link #start(File, int, int)}, so models acknowledged before a crash are still inserted. The
+ * writer inserts models in the order they were logged, so the records of inserted models are
+ * always at the start of the log; once they take up {@link #COMPACT_BYTES} the log is rewritten
+ * without them, and it is truncated whenever nothing is pending. Until a model is inserted its
+ * status is {@link Status#PENDING}; see {@link #offerStatus(String)} and
+ * {@link #requestStatus(String)}.
+ *
+ * @author Christopher Foo
+ *
+ */
+public final class WriteBehind {
+
+  /**
+   * The result of submitting a model.
+   */
+  public enum Outcome {
+    /**
+     * The model's natural ID is already in use.
+     */
+    DUPLICATE,
+
+    /**
+     * The queue is full, so the model was not accepted.
+     */
+    FULL,
+
+    /**
+     * The model was logged and queued.
+     */
+    QUEUED,
+
+    /**
+     * Write-behind has been stopped, so the model was inserted at once.
+     */
+    SAVED
+  }
+
+  /**
+   * The persistence status of a natural ID.
+   */
+  public enum Status {
+    /**
+     * The model has been inserted into the database.
+     */
+    DURABLE,
+
+    /**
+     * The model could not be inserted, e.g. because its ID was taken by a concurrent insert.
+     */
+    FAILED,
+
+    /**
+     * The model has been logged but not inserted yet.
+     */
+    PENDING,
+
+    /**
+     * There is no model with the ID.
+     */
+    UNKNOWN
+  }
+
+  /**
+   * The number of bytes of records of inserted models after which the log is rewritten without
+   * them.
+   */
+  private static final long COMPACT_BYTES = 1 << 20;
+
+  /**
+   * The kind of the log records of {@link Offer}s.
+   */
+  private static final String OFFER = "offer";
+
+  /**
+   * How long the writer waits for a model before checking whether it has been stopped.
+   */
+  private static final long POLL_MILLIS = 100;
+
+  /**
+   * The kind of the log records of {@link Request}s.
+   */
+  private static final String REQUEST = "request";
+
+  /**
+   * The position of the start of the log file. Positions count every byte appended since the log
+   * was opened, including those since removed by {@link #compact()}.
+   */
+  private static long base;
+
+  /**
+   * The maximum number of models inserted in one transaction.
+   */
+  private static volatile int batchSize;
+
+  /**
+   * The position of the end of the records of the models that have been inserted or have failed.
+   */
+  private static long checkpoint;
+
+  /**
+   * The position up to which the log has been forced to disk. Guarded by {@link #syncLock}.
+   */
+  private static long durable;
+
+  /**
+   * The IDs of the models that could not be inserted, prefixed by their kind.
+   */
+  private static final Set<String> failed = Collections
+      .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * Guards the log and the ordering of the log, {@link #pending} and {@link #queue}.
+   */
+  private static final Object lock = new Object();
+
+  /**
+   * The log of the queued models or null if write-behind is not enabled.
+   */
+  private static FileOutputStream log;
+
+  /**
+   * The file of the {@link #log}.
+   */
+  private static File logFile;
+
+  /**
+   * The positions of the ends of the records of the queued models, keyed by their ID prefixed by
+   * their kind.
+   */
+  private static final ConcurrentMap<String, Long> pending = new ConcurrentHashMap<>();
+
+  /**
+   * The models waiting to be inserted or null if write-behind is not enabled.
+   */
+  private static volatile ArrayBlockingQueue<Model> queue;
+
+  /**
+   * True until {@link #stop()} is called.
+   */
+  private static volatile boolean running;
+
+  /**
+   * True while a thread is forcing the log to disk. Guarded by {@link #syncLock}.
+   */
+  private static boolean syncing;
+
+  /**
+   * Guards {@link #durable} and {@link #syncing}; submitting threads wait on it for their records
+   * to be forced.
+   */
+  private static final Object syncLock = new Object();
+
+  /**
+   * The number of bytes appended to the log since it was opened.
+   */
+  private static long written;
+
+  /**
+   * The thread that inserts the queued models or null if write-behind is not enabled.
+   */
+  private static Thread writer;
+
+  /**
+   * Determines whether write-behind is enabled.
+   *
+   * @return True if models should be submitted instead of saved.
+   */
+  public static boolean isEnabled() {
+    return queue != null;
+  }
+
+  /**
+   * Gets the number of models waiting to be inserted.
+   *
+   * @return The number of pending models.
+   */
+  public static int getPending() {
+    return pending.size();
+  }
+
+  /**
+   * Gets the persistence status of the {@link Offer} with the given ID.
+   *
+   * @param offerId The ID of the Offer.
+   * @return The status of the Offer.
+   */
+  public static Status offerStatus(String offerId) {
+    return status(OFFER, offerId, Offer.keys());
+  }
+
+  /**
+   * Gets the persistence status of the {@link Request} with the given ID.
+   *
+   * @param requestId The ID of the Request.
+   * @return The status of the Request.
+   */
+  public static Status requestStatus(String requestId) {
+    return status(REQUEST, requestId, Request.keys());
+  }
+
+  /**
+   * Replays the given log and starts the writer.
+   *
+   * @param file The log file, which is created if it does not exist.
+   * @param capacity The number of models that may wait to be inserted.
+   * @param maxBatch The maximum number of models inserted in one transaction.
+   * @throws IOException If the log cannot be read or opened.
+   */
+  public static void start(File file, int capacity, int maxBatch) throws IOException {
+    stop();
+    batchSize = maxBatch;
+    if (file.exists()) {
+      replay(file);
+    }
+    synchronized (lock) {
+      logFile = file;
+      log = new FileOutputStream(file, false);
+      base = 0;
+      checkpoint = 0;
+      written = 0;
+      synchronized (syncLock) {
+        durable = 0;
+      }
+      running = true;
+      queue = new ArrayBlockingQueue<>(capacity);
+      writer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          drain();
+        }
+      }, "write-behind");
+      writer.setDaemon(true);
+      writer.start();
+    }
+  }
+
+  /**
+   * Stops the writer once it has inserted the queued models and closes the log.
+   */
+  public static void stop() {
+    Thread thread;
+    synchronized (lock) {
+      if (writer == null) {
+        return;
+      }
+      running = false;
+      thread = writer;
+    }
+    try {
+      thread.join();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (lock) {
+      try {
+        log.close();
+      }
+      catch (IOException e) {
+        Logger.warn("Could not close the write-behind log: " + e.getMessage());
+      }
+      log = null;
+      queue = null;
+      writer = null;
+    }
+  }
+
+  /**
+   * Submits the given new {@link Offer} to be inserted. See: {@link #isEnabled()}. If write-behind
+   * has been stopped since, the Offer is inserted at once instead.
+   *
+   * @param offer The validated Offer.
+   * @return Whether the Offer was queued.
+   */
+  public static Outcome submit(Offer offer) {
+    long position;
+    synchronized (lock) {
+      if (!running) {
+        return save(offer);
+      }
+      if (queue.remainingCapacity() == 0) {
+        return Outcome.FULL;
+      }
+      offer.setPrimaryKey((Long) Ebean.nextId(Offer.class));
+      if (!Offer.keys().reserve(offer.getPrimaryKey(), offer.getOfferId())) {
+        return Outcome.DUPLICATE;
+      }
+      position = append(offer, record(OFFER, offer.getPrimaryKey(), offer.getOfferId(),
+          offer.getStudent(), offer.getBook(), offer.getCondition(), offer.getPrice(),
+          offer.getQuantity()), Offer.keys());
+      pending.put(OFFER + ":" + offer.getOfferId(), position);
+      // Added before the writer can see it, so a failed insert always removes it afterwards.
+      MatchingEngine.add(offer);
+      queue.add(offer);
+    }
+    sync(position);
+    return Outcome.QUEUED;
+  }
+
+  /**
+   * Submits the given new {@link Request} to be inserted. See: {@link #isEnabled()}. If
+   * write-behind has been stopped since, the Request is inserted at once instead.
+   *
+   * @param request The validated Request.
+   * @return Whether the Request was queued.
+   */
+  public static Outcome submit(Request request) {
+    long position;
+    synchronized (lock) {
+      if (!running) {
+        return save(request);
+      }
+      if (queue.remainingCapacity() == 0) {
+        return Outcome.FULL;
+      }
+      request.setPrimaryKey((Long) Ebean.nextId(Request.class));
+      if (!Request.keys().reserve(request.getPrimaryKey(), request.getRequestId())) {
+        return Outcome.DUPLICATE;
+      }
+      position = append(request, record(REQUEST, request.getPrimaryKey(), request.getRequestId(),
+          request.getStudent(), request.getBook(), request.getCondition(), request.getPrice(),
+          request.getQuantity()), Request.keys());
+      pending.put(REQUEST + ":" + request.getRequestId(), position);
+      MatchingEngine.add(request);
+      queue.add(request);
+    }
+    sync(position);
+    return Outcome.QUEUED;
+  }
+
+  /**
+   * Appends the given record to the log. The caller must then wait for it to be forced to disk
+   * with {@link #sync(long)}. Must be called with the {@link #lock} held.
+   *
+   * @param model The model of the record, whose ID is released if it cannot be logged.
+   * @param record The record.
+   * @param keys The registry of the model's natural IDs.
+   * @return The position in the log of the end of the record.
+   */
+  private static long append(Model model, String record, KeyRegistry keys) {
+    byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+    try {
+      log.write(bytes);
+    }
+    catch (IOException e) {
+      keys.remove(primaryKey(model));
+      throw new PersistenceException("Could not write to the write-behind log", e);
+    }
+    written += bytes.length;
+    return written;
+  }
+
+  /**
+   * Rewrites the log without the records before the {@link #checkpoint}. Only the records of the
+   * queued models are copied, so this takes little time even though it is done with the
+   * {@link #lock} held. Must be called with the lock held.
+   *
+   * @throws IOException If the log cannot be rewritten.
+   */
+  private static void compact() throws IOException {
+    File temporary = new File(logFile.getPath() + ".tmp");
+    try (FileInputStream in = new FileInputStream(logFile);
+        FileOutputStream out = new FileOutputStream(temporary)) {
+      FileChannel source = in.getChannel();
+      long from = checkpoint - base;
+      long count = written - checkpoint;
+      while (count > 0) {
+        long copied = source.transferTo(from, count, out.getChannel());
+        from += copied;
+        count -= copied;
+      }
+      out.getChannel().force(false);
+    }
+    log.close();
+    if (!temporary.renameTo(logFile)) {
+      log = new FileOutputStream(logFile, true);
+      throw new IOException("Could not rename " + temporary + " to " + logFile);
+    }
+    log = new FileOutputStream(logFile, true);
+    base = checkpoint;
+    synchronized (syncLock) {
+      durable = Math.max(durable, written);
+    }
+  }
+
+  /**
+   * Inserts the queued models until the writer is stopped and the queue is empty.
+   */
+  private static void drain() {
+    ArrayBlockingQueue<Model> models = queue;
+    List<Model> batch = new ArrayList<>();
+    while (running || !models.isEmpty()) {
+      try {
+        Model first = models.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+      }
+      catch (InterruptedException e) {
+        continue;
+      }
+      models.drainTo(batch, batchSize - 1);
+      write(batch);
+      batch.clear();
+    }
+  }
+
+  /**
+   * Removes the given model from the in-memory structures after it could not be inserted.
+   *
+   * @param model The model.
+   * @param e The reason it could not be inserted.
+   */
+  private static void fail(Model model, PersistenceException e) {
+    String key = key(model);
+    Logger.warn("Could not insert " + key + " queued by write-behind: " + e.getMessage());
+    if (model instanceof Offer) {
+      Offer.keys().remove(((Offer) model).getPrimaryKey());
+      MatchingEngine.remove((Offer) model);
+    }
+    else {
+      Request.keys().remove(((Request) model).getPrimaryKey());
+      MatchingEngine.remove((Request) model);
+    }
+    failed.add(key);
+  }
+
+  /**
+   * Marks the given models as no longer pending and moves the {@link #checkpoint} past their
+   * records. The log is truncated if nothing is pending and otherwise compacted once enough of it
+   * is before the checkpoint.
+   *
+   * @param models The models that were inserted or failed.
+   */
+  private static void inserted(List<Model> models) {
+    synchronized (lock) {
+      for (Model model : models) {
+        Long end = pending.remove(key(model));
+        if (end != null) {
+          checkpoint = Math.max(checkpoint, end);
+        }
+      }
+      if (log == null || checkpoint == base) {
+        return;
+      }
+      try {
+        if (checkpoint == written) {
+          log.getChannel().truncate(0);
+          base = checkpoint;
+        }
+        else if (checkpoint - base >= COMPACT_BYTES) {
+          compact();
+        }
+      }
+      catch (IOException e) {
+        Logger.warn("Could not checkpoint the write-behind log: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Creates the key of the given model in {@link #pending} and {@link #failed}.
+   *
+   * @param model The model.
+   * @return The model's ID prefixed by its kind.
+   */
+  private static String key(Model model) {
+    return (model instanceof Offer) ? OFFER + ":" + ((Offer) model).getOfferId() : REQUEST + ":"
+        + ((Request) model).getRequestId();
+  }
+
+  /**
+   * Gets the primary key of the given model.
+   *
+   * @param model The {@link Offer} or {@link Request}.
+   * @return The primary key.
+   */
+  private static Long primaryKey(Model model) {
+    return (model instanceof Offer) ? ((Offer) model).getPrimaryKey() : ((Request) model)
+        .getPrimaryKey();
+  }
+
+  /**
+   * Creates the log record of a model: its kind and fields separated by tabs, with the natural ID
+   * URL encoded.
+   *
+   * @param kind The kind of the model.
+   * @param primaryKey The primary key of the model.
+   * @param id The natural ID of the model.
+   * @param student The owner of the model.
+   * @param book The Book of the model.
+   * @param condition The Condition of the model or null if there is none.
+   * @param price The price of the model.
+   * @param quantity The quantity of the model.
+   * @return The record, including its line terminator.
+   */
+  private static String record(String kind, Long primaryKey, String id, Student student,
+      Book book, Condition condition, double price, int quantity) {
+    try {
+      return kind + "\t" + primaryKey + "\t" + URLEncoder.encode(id, "UTF-8") + "\t"
+          + student.getPrimaryKey() + "\t" + book.getPrimaryKey() + "\t"
+          + ((condition == null) ? "" : condition.name()) + "\t" + price + "\t" + quantity + "\n";
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Inserts the models in the given log that are not already in the database, in batches of
+   * {@link #batchSize} through {@link #write(List)}.
+   *
+   * @param file The log.
+   * @throws IOException If the log cannot be read.
+   */
+  private static void replay(File file) throws IOException {
+    int replayed = 0;
+    List<Model> batch = new ArrayList<>();
+    try (BufferedReader reader =
+        new BufferedReader(new InputStreamReader(new FileInputStream(file),
+            StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length != 8) {
+          // A record cut short by a crash was never acknowledged.
+          continue;
+        }
+        Long primaryKey = Long.valueOf(fields[1]);
+        String id = URLDecoder.decode(fields[2], "UTF-8");
+        Student student = Ebean.getReference(Student.class, Long.valueOf(fields[3]));
+        Book book = Ebean.getReference(Book.class, Long.valueOf(fields[4]));
+        Condition condition = fields[5].isEmpty() ? null : Condition.valueOf(fields[5]);
+        double price = Double.parseDouble(fields[6]);
+        int quantity = Integer.parseInt(fields[7]);
+
+        if (OFFER.equals(fields[0])) {
+          Offer offer = new Offer(id, student, book, condition, price, quantity);
+          offer.setPrimaryKey(primaryKey);
+          batch.add(offer);
+        }
+        else {
+          Request request = new Request(id, student, book, price, quantity, condition);
+          request.setPrimaryKey(primaryKey);
+          batch.add(request);
+        }
+        if (batch.size() == batchSize) {
+          replayed += replay(batch);
+          batch.clear();
+        }
+      }
+    }
+    replayed += replay(batch);
+    if (replayed > 0) {
+      Logger.info("Replayed " + replayed + " models from the write-behind log.");
+    }
+  }
+
+  /**
+   * Inserts the given models from the log that are not already in the database in one batch.
+   * Which of them are already inserted is found with one query per kind.
+   *
+   * @param models The models.
+   * @return The number of models written.
+   */
+  private static int replay(List<Model> models) {
+    Set<Long> offers = new HashSet<>();
+    Set<Long> requests = new HashSet<>();
+    for (Model model : models) {
+      (model instanceof Offer ? offers : requests).add(primaryKey(model));
+    }
+    Set<Object> insertedOffers = offers.isEmpty() ? Collections.<Object> emptySet()
+        : new HashSet<>(Offer.find().where().in("primaryKey", offers).findIds());
+    Set<Object> insertedRequests = requests.isEmpty() ? Collections.<Object> emptySet()
+        : new HashSet<>(Request.find().where().in("primaryKey", requests).findIds());
+
+    List<Model> batch = new ArrayList<>();
+    for (Model model : models) {
+      Set<Object> inserted = (model instanceof Offer) ? insertedOffers : insertedRequests;
+      if (!inserted.contains(primaryKey(model))) {
+        batch.add(model);
+      }
+    }
+    if (!batch.isEmpty()) {
+      write(batch);
+    }
+    return batch.size();
+  }
+
+  /**
+   * Inserts the given model at once. Used once write-behind has been stopped, when queued models
+   * would never be inserted. Called with the {@link #lock} held, which only holds up other submits
+   * made after the stop.
+   *
+   * @param model The model.
+   * @return Whether the model was inserted.
+   */
+  private static Outcome save(Model model) {
+    return KeyRegistry.saveUnique(model) ? Outcome.SAVED : Outcome.DUPLICATE;
+  }
+
+  /**
+   * Gets the persistence status of the model with the given ID.
+   *
+   * @param kind The kind of the model.
+   * @param id The natural ID of the model.
+   * @param keys The registry of the natural IDs of the model.
+   * @return The status.
+   */
+  private static Status status(String kind, String id, KeyRegistry keys) {
+    String key = kind + ":" + id;
+    if (pending.containsKey(key)) {
+      return Status.PENDING;
+    }
+    else if (keys.contains(id)) {
+      return Status.DURABLE;
+    }
+    return failed.contains(key) ? Status.FAILED : Status.UNKNOWN;
+  }
+
+  /**
+   * Forces the log up to the given position to disk. If another thread is already forcing, waits
+   * for it and then forces again only if its force did not cover the position. A model whose
+   * record cannot be forced is still inserted, but its submit fails.
+   *
+   * @param position The position.
+   */
+  private static void sync(long position) {
+    synchronized (syncLock) {
+      while (syncing && durable < position) {
+        try {
+          syncLock.wait();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new PersistenceException("Interrupted while forcing the write-behind log");
+        }
+      }
+      if (durable >= position) {
+        return;
+      }
+      syncing = true;
+    }
+    long target = 0;
+    boolean forced = false;
+    try {
+      FileChannel channel;
+      synchronized (lock) {
+        channel = (log == null) ? null : log.getChannel();
+        target = written;
+      }
+      if (channel != null) {
+        channel.force(false);
+      }
+      forced = true;
+    }
+    catch (ClosedChannelException e) {
+      // The log is only closed once every model in it has been inserted.
+      forced = true;
+    }
+    catch (IOException e) {
+      throw new PersistenceException("Could not force the write-behind log", e);
+    }
+    finally {
+      synchronized (syncLock) {
+        if (forced) {
+          durable = Math.max(durable, target);
+        }
+        syncing = false;
+        syncLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Inserts the given models in one batched transaction, falling back to inserting them one at a
+   * time if the batch fails so that one bad model does not hold up the others.
+   *
+   * @param batch The models to insert.
+   */
+  private static void write(List<Model> batch) {
+    Transaction transaction = Ebean.beginTransaction();
+    try {
+      transaction.setBatchMode(true);
+      transaction.setBatchSize(batch.size());
+      for (Model model : batch) {
+        model.save();
+      }
+      transaction.commit();
+      inserted(batch);
+      return;
+    }
+    catch (PersistenceException e) {
+      Logger.warn("Write-behind batch of " + batch.size() + " failed, retrying one at a time: "
+          + e.getMessage());
+    }
+    finally {
+      transaction.end();
+    }
+
+    for (Model model : batch) {
+      try {
+        model.save();
+      }
+      catch (PersistenceException e) {
+        fail(model, e);
+      }
+    }
+    inserted(batch);
+  }
+
+  private WriteBehind() {
+    // Empty Private constructor to prevent instantiation.
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package benchmarks;
+
+import static play.test.Helpers.fakeApplication;
+import static play.test.Helpers.inMemoryDatabase;
+import static play.test.Helpers.start;
+import static play.test.Helpers.stop;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import models.Book;
+import models.Offer;
+import models.Student;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import play.data.Form;
+import play.data.format.Formatters;
+import play.test.FakeApplication;
+import controllers.Condition;
+import controllers.Helpers;
+
+/**
+ * Benchmarks the form binding done by the controllers for every POST: binding an {@link Offer}
+ * with and without validation errors, formatting the errors with
+ * {@link Helpers#generateErrorString(Form)} and the {@link Condition} formatter registered by
+ * {@link Helpers#registerBinders()}. Binding an Offer looks up its {@link Book} and
+ * {@link Student}, so the benchmarks run against an in-memory database holding one of each.
+ *
+ * @author Christopher Foo
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BindingBenchmark {
+
+  /**
+   * The application providing the database.
+   */
+  private FakeApplication application;
+
+  /**
+   * A form with validation errors, used to benchmark formatting the errors.
+   */
+  private Form<Offer> invalidForm;
+
+  /**
+   * Form data for an {@link Offer} with a negative price and no ID.
+   */
+  private final Map<String, String> invalidOffer = new HashMap<>();
+
+  /**
+   * Form data for a valid {@link Offer}.
+   */
+  private final Map<String, String> validOffer = new HashMap<>();
+
+  /**
+   * Starts the application, saves the {@link Book} and {@link Student} referred to by the form
+   * data and registers the formatters.
+   */
+  @Setup
+  public void setUp() {
+    this.application = fakeApplication(inMemoryDatabase());
+    start(this.application);
+    new Book("11111-11-111", "Test Book", "Dude", "Awesome Publishing", 20.99).save();
+    new Student("Student-01", "Tester", "1", "test1@hawaii.edu", "password").save();
+    Helpers.registerBinders();
+
+    this.validOffer.put("offerId", "Offer-01");
+    this.validOffer.put("student", "Student-01");
+    this.validOffer.put("book", "11111-11-111");
+    this.validOffer.put("condition", "N");
+    this.validOffer.put("price", "10.99");
+    this.validOffer.put("quantity", "2");
+
+    this.invalidOffer.putAll(this.validOffer);
+    this.invalidOffer.put("offerId", "");
+    this.invalidOffer.put("price", "-10.99");
+
+    this.invalidForm = Form.form(Offer.class).bind(this.invalidOffer);
+  }
+
+  /**
+   * Stops the application.
+   */
+  @TearDown
+  public void tearDown() {
+    stop(this.application);
+  }
+
+  /**
+   * Binds {@link Offer} form data that has validation errors.
+   *
+   * @return The bound form.
+   */
+  @Benchmark
+  public Form<Offer> bindInvalidOffer() {
+    return Form.form(Offer.class).bind(this.invalidOffer);
+  }
+
+  /**
+   * Binds valid {@link Offer} form data.
+   *
+   * @return The bound form.
+   */
+  @Benchmark
+  public Form<Offer> bindValidOffer() {
+    return Form.form(Offer.class).bind(this.validOffer);
+  }
+
+  /**
+   * Formats the errors of a bound form.
+   *
+   * @return The error string.
+   */
+  @Benchmark
+  public String generateErrorString() {
+    return Helpers.generateErrorString(this.invalidForm);
+  }
+
+  /**
+   * Parses a {@link Condition} with the registered formatter.
+   *
+   * @return The Condition.
+   */
+  @Benchmark
+  public Condition parseCondition() {
+    return Formatters.parse("S", Condition.class);
+  }
+
+  /**
+   * Prints a {@link Condition} with the registered formatter.
+   *
+   * @return The printed Condition.
+   */
+  @Benchmark
+  public String printCondition() {
+    return Formatters.print(Condition.SLIGHTLY_USED);
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the TextEx benchmarks with JMH. Unless other result options are given, the results are
+ * written as JSON to <code>target/jmh-result.json</code> so that they can be compared between
+ * releases. Any arguments are passed on to JMH, e.g. a regular expression selecting the
+ * benchmarks to run.
+ *
+ * @author Christopher Foo
+ *
+ */
+public class Main {
+
+  /**
+   * The file that the JSON results are written to by default.
+   */
+  public static final String RESULT_FILE = "target/jmh-result.json";
+
+  /**
+   * Runs the benchmarks.
+   *
+   * @param args The JMH command line arguments.
+   * @throws Exception If the benchmarks could not be run.
+   */
+  public static void main(String[] args) throws Exception {
+    List<String> options = new ArrayList<>();
+    List<String> given = Arrays.asList(args);
+    if (!given.contains("-rf")) {
+      options.addAll(Arrays.asList("-rf", "json"));
+    }
+    if (!given.contains("-rff")) {
+      options.addAll(Arrays.asList("-rff", RESULT_FILE));
+    }
+    options.addAll(given);
+    org.openjdk.jmh.Main.main(options.toArray(new String[options.size()]));
+  }
+
+  private Main() {
+    // Empty Private constructor to prevent instantiation.
+  }
+}
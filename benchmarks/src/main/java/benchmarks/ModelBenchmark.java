@@ -0,0 +1,123 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import models.Book;
+import models.Offer;
+import models.Request;
+import models.Student;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import controllers.Condition;
+
+/**
+ * Benchmarks the <code>toString()</code> methods of the models, which the index and details
+ * actions use to build their responses. The models are never saved, so no database is needed.
+ *
+ * @author Christopher Foo
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModelBenchmark {
+
+  /**
+   * The {@link Book} to format.
+   */
+  private Book book;
+
+  /**
+   * The {@link Offer} to format.
+   */
+  private Offer offer;
+
+  /**
+   * The {@link Request} to format.
+   */
+  private Request request;
+
+  /**
+   * The {@link Student} to format.
+   */
+  private Student student;
+
+  /**
+   * Creates the models to format.
+   */
+  @Setup
+  public void setUp() {
+    this.book = new Book("978-0-13-468599-1", "Effective Java", "Joshua Bloch", "Addison-Wesley",
+        54.99, 3);
+    this.student = new Student("Student-01", "Tester", "1", "test1@hawaii.edu", "password");
+    this.offer = new Offer("Offer-01", this.student, this.book, Condition.SLIGHTLY_USED, 30.00, 1);
+    this.request = new Request("Request-01", this.student, this.book, 35.00, 2, Condition.NEW);
+  }
+
+  /**
+   * Formats a {@link Book}.
+   *
+   * @return The formatted Book.
+   */
+  @Benchmark
+  public String bookToString() {
+    return this.book.toString();
+  }
+
+  /**
+   * Formats an {@link Offer}, including its {@link Student} and {@link Book}.
+   *
+   * @return The formatted Offer.
+   */
+  @Benchmark
+  public String offerToString() {
+    return this.offer.toString();
+  }
+
+  /**
+   * Formats a {@link Request}, including its {@link Student} and {@link Book}.
+   *
+   * @return The formatted Request.
+   */
+  @Benchmark
+  public String requestToString() {
+    return this.request.toString();
+  }
+
+  /**
+   * Formats a {@link Student}.
+   *
+   * @return The formatted Student.
+   */
+  @Benchmark
+  public String studentToString() {
+    return this.student.toString();
+  }
+}
@@ -6,12 +6,16 @@
 create table book (
   primary_key               bigint not null,
   isbn                      varchar(255),
+  isbn_key                  bigint,
   name                      varchar(255),
   edition                   integer,
   price                     double,
   authors                   varchar(255),
   publisher                 varchar(255),
+  last_modified             timestamp not null,
+  version                   bigint not null,
   constraint uq_book_isbn unique (isbn),
+  constraint uq_book_isbn_key unique (isbn_key),
   constraint pk_book primary key (primary_key))
 ;
 
@@ -23,6 +27,8 @@ create table offer (
   condition                 varchar(1),
   price                     double,
   quantity                  integer,
+  last_modified             timestamp not null,
+  version                   bigint not null,
   constraint ck_offer_condition check (condition in ('N','H','S')),
   constraint uq_offer_offer_id unique (offer_id),
   constraint pk_offer primary key (primary_key))
@@ -36,6 +42,8 @@ create table request (
   condition                 varchar(1),
   price                     double,
   quantity                  integer,
+  last_modified             timestamp not null,
+  version                   bigint not null,
   constraint ck_request_condition check (condition in ('N','H','S')),
   constraint uq_request_request_id unique (request_id),
   constraint pk_request primary key (primary_key))
@@ -48,6 +56,8 @@ create table student (
   last_name                 varchar(255),
   email                     varchar(255),
   password                  varchar(255),
+  last_modified             timestamp not null,
+  version                   bigint not null,
   constraint uq_student_student_id unique (student_id),
   constraint pk_student primary key (primary_key))
 ;
@@ -0,0 +1,9 @@
+# --- Index used to log in by e-mail address.
+
+# --- !Ups
+
+create index ix_student_email on student (email);
+
+# --- !Downs
+
+drop index if exists ix_student_email;
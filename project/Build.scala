@@ -16,8 +16,88 @@ object ApplicationBuild extends Build {
     "org.webjars" % "bootstrap" % "2.3.1"
   )
 
+  val jmhVersion = "1.19"
+
+  // Content-hashed copies of the files in public/ (e.g. stylesheets/main.3f2a9c1d0b.css), plus
+  // gzip variants of the text files, written to the managed resources so that they end up on the
+  // classpath next to the originals. public/assets.manifest maps the original names to the hashed
+  // ones for controllers.Fingerprint.
+  val fingerprintAssets = TaskKey[Seq[File]]("fingerprint-assets",
+    "Writes content-hashed and gzipped copies of the files in public/")
+
+  val compressedAssets = Set("css", "html", "js", "svg", "txt")
+
+  def fingerprint(source: File, managed: File): Seq[File] = {
+    val target = managed / "public"
+    val hashed = scala.collection.mutable.LinkedHashMap[String, String]()
+    // Stylesheets last, so that the images they refer to already have their hashed names
+    val files = (source ** "*").get.filter(_.isFile).sortBy(f => (f.ext == "css", f.getPath))
+    val written = files.flatMap { file =>
+      val path = IO.relativize(source, file).get.replace('\\', '/')
+      val bytes =
+        if (file.ext == "css") rewriteUrls(path, IO.read(file), hashed).getBytes("UTF-8")
+        else IO.readBytes(file)
+      val hash = Hash.toHex(Hash(bytes)).take(10)
+      val dot = path.lastIndexOf('.')
+      val name =
+        if (dot > path.lastIndexOf('/')) path.substring(0, dot) + "." + hash + path.substring(dot)
+        else path + "." + hash
+      hashed(path) = name
+      val copy = target / name
+      IO.write(copy, bytes)
+      if (compressedAssets(file.ext)) {
+        val gzipped = target / (name + ".gz")
+        IO.gzipFileOut(gzipped)(_.write(bytes))
+        Seq(copy, gzipped)
+      }
+      else Seq(copy)
+    }
+    val manifest = target / "assets.manifest"
+    IO.write(manifest, hashed.map { case (path, name) => path + "=" + name + "\n" }.mkString)
+    written :+ manifest
+  }
+
+  // Points the url(...)s of a stylesheet that refer to other assets at their hashed names
+  def rewriteUrls(path: String, css: String, hashed: collection.Map[String, String]): String = {
+    val dir = path.substring(0, path.lastIndexOf('/') + 1)
+    """url\((['"]?)([^'")]+)\1\)""".r.replaceAllIn(css, m =>
+      java.util.regex.Matcher.quoteReplacement(
+        resolveAsset(dir, m.group(2)).flatMap(hashed.get) match {
+          case Some(name) => "url(" + m.group(1) + "/assets/v/" + name + m.group(1) + ")"
+          case None => m.matched
+        }))
+  }
+
+  // The path relative to public/ of an asset referred to from a file in the given directory
+  def resolveAsset(dir: String, url: String): Option[String] =
+    if (url.contains(":")) None
+    else if (url.startsWith("/")) Some(url.stripPrefix("/assets/")).filter(_ != url)
+    else Some((dir + url).split("/").foldLeft(List[String]()) { (resolved, segment) =>
+      segment match {
+        case ".." => resolved.drop(1)
+        case "." | "" => resolved
+        case _ => segment :: resolved
+      }
+    }.reverse.mkString("/"))
+
   val main = play.Project(appName, appVersion, appDependencies).settings(
     // Add your own project settings here      
+    fingerprintAssets <<= (baseDirectory, resourceManaged in Compile) map { (base, managed) =>
+      fingerprint(base / "public", managed)
+    },
+    resourceGenerators in Compile <+= fingerprintAssets
+  )
+
+  // JMH benchmarks of the per-request hot paths: "benchmarks/run" writes target/jmh-result.json
+  val benchmarks = Project("benchmarks", file("benchmarks")).dependsOn(main).settings(
+    scalaVersion := "2.10.0",
+    libraryDependencies ++= Seq(
+      "org.openjdk.jmh" % "jmh-core" % jmhVersion,
+      "org.openjdk.jmh" % "jmh-generator-annprocess" % jmhVersion,
+      "play" %% "play-test" % play.core.PlayVersion.current
+    ),
+    fork in run := true,
+    mainClass in (Compile, run) := Some("benchmarks.Main")
   )
 
 }
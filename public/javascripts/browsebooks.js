@@ -33,6 +33,35 @@ BrowseBooks = function() {
     event.stopPropagation();
   }
 
+  // Suggest the field's value from the books matching what has been typed so far.
+  function suggest(inputId, field) {
+    $("#" + inputId).typeahead({
+      source: function(query, process) {
+        $.getJSON("/api/v1/suggestions", {q: query}, function(data) {
+          var values = new Array();
+          for (var i = 0; i < data.suggestions.length; i++) {
+            var value = data.suggestions[i][field];
+            if ($.inArray(value, values) < 0) {
+              values.push(value);
+            }
+          }
+          process(values);
+        });
+      },
+      matcher: function(item) {
+        return true;
+      },
+      minLength: 2
+    });
+  }
+
+  $(function() {
+    suggest("isbn", "isbn");
+    suggest("title", "name");
+    suggest("authors", "authors");
+    suggest("publisher", "publisher");
+  });
+
   return {
     sortClicked: sortClicked,
     sortIconClicked: sortIconClicked
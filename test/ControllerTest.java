@@ -19,20 +19,29 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static play.mvc.Http.Status.BAD_REQUEST;
 import static play.mvc.Http.Status.NOT_FOUND;
+import static play.mvc.Http.Status.NOT_MODIFIED;
 import static play.mvc.Http.Status.OK;
+import static play.test.Helpers.GET;
 import static play.test.Helpers.callAction;
 import static play.test.Helpers.contentAsString;
 import static play.test.Helpers.fakeApplication;
 import static play.test.Helpers.fakeRequest;
+import static play.test.Helpers.header;
 import static play.test.Helpers.inMemoryDatabase;
 import static play.test.Helpers.start;
 import static play.test.Helpers.status;
 import static play.test.Helpers.stop;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import models.Book;
 import models.Offer;
 import models.Request;
+import models.SqlStats;
 import models.Student;
 import org.junit.After;
 import org.junit.Before;
@@ -41,6 +50,9 @@ import play.mvc.Result;
 import play.test.FakeApplication;
 import play.test.FakeRequest;
 import controllers.Condition;
+import controllers.Fingerprint;
+import controllers.Histogram;
+import controllers.Page;
 
 /**
  * Tests the controllers for the TextEx application.
@@ -76,7 +88,7 @@ public class ControllerTest {
    * Tests the {@link controllers.Book} controller.
    */
   @Test
-  public void testBookController() {
+  public void testBookController() throws IOException {
     // Test GET /books on an empty database.
     Result result = callAction(controllers.routes.ref.Book.index());
     assertTrue("Empty books", contentAsString(result).contains("No books"));
@@ -108,6 +120,56 @@ public class ControllerTest {
     result = callAction(controllers.routes.ref.Book.newBook(), request);
     assertEquals("Create new book", OK, status(result));
 
+    // Test POST /books (search by partial title and author)
+    Map<String, String> searchData = new HashMap<>();
+    searchData.put("isbn", "");
+    searchData.put("name", "test bo");
+    searchData.put("authors", "dude");
+    searchData.put("publisher", "");
+    searchData.put("edition", "");
+    searchData.put("price", "");
+    request = fakeRequest();
+    request.withFormUrlEncodedBody(searchData);
+    result = callAction(controllers.routes.ref.Book.search(), request);
+    assertTrue("Search finds both books", contentAsString(result).contains(isbn)
+        && contentAsString(result).contains("22222-22-222"));
+
+    // Test POST /books (search by partial ISBN)
+    searchData.put("isbn", "2222-22");
+    request = fakeRequest();
+    request.withFormUrlEncodedBody(searchData);
+    result = callAction(controllers.routes.ref.Book.search(), request);
+    assertTrue("Search by ISBN", !contentAsString(result).contains(isbn)
+        && contentAsString(result).contains("22222-22-222"));
+
+    // Test POST /books (no matches)
+    searchData.put("name", "missing");
+    request = fakeRequest();
+    request.withFormUrlEncodedBody(searchData);
+    result = callAction(controllers.routes.ref.Book.search(), request);
+    assertEquals("Search without matches", OK, status(result));
+    assertTrue("Search without matches", !contentAsString(result).contains("22222-22-222"));
+
+    // Test GET /books one page at a time.
+    result =
+        callAction(controllers.routes.ref.Book.index(), fakeRequest(GET, "/books/dummy?size=1"));
+    String cursor = header(result, Page.NEXT_CURSOR_HEADER);
+    assertTrue("First page", contentAsString(result).contains(isbn) && cursor != null);
+    result =
+        callAction(controllers.routes.ref.Book.index(),
+            fakeRequest(GET, "/books/dummy?size=1&after=" + cursor));
+    assertTrue("Last page", contentAsString(result).contains("22222-22-222")
+        && !contentAsString(result).contains(isbn));
+    assertEquals("No page after the last", null, header(result, Page.NEXT_CURSOR_HEADER));
+
+    // Test GET /books streaming every book.
+    result =
+        callAction(controllers.routes.ref.Book.index(), fakeRequest(GET, "/books/dummy?size=all"));
+    assertEquals("Stream all books", OK, status(result));
+    String streamed = read(Page.rows(Book.find().where(), "primaryKey", null, "No books"));
+    assertTrue("Streamed books", streamed.startsWith("[[Book " + isbn)
+        && streamed.contains(", [Book 22222-22-222") && streamed.endsWith("]]"));
+
     // Test POST /books (negative price)
     bookData.clear();
     bookData.put("isbn", "33333-33-333");
@@ -872,4 +934,210 @@ public class ControllerTest {
     result = callAction(controllers.routes.ref.Student.delete(studentId));
     assertEquals("Delete missing student also OK", OK, status(result));
   }
+
+  /**
+   * Tests the {@link controllers.Api} controller.
+   */
+  @Test
+  public void testApiController() {
+    Book book = new Book("11111-11-111", "Test Book", "Dude", "Awesome Publishing", 20.99);
+    Student student = new Student("Student-01", "Tester", "1", "test1@hawaii.edu", "password");
+    book.save();
+    student.save();
+    new Offer("Offer-01", student, book, Condition.NEW, 15.00, 1).save();
+
+    // Test GET /api/v1/books with a projection.
+    Result result =
+        callAction(controllers.routes.ref.Api.books(),
+            fakeRequest(GET, "/api/v1/books?fields=isbn,price"));
+    assertEquals("Project books", OK, status(result));
+    assertEquals("Project books", "{\"books\":[{\"isbn\":\"11111-11-111\",\"price\":20.99}]}",
+        contentAsString(result));
+
+    // Test GET /api/v1/books with an unknown field.
+    result =
+        callAction(controllers.routes.ref.Api.books(),
+            fakeRequest(GET, "/api/v1/books?fields=isbn,password"));
+    assertEquals("Unknown field", BAD_REQUEST, status(result));
+
+    // Test GET /api/v1/offers joined to the Student and Book.
+    result =
+        callAction(controllers.routes.ref.Api.offers(),
+            fakeRequest(GET, "/api/v1/offers?fields=offerId,student,book"));
+    assertEquals("Offer natural IDs", "{\"offers\":[{\"offerId\":\"Offer-01\","
+        + "\"student\":\"Student-01\",\"book\":\"11111-11-111\"}]}", contentAsString(result));
+
+    // Test GET /api/v1/students/Student-01 without the password.
+    result = callAction(controllers.routes.ref.Api.student("Student-01"));
+    assertTrue("Student", contentAsString(result).contains("\"studentId\":\"Student-01\""));
+    assertTrue("No password", !contentAsString(result).contains("password"));
+
+    // Test GET /api/v1/requests/BadId.
+    result = callAction(controllers.routes.ref.Api.request("BadId"));
+    assertEquals("Missing request", NOT_FOUND, status(result));
+  }
+
+  /**
+   * Tests the {@link controllers.Metrics} controller and its {@link Histogram}.
+   */
+  @Test
+  public void testMetricsController() {
+    Histogram histogram = new Histogram();
+    for (int i = 1; i <= 100; i++) {
+      histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+    }
+    assertEquals("Count", 100, histogram.getCount());
+    long median = histogram.getPercentile(50, TimeUnit.MILLISECONDS);
+    assertTrue("Median within a bucket", median >= 50 && median <= 53);
+    assertEquals("Nothing below 1ms", 0, histogram.countAtOrBelow(999));
+    assertEquals("Everything below 1s", 100, histogram.countAtOrBelow(1000000));
+
+    // Test GET /metrics after a request, waiting for the request to finish on the database pool.
+    assertEquals("Book index", OK, status(callAction(controllers.routes.ref.Book.index())));
+    Result result = callAction(controllers.routes.ref.Metrics.index());
+    assertEquals("Metrics", OK, status(result));
+    assertTrue("Route latency", contentAsString(result).contains(
+        "textex_http_request_duration_seconds_count{route=\"controllers.Book.index\"}"));
+    assertTrue("Route status", contentAsString(result).contains(
+        "textex_http_responses_total{route=\"controllers.Book.index\",status=\"200\"}"));
+    assertTrue("Database pool", contentAsString(result).contains(
+        "textex_db_executor_rejections_total 0"));
+  }
+
+  /**
+   * Tests that listing {@link Offer}s and {@link Request}s takes a constant number of statements
+   * however many there are.
+   */
+  @Test
+  public void testOwnerFetchJoins() {
+    for (int i = 0; i < 5; i++) {
+      Student student =
+          new Student("Student-0" + i, "Test", "Student", "test" + i + "@hawaii.edu", "password");
+      Book book = new Book("1111" + i, "Test Book " + i, "Lady", "Okay Publishing", 20.99);
+      student.save();
+      book.save();
+      new Offer("Offer-0" + i, student, book, Condition.NEW, 15.99, 1).save();
+      new Request("Request-0" + i, student, book, 15.99, 1).save();
+    }
+
+    SqlStats.begin();
+    Result result = callAction(controllers.routes.ref.Offer.index());
+    assertTrue("All offers", contentAsString(result).contains("Offer-04"));
+    assertEquals("Offer index statements", 1, SqlStats.end().getStatements());
+
+    SqlStats.begin();
+    result = callAction(controllers.routes.ref.Request.index());
+    assertTrue("All requests", contentAsString(result).contains("Request-04"));
+    assertEquals("Request index statements", 1, SqlStats.end().getStatements());
+
+    Offer.cache().invalidateAll();
+    SqlStats.begin();
+    result = callAction(controllers.routes.ref.Offer.details("Offer-01"));
+    assertTrue("Offer detail", contentAsString(result).contains("Student-01"));
+    assertEquals("Offer detail statements", 1, SqlStats.end().getStatements());
+
+    Request.cache().invalidateAll();
+    SqlStats.begin();
+    result = callAction(controllers.routes.ref.Request.details("Request-01"));
+    assertTrue("Request detail", contentAsString(result).contains("Student-01"));
+    assertEquals("Request detail statements", 1, SqlStats.end().getStatements());
+  }
+
+  /**
+   * Tests that the detail pages answer conditional GETs with a 304 until what they show changes.
+   */
+  @Test
+  public void testConditionalGet() {
+    Student student = new Student("Student-01", "Test", "Student", "test@hawaii.edu", "password");
+    Book book = new Book("11111-11-111", "Test Book", "Lady", "Okay Publishing", 20.99);
+    student.save();
+    book.save();
+    Offer offer = new Offer("Offer-01", student, book, Condition.NEW, 15.99, 1);
+    offer.save();
+
+    Result result = callAction(controllers.routes.ref.Offer.details("Offer-01"));
+    String etag = header("ETag", result);
+    assertTrue("Offer ETag", etag != null);
+    result = callAction(controllers.routes.ref.Offer.details("Offer-01"),
+        fakeRequest(GET, "/offers/Offer-01").withHeader("If-None-Match", etag));
+    assertEquals("Offer not modified", NOT_MODIFIED, status(result));
+    result = callAction(controllers.routes.ref.Offer.details("Offer-01"),
+        fakeRequest(GET, "/offers/Offer-01").withHeader("If-Modified-Since",
+            header("Last-Modified", result)));
+    assertEquals("Offer not modified since", NOT_MODIFIED, status(result));
+
+    student.setFirstName("Changed");
+    student.update();
+    result = callAction(controllers.routes.ref.Offer.details("Offer-01"),
+        fakeRequest(GET, "/offers/Offer-01").withHeader("If-None-Match", etag));
+    assertEquals("Offer owner changed", OK, status(result));
+
+    result = callAction(controllers.routes.ref.Book.details("11111-11-111"));
+    etag = header("ETag", result);
+    result = callAction(controllers.routes.ref.Book.details("11111-11-111"),
+        fakeRequest(GET, "/books/11111-11-111").withHeader("If-None-Match", etag));
+    assertEquals("Book not modified", NOT_MODIFIED, status(result));
+    new Offer("Offer-02", student, book, Condition.NEW, 12.99, 1).save();
+    result = callAction(controllers.routes.ref.Book.details("11111-11-111"),
+        fakeRequest(GET, "/books/11111-11-111").withHeader("If-None-Match", etag));
+    assertEquals("Book market changed", OK, status(result));
+  }
+
+  /**
+   * Tests the content-hashed assets served by {@link Fingerprint}.
+   */
+  @Test
+  public void testFingerprintedAssets() {
+    String url = Fingerprint.url("stylesheets/main.css");
+    assertTrue("Hashed URL", url.startsWith(Fingerprint.PREFIX) && url.endsWith(".css")
+        && !url.endsWith("/main.css"));
+    String file = url.substring(Fingerprint.PREFIX.length());
+    Result result = callAction(controllers.routes.ref.Fingerprint.at(file));
+    assertEquals("Hashed asset", OK, status(result));
+    assertEquals("Immutable", Fingerprint.CACHE_CONTROL, header("Cache-Control", result));
+    assertEquals("Plain asset", null, header("Content-Encoding", result));
+    result = callAction(controllers.routes.ref.Fingerprint.at(file),
+        fakeRequest(GET, url).withHeader("Accept-Encoding", "gzip, deflate"));
+    assertEquals("Gzipped asset", "gzip", header("Content-Encoding", result));
+
+    result = callAction(controllers.routes.ref.Fingerprint.at("stylesheets/main.css"));
+    assertEquals("Unhashed name", NOT_FOUND, status(result));
+    assertEquals("Missing asset", "/assets/missing.css", Fingerprint.url("missing.css"));
+  }
+
+  /**
+   * Test that streaming a whole collection fetches every page of rows and nothing after the last.
+   * 
+   * @throws IOException If the streamed rows cannot be read.
+   */
+  @Test
+  public void testStreamedPages() throws IOException {
+    for (int i = 0; i < Page.CHUNK_ROWS + 1; i++) {
+      new Book(String.format("44444-44-%03d", i), "Streamed Book", "Dude", "UHM", 1.0).save();
+    }
+    String streamed = read(Page.rows(Book.find().where(), "primaryKey", null, "No books"));
+    assertEquals("Streamed rows", Page.CHUNK_ROWS + 1, streamed.split("\\[Book ").length - 1);
+    assertTrue("Streamed list", streamed.startsWith("[[Book 44444-44-000 ")
+        && streamed.contains("], [Book 44444-44-100 ") && streamed.endsWith("]]"));
+
+    Long last = Book.find().where().eq("isbn", "44444-44-100").findUnique().getPrimaryKey();
+    assertEquals("Stream after the last book", "No books",
+        read(Page.rows(Book.find().where(), "primaryKey", last, "No books")));
+  }
+
+  /**
+   * Reads the given stream of text to its end.
+   * 
+   * @param in The stream to read.
+   * @return The text in the stream.
+   * @throws IOException If the stream cannot be read.
+   */
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[64];
+    for (int count = in.read(buffer); count != -1; count = in.read(buffer)) {
+      bytes.write(buffer, 0, count);
+    }
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
 }
@@ -0,0 +1,93 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+import static play.test.Helpers.fakeApplication;
+import static play.test.Helpers.inMemoryDatabase;
+import static play.test.Helpers.start;
+import static play.test.Helpers.stop;
+import java.io.IOException;
+import java.util.Map;
+import load.LoadHarness;
+import load.Operation;
+import load.Scenario;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.test.FakeApplication;
+
+/**
+ * Runs the load test {@link Scenario} named by the "load.scenario" system property against the
+ * TextEx application's routes and prints the throughput and latency of each route. The test is
+ * skipped when the property is not set so that it does not slow down the normal test run.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class LoadTest {
+
+  /**
+   * The name of the system property holding the path of the scenario file.
+   */
+  public static final String SCENARIO_PROPERTY = "load.scenario";
+
+  /**
+   * A {@link FakeApplication} used to run the tests.
+   */
+  private FakeApplication application;
+
+  /**
+   * Start the {@link FakeApplication} before every test.
+   */
+  @Before
+  public void startApp() {
+    this.application = fakeApplication(inMemoryDatabase());
+    start(this.application);
+  }
+
+  /**
+   * Stop the {@link FakeApplication} after every test.
+   */
+  @After
+  public void stopApp() {
+    stop(this.application);
+  }
+
+  /**
+   * Runs the load test scenario and checks that no request failed with a server error. Requests
+   * shed with a 503 by a saturated database pool are reported but are not errors.
+   * 
+   * @throws IOException If the scenario could not be read.
+   * @throws InterruptedException If interrupted while running the scenario.
+   */
+  @Test
+  public void testScenario() throws IOException, InterruptedException {
+    String path = System.getProperty(SCENARIO_PROPERTY);
+    assumeTrue(path != null);
+
+    LoadHarness harness = new LoadHarness(Scenario.load(path));
+    harness.seed();
+    harness.run();
+    System.out.print(harness.report());
+
+    for (Map.Entry<Operation, LoadHarness.RouteStats> entry : harness.getStats().entrySet()) {
+      assertEquals("Server errors for " + entry.getKey().getRoute(), 0, entry.getValue()
+          .getErrors());
+    }
+  }
+}
@@ -20,15 +20,39 @@ import static play.test.Helpers.fakeApplication;
 import static play.test.Helpers.inMemoryDatabase;
 import static play.test.Helpers.start;
 import static play.test.Helpers.stop;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.CallableStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import models.Book;
+import models.BookImporter;
+import models.BookIndex;
+import models.Catalog;
+import models.EntityCache;
+import models.Isbn;
+import models.Journal;
+import models.KeyRegistry;
+import models.MarketSummary;
+import models.MatchingEngine;
 import models.Offer;
+import models.OrderBook;
 import models.Request;
+import models.SearchCache;
+import models.SqlStats;
 import models.Student;
+import models.Typeahead;
+import models.WriteBehind;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import play.test.FakeApplication;
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Transaction;
 import controllers.Condition;
 
 /**
@@ -134,4 +158,562 @@ public class ModelTest {
     assertEquals("Check that delete did NOT cascade", 2, Student.find().findList().size());
 
   }
+
+  /**
+   * Test that the {@link MatchingEngine} matches Offers and Requests.
+   */
+  @Test
+  public void testMatchingEngine() {
+    Book book = new Book("123412321", "Test Book 1", "Dude", "UHM Publishing", 50.32);
+    Student seller = new Student("Student-01", "Tester", "1", "test1@hawaii.edu", "password");
+    Student buyer = new Student("Student-02", "Tester", "2", "test2@hawaii.edu", "password");
+    book.save();
+    seller.save();
+    buyer.save();
+
+    Offer cheap = new Offer("Offer-01", seller, book, Condition.HEAVILY_USED, 20.00, 1);
+    Offer slightlyUsed = new Offer("Offer-02", seller, book, Condition.SLIGHTLY_USED, 25.00, 2);
+    Offer expensive = new Offer("Offer-03", seller, book, Condition.NEW, 40.00, 1);
+    cheap.save();
+    slightlyUsed.save();
+    expensive.save();
+
+    // A Request without a condition matches the cheapest Offers first.
+    Request any = new Request("Request-01", buyer, book, 30.00, 2);
+    any.save();
+    List<OrderBook.Match> matches = MatchingEngine.match(any);
+    assertEquals("Match any condition", 2, matches.size());
+    assertEquals("Lowest price first", "Offer-01", matches.get(0).getOffer().getId());
+    assertEquals("Then the next lowest", "Offer-02", matches.get(1).getOffer().getId());
+    assertEquals("Quantity limited by the Request", 1, matches.get(1).getQuantity());
+
+    // A Request for a better condition skips the heavily used Offer.
+    Request better = new Request("Request-02", buyer, book, 30.00, 1, Condition.SLIGHTLY_USED);
+    better.save();
+    matches = MatchingEngine.match(better);
+    assertEquals("Match slightly used", 1, matches.size());
+    assertEquals("Match slightly used", "Offer-02", matches.get(0).getOffer().getId());
+
+    // A new Offer matches the highest Requests that accept its condition.
+    Offer brandNew = new Offer("Offer-04", seller, book, Condition.NEW, 30.00, 5);
+    brandNew.save();
+    matches = MatchingEngine.match(brandNew);
+    assertEquals("Offer matches both Requests", 2, matches.size());
+    assertEquals("Earliest Request first", "Request-01", matches.get(0).getRequest().getId());
+
+    // Deleted Offers are no longer matched.
+    cheap.delete();
+    matches = MatchingEngine.match(any);
+    assertEquals("Deleted Offer not matched", "Offer-02", matches.get(0).getOffer().getId());
+  }
+
+  /**
+   * Test that the {@link MarketSummary} of a {@link Book} follows its Offers and Requests.
+   */
+  @Test
+  public void testMarketSummary() {
+    Book book = new Book("123412321", "Test Book 1", "Dude", "UHM Publishing", 50.32);
+    Student student = new Student("Student-01", "Tester", "1", "test1@hawaii.edu", "password");
+    book.save();
+    student.save();
+    assertEquals("Empty market", MarketSummary.EMPTY, MatchingEngine.summary(book));
+
+    Offer worn = new Offer("Offer-01", student, book, Condition.HEAVILY_USED, 20.00, 1);
+    worn.save();
+    new Offer("Offer-02", student, book, Condition.NEW, 40.00, 1).save();
+    new Offer("Offer-03", student, book, Condition.NEW, 35.00, 1).save();
+    new Request("Request-01", student, book, 30.00, 1).save();
+    new Request("Request-02", student, book, 25.00, 1, Condition.NEW).save();
+
+    MarketSummary market = MatchingEngine.summary(book);
+    assertEquals("Offers", 3, market.getOffers());
+    assertEquals("Requests", 2, market.getRequests());
+    assertEquals("Lowest ask", 20.00, market.getLowestAsk(), 0.001);
+    assertEquals("Highest bid", 30.00, market.getHighestBid(), 0.001);
+    assertEquals("Rows", 3, market.getRows().size());
+    MarketSummary.Row brandNew = market.getRows().get(0);
+    assertEquals("New first", Condition.NEW, brandNew.getCondition());
+    assertEquals("New offers", 2, brandNew.getOffers());
+    assertEquals("New lowest ask", 35.00, brandNew.getLowestAsk(), 0.001);
+    assertEquals("New highest bid", 25.00, brandNew.getHighestBid(), 0.001);
+    assertEquals("Any condition last", null, market.getRows().get(2).getCondition());
+
+    worn.delete();
+    market = MatchingEngine.summary(book);
+    assertEquals("Deleted offer", 2, market.getOffers());
+    assertEquals("Lowest ask after delete", 35.00, market.getLowestAsk(), 0.001);
+  }
+
+  /**
+   * Test that the {@link BookIndex} matches partial ISBNs anywhere in the ISBN.
+   */
+  @Test
+  public void testBookIndex() {
+    Book book = new Book("0-13-110362-8", "Test Book 1", "Dude", "UHM Publishing", 50.32);
+    book.save();
+    Long key = book.getPrimaryKey();
+
+    assertEquals("ISBN prefix", true, BookIndex.search("isbn", "0-13-1103").contains(key));
+    assertEquals("Mid ISBN", true, BookIndex.search("isbn", "110362").contains(key));
+    assertEquals("ISBN suffix", true, BookIndex.search("isbn", "3628").contains(key));
+    assertEquals("Other ISBN", 0, BookIndex.search("isbn", "3629").size());
+
+    book.setIsbn("0-306-40615-2");
+    book.save();
+    assertEquals("Updated ISBN", 0, BookIndex.search("isbn", "3628").size());
+    assertEquals("New ISBN", true, BookIndex.search("isbn", "4061").contains(key));
+  }
+
+  /**
+   * Test that the {@link EntityCache}s serve repeated lookups and see changes to the models.
+   */
+  @Test
+  public void testEntityCache() {
+    Book book = new Book("123412321", "Test Book 1", "Dude", "UHM Publishing", 50.32);
+    book.save();
+
+    long hits = Book.cache().getHits();
+    assertEquals("Load book", "Test Book 1", Book.findByIsbn("123412321").getName());
+    assertEquals("Cached book", "Test Book 1", Book.findByIsbn("123412321").getName());
+    assertEquals("Cache hit", hits + 1, Book.cache().getHits());
+
+    Book updated = Book.find().where().eq("isbn", "123412321").findUnique();
+    updated.setName("Test Book 2");
+    updated.update();
+    assertEquals("Update invalidates", "Test Book 2", Book.findByIsbn("123412321").getName());
+
+    updated.delete();
+    assertEquals("Delete invalidates", null, Book.findByIsbn("123412321"));
+  }
+
+  /**
+   * Test that the {@link SearchCache} answers repeated searches, only drops the searches a changed
+   * {@link Book} affects and evicts the least recently used searches once it is full.
+   */
+  @Test
+  public void testSearchCache() {
+    Book calculus = new Book("123412321", "Calculus", "Dude", "UHM Publishing", 50.32);
+    Book physics = new Book("123412322", "Physics", "Dude", "Other Publishing", 40.00);
+    calculus.save();
+    physics.save();
+
+    SearchCache.Query byName = new SearchCache.Query("", " CALC ", "", "", "", "");
+    SearchCache.Query byPublisher = new SearchCache.Query("", "", "", "other", "", "abc");
+    assertEquals("Normalized", byName, new SearchCache.Query(null, "calc", null, null, "", null));
+    assertEquals("Miss", null, SearchCache.get(byName));
+    SearchCache.put(byName, Arrays.asList(calculus), SearchCache.getGeneration());
+    SearchCache.put(byPublisher, Arrays.asList(physics), SearchCache.getGeneration());
+    long hits = SearchCache.getHits();
+    assertEquals("Hit", 1, SearchCache.get(byName).size());
+    assertEquals("Hit counted", hits + 1, SearchCache.getHits());
+
+    // Renaming the Physics book only affects the search that contained it.
+    physics.setName("Physics II");
+    physics.update();
+    assertEquals("Unrelated search kept", 1, SearchCache.get(byName).size());
+    assertEquals("Containing search dropped", null, SearchCache.get(byPublisher));
+
+    // A new Book that matches a cached search drops it.
+    new Book("123412323", "Calculus II", "Dude", "UHM Publishing", 60.00).save();
+    assertEquals("Matching search dropped", null, SearchCache.get(byName));
+
+    // A result computed before a change is not cached.
+    long generation = SearchCache.getGeneration();
+    calculus.setPrice(45.00);
+    calculus.update();
+    SearchCache.put(byName, Arrays.asList(calculus), generation);
+    assertEquals("Stale result not cached", null, SearchCache.get(byName));
+
+    // A new Book whose ISBN contains a cached partial ISBN drops the search.
+    SearchCache.Query byIsbn = new SearchCache.Query("110362", "", "", "", "", "");
+    SearchCache.put(byIsbn, Arrays.<Book> asList(), SearchCache.getGeneration());
+    assertEquals("Partial ISBN cached", 0, SearchCache.get(byIsbn).size());
+    new Book("0-13-110362-8", "Algorithms", "Dude", "UHM Publishing", 70.00).save();
+    assertEquals("Partial ISBN search dropped", null, SearchCache.get(byIsbn));
+
+    try {
+      SearchCache.put(byName, Arrays.asList(calculus), SearchCache.getGeneration());
+      SearchCache.setMaxBytes(SearchCache.getBytes());
+      SearchCache.put(byPublisher, Arrays.asList(physics), SearchCache.getGeneration());
+      assertEquals("Least recently used evicted", null, SearchCache.get(byName));
+      assertEquals("Most recently used kept", 1, SearchCache.get(byPublisher).size());
+      long publisherBytes = SearchCache.getBytes();
+
+      // The evicted entry no longer counts towards the size or the index by Book.
+      SearchCache.setMaxBytes(2 * publisherBytes);
+      SearchCache.put(byName, Arrays.asList(calculus), SearchCache.getGeneration());
+      assertEquals("Both entries kept", 2, SearchCache.getSize());
+      long bothBytes = SearchCache.getBytes();
+      SearchCache.put(byName, Arrays.asList(calculus), SearchCache.getGeneration());
+      assertEquals("Size unchanged by replacement", bothBytes, SearchCache.getBytes());
+      physics.setName("Physics III");
+      physics.update();
+      assertEquals("Containing search dropped after eviction", null,
+          SearchCache.get(byPublisher));
+      assertEquals("Size after invalidation", bothBytes - publisherBytes, SearchCache.getBytes());
+      assertEquals("Unrelated search kept after eviction", 1, SearchCache.get(byName).size());
+    }
+    finally {
+      SearchCache.setMaxBytes(SearchCache.DEFAULT_MAX_BYTES);
+    }
+  }
+
+  /**
+   * Test that the {@link Catalog} snapshot filters by edition, price and publisher in ISBN order
+   * and follows changes to the {@link Book}s.
+   */
+  @Test
+  public void testCatalog() {
+    Book calculus = new Book("123412322", "Calculus", "Dude", "UHM Publishing", 50.32, 2);
+    Book physics = new Book("123412321", "Physics", "Dude", "Other Publishing", 40.00);
+    calculus.save();
+    physics.save();
+
+    Catalog catalog = Catalog.current();
+    assertEquals("Size", 2, catalog.size());
+    assertEquals("ISBN order", Arrays.asList("123412321", "123412322"),
+        Arrays.asList(catalog.getIsbns(catalog.filter(null, null, null, null))));
+    assertEquals("Edition", 1, catalog.filter(null, null, 2, null).length);
+    assertEquals("Price", 1, catalog.filter(null, null, null, 45.00).length);
+    assertEquals("Publisher", 1, catalog.filter(null, "uhm", null, null).length);
+    assertEquals("Candidates", physics.getPrimaryKey().longValue(), catalog.getKeys(catalog
+        .filter(new HashSet<>(Arrays.asList(physics.getPrimaryKey())), null, null, null))[0]);
+
+    physics.setPrice(60.00);
+    physics.update();
+    assertEquals("Snapshot not modified", 1, catalog.filter(null, null, null, 45.00).length);
+    assertEquals("Update swapped in", 0, Catalog.current().filter(null, null, null, 45.00).length);
+    physics.setIsbn("123412323");
+    physics.setPublisher("New Publishing");
+    physics.update();
+    catalog = Catalog.current();
+    assertEquals("Row moved", Arrays.asList("123412322", "123412323"),
+        Arrays.asList(catalog.getIsbns(catalog.filter(null, null, null, null))));
+    assertEquals("Moved row found by key", 1, catalog.filter(
+        new HashSet<>(Arrays.asList(physics.getPrimaryKey())), "new", null, null).length);
+    calculus.delete();
+    assertEquals("Delete swapped in", 1, Catalog.current().size());
+    assertEquals("Remaining row found by key", physics.getPrimaryKey().longValue(),
+        Catalog.current().getKeys(Catalog.current().filter(
+            new HashSet<>(Arrays.asList(physics.getPrimaryKey())), null, null, null))[0]);
+  }
+
+  /**
+   * Test that the {@link Typeahead} suggests {@link Book}s by prefix, ranked by their open
+   * {@link Offer}s, and follows changes to the Books.
+   */
+  @Test
+  public void testTypeahead() {
+    Book calculus = new Book("0-13-110362-8", "Calculus", "Stewart", "UHM Publishing", 50.32);
+    Book algebra = new Book("0-13-110363-8", "Calculus and Algebra", "Dude", "UHM Publishing",
+        40.00);
+    Student student = new Student("Student-01", "Tester", "1", "test1@hawaii.edu", "password");
+    calculus.save();
+    algebra.save();
+    student.save();
+
+    List<Typeahead.Suggestion> suggestions = Typeahead.suggest("calc", 10);
+    assertEquals("Prefix", 2, suggestions.size());
+    assertEquals("Ties by name", "Calculus", suggestions.get(0).getName());
+    assertEquals("All words", "Calculus and Algebra", Typeahead.suggest("calc alg", 10).get(0)
+        .getName());
+    assertEquals("ISBN punctuation ignored", 2, Typeahead.suggest("0-13-1103", 10).size());
+    assertEquals("Limit", 1, Typeahead.suggest("calc", 1).size());
+    assertEquals("No match", 0, Typeahead.suggest("physics", 10).size());
+
+    Offer offer = new Offer("Offer-01", student, algebra, Condition.NEW, 20.00, 1);
+    offer.save();
+    suggestions = Typeahead.suggest("calc", 10);
+    assertEquals("Ranked by offers", "Calculus and Algebra", suggestions.get(0).getName());
+    assertEquals("Offer count", 1, suggestions.get(0).getOffers());
+    Offer second = new Offer("Offer-02", student, algebra, Condition.SLIGHTLY_USED, 15.00, 1);
+    second.save();
+    assertEquals("Offer count follows insert", 2, Typeahead.suggest("calc", 10).get(0)
+        .getOffers());
+    second.delete();
+    assertEquals("Offer count follows delete", 1, Typeahead.suggest("calc", 10).get(0)
+        .getOffers());
+    offer.delete();
+    assertEquals("Rank follows delete", "Calculus", Typeahead.suggest("calc", 10).get(0)
+        .getName());
+
+    calculus.setName("Physics");
+    calculus.update();
+    assertEquals("Renamed", 1, Typeahead.suggest("calc", 10).size());
+    assertEquals("New name", "Physics", Typeahead.suggest("phys", 10).get(0).getName());
+    algebra.delete();
+    assertEquals("Deleted", 0, Typeahead.suggest("alg", 10).size());
+  }
+
+  /**
+   * Test that the {@link KeyRegistry}s track the IDs in use and that duplicate IDs are rejected.
+   */
+  @Test
+  public void testKeyRegistry() {
+    Book book = new Book("123412321", "Test Book 1", "Dude", "UHM Publishing", 50.32);
+    Student student = new Student("Student-01", "Tester", "1", "test1@hawaii.edu", "password");
+    assertEquals("Save book", true, KeyRegistry.saveUnique(book));
+    student.save();
+    new Offer("Offer-01", student, book, Condition.NEW, 20.00, 1).save();
+    assertEquals("Registered ISBN", true, Book.keys().contains("123412321"));
+    assertEquals("Registered offer", true, Offer.keys().contains("Offer-01"));
+    assertEquals("Validate duplicate", 1, new Book("123412321", "Test Book 2", "Dude",
+        "UHM Publishing", 10.00).validate().size());
+
+    // The database still rejects a duplicate that the registry missed.
+    Book.keys().clear();
+    assertEquals("Reject duplicate", false, KeyRegistry.saveUnique(new Book("123412321",
+        "Test Book 2", "Dude", "UHM Publishing", 10.00)));
+    KeyRegistry.rebuildAll();
+    assertEquals("Rebuilt registry", true, Book.keys().contains("123412321"));
+
+    // Deleting the Student removes its Offers' IDs too.
+    student.delete();
+    assertEquals("Removed student", false, Student.keys().contains("Student-01"));
+    assertEquals("Removed cascaded offer", false, Offer.keys().contains("Offer-01"));
+  }
+
+  /**
+   * Test that valid ISBNs are normalized to ISBN-13 keys for lookups and duplicate checks.
+   */
+  @Test
+  public void testIsbn() {
+    assertEquals("ISBN-10", 9780131103627L, Isbn.parse("0-13-110362-8"));
+    assertEquals("ISBN-13", 9780131103627L, Isbn.parse("978-0-13-110362-7"));
+    assertEquals("Check digit X", 9780804429573L, Isbn.parse("0-8044-2957-X"));
+    assertEquals("Bad check digit", Isbn.INVALID, Isbn.parse("0-13-110362-7"));
+    assertEquals("Free-form", "123412321", Isbn.normalize("123412321"));
+
+    Book book = new Book("0-13-110362-8", "Test Book 1", "Dude", "UHM Publishing", 50.32);
+    assertEquals("Save book", true, KeyRegistry.saveUnique(book));
+    assertEquals("ISBN key", Long.valueOf(9780131103627L), book.getIsbnKey());
+    assertEquals("Find by ISBN-13", book.getPrimaryKey(), Book.findByIsbn("9780131103627")
+        .getPrimaryKey());
+    assertEquals("Validate duplicate", 1, new Book("978-0-13-110362-7", "Test Book 2", "Dude",
+        "UHM Publishing", 10.00).validate().size());
+    Book.keys().clear();
+    assertEquals("Reject duplicate", false, KeyRegistry.saveUnique(new Book("9780131103627",
+        "Test Book 2", "Dude", "UHM Publishing", 10.00)));
+  }
+
+  /**
+   * Test that {@link Student}s log in by ID or e-mail address and are cached once logged in.
+   */
+  @Test
+  public void testAuthenticate() {
+    new Student("Student-01", "Tester", "1", "test1@hawaii.edu", "secret").save();
+    assertEquals("Log in by ID", "Student-01", Student.authenticate("Student-01", "secret")
+        .getStudentId());
+    assertEquals("Log in by e-mail", "Student-01",
+        Student.authenticate("test1@hawaii.edu", "secret").getStudentId());
+    assertEquals("Wrong password", null, Student.authenticate("Student-01", "wrong"));
+    new Student("Student-02", "Tester", "2", "Student-01", "secret").save();
+    assertEquals("ID takes precedence", "Student-01", Student.authenticate("Student-01", "secret")
+        .getStudentId());
+
+    long hits = Student.principals().getHits();
+    assertEquals("Cached principal", "Student-01", Student.principals().get("Student-01")
+        .getStudentId());
+    assertEquals("Principal cache hit", hits + 1, Student.principals().getHits());
+  }
+
+  /**
+   * Test that the {@link BookImporter} imports valid rows and reports the invalid ones.
+   * 
+   * @throws IOException If the input cannot be read.
+   */
+  @Test
+  public void testBookImporter() throws IOException {
+    new Book("123412321", "Test Book 1", "Dude", "UHM Publishing", 50.32).save();
+
+    String csv =
+        "isbn,name,authors,publisher,price,edition\n"
+            + "934323421,Test Book 2,\"Chick, Dude\",UHM Publishing,100.99,4\n"
+            + "123412321,Duplicate Book,Dude,UHM Publishing,10.00,\n"
+            + "555555555,,Dude,UHM Publishing,10.00,\n"
+            + "666666666,Test Book 3,Dude,UHM Publishing,-1,\n"
+            + "934323421,Test Book 2,Chick,UHM Publishing,100.99,4\n";
+    BookImporter.Report report = BookImporter.importCsv(new StringReader(csv));
+    assertEquals("Imported rows", 1, report.getImported());
+    assertEquals("Rejected rows", 4, report.getErrors().size());
+
+    Book imported = Book.find().where().eq("isbn", "934323421").findUnique();
+    assertEquals("Imported authors", "Chick, Dude", imported.getAuthors());
+    assertEquals("Imported edition", 4, imported.getEdition());
+    assertEquals("Imported book indexed", 1, BookIndex.search("authors", "chick").size());
+
+    String json =
+        "{\"isbn\": \"777777777\", \"name\": \"Test Book 4\", \"authors\": \"Dude\", "
+            + "\"publisher\": \"UHM Publishing\", \"price\": 5.5}\n" + "not json\n";
+    report = BookImporter.importJsonLines(new StringReader(json));
+    assertEquals("Imported JSON rows", 1, report.getImported());
+    assertEquals("Rejected JSON rows", 1, report.getErrors().size());
+    assertEquals("Default edition", 1, Book.find().where().eq("isbn", "777777777").findUnique()
+        .getEdition());
+  }
+
+  /**
+   * Test that {@link SqlStats} counts the statements and rows of a request and its repeats.
+   * 
+   * @throws SQLException If the callable statement cannot be run.
+   */
+  @Test
+  public void testSqlStats() throws SQLException {
+    new Book("123412321", "Test Book 1", "Dude", "UHM Publishing", 50.32).save();
+    new Book("934323421", "Test Book 2", "Chick", "UHM Publishing", 100.99).save();
+
+    SqlStats.begin();
+    Book.find().findList();
+    SqlStats stats = SqlStats.end();
+    assertEquals("Statements", 1, stats.getStatements());
+    assertEquals("Rows", 2, stats.getRows());
+    assertEquals("Not repeating", false, stats.isRepeating());
+
+    SqlStats.begin();
+    for (int i = 0; i <= SqlStats.getRepeatThreshold(); i++) {
+      Book.find().where().eq("isbn", "123412321").findUnique();
+    }
+    stats = SqlStats.end();
+    assertEquals("Repeats", SqlStats.getRepeatThreshold() + 1, stats.getMaxRepeats());
+    assertEquals("Repeating", true, stats.isRepeating());
+    assertEquals("Not collecting", null, SqlStats.end());
+
+    Transaction transaction = Ebean.beginTransaction();
+    try (CallableStatement call = transaction.getConnection().prepareCall("call 1")) {
+      SqlStats.begin();
+      call.execute();
+      assertEquals("Callable statements", 1, SqlStats.end().getStatements());
+    }
+    finally {
+      Ebean.endTransaction();
+    }
+  }
+
+  /**
+   * Test that {@link WriteBehind} queues, inserts and replays new {@link Offer}s and
+   * {@link Request}s.
+   * 
+   * @throws IOException If the log cannot be written.
+   */
+  @Test
+  public void testWriteBehind() throws IOException {
+    Book book = new Book("123412321", "Test Book 1", "Dude", "UHM Publishing", 50.32);
+    Student student = new Student("Student-01", "Tester", "1", "test1@hawaii.edu", "password");
+    book.save();
+    student.save();
+
+    File log = File.createTempFile("writebehind", ".log");
+    try {
+      WriteBehind.start(log, 10, 5);
+      assertEquals("Queued offer", WriteBehind.Outcome.QUEUED,
+          WriteBehind.submit(new Offer("Offer-01", student, book, Condition.NEW, 20.00, 1)));
+      assertEquals("Duplicate offer", WriteBehind.Outcome.DUPLICATE,
+          WriteBehind.submit(new Offer("Offer-01", student, book, Condition.NEW, 10.00, 1)));
+      assertEquals("Queued request", WriteBehind.Outcome.QUEUED,
+          WriteBehind.submit(new Request("Request-01", student, book, 25.00, 1)));
+      WriteBehind.stop();
+      assertEquals("Durable offer", WriteBehind.Status.DURABLE,
+          WriteBehind.offerStatus("Offer-01"));
+      assertEquals("Inserted request", 1, Request.find().where().eq("requestId", "Request-01")
+          .findRowCount());
+      assertEquals("Truncated log", 0, log.length());
+      assertEquals("Unknown offer", WriteBehind.Status.UNKNOWN, WriteBehind.offerStatus("None"));
+      assertEquals("Saved after stop", WriteBehind.Outcome.SAVED,
+          WriteBehind.submit(new Request("Request-02", student, book, 30.00, 1)));
+      assertEquals("Inserted after stop", 1, Request.find().where().eq("requestId", "Request-02")
+          .findRowCount());
+
+      // An acknowledged Offer that was not inserted before a crash is replayed, and one that was
+      // is skipped.
+      Long inserted = Offer.find().where().eq("offerId", "Offer-01").findUnique().getPrimaryKey();
+      try (FileWriter writer = new FileWriter(log)) {
+        writer.write("offer\t" + inserted + "\tOffer-01\t" + student.getPrimaryKey() + "\t"
+            + book.getPrimaryKey() + "\tNEW\t20.0\t1\n");
+        writer.write("offer\t1000\tOffer-02\t" + student.getPrimaryKey() + "\t"
+            + book.getPrimaryKey() + "\tNEW\t15.0\t2\n");
+      }
+      WriteBehind.start(log, 10, 5);
+      WriteBehind.stop();
+      assertEquals("Replayed offer", 2, Offer.find().where().eq("offerId", "Offer-02")
+          .findUnique().getQuantity());
+      assertEquals("Skipped inserted offer", WriteBehind.Status.DURABLE,
+          WriteBehind.offerStatus("Offer-01"));
+    }
+    finally {
+      WriteBehind.stop();
+      log.delete();
+    }
+  }
+
+  /**
+   * Test that the {@link Journal} replays committed changes, before and after a snapshot, into an
+   * emptied database and that a snapshot can be loaded into a database that already holds it.
+   * 
+   * @throws IOException If the journal cannot be written.
+   * @throws SQLException If the journal cannot be replayed.
+   */
+  @Test
+  public void testJournal() throws IOException, SQLException {
+    File directory = File.createTempFile("journal", "");
+    directory.delete();
+    try {
+      Journal.start(directory, Journal.Fsync.ALWAYS, 100, 1 << 20, Long.MAX_VALUE);
+      Book book = new Book("123412321", "Test Book 1", "Dude", "UHM Publishing", 50.32);
+      Book deleted = new Book("934323421", "Test Book 2", "Chick", "UHM Publishing", 100.99, 4);
+      Student student = new Student("Student-01", "Tester", "1", "test1@hawaii.edu", "password");
+      book.save();
+      deleted.save();
+      student.save();
+      new Offer("Offer-01", student, book, Condition.NEW, 20.00, 1).save();
+      book.setPrice(45.00);
+      book.save();
+      deleted.delete();
+      assertEquals("Forced", true, Journal.getSyncs() > 0);
+      Journal.stop();
+
+      clearTables();
+      Journal.start(directory, Journal.Fsync.ALWAYS, 100, 1 << 20, Long.MAX_VALUE);
+      assertEquals("Replayed update", 45.00, Book.find().where().eq("isbn", "123412321")
+          .findUnique().getPrice(), 0.001);
+      assertEquals("Replayed delete", 0, Book.find().where().eq("isbn", "934323421")
+          .findRowCount());
+      assertEquals("Replayed offer", book.getPrimaryKey(), Offer.find().where()
+          .eq("offerId", "Offer-01").findUnique().getBook().getPrimaryKey());
+
+      Journal.snapshot();
+      new Student("Student-02", "Tester", "2", "test2@hawaii.edu", "password").save();
+      Journal.stop();
+      assertEquals("Compacted", 2, directory.list().length);
+
+      clearTables();
+      Journal.start(directory, Journal.Fsync.NEVER, 100, 1 << 20, Long.MAX_VALUE);
+      assertEquals("Snapshot", 1, Book.find().findRowCount());
+      assertEquals("After snapshot", 2, Student.find().findRowCount());
+
+      // A snapshot loaded into a database that already holds its rows is merged with them.
+      Journal.stop();
+      Journal.start(directory, Journal.Fsync.NEVER, 100, 1 << 20, Long.MAX_VALUE);
+      assertEquals("Merged snapshot", 2, Student.find().findRowCount());
+      Book next = new Book("0-306-40615-2", "Test Book 3", "Dude", "UHM Publishing", 10.00);
+      next.save();
+      assertEquals("Restarted sequence", true, next.getPrimaryKey() > book.getPrimaryKey());
+    }
+    finally {
+      Journal.stop();
+      for (File file : directory.listFiles()) {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  /**
+   * Deletes every row without journaling the deletes.
+   */
+  private static void clearTables() {
+    Ebean.createSqlUpdate("delete from offer").execute();
+    Ebean.createSqlUpdate("delete from request").execute();
+    Ebean.createSqlUpdate("delete from book").execute();
+    Ebean.createSqlUpdate("delete from student").execute();
+  }
 }
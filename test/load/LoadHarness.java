@@ -0,0 +1,303 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package load;
+
+import static play.mvc.Http.Status.SERVICE_UNAVAILABLE;
+import static play.test.Helpers.routeAndCall;
+import static play.test.Helpers.status;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import models.Book;
+import models.Offer;
+import models.Student;
+import play.libs.Crypto;
+import play.mvc.Result;
+import controllers.Condition;
+
+/**
+ * Replays a {@link Scenario} against the real routes of a running (fake) application from many
+ * threads at once and reports the throughput and latency percentiles of each route. Requests are
+ * dispatched with {@link play.test.Helpers#routeAndCall}, so they go through
+ * <code>conf/routes</code> exactly like requests from a browser.
+ *
+ * @author Christopher Foo
+ *
+ */
+public class LoadHarness {
+
+  /**
+   * The latencies and statuses of the requests sent for one route.
+   */
+  public static final class RouteStats {
+
+    /**
+     * The number of requests sent.
+     */
+    private int count;
+
+    /**
+     * The number of responses with a 5xx status, other than a 503, or that threw an exception.
+     */
+    private int errors;
+
+    /**
+     * The latency of each request in nanoseconds.
+     */
+    private long[] latencies = new long[1024];
+
+    /**
+     * The number of requests shed with a 503 because the database pool was saturated.
+     */
+    private int shed;
+
+    /**
+     * Records a request.
+     *
+     * @param nanos The latency of the request in nanoseconds.
+     * @param error True if the request failed.
+     * @param rejected True if the request was shed.
+     */
+    private synchronized void record(long nanos, boolean error, boolean rejected) {
+      if (this.count == this.latencies.length) {
+        this.latencies = Arrays.copyOf(this.latencies, this.count * 2);
+      }
+      this.latencies[this.count++] = nanos;
+      if (error) {
+        this.errors++;
+      }
+      if (rejected) {
+        this.shed++;
+      }
+    }
+
+    /**
+     * Gets the number of requests sent.
+     *
+     * @return The number of requests.
+     */
+    public synchronized int getCount() {
+      return this.count;
+    }
+
+    /**
+     * Gets the number of requests that failed with a 5xx status, other than a 503, or an
+     * exception.
+     *
+     * @return The number of errors.
+     */
+    public synchronized int getErrors() {
+      return this.errors;
+    }
+
+    /**
+     * Gets the given percentile of the latencies.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @param unit The unit of the returned latency.
+     * @return The latency or 0 if no requests were sent.
+     */
+    public synchronized long getPercentile(double percentile, TimeUnit unit) {
+      if (this.count == 0) {
+        return 0;
+      }
+      long[] sorted = Arrays.copyOf(this.latencies, this.count);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile / 100 * this.count) - 1;
+      return unit.convert(sorted[Math.max(0, index)], TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets the number of requests shed with a 503 because the database pool was saturated.
+     * Shedding is the intended response to overload, so these are not counted as errors.
+     *
+     * @return The number of shed requests.
+     */
+    public synchronized int getShed() {
+      return this.shed;
+    }
+  }
+
+  /**
+   * The wall clock time taken by the last run in nanoseconds.
+   */
+  private long elapsed;
+
+  /**
+   * The scenario to run.
+   */
+  private final Scenario scenario;
+
+  /**
+   * The number of requests sent so far, used to give new models unique IDs.
+   */
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * The statistics of each route.
+   */
+  private final Map<Operation, RouteStats> stats = new EnumMap<>(Operation.class);
+
+  /**
+   * Creates a new {@link LoadHarness}.
+   *
+   * @param scenario The scenario to run.
+   */
+  public LoadHarness(Scenario scenario) {
+    this.scenario = scenario;
+    for (Operation operation : scenario.getMix().keySet()) {
+      this.stats.put(operation, new RouteStats());
+    }
+  }
+
+  /**
+   * Gets the statistics of each route in the last run.
+   *
+   * @return The statistics.
+   */
+  public Map<Operation, RouteStats> getStats() {
+    return this.stats;
+  }
+
+  /**
+   * Gets a table of the throughput and latency of each route in the last run.
+   *
+   * @return The report.
+   */
+  public String report() {
+    double seconds = Math.max(1, this.elapsed) / 1e9;
+    StringBuilder report = new StringBuilder();
+    report.append(String.format("%-24s %8s %7s %7s %10s %9s %9s %9s%n", "Route", "Requests",
+        "Errors", "Shed", "Req/s", "p50 ms", "p95 ms", "p99 ms"));
+    for (Map.Entry<Operation, RouteStats> entry : this.stats.entrySet()) {
+      RouteStats route = entry.getValue();
+      report.append(String.format("%-24s %8d %7d %7d %10.1f %9.2f %9.2f %9.2f%n", entry.getKey()
+          .getRoute(), route.getCount(), route.getErrors(), route.getShed(),
+          route.getCount() / seconds, millis(route, 50), millis(route, 95), millis(route, 99)));
+    }
+    report.append(String.format("%d users in %.1f s%n", this.scenario.getUsers(), seconds));
+    return report.toString();
+  }
+
+  /**
+   * Sends the {@link Scenario}'s requests from {@link Scenario#getUsers()} threads, all of which
+   * start at the same time.
+   *
+   * @throws InterruptedException If interrupted while waiting for the users to finish.
+   */
+  public void run() throws InterruptedException {
+    int users = this.scenario.getUsers();
+    ExecutorService executor = Executors.newFixedThreadPool(users);
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(users);
+    for (int i = 0; i < users; i++) {
+      final Random random = new Random(i);
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int j = 0; j < LoadHarness.this.scenario.getRequestsPerUser(); j++) {
+              send(LoadHarness.this.scenario.pick(random), random);
+            }
+          }
+          catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          finally {
+            done.countDown();
+          }
+        }
+      });
+    }
+
+    long begin = System.nanoTime();
+    start.countDown();
+    done.await();
+    this.elapsed = System.nanoTime() - begin;
+    executor.shutdown();
+  }
+
+  /**
+   * Loads the {@link Scenario}'s dataset into the database.
+   */
+  public void seed() {
+    List<Book> books = new ArrayList<>();
+    for (int i = 0; i < this.scenario.getBooks(); i++) {
+      Book book =
+          new Book(Operation.isbn(i), "Load Test Book " + i, "Load Tester", "UHM Publishing",
+              20.00 + i % 50);
+      book.save();
+      books.add(book);
+    }
+    List<Student> students = new ArrayList<>();
+    String password = Crypto.encryptAES(Operation.PASSWORD);
+    for (int i = 0; i < this.scenario.getStudents(); i++) {
+      Student student =
+          new Student(Operation.studentId(i), "Load", "Tester " + i, "load" + i + "@hawaii.edu",
+              password);
+      student.save();
+      students.add(student);
+    }
+    for (int i = 0; i < this.scenario.getOffers(); i++) {
+      new Offer(Operation.offerId(i), students.get(i % students.size()), books.get(i
+          % books.size()), Condition.SLIGHTLY_USED, 10.00 + i % 20, 1).save();
+    }
+  }
+
+  /**
+   * Gets the given latency percentile of the given route in milliseconds.
+   *
+   * @param route The route's statistics.
+   * @param percentile The percentile.
+   * @return The latency in milliseconds.
+   */
+  private static double millis(RouteStats route, double percentile) {
+    return route.getPercentile(percentile, TimeUnit.MICROSECONDS) / 1000.0;
+  }
+
+  /**
+   * Sends one request for the given {@link Operation} and records its latency.
+   *
+   * @param operation The Operation.
+   * @param random The user's source of randomness.
+   */
+  private void send(Operation operation, Random random) {
+    long begin = System.nanoTime();
+    boolean error;
+    boolean shed = false;
+    try {
+      Result result =
+          routeAndCall(operation.request(this.scenario, random, this.sequence.incrementAndGet()));
+      shed = (result != null) && status(result) == SERVICE_UNAVAILABLE;
+      error = (result == null) || (status(result) >= 500 && !shed);
+    }
+    catch (RuntimeException e) {
+      error = true;
+    }
+    this.stats.get(operation).record(System.nanoTime() - begin, error, shed);
+  }
+}
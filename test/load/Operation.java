@@ -0,0 +1,230 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package load;
+
+import static play.test.Helpers.GET;
+import static play.test.Helpers.POST;
+import static play.test.Helpers.fakeRequest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import play.test.FakeRequest;
+
+/**
+ * The routes in <code>conf/routes</code> that a load test {@link Scenario} can send, each with
+ * the request it sends. Requests refer to the models loaded by {@link LoadHarness#seed()} and
+ * POSTs use a unique sequence number for the IDs they create.
+ *
+ * @author Christopher Foo
+ *
+ */
+public enum Operation {
+
+  /**
+   * GET /api/v1/books.
+   */
+  API_BOOKS("GET /api/v1/books") {
+    @Override
+    FakeRequest request(Scenario scenario, Random random, long sequence) {
+      return fakeRequest(GET, "/api/v1/books?fields=isbn,name,price");
+    }
+  },
+
+  /**
+   * GET /books/:isbn.
+   */
+  BOOK_DETAILS("GET /books/:isbn") {
+    @Override
+    FakeRequest request(Scenario scenario, Random random, long sequence) {
+      return fakeRequest(GET, "/books/" + isbn(random.nextInt(scenario.getBooks())));
+    }
+  },
+
+  /**
+   * GET /books/dummy.
+   */
+  BOOK_INDEX("GET /books/dummy") {
+    @Override
+    FakeRequest request(Scenario scenario, Random random, long sequence) {
+      return fakeRequest(GET, "/books/dummy");
+    }
+  },
+
+  /**
+   * POST /, logging in with a Student's ID.
+   */
+  LOGIN("POST /") {
+    @Override
+    FakeRequest request(Scenario scenario, Random random, long sequence) {
+      Map<String, String> data = new HashMap<>();
+      data.put("email", studentId(random.nextInt(scenario.getStudents())));
+      data.put("password", PASSWORD);
+      return fakeRequest(POST, "/").withFormUrlEncodedBody(data);
+    }
+  },
+
+  /**
+   * POST /addbook.
+   */
+  NEW_BOOK("POST /addbook") {
+    @Override
+    FakeRequest request(Scenario scenario, Random random, long sequence) {
+      Map<String, String> data = new HashMap<>();
+      data.put("isbn", "LT-NEW-" + sequence);
+      data.put("name", "Load Test Book " + sequence);
+      data.put("authors", "Load Tester");
+      data.put("publisher", "UHM Publishing");
+      data.put("price", "19.99");
+      return fakeRequest(POST, "/addbook").withFormUrlEncodedBody(data);
+    }
+  },
+
+  /**
+   * POST /offers.
+   */
+  NEW_OFFER("POST /offers") {
+    @Override
+    FakeRequest request(Scenario scenario, Random random, long sequence) {
+      return fakeRequest(POST, "/offers").withFormUrlEncodedBody(
+          order("offerId", "LT-NEW-Offer-" + sequence, scenario, random));
+    }
+  },
+
+  /**
+   * POST /requests.
+   */
+  NEW_REQUEST("POST /requests") {
+    @Override
+    FakeRequest request(Scenario scenario, Random random, long sequence) {
+      return fakeRequest(POST, "/requests").withFormUrlEncodedBody(
+          order("requestId", "LT-NEW-Request-" + sequence, scenario, random));
+    }
+  },
+
+  /**
+   * GET /offers.
+   */
+  OFFER_INDEX("GET /offers") {
+    @Override
+    FakeRequest request(Scenario scenario, Random random, long sequence) {
+      return fakeRequest(GET, "/offers");
+    }
+  },
+
+  /**
+   * POST /books, searching by name.
+   */
+  SEARCH("POST /books") {
+    @Override
+    FakeRequest request(Scenario scenario, Random random, long sequence) {
+      Map<String, String> data = new HashMap<>();
+      data.put("name", "Book " + random.nextInt(scenario.getBooks()));
+      return fakeRequest(POST, "/books").withFormUrlEncodedBody(data);
+    }
+  };
+
+  /**
+   * The unencrypted password of the loaded {@link models.Student}s.
+   */
+  public static final String PASSWORD = "password";
+
+  /**
+   * Gets the ISBN of the loaded {@link models.Book} with the given index.
+   *
+   * @param index The index of the Book.
+   * @return The ISBN.
+   */
+  public static String isbn(int index) {
+    return String.format("LT-%06d", index);
+  }
+
+  /**
+   * Gets the ID of the loaded {@link models.Offer} with the given index.
+   *
+   * @param index The index of the Offer.
+   * @return The ID.
+   */
+  public static String offerId(int index) {
+    return String.format("LT-Offer-%06d", index);
+  }
+
+  /**
+   * Gets the ID of the loaded {@link models.Student} with the given index.
+   *
+   * @param index The index of the Student.
+   * @return The ID.
+   */
+  public static String studentId(int index) {
+    return String.format("LT-Student-%06d", index);
+  }
+
+  /**
+   * Creates the form data of a new {@link models.Offer} or {@link models.Request} for a random
+   * loaded Student and Book.
+   *
+   * @param idField The name of the ID field.
+   * @param id The ID.
+   * @param scenario The scenario being run.
+   * @param random The source of randomness.
+   * @return The form data.
+   */
+  private static Map<String, String> order(String idField, String id, Scenario scenario,
+      Random random) {
+    Map<String, String> data = new HashMap<>();
+    data.put(idField, id);
+    data.put("student", studentId(random.nextInt(scenario.getStudents())));
+    data.put("book", isbn(random.nextInt(scenario.getBooks())));
+    data.put("condition", "S");
+    data.put("price", String.format("%d.99", 5 + random.nextInt(30)));
+    data.put("quantity", "1");
+    return data;
+  }
+
+  /**
+   * The route that this {@link Operation} sends, used when reporting.
+   */
+  private final String route;
+
+  /**
+   * Creates a new {@link Operation}.
+   *
+   * @param route The route that the Operation sends.
+   */
+  private Operation(String route) {
+    this.route = route;
+  }
+
+  /**
+   * Gets the route that this {@link Operation} sends.
+   *
+   * @return The route.
+   */
+  public String getRoute() {
+    return this.route;
+  }
+
+  /**
+   * Creates the request sent by this {@link Operation}.
+   *
+   * @param scenario The scenario being run.
+   * @param random The source of randomness.
+   * @param sequence A number unique to this request, used for the IDs of new models.
+   * @return The request.
+   */
+  abstract FakeRequest request(Scenario scenario, Random random, long sequence);
+}
@@ -0,0 +1,200 @@
+/*
+ *   Copyright (C) 2013  Christopher Foo
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package load;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * A load test scenario: the number of concurrent users, the size of the dataset loaded before the
+ * run and the mix of {@link Operation}s sent by the users. Scenarios are read from properties
+ * files such as <code>test/load/default.properties</code>, with the mix given as
+ * <code>mix.&lt;operation&gt;=&lt;weight&gt;</code> entries.
+ *
+ * @author Christopher Foo
+ *
+ */
+public class Scenario {
+
+  /**
+   * Loads the {@link Scenario} in the given properties file.
+   *
+   * @param path The path of the file.
+   * @return The Scenario.
+   * @throws IOException If the file could not be read.
+   */
+  public static Scenario load(String path) throws IOException {
+    Properties properties = new Properties();
+    try (InputStream input = new FileInputStream(path)) {
+      properties.load(input);
+    }
+    return new Scenario(properties);
+  }
+
+  /**
+   * The number of {@link models.Book}s loaded before the run.
+   */
+  private final int books;
+
+  /**
+   * The weight of each {@link Operation} in the mix.
+   */
+  private final Map<Operation, Integer> mix = new LinkedHashMap<>();
+
+  /**
+   * The number of {@link models.Offer}s loaded before the run.
+   */
+  private final int offers;
+
+  /**
+   * The number of requests sent by each user.
+   */
+  private final int requestsPerUser;
+
+  /**
+   * The number of {@link models.Student}s loaded before the run.
+   */
+  private final int students;
+
+  /**
+   * The sum of the weights in the {@link #mix}.
+   */
+  private final int totalWeight;
+
+  /**
+   * The number of concurrent users.
+   */
+  private final int users;
+
+  /**
+   * Creates a new {@link Scenario} from the given properties.
+   *
+   * @param properties The properties.
+   */
+  public Scenario(Properties properties) {
+    this.users = getInt(properties, "users", 200);
+    this.requestsPerUser = getInt(properties, "requestsPerUser", 50);
+    this.books = Math.max(1, getInt(properties, "books", 1000));
+    this.students = Math.max(1, getInt(properties, "students", 200));
+    this.offers = getInt(properties, "offers", 500);
+
+    int total = 0;
+    for (Operation operation : Operation.values()) {
+      int weight = getInt(properties, "mix." + operation.name(), 0);
+      if (weight > 0) {
+        this.mix.put(operation, weight);
+        total += weight;
+      }
+    }
+    if (total == 0) {
+      throw new IllegalArgumentException("The scenario's mix is empty.");
+    }
+    this.totalWeight = total;
+  }
+
+  /**
+   * Gets the number of {@link models.Book}s loaded before the run.
+   *
+   * @return The number of Books.
+   */
+  public int getBooks() {
+    return this.books;
+  }
+
+  /**
+   * Gets the weight of each {@link Operation} in the mix.
+   *
+   * @return The weights.
+   */
+  public Map<Operation, Integer> getMix() {
+    return Collections.unmodifiableMap(this.mix);
+  }
+
+  /**
+   * Gets the number of {@link models.Offer}s loaded before the run.
+   *
+   * @return The number of Offers.
+   */
+  public int getOffers() {
+    return this.offers;
+  }
+
+  /**
+   * Gets the number of requests sent by each user.
+   *
+   * @return The number of requests.
+   */
+  public int getRequestsPerUser() {
+    return this.requestsPerUser;
+  }
+
+  /**
+   * Gets the number of {@link models.Student}s loaded before the run.
+   *
+   * @return The number of Students.
+   */
+  public int getStudents() {
+    return this.students;
+  }
+
+  /**
+   * Gets the number of concurrent users.
+   *
+   * @return The number of users.
+   */
+  public int getUsers() {
+    return this.users;
+  }
+
+  /**
+   * Picks an {@link Operation} from the mix according to the weights.
+   *
+   * @param random The source of randomness.
+   * @return The Operation.
+   */
+  public Operation pick(Random random) {
+    int choice = random.nextInt(this.totalWeight);
+    for (Map.Entry<Operation, Integer> entry : this.mix.entrySet()) {
+      choice -= entry.getValue();
+      if (choice < 0) {
+        return entry.getKey();
+      }
+    }
+    throw new IllegalStateException("The weights do not add up.");
+  }
+
+  /**
+   * Gets the integer property with the given name.
+   *
+   * @param properties The properties.
+   * @param name The name of the property.
+   * @param defaultValue The value used if the property is missing.
+   * @return The value of the property.
+   */
+  private static int getInt(Properties properties, String name, int defaultValue) {
+    String value = properties.getProperty(name);
+    return (value == null || value.trim().length() == 0) ? defaultValue : Integer.parseInt(value
+        .trim());
+  }
+}